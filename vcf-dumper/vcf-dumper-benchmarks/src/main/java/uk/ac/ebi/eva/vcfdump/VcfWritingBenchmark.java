@@ -0,0 +1,162 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump;
+
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.variantcontext.writer.Options;
+import htsjdk.variant.variantcontext.writer.VariantContextWriter;
+import htsjdk.variant.variantcontext.writer.VariantContextWriterBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.ac.ebi.eva.commons.core.models.ws.VariantWithSamplesAndAnnotation;
+import uk.ac.ebi.eva.vcfdump.benchmarks.VariantFixture;
+import uk.ac.ebi.eva.vcfdump.bgzfutils.ParallelBlockCompressedOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Writing of the VCF lines of an export, in variants per second, with htsjdk's writer and with the direct encoding of
+ * {@link VcfLineEncoder}, optionally compressed in BGZF format. The output is discarded, so only the encoding and the
+ * compression are measured.
+ *
+ * This benchmark is in the package of the exporter because the direct encoding is not public.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class VcfWritingBenchmark {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    @Param({"false", "true"})
+    private boolean compress;
+
+    private List<VariantContext> variantContexts;
+
+    private VcfLineEncoder vcfLineEncoder;
+
+    private DiscardingOutputStream discardingOutputStream;
+
+    private OutputStream outputStream;
+
+    private VariantContextWriter variantContextWriter;
+
+    @Setup
+    public void setUp(VariantFixture fixture) {
+        VariantToVariantContextConverter converter = fixture.getConverter();
+        variantContexts = fixture.getVariants().stream().map(converter::transform).collect(Collectors.toList());
+        vcfLineEncoder = new VcfLineEncoder(converter);
+    }
+
+    @Setup(Level.Iteration)
+    public void openOutput(VariantFixture fixture) {
+        discardingOutputStream = new DiscardingOutputStream();
+        outputStream = compress ? new ParallelBlockCompressedOutputStream(discardingOutputStream, -1, 1)
+                                : discardingOutputStream;
+        // the direct encoding writes into a buffered stream, as VcfLineOutput does
+        outputStream = new BufferedOutputStream(outputStream, BUFFER_SIZE);
+        variantContextWriter = new VariantContextWriterBuilder().setOutputVCFStream(outputStream)
+                                                                .unsetOption(Options.INDEX_ON_THE_FLY)
+                                                                .build();
+        variantContextWriter.writeHeader(fixture.getHeader());
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeOutput() {
+        variantContextWriter.close();
+    }
+
+    /**
+     * Writing of VariantContexts that are already converted
+     */
+    @Benchmark
+    @OperationsPerInvocation(VariantFixture.VARIANTS)
+    public long writeVariantContexts() {
+        for (VariantContext variantContext : variantContexts) {
+            variantContextWriter.add(variantContext);
+        }
+        return discardingOutputStream.getBytes();
+    }
+
+    /**
+     * Conversion and writing of the variants with htsjdk, as an export does by default
+     */
+    @Benchmark
+    @OperationsPerInvocation(VariantFixture.VARIANTS)
+    public long convertAndWriteVariantContexts(VariantFixture fixture) {
+        VariantToVariantContextConverter converter = fixture.getConverter();
+        for (VariantWithSamplesAndAnnotation variant : fixture.getVariants()) {
+            variantContextWriter.add(converter.transform(variant));
+        }
+        return discardingOutputStream.getBytes();
+    }
+
+    /**
+     * Encoding and writing of the variants without VariantContexts, as an export does with
+     * 'eva.export.direct-vcf-encoding'
+     */
+    @Benchmark
+    @OperationsPerInvocation(VariantFixture.VARIANTS)
+    public long encodeAndWriteVcfLines(VariantFixture fixture) throws IOException {
+        for (VariantWithSamplesAndAnnotation variant : fixture.getVariants()) {
+            outputStream.write(vcfLineEncoder.encode(variant).getBytes());
+        }
+        return discardingOutputStream.getBytes();
+    }
+
+    /**
+     * Counts the bytes written into it and discards them
+     */
+    private static class DiscardingOutputStream extends OutputStream {
+
+        private long bytes;
+
+        @Override
+        public void write(int b) {
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes += len;
+        }
+
+        long getBytes() {
+            return bytes;
+        }
+    }
+}
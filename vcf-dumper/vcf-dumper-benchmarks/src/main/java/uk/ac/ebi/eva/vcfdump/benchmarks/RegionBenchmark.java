@@ -0,0 +1,97 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.ac.ebi.eva.commons.core.models.Region;
+import uk.ac.ebi.eva.vcfdump.regionutils.RegionFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Division of the chromosomes in the windows queried by an export, and grouping of the region lists of the batch
+ * endpoint, in operations per second. Neither of them needs the database.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RegionBenchmark {
+
+    private static final long SEED = 42;
+
+    private static final int MAX_REGION_LENGTH = 5000;
+
+    @Param({"1000", "10000"})
+    private int windowSize;
+
+    /**
+     * Length of the chromosome divided in windows. The default is the length of human chromosome 1
+     */
+    @Param({"249250621"})
+    private long chromosomeLength;
+
+    /**
+     * Number of regions in the region list, like the loci of a gene panel
+     */
+    @Param({"10000"})
+    private int regions;
+
+    @Param({"100"})
+    private int maxRegionsPerQuery;
+
+    private RegionFactory regionFactory;
+
+    private List<Region> regionList;
+
+    @Setup
+    public void setUp() {
+        regionFactory = new RegionFactory(windowSize, null);
+        Random random = new Random(SEED);
+        regionList = new ArrayList<>(regions);
+        for (int i = 0; i < regions; i++) {
+            String chromosome = Integer.toString(1 + random.nextInt(22));
+            long start = 1 + (long) (random.nextDouble() * (chromosomeLength - MAX_REGION_LENGTH));
+            regionList.add(new Region(chromosome, start, start + random.nextInt(MAX_REGION_LENGTH)));
+        }
+    }
+
+    @Benchmark
+    public List<Region> divideRegionInChunks() {
+        return regionFactory.divideRegionInChunks(SyntheticVariants.CHROMOSOME, 1, chromosomeLength);
+    }
+
+    @Benchmark
+    public List<List<Region>> groupRegionsInQueries() {
+        return regionFactory.groupRegionsInQueries(regionList, maxRegionsPerQuery);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.benchmarks;
+
+import htsjdk.variant.vcf.VCFHeader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.ac.ebi.eva.commons.core.models.VariantSource;
+import uk.ac.ebi.eva.vcfdump.VariantExporter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Detection of the sample names shared by several files, and merge of the header of those files, with as many
+ * samples as a large export. Half of the samples of every file have the same names in all the files. The results are
+ * in milliseconds per header
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SampleNameConflictBenchmark {
+
+    private static final String VCF_HEADER = "##fileformat=VCFv4.1\n#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\n";
+
+    @Param({"12"})
+    private int files;
+
+    @Param({"10000"})
+    private int samplesPerFile;
+
+    private List<VariantSource> sources;
+
+    @Setup
+    public void setUp() {
+        sources = new ArrayList<>(files);
+        for (int file = 0; file < files; file++) {
+            Map<String, Integer> samplesPosition = new HashMap<>();
+            for (int sample = 0; sample < samplesPerFile; sample++) {
+                samplesPosition.put(sample % 2 == 0 ? "shared_" + sample : "file" + file + "_" + sample, sample);
+            }
+            sources.add(new VariantSource("file_" + file, "file_" + file + ".vcf.gz", "study_" + file,
+                                          "Study " + file, null, null, null, samplesPosition,
+                                          Collections.singletonMap(VariantExporter.HEADER, VCF_HEADER), null));
+        }
+    }
+
+    @Benchmark
+    public Set<String> findConflictingSampleNames() {
+        return new VariantExporter(true).findConflictingSampleNames(sources);
+    }
+
+    @Benchmark
+    public VCFHeader getMergedVcfHeader() throws IOException {
+        VariantExporter exporter = new VariantExporter(true);
+        exporter.createNonConflictingSampleNames(sources);
+        return exporter.getMergedVcfHeader(sources);
+    }
+}
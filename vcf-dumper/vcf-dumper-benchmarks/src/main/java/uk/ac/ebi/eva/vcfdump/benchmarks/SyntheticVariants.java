@@ -0,0 +1,246 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.benchmarks;
+
+import uk.ac.ebi.eva.commons.core.models.Annotation;
+import uk.ac.ebi.eva.commons.core.models.ConsequenceType;
+import uk.ac.ebi.eva.commons.core.models.IConsequenceType;
+import uk.ac.ebi.eva.commons.core.models.VariantSource;
+import uk.ac.ebi.eva.commons.core.models.factories.VariantGenotypedVcfFactory;
+import uk.ac.ebi.eva.commons.core.models.factories.VariantVcfFactory;
+import uk.ac.ebi.eva.commons.core.models.pipeline.Variant;
+import uk.ac.ebi.eva.commons.core.models.pipeline.VariantSourceEntry;
+import uk.ac.ebi.eva.commons.core.models.ws.VariantSourceEntryWithSampleNames;
+import uk.ac.ebi.eva.commons.core.models.ws.VariantWithSamplesAndAnnotation;
+import uk.ac.ebi.eva.vcfdump.VariantExporter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Synthetic variants and sources of several studies, so the export can be benchmarked without a database.
+ *
+ * The variants are created from VCF lines by the same factory the EVA pipeline uses to load them, so the indels are
+ * normalized and keep their source line, which the converter needs to add their context nucleotide back. Every study
+ * has its own samples and a VCF header in its metadata, and the genotypes are mostly homozygous for the reference, as
+ * in most real studies. The same seed always creates the same variants.
+ */
+public class SyntheticVariants {
+
+    public static final String CHROMOSOME = "1";
+
+    private static final String[] BASES = {"A", "C", "G", "T"};
+
+    /**
+     * Genotypes of the samples, repeated according to how often they are found
+     */
+    private static final String[] GENOTYPES = {"0|0", "0|0", "0|0", "0|0", "0|0", "0|0", "0|0", "0|0", "0|1", "1|0",
+            "1|1", "0/1", "./."};
+
+    /**
+     * Sequence Ontology accessions known by the CSQ field of the converter
+     */
+    private static final int[] SO_ACCESSIONS = {1624, 1894, 1907};
+
+    private static final int MAX_DISTANCE_BETWEEN_VARIANTS = 100;
+
+    private final int samplesPerStudy;
+
+    private final int studies;
+
+    private final double indelRatio;
+
+    private final int consequenceTypesPerVariant;
+
+    private final Random random;
+
+    private final VariantVcfFactory variantFactory;
+
+    private final List<List<String>> sampleNamesByStudy;
+
+    private final List<VariantSource> sources;
+
+    /**
+     * @param samplesPerStudy            number of samples of every study, none of them shared with other studies
+     * @param studies                    number of studies, each one with a single file
+     * @param indelRatio                 fraction of the variants that are insertions or deletions, from 0 to 1
+     * @param consequenceTypesPerVariant number of consequence types in the annotation of every variant. Use 0 for
+     *                                   variants without annotation
+     */
+    public SyntheticVariants(int samplesPerStudy, int studies, double indelRatio, int consequenceTypesPerVariant,
+                             long seed) {
+        if (samplesPerStudy < 1 || studies < 1) {
+            throw new IllegalArgumentException("There must be at least one study with one sample");
+        }
+        if (indelRatio < 0 || indelRatio > 1) {
+            throw new IllegalArgumentException("'indelRatio' must be between 0 and 1");
+        }
+        if (consequenceTypesPerVariant < 0) {
+            throw new IllegalArgumentException("'consequenceTypesPerVariant' can't be negative");
+        }
+        this.samplesPerStudy = samplesPerStudy;
+        this.studies = studies;
+        this.indelRatio = indelRatio;
+        this.consequenceTypesPerVariant = consequenceTypesPerVariant;
+        this.random = new Random(seed);
+        this.variantFactory = new VariantGenotypedVcfFactory();
+        this.sampleNamesByStudy = createSampleNames();
+        this.sources = createSources();
+    }
+
+    private List<List<String>> createSampleNames() {
+        List<List<String>> sampleNamesByStudy = new ArrayList<>(studies);
+        for (int study = 0; study < studies; study++) {
+            List<String> sampleNames = new ArrayList<>(samplesPerStudy);
+            for (int sample = 0; sample < samplesPerStudy; sample++) {
+                sampleNames.add("S" + study + "_" + sample);
+            }
+            sampleNamesByStudy.add(sampleNames);
+        }
+        return sampleNamesByStudy;
+    }
+
+    private List<VariantSource> createSources() {
+        List<VariantSource> sources = new ArrayList<>();
+        for (int study = 0; study < studies; study++) {
+            List<String> sampleNames = sampleNamesByStudy.get(study);
+            Map<String, Integer> samplesPosition = new HashMap<>();
+            for (int sample = 0; sample < sampleNames.size(); sample++) {
+                samplesPosition.put(sampleNames.get(sample), sample);
+            }
+            Map<String, Object> metadata = Collections.singletonMap(VariantExporter.HEADER,
+                                                                    createVcfHeader(sampleNames));
+            sources.add(new VariantSource(getFileId(study), "file_" + study + ".vcf.gz", getStudyId(study),
+                                          "Study " + study, null, null, null, samplesPosition, metadata, null));
+        }
+        return sources;
+    }
+
+    private String createVcfHeader(List<String> sampleNames) {
+        StringBuilder header = new StringBuilder();
+        header.append("##fileformat=VCFv4.1\n")
+              .append("##INFO=<ID=AC,Number=A,Type=Integer,Description=\"Allele count in genotypes\">\n")
+              .append("##INFO=<ID=AF,Number=A,Type=Float,Description=\"Allele frequency\">\n")
+              .append("##FILTER=<ID=LowQual,Description=\"Low quality\">\n")
+              .append("##FORMAT=<ID=GT,Number=1,Type=String,Description=\"Genotype\">\n")
+              .append("##contig=<ID=").append(CHROMOSOME).append(",length=249250621>\n")
+              .append("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT");
+        for (String sampleName : sampleNames) {
+            header.append('\t').append(sampleName);
+        }
+        return header.append('\n').toString();
+    }
+
+    public List<VariantSource> getSources() {
+        return sources;
+    }
+
+    /**
+     * @return variants of all the studies, sorted by position
+     */
+    public List<VariantWithSamplesAndAnnotation> createVariants(int count) {
+        List<VariantWithSamplesAndAnnotation> variants = new ArrayList<>(count);
+        long position = 1000;
+        for (int i = 0; i < count; i++) {
+            position += 1 + random.nextInt(MAX_DISTANCE_BETWEEN_VARIANTS);
+            variants.add(createVariant(position));
+        }
+        return variants;
+    }
+
+    private VariantWithSamplesAndAnnotation createVariant(long position) {
+        String[] alleles = createAlleles();
+        VariantWithSamplesAndAnnotation variant = null;
+        for (int study = 0; study < studies; study++) {
+            String line = createVcfLine(position, alleles[0], alleles[1]);
+            Variant studyVariant = variantFactory.create(getFileId(study), getStudyId(study), line).get(0);
+            List<String> sampleNames = sampleNamesByStudy.get(study);
+            if (variant == null) {
+                variant = new VariantWithSamplesAndAnnotation(studyVariant, sampleNames);
+            } else {
+                for (VariantSourceEntry sourceEntry : studyVariant.getSourceEntries()) {
+                    variant.addSourceEntry(new VariantSourceEntryWithSampleNames(sourceEntry, sampleNames));
+                }
+            }
+        }
+        if (consequenceTypesPerVariant > 0) {
+            variant.setAnnotation(createAnnotation(variant));
+        }
+        return variant;
+    }
+
+    /**
+     * @return reference and alternate alleles of an SNV, or of a deletion or insertion of 1 to 3 bases
+     */
+    private String[] createAlleles() {
+        String reference = randomBase();
+        if (random.nextDouble() >= indelRatio) {
+            String alternate = reference;
+            while (alternate.equals(reference)) {
+                alternate = randomBase();
+            }
+            return new String[]{reference, alternate};
+        }
+        StringBuilder indel = new StringBuilder(reference);
+        int indelLength = 1 + random.nextInt(3);
+        for (int i = 0; i < indelLength; i++) {
+            indel.append(randomBase());
+        }
+        return random.nextBoolean() ? new String[]{indel.toString(), reference}
+                                    : new String[]{reference, indel.toString()};
+    }
+
+    private String randomBase() {
+        return BASES[random.nextInt(BASES.length)];
+    }
+
+    private String createVcfLine(long position, String reference, String alternate) {
+        StringBuilder line = new StringBuilder();
+        line.append(CHROMOSOME).append('\t').append(position).append("\t.\t").append(reference).append('\t')
+            .append(alternate).append("\t100\tPASS\t.\tGT");
+        for (int sample = 0; sample < samplesPerStudy; sample++) {
+            line.append('\t').append(GENOTYPES[random.nextInt(GENOTYPES.length)]);
+        }
+        return line.toString();
+    }
+
+    private Annotation createAnnotation(VariantWithSamplesAndAnnotation variant) {
+        Set<IConsequenceType> consequenceTypes = new HashSet<>();
+        for (int i = 0; i < consequenceTypesPerVariant; i++) {
+            Set<Integer> soAccessions = Collections.singleton(SO_ACCESSIONS[i % SO_ACCESSIONS.length]);
+            consequenceTypes.add(new ConsequenceType("GENE" + i, "ENSG0000000000" + i,
+                                                     "ENST" + variant.getStart() + "_" + i, "+", "protein_coding",
+                                                     100 + i, 50 + i, 17 + i, "A/T", "gCt/gTt", null, null,
+                                                     soAccessions, 0));
+        }
+        return new Annotation(variant.getChromosome(), variant.getStart(), variant.getEnd(), "", "", null,
+                              consequenceTypes);
+    }
+
+    private String getStudyId(int study) {
+        return "study_" + study;
+    }
+
+    private String getFileId(int study) {
+        return "file_" + study;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.benchmarks;
+
+import htsjdk.variant.vcf.VCFHeader;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import uk.ac.ebi.eva.commons.core.models.VariantSource;
+import uk.ac.ebi.eva.commons.core.models.ws.VariantWithSamplesAndAnnotation;
+import uk.ac.ebi.eva.vcfdump.VariantExporter;
+import uk.ac.ebi.eva.vcfdump.VariantToVariantContextConverter;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Synthetic sources and variants shared by the benchmarks, with the merged header and the converter an export of
+ * those sources would use. The shape of the data can be changed from the command line, e.g. '-p samples=2504 -p
+ * studies=3'
+ */
+@State(Scope.Benchmark)
+public class VariantFixture {
+
+    /**
+     * Number of variants processed in every invocation of the benchmarks, see
+     * {@link org.openjdk.jmh.annotations.OperationsPerInvocation}
+     */
+    public static final int VARIANTS = 1000;
+
+    private static final long SEED = 42;
+
+    @Param({"100", "2500"})
+    private int samples;
+
+    @Param({"1"})
+    private int studies;
+
+    @Param({"0.1"})
+    private double indelRatio;
+
+    @Param({"3"})
+    private int consequenceTypes;
+
+    private List<VariantSource> sources;
+
+    private List<VariantWithSamplesAndAnnotation> variants;
+
+    private VCFHeader header;
+
+    private VariantToVariantContextConverter converter;
+
+    @Setup
+    public void setUp() throws IOException {
+        SyntheticVariants syntheticVariants = new SyntheticVariants(samples, studies, indelRatio, consequenceTypes,
+                                                                    SEED);
+        sources = syntheticVariants.getSources();
+        variants = syntheticVariants.createVariants(VARIANTS);
+
+        // the converter writes the genotypes in the order of the samples in the header, as in an export
+        VariantExporter exporter = new VariantExporter(isExcludeAnnotations());
+        Map<String, Map<String, String>> sampleNameCorrections = exporter.createNonConflictingSampleNames(sources);
+        header = exporter.getMergedVcfHeader(sources);
+        converter = new VariantToVariantContextConverter(sources, sampleNameCorrections,
+                                                         header.getGenotypeSamples(), isExcludeAnnotations());
+    }
+
+    public boolean isExcludeAnnotations() {
+        return consequenceTypes == 0;
+    }
+
+    public List<VariantSource> getSources() {
+        return sources;
+    }
+
+    public List<VariantWithSamplesAndAnnotation> getVariants() {
+        return variants;
+    }
+
+    public VCFHeader getHeader() {
+        return header;
+    }
+
+    public VariantToVariantContextConverter getConverter() {
+        return converter;
+    }
+}
@@ -17,24 +17,40 @@ package uk.ac.ebi.eva.vcfdump;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.ParameterException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.data.mongodb.core.MongoOperations;
 
 import uk.ac.ebi.eva.commons.mongodb.services.VariantSourceService;
 import uk.ac.ebi.eva.commons.mongodb.services.VariantWithSamplesAndAnnotationsService;
-
-import java.util.Properties;
+import uk.ac.ebi.eva.vcfdump.configuration.EvaProperties;
+import uk.ac.ebi.eva.vcfdump.metrics.ExportMetrics;
+import uk.ac.ebi.eva.vcfdump.metrics.MetricsJsonReport;
+import uk.ac.ebi.eva.vcfdump.services.ChromosomeExtentService;
+import uk.ac.ebi.eva.vcfdump.services.ChromosomeService;
+import uk.ac.ebi.eva.vcfdump.services.VariantCoordinatesService;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * The variant exporter tool allows to dump a valid VCF from a query against
  * the EVA database.
  * <p>
  * Mandatory arguments are: species, database name, studies and files
- * Optional arguments are: output directory
+ * Optional arguments are: output directory, number of threads, compression threads and level, and metrics report
+ * <p>
+ * The metrics of the export (query latency, variants converted, bytes written...) are logged in JSON when it
+ * finishes, and written to the metrics report file if one is given.
  */
 @SpringBootApplication
 public class VariantExportBootApplication implements CommandLineRunner {
@@ -49,6 +65,8 @@ public class VariantExportBootApplication implements CommandLineRunner {
     private VariantSourceService variantSourceService;
     @Autowired
     private VariantWithSamplesAndAnnotationsService variantService;
+    @Autowired
+    private MongoOperations mongoOperations;
 
     public VariantExportBootApplication() {
         command = new VariantExportCommand();
@@ -73,23 +91,55 @@ public class VariantExportBootApplication implements CommandLineRunner {
             System.exit(1);
         }
 
-        Properties evaProperties = new Properties();
-        evaProperties.load(VariantExportBootApplication.class.getResourceAsStream("/eva.properties"));
+        EvaProperties evaProperties = EvaProperties.load();
 
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        // a single pool for all the chromosomes, so the chromosome threads don't multiply the region threads
+        int parallelism = evaProperties.getInt(VariantExporterController.PARALLELISM_PROPERTY, 1);
+        ExecutorService regionExecutor = parallelism > 1 ? Executors.newFixedThreadPool(parallelism) : null;
+        long exportStart = System.nanoTime();
         try {
-            new VariantExporterController(
+            VariantExporterController controller = new VariantExporterController(
                     command.database,
                     variantSourceService,
                     variantService,
                     command.studies,
                     command.files,
                     command.outdir,
-                    evaProperties,
-                    new QueryParams()).run();
+                    evaProperties.getProperties(),
+                    new QueryParams());
+            controller.setVariantCoordinatesService(new VariantCoordinatesService(mongoOperations));
+            controller.setChromosomeService(new ChromosomeService(mongoOperations,
+                                                                  evaProperties.getChromosomesTimeToLive()));
+            controller.setChromosomeExtentService(new ChromosomeExtentService(mongoOperations));
+            controller.setChromosomeThreads(command.threads);
+            controller.setRegionExecutor(regionExecutor);
+            controller.setExportMetrics(new ExportMetrics(meterRegistry));
+            if (command.compressionThreads != null) {
+                controller.setCompressionThreads(command.compressionThreads);
+            }
+            if (command.compressionLevel != null) {
+                controller.setCompressionLevel(command.compressionLevel);
+            }
+            controller.run();
+            reportMetrics(meterRegistry, System.nanoTime() - exportStart);
         } catch (Exception e) {
             logger.error("Unsuccessful VCF export: {}", e.getMessage());
             logger.debug("Exception details: ", e);
             System.exit(1);
+        } finally {
+            if (regionExecutor != null) {
+                regionExecutor.shutdownNow();
+            }
+        }
+    }
+
+    private void reportMetrics(SimpleMeterRegistry meterRegistry, long exportNanos) throws IOException {
+        String report = MetricsJsonReport.toJson(meterRegistry, ExportMetrics.PREFIX, exportNanos / 1e9);
+        logger.info("VCF export metrics: {}", report);
+        if (command.metricsReport != null) {
+            Files.write(Paths.get(command.metricsReport), report.getBytes(StandardCharsets.UTF_8));
+            logger.info("VCF export metrics written to {}", command.metricsReport);
         }
     }
 
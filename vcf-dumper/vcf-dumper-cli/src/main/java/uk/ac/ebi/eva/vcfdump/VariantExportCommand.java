@@ -39,6 +39,20 @@ public class VariantExportCommand {
     @Parameter(names = "--files", required = true, description = "Comma-separated list of files to query")
     List<String> files;
 
+    @Parameter(names = "--threads", description = "Number of chromosomes exported at the same time",
+            validateValueWith = PositiveIntegerValidator.class)
+    int threads = 1;
+
+    @Parameter(names = "--compression-threads", description = "Number of threads compressing the output file",
+            validateValueWith = PositiveIntegerValidator.class)
+    Integer compressionThreads;
+
+    @Parameter(names = "--compression-level", description = "Compression level of the output file, from 0 to 9")
+    Integer compressionLevel;
+
+    @Parameter(names = "--metrics-report", description = "File where the metrics of the export are written in JSON",
+            validateValueWith = PathValidator.class)
+    String metricsReport;
 
     public static class PathValidator implements IValueValidator {
 
@@ -51,4 +65,14 @@ public class VariantExportCommand {
             }
         }
     }
+
+    public static class PositiveIntegerValidator implements IValueValidator<Integer> {
+
+        @Override
+        public void validate(String name, Integer value) throws ParameterException {
+            if (value < 1) {
+                throw new ParameterException("Parameter " + name + " must be greater than 0 (found " + value + ")");
+            }
+        }
+    }
 }
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.ebi.eva.commons.core.models.Region;
+import uk.ac.ebi.eva.commons.mongodb.filter.VariantRepositoryFilter;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Export whose regions are written one at a time when the caller asks for them, instead of all at once like in
+ * {@link VariantExporterController#run}. The caller can stop between two regions while the destination of the export
+ * is not ready to receive more data, without keeping a thread waiting for it.
+ *
+ * The export is not thread safe, but its regions can be exported by different threads as long as they don't do it at
+ * the same time.
+ */
+public class IncrementalVcfExport {
+
+    private static final Logger logger = LoggerFactory.getLogger(IncrementalVcfExport.class);
+
+    private final VcfOutput<?> output;
+
+    private final Iterator<String> chromosomes;
+
+    private final Function<String, List<Region>> regionsOfChromosome;
+
+    private final List<VariantRepositoryFilter> filters;
+
+    private final BiConsumer<Integer, Integer> exportSummary;
+
+    private final Runnable onClose;
+
+    private Iterator<Region> regions;
+
+    private boolean closed;
+
+    IncrementalVcfExport(VcfOutput<?> output, Iterator<String> chromosomes,
+                         Function<String, List<Region>> regionsOfChromosome, List<VariantRepositoryFilter> filters,
+                         BiConsumer<Integer, Integer> exportSummary, Runnable onClose) {
+        this.output = output;
+        this.chromosomes = chromosomes;
+        this.regionsOfChromosome = regionsOfChromosome;
+        this.filters = filters;
+        this.exportSummary = exportSummary;
+        this.onClose = onClose;
+        this.regions = Collections.emptyIterator();
+    }
+
+    /**
+     * Writes the variants of the next region into the output. The regions of a chromosome are planned when the export
+     * reaches it.
+     *
+     * @return false if all the regions had been exported already
+     */
+    public boolean exportNextRegion() {
+        if (closed) {
+            throw new IllegalStateException("The export is closed");
+        }
+        while (!regions.hasNext()) {
+            if (!chromosomes.hasNext()) {
+                return false;
+            }
+            String chromosome = chromosomes.next();
+            logger.info("Exporting variants for chromosome {} ...", chromosome);
+            regions = regionsOfChromosome.apply(chromosome).iterator();
+        }
+        exportRegion(output, regions.next());
+        return true;
+    }
+
+    private <T> void exportRegion(VcfOutput<T> output, Region region) {
+        int[] exportedVariants = {0};
+        int failedVariantsInRegion = output.export(region, filters, variant -> {
+            output.add(variant);
+            exportedVariants[0]++;
+        });
+        logger.debug("{} variants exported from region {}", exportedVariants[0], region);
+        exportSummary.accept(exportedVariants[0], failedVariantsInRegion);
+    }
+
+    /**
+     * Writes whatever the output still keeps in its buffers and closes it. Closing an export that is already closed
+     * has no effect, so an export that is abandoned halfway can be closed safely.
+     */
+    public void close() {
+        if (!closed) {
+            closed = true;
+            output.close();
+            onClose.run();
+        }
+    }
+}
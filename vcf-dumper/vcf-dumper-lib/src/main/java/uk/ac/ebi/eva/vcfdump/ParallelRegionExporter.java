@@ -0,0 +1,151 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.task.TaskDecorator;
+
+import uk.ac.ebi.eva.commons.core.models.Region;
+import uk.ac.ebi.eva.commons.mongodb.filter.VariantRepositoryFilter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.function.Consumer;
+
+/**
+ * Exports a list of regions querying and converting several of them concurrently.
+ *
+ * Up to 'regionsInFlight' regions are fetched from the database and converted (into VariantContexts or VCF lines) by
+ * the executor threads, while the calling thread hands their variants to the consumer strictly in the order of the
+ * regions list. A new region is only submitted when the oldest one has been taken, so apart from the region being
+ * written, no more than 'regionsInFlight' regions are kept in memory at any time.
+ *
+ * @param <T> type of the converted variants
+ */
+public class ParallelRegionExporter<T> {
+
+    private static final Logger logger = LoggerFactory.getLogger(ParallelRegionExporter.class);
+
+    /**
+     * Fetches and converts the variants of one region, returning the number of variants that could not be converted
+     */
+    @FunctionalInterface
+    public interface RegionExport<T> {
+
+        int export(Region region, List<VariantRepositoryFilter> filters, Consumer<T> variantConsumer);
+    }
+
+    private final RegionExport<T> regionExport;
+
+    private final Executor executor;
+
+    private final int regionsInFlight;
+
+    private final TaskDecorator taskDecorator;
+
+    /**
+     * @param taskDecorator optional, applied in the calling thread to every task before it is submitted. It allows to
+     *                      copy thread-bound state (e.g. the database selected for the current thread) to the workers
+     */
+    public ParallelRegionExporter(RegionExport<T> regionExport, Executor executor, int regionsInFlight,
+                                  TaskDecorator taskDecorator) {
+        if (regionsInFlight < 1) {
+            throw new IllegalArgumentException("'regionsInFlight' must be greater than 0");
+        }
+        this.regionExport = regionExport;
+        this.executor = executor;
+        this.regionsInFlight = regionsInFlight;
+        this.taskDecorator = taskDecorator;
+    }
+
+    /**
+     * @return number of variants in the regions that could not be converted
+     */
+    public int export(List<Region> regions, List<VariantRepositoryFilter> filters,
+                      Consumer<T> variantConsumer) {
+        Deque<Future<ExportedRegion<T>>> pendingRegions = new ArrayDeque<>(regionsInFlight);
+        Iterator<Region> regionsIterator = regions.iterator();
+        int failedVariants = 0;
+        try {
+            while (pendingRegions.size() < regionsInFlight && regionsIterator.hasNext()) {
+                pendingRegions.add(submit(regionsIterator.next(), filters));
+            }
+            while (!pendingRegions.isEmpty()) {
+                ExportedRegion<T> exportedRegion = getExportedRegion(pendingRegions.poll());
+                // keep the executor busy while the variants of this region are being written
+                if (regionsIterator.hasNext()) {
+                    pendingRegions.add(submit(regionsIterator.next(), filters));
+                }
+                exportedRegion.variants.forEach(variantConsumer);
+                failedVariants += exportedRegion.failedVariants;
+                logger.debug("{} variants exported from region {}", exportedRegion.variants.size(),
+                             exportedRegion.region);
+            }
+        } finally {
+            pendingRegions.forEach(pendingRegion -> pendingRegion.cancel(true));
+        }
+        return failedVariants;
+    }
+
+    private Future<ExportedRegion<T>> submit(Region region, List<VariantRepositoryFilter> filters) {
+        Callable<ExportedRegion<T>> task = () -> {
+            List<T> variants = new ArrayList<>();
+            int failedVariants = regionExport.export(region, filters, variants::add);
+            return new ExportedRegion<>(region, variants, failedVariants);
+        };
+        FutureTask<ExportedRegion<T>> futureTask = new FutureTask<>(task);
+        executor.execute(taskDecorator == null ? futureTask : taskDecorator.decorate(futureTask));
+        return futureTask;
+    }
+
+    private ExportedRegion<T> getExportedRegion(Future<ExportedRegion<T>> pendingRegion) {
+        try {
+            return pendingRegion.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for a region to be exported", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private static class ExportedRegion<T> {
+
+        private final Region region;
+
+        private final List<T> variants;
+
+        private final int failedVariants;
+
+        ExportedRegion(Region region, List<T> variants, int failedVariants) {
+            this.region = region;
+            this.variants = variants;
+            this.failedVariants = failedVariants;
+        }
+    }
+}
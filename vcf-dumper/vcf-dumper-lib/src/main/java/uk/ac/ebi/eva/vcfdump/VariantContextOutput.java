@@ -0,0 +1,99 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump;
+
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.variantcontext.writer.VariantContextWriter;
+import htsjdk.variant.vcf.VCFHeader;
+
+import uk.ac.ebi.eva.commons.core.models.Region;
+import uk.ac.ebi.eva.commons.mongodb.filter.VariantRepositoryFilter;
+import uk.ac.ebi.eva.commons.mongodb.services.VariantWithSamplesAndAnnotationsService;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Writes the variants as htsjdk VariantContexts
+ */
+class VariantContextOutput implements VcfOutput<VariantContext> {
+
+    private final VariantContextWriter writer;
+
+    private final VariantExporter exporter;
+
+    private final VariantWithSamplesAndAnnotationsService variantService;
+
+    private final VcfTabixIndexer indexer;
+
+    VariantContextOutput(VariantContextWriter writer, VariantExporter exporter,
+                         VariantWithSamplesAndAnnotationsService variantService) {
+        this(writer, null, exporter, variantService);
+    }
+
+    /**
+     * @param indexer indexer of the BGZF stream the writer writes to, or null to not index the output
+     */
+    VariantContextOutput(VariantContextWriter writer, VcfTabixIndexer indexer, VariantExporter exporter,
+                         VariantWithSamplesAndAnnotationsService variantService) {
+        this.writer = writer;
+        this.indexer = indexer;
+        this.exporter = exporter;
+        this.variantService = variantService;
+    }
+
+    @Override
+    public int export(Region region, List<VariantRepositoryFilter> filters,
+                      Consumer<VariantContext> variantConsumer) {
+        return exporter.export(variantService, filters, region, variantConsumer);
+    }
+
+    @Override
+    public int export(List<Region> regions, List<VariantRepositoryFilter> filters,
+                      Consumer<VariantContext> variantConsumer) {
+        return exporter.export(variantService, filters, regions, variantConsumer);
+    }
+
+    @Override
+    public void writeHeader(VCFHeader header) {
+        writer.writeHeader(header);
+    }
+
+    @Override
+    public void setHeader(VCFHeader header) {
+        writer.setHeader(header);
+    }
+
+    @Override
+    public void add(VariantContext variant) {
+        // htsjdk's VCF writer copies every line to its output stream as soon as it is encoded
+        if (indexer != null) {
+            indexer.add(variant.getContig(), variant.getStart(), variant.getEnd());
+        }
+        writer.add(variant);
+    }
+
+    @Override
+    public void close() {
+        if (indexer != null) {
+            indexer.finish();
+        }
+        writer.close();
+        if (indexer != null) {
+            indexer.writeIndex();
+        }
+    }
+}
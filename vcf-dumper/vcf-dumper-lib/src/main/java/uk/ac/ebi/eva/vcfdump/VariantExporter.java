@@ -32,6 +32,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
 
 import uk.ac.ebi.eva.commons.core.models.Region;
 import uk.ac.ebi.eva.commons.core.models.VariantSource;
@@ -40,10 +41,14 @@ import uk.ac.ebi.eva.commons.mongodb.filter.VariantRepositoryFilter;
 import uk.ac.ebi.eva.commons.mongodb.services.AnnotationMetadataNotFoundException;
 import uk.ac.ebi.eva.commons.mongodb.services.VariantSourceService;
 import uk.ac.ebi.eva.commons.mongodb.services.VariantWithSamplesAndAnnotationsService;
+import uk.ac.ebi.eva.vcfdump.filter.VariantRepositoryIdFilter;
+import uk.ac.ebi.eva.vcfdump.filter.VariantRepositoryNextPageFilter;
+import uk.ac.ebi.eva.vcfdump.metrics.ExportMetrics;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -52,6 +57,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
 import java.util.stream.Collectors;
 
 import static uk.ac.ebi.eva.vcfdump.VariantToVariantContextConverter.ANNOTATION_KEY;
@@ -62,6 +70,25 @@ public class VariantExporter {
     private static final Logger logger = LoggerFactory.getLogger(VariantExporter.class);
     public static final String HEADER = "header";
 
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    /**
+     * The ID breaks the ties between variants with the same start, so the pages can be fetched by key
+     */
+    private static final Sort SORT_BY_START_AND_ID = new Sort(Sort.Direction.ASC,
+                                                              VariantRepositoryNextPageFilter.START_FIELD,
+                                                              VariantRepositoryNextPageFilter.ID_FIELD);
+
+    static final String ANNOTATION_FIELD = "annot";
+
+    static final String STATISTICS_FIELD = "st";
+
+    /**
+     * The attributes of the files are only needed for their original VCF line ('src'), which is only read to add the
+     * context nucleotide to indels
+     */
+    static final String FILE_ATTRIBUTES_FIELD = "files.attrs";
+
     /**
      * Read only. Keeps track of the total failed variants across several dumps. To accumulate, use the same instance of
      * VariantExporter to dump several VCFs. If you just want to count on one dump, use a `new VariantExporter` each time.
@@ -70,55 +97,219 @@ public class VariantExporter {
 
     private VariantToVariantContextConverter variantToVariantContextConverter;
 
+    private VcfLineEncoder vcfLineEncoder;
+
     private Set<String> outputSampleNames;
 
+    /**
+     * Column order of the samples, shared by the VCF header and the converter
+     */
+    private List<String> outputSampleNamesInOrder;
+
     private boolean excludeAnnotations;
 
+    private final int batchSize;
+
+    /**
+     * Fields of the variants that the output doesn't use, so they are not read from the database
+     */
+    private final List<String> excludedFields;
+
+    private ExportMetrics exportMetrics = ExportMetrics.disabled();
+
     public VariantExporter(boolean excludeAnnotations) {
+        this(excludeAnnotations, DEFAULT_BATCH_SIZE);
+    }
+
+    public VariantExporter(boolean excludeAnnotations, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("'batchSize' must be greater than 0");
+        }
         this.excludeAnnotations = excludeAnnotations;
+        this.batchSize = batchSize;
         outputSampleNames = new HashSet<>();
+        excludedFields = getExcludedFields(excludeAnnotations);
+    }
+
+    public void setExportMetrics(ExportMetrics exportMetrics) {
+        this.exportMetrics = exportMetrics;
+    }
+
+    static List<String> getExcludedFields(boolean excludeAnnotations) {
+        List<String> excludedFields = new ArrayList<>(Arrays.asList(STATISTICS_FIELD, FILE_ATTRIBUTES_FIELD));
+        if (excludeAnnotations) {
+            excludedFields.add(ANNOTATION_FIELD);
+        }
+        return Collections.unmodifiableList(excludedFields);
     }
 
     public List<VariantContext> export(VariantWithSamplesAndAnnotationsService variantService, List<VariantRepositoryFilter> filters, Region region) {
         List<VariantContext> variantsToExport = new ArrayList<>();
-        failedVariants = 0;
-        List<Region> regions = Collections.singletonList(region);
+        failedVariants = export(variantService, filters, region, variantsToExport::add);
+        return variantsToExport;
+    }
+
+    /**
+     * Exports the variants in a region without materializing the whole region in memory. The variants are fetched in
+     * pages of at most {@link #batchSize} elements sorted by start and ID, and every page is converted and passed to
+     * the consumer before the next one is requested, so the heap usage is bounded by the batch size. Every page starts
+     * after the last variant of the previous one, instead of skipping the variants of all the previous pages, so the
+     * cost of a query doesn't grow with the number of pages already exported.
+     *
+     * The conversion can move the start of an indel one base to the left, so the variants go through a
+     * {@link VariantOrderingBuffer} that keeps the output sorted across pages without sorting them.
+     *
+     * @return number of variants in the region that could not be converted
+     */
+    public int export(VariantWithSamplesAndAnnotationsService variantService, List<VariantRepositoryFilter> filters,
+                      Region region, Consumer<VariantContext> variantConsumer) {
+        return export(variantService, filters, Collections.singletonList(region), variantConsumer);
+    }
+
+    /**
+     * Same as {@link #export(VariantWithSamplesAndAnnotationsService, List, Region, Consumer)}, but the variants of
+     * several regions of the same chromosome are fetched with a single query. The regions must not overlap
+     */
+    public int export(VariantWithSamplesAndAnnotationsService variantService, List<VariantRepositoryFilter> filters,
+                      List<Region> regions, Consumer<VariantContext> variantConsumer) {
+        return export(variantService, filters, regions, variantToVariantContextConverter::transform,
+                      VariantContext::getStart, variantConsumer);
+    }
+
+    /**
+     * Same as {@link #export(VariantWithSamplesAndAnnotationsService, List, Region, Consumer)}, but the variants are
+     * encoded directly into VCF lines instead of being converted into VariantContexts
+     */
+    public int exportVcfLines(VariantWithSamplesAndAnnotationsService variantService,
+                              List<VariantRepositoryFilter> filters, Region region, Consumer<VcfLine> lineConsumer) {
+        return exportVcfLines(variantService, filters, Collections.singletonList(region), lineConsumer);
+    }
+
+    /**
+     * Same as {@link #export(VariantWithSamplesAndAnnotationsService, List, List, Consumer)}, but the variants are
+     * encoded directly into VCF lines instead of being converted into VariantContexts
+     */
+    public int exportVcfLines(VariantWithSamplesAndAnnotationsService variantService,
+                              List<VariantRepositoryFilter> filters, List<Region> regions,
+                              Consumer<VcfLine> lineConsumer) {
+        return export(variantService, filters, regions, vcfLineEncoder::encode, VcfLine::getStart, lineConsumer);
+    }
+
+    private <T> int export(VariantWithSamplesAndAnnotationsService variantService,
+                           List<VariantRepositoryFilter> filters, List<Region> regions,
+                           Function<VariantWithSamplesAndAnnotation, T> converter, ToIntFunction<T> startOf,
+                           Consumer<T> variantConsumer) {
+        int failedVariantsInRegion = 0;
+        VariantOrderingBuffer<T> orderingBuffer = new VariantOrderingBuffer<>(startOf, variantConsumer);
         try {
-            Long variantsInRegion = variantService.countByRegionsAndComplexFilters(regions, filters);
-            int pageSize = castSafely(Math.max(1, variantsInRegion));
-            PageRequest pageable = new PageRequest(0, pageSize);
-            List<VariantWithSamplesAndAnnotation> variants = variantService.findByRegionsAndComplexFilters(
-                    regions, filters, null, Collections.emptyList(), pageable);
-
-            for (VariantWithSamplesAndAnnotation variant : variants) {
-                if (region.contains(variant.getChromosome(), variant.getStart())) {
-                    try {
-                        VariantContext variantContext = variantToVariantContextConverter.transform(variant);
-                        variantsToExport.add(variantContext);
-                    } catch (Exception e) {
-                        logger.warn("Variant {}:{}:{}>{} dump failed: {}", variant.getChromosome(), variant.getStart(),
-                                    variant.getReference(),
-                                    variant.getAlternate(), e.getMessage());
-                        failedVariants++;
+            PageRequest pageable = new PageRequest(0, batchSize, SORT_BY_START_AND_ID);
+            List<VariantRepositoryFilter> pageFilters = filters;
+            List<VariantWithSamplesAndAnnotation> variants;
+            do {
+                long queryStart = System.nanoTime();
+                // the service can't skip the default annotation metadata even if the annotations are excluded, but
+                // it returns the variants without annotations if the database has none
+                variants = variantService.findByRegionsAndComplexFilters(regions, pageFilters, null, excludedFields,
+                                                                         pageable);
+                exportMetrics.recordVariantQuery(System.nanoTime() - queryStart);
+                Map<String, VariantWithSamplesAndAnnotation> indelsWithSourceLines =
+                        findIndelsWithSourceLines(variantService, filters, variants, regions);
+
+                int fetchedVariants = 0;
+                for (VariantWithSamplesAndAnnotation variant : variants) {
+                    if (contains(regions, variant)) {
+                        fetchedVariants++;
+                        variant = indelsWithSourceLines.getOrDefault(getVariantKey(variant), variant);
+                        orderingBuffer.advanceTo(variant.getStart());
+                        long conversionStart = System.nanoTime();
+                        T convertedVariant;
+                        try {
+                            convertedVariant = converter.apply(variant);
+                        } catch (Exception e) {
+                            logger.warn("Variant {}:{}:{}>{} dump failed: {}", variant.getChromosome(),
+                                        variant.getStart(), variant.getReference(), variant.getAlternate(),
+                                        e.getMessage());
+                            exportMetrics.countFailedVariant();
+                            failedVariantsInRegion++;
+                            continue;
+                        }
+                        exportMetrics.recordConvertedVariant(System.nanoTime() - conversionStart);
+                        orderingBuffer.add(convertedVariant);
                     }
                 }
-            }
+                exportMetrics.countFetchedVariants(fetchedVariants);
+                if (!variants.isEmpty()) {
+                    pageFilters = getNextPageFilters(filters, variants.get(variants.size() - 1));
+                }
+            } while (variants.size() == batchSize);
+            orderingBuffer.flush();
         } catch (AnnotationMetadataNotFoundException e) {
-            logger.warn("Annotation metadata not found, no variants will be exported for the region: " + region, e);
+            // exporting nothing would leave a complete-looking file without the variants of the region
+            logger.error("Could not export region '" + regions + "', annotation metadata not found. ", e);
+            throw new IllegalStateException(e);
         } catch (Exception e) {
-            logger.error("Could not export region '" + region + "'. ", e);
+            logger.error("Could not export region '" + regions + "'. ", e);
             throw e;
         }
 
-        return variantsToExport;
+        return failedVariantsInRegion;
     }
 
-    private int castSafely(Long inputNumber) {
-        Integer result = inputNumber.intValue();
-        if (result.longValue() != inputNumber) {
-            throw new RuntimeException("Tried to cast a long into an int, but it didn't fit");
+    private static List<VariantRepositoryFilter> getNextPageFilters(List<VariantRepositoryFilter> filters,
+                                                                    VariantWithSamplesAndAnnotation lastVariant) {
+        List<VariantRepositoryFilter> nextPageFilters = new ArrayList<>(filters);
+        nextPageFilters.add(new VariantRepositoryNextPageFilter(lastVariant.getChromosome(), lastVariant.getStart(),
+                                                                lastVariant.getReference(),
+                                                                lastVariant.getAlternate()));
+        return nextPageFilters;
+    }
+
+    /**
+     * The attributes of the files are not fetched with the variants, so the indels of a page, which need their original
+     * VCF line to be converted, are fetched again with all their attributes. They are fetched by ID, so no other
+     * variants are read and the query returns at most one page of variants.
+     *
+     * @return indels of the page with all the attributes of their files, by {@link #getVariantKey}
+     */
+    private Map<String, VariantWithSamplesAndAnnotation> findIndelsWithSourceLines(
+            VariantWithSamplesAndAnnotationsService variantService, List<VariantRepositoryFilter> filters,
+            List<VariantWithSamplesAndAnnotation> variants, List<Region> regions)
+            throws AnnotationMetadataNotFoundException {
+        List<VariantWithSamplesAndAnnotation> indelsOfPage = variants.stream()
+                                                                     .filter(variant -> isIndel(variant)
+                                                                             && contains(regions, variant))
+                                                                     .collect(Collectors.toList());
+        if (indelsOfPage.isEmpty()) {
+            return Collections.emptyMap();
         }
-        return result;
+
+        List<String> excludedFieldsWithAttributes = new ArrayList<>(excludedFields);
+        excludedFieldsWithAttributes.remove(FILE_ATTRIBUTES_FIELD);
+        List<VariantRepositoryFilter> indelFilters = new ArrayList<>(filters);
+        indelFilters.add(VariantRepositoryIdFilter.of(indelsOfPage));
+        PageRequest pageable = new PageRequest(0, indelsOfPage.size(), SORT_BY_START_AND_ID);
+        Map<String, VariantWithSamplesAndAnnotation> indels = new HashMap<>();
+        long queryStart = System.nanoTime();
+        List<VariantWithSamplesAndAnnotation> indelsWithAttributes = variantService.findByRegionsAndComplexFilters(
+                regions, indelFilters, null, excludedFieldsWithAttributes, pageable);
+        exportMetrics.recordIndelQuery(System.nanoTime() - queryStart);
+        for (VariantWithSamplesAndAnnotation variant : indelsWithAttributes) {
+            indels.put(getVariantKey(variant), variant);
+        }
+        return indels;
+    }
+
+    private static boolean contains(List<Region> regions, VariantWithSamplesAndAnnotation variant) {
+        return regions.stream().anyMatch(region -> region.contains(variant.getChromosome(), variant.getStart()));
+    }
+
+    private static boolean isIndel(VariantWithSamplesAndAnnotation variant) {
+        return variant.getReference().isEmpty() || variant.getAlternate().isEmpty();
+    }
+
+    private static String getVariantKey(VariantWithSamplesAndAnnotation variant) {
+        return variant.getChromosome() + ":" + variant.getStart() + ":" + variant.getReference() + ":"
+                + variant.getAlternate();
     }
 
     public List<VariantSource> getSources(VariantSourceService variantSourceService, List<String> studyIds, List<String> fileIds)
@@ -142,13 +333,40 @@ public class VariantExporter {
 
         // check if there are conflicts in sample names and create new ones if needed
         Map<String, Map<String, String>> studiesSampleNamesMapping = createNonConflictingSampleNames(sourcesList);
+        outputSampleNamesInOrder = new ArrayList<>(outputSampleNames);
         variantToVariantContextConverter = new VariantToVariantContextConverter(sourcesList,
                                                                                 studiesSampleNamesMapping,
+                                                                                outputSampleNamesInOrder,
                                                                                 excludeAnnotations);
+        vcfLineEncoder = new VcfLineEncoder(variantToVariantContextConverter);
 
         return sourcesList;
     }
 
+    /**
+     * Gets the sources of the studies and their merged VCF header, and keeps them together with the converters
+     * prepared for them, so other exports of the same studies can skip all that work calling
+     * {@link #setExportMetadata(VcfExportMetadata)}
+     */
+    public VcfExportMetadata getExportMetadata(VariantSourceService variantSourceService, List<String> studyIds,
+                                               List<String> fileIds) throws IOException {
+        List<VariantSource> sources = getSources(variantSourceService, studyIds, fileIds);
+        VCFHeader header = getMergedVcfHeader(sources);
+        return new VcfExportMetadata(sources, header, outputSampleNamesInOrder, variantToVariantContextConverter,
+                                     vcfLineEncoder);
+    }
+
+    /**
+     * Prepares this exporter to export the variants of some sources, using metadata obtained from
+     * {@link #getExportMetadata} by an exporter with the same annotation exclusion
+     */
+    public void setExportMetadata(VcfExportMetadata exportMetadata) {
+        outputSampleNames = new HashSet<>(exportMetadata.getSampleNames());
+        outputSampleNamesInOrder = exportMetadata.getSampleNames();
+        variantToVariantContextConverter = exportMetadata.getConverter();
+        vcfLineEncoder = exportMetadata.getVcfLineEncoder();
+    }
+
     private void checkIfThereAreSourceForEveryStudy(List<String> studyIds,
                                                     List<VariantSource> sourcesList) throws IllegalArgumentException {
         List<String> missingStudies =
@@ -163,28 +381,37 @@ public class VariantExporter {
     public Map<String, Map<String, String>> createNonConflictingSampleNames(Collection<VariantSource> sources) {
         Map<String, Map<String, String>> filesSampleNamesMapping = null;
 
-        // create a list containing the sample names of every input study
-        // if a sample name is in more than one study, it will be several times in the list)
-        List<String> originalSampleNames = sources.stream().map(VariantSource::getSamplesPosition).flatMap(l -> l.keySet().stream())
-                                                  .collect(Collectors.toList());
-        boolean someSampleNameInMoreThanOneStudy = false;
-        if (sources.size() > 1) {
-            // if there are several studies, check if there are duplicate elements
-            someSampleNameInMoreThanOneStudy = originalSampleNames.stream()
-                                                                  .anyMatch(s -> Collections
-                                                                          .frequency(originalSampleNames, s) > 1);
-            if (someSampleNameInMoreThanOneStudy) {
-                filesSampleNamesMapping = resolveConflictsInSampleNamesPrefixingFileId(sources);
-            }
-        }
-
-        if (!someSampleNameInMoreThanOneStudy) {
-            outputSampleNames.addAll(originalSampleNames);
+        Set<String> conflictingSampleNames = findConflictingSampleNames(sources);
+        if (conflictingSampleNames.isEmpty()) {
+            sources.forEach(source -> outputSampleNames.addAll(source.getSamplesPosition().keySet()));
+        } else {
+            logger.info("{} sample names are in more than one file, all sample names will be prefixed with their " +
+                                "file ID", conflictingSampleNames.size());
+            logger.debug("Sample names in more than one file: {}", conflictingSampleNames);
+            filesSampleNamesMapping = resolveConflictsInSampleNamesPrefixingFileId(sources);
         }
 
         return filesSampleNamesMapping;
     }
 
+    /**
+     * @return the sample names that are in more than one source, found in a single pass over the samples of all of
+     * them
+     */
+    public Set<String> findConflictingSampleNames(Collection<VariantSource> sources) {
+        int totalSamples = sources.stream().mapToInt(source -> source.getSamplesPosition().size()).sum();
+        Set<String> sampleNames = new HashSet<>(totalSamples * 4 / 3 + 1);
+        Set<String> conflictingSampleNames = new HashSet<>();
+        for (VariantSource source : sources) {
+            for (String sampleName : source.getSamplesPosition().keySet()) {
+                if (!sampleNames.add(sampleName)) {
+                    conflictingSampleNames.add(sampleName);
+                }
+            }
+        }
+        return conflictingSampleNames;
+    }
+
     private Map<String, Map<String, String>> resolveConflictsInSampleNamesPrefixingFileId(
             Collection<VariantSource> sources) {
         // each study will have a map translating from original sample name to "conflict free" one
@@ -249,7 +476,10 @@ public class VariantExporter {
         Set<VCFHeaderLine> mergedHeaderLines = VCFUtils.smartMergeHeaders(headers.values(), true);
         Set<VCFHeaderLine> headerLines = overwriteHeaderLines(mergedHeaderLines);
 
-        return new VCFHeader(headerLines, outputSampleNames);
+        if (outputSampleNamesInOrder == null) {
+            outputSampleNamesInOrder = new ArrayList<>(outputSampleNames);
+        }
+        return new VCFHeader(headerLines, outputSampleNamesInOrder);
     }
 
     private Set<VCFHeaderLine> overwriteHeaderLines(Set<VCFHeaderLine> headerLines) {
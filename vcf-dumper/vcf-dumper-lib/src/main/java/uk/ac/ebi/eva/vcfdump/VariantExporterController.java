@@ -15,26 +15,40 @@
  */
 package uk.ac.ebi.eva.vcfdump;
 
-import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
 import htsjdk.variant.variantcontext.writer.Options;
 import htsjdk.variant.variantcontext.writer.VariantContextWriter;
 import htsjdk.variant.variantcontext.writer.VariantContextWriterBuilder;
 import htsjdk.variant.vcf.VCFHeader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.core.task.TaskDecorator;
 
 import uk.ac.ebi.eva.commons.core.models.Region;
 import uk.ac.ebi.eva.commons.core.models.VariantSource;
-import uk.ac.ebi.eva.commons.mongodb.filter.FilterBuilder;
 import uk.ac.ebi.eva.commons.mongodb.filter.VariantRepositoryFilter;
 import uk.ac.ebi.eva.commons.mongodb.services.VariantSourceService;
 import uk.ac.ebi.eva.commons.mongodb.services.VariantWithSamplesAndAnnotationsService;
+import uk.ac.ebi.eva.vcfdump.bgzfutils.BgzfConcatenator;
+import uk.ac.ebi.eva.vcfdump.bgzfutils.FilePointerTracker;
+import uk.ac.ebi.eva.vcfdump.bgzfutils.ParallelBlockCompressedOutputStream;
+import uk.ac.ebi.eva.vcfdump.bgzfutils.TabixIndexConcatenator;
+import uk.ac.ebi.eva.vcfdump.configuration.EvaProperties;
 import uk.ac.ebi.eva.vcfdump.evawsclient.EvaWsClient;
+import uk.ac.ebi.eva.vcfdump.filter.ExportFilterBuilder;
+import uk.ac.ebi.eva.vcfdump.metrics.ExportMetrics;
 import uk.ac.ebi.eva.vcfdump.regionutils.RegionFactory;
+import uk.ac.ebi.eva.vcfdump.services.ChromosomeExtent;
+import uk.ac.ebi.eva.vcfdump.services.ChromosomeExtentService;
+import uk.ac.ebi.eva.vcfdump.services.ChromosomeService;
+import uk.ac.ebi.eva.vcfdump.services.VariantCoordinatesService;
+import uk.ac.ebi.eva.vcfdump.services.VariantHistogramCache;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.LocalDateTime;
@@ -42,8 +56,15 @@ import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 public class VariantExporterController {
@@ -54,6 +75,26 @@ public class VariantExporterController {
 
     public static final String ANNOTATION_EXCLUSION = "annotation";
 
+    public static final String BATCH_SIZE_PROPERTY = "eva.export.batch-size";
+
+    public static final String PARALLELISM_PROPERTY = "eva.export.parallelism";
+
+    public static final String TARGET_VARIANTS_PER_WINDOW_PROPERTY = "eva.export.target-variants-per-window";
+
+    public static final String DIRECT_VCF_ENCODING_PROPERTY = "eva.export.direct-vcf-encoding";
+
+    public static final String COMPRESSION_THREADS_PROPERTY = "eva.export.compression-threads";
+
+    public static final String COMPRESSION_LEVEL_PROPERTY = "eva.export.compression-level";
+
+    public static final String TABIX_INDEX_PROPERTY = "eva.export.tabix-index";
+
+    public static final String CHROMOSOMES_WS_FALLBACK_PROPERTY = "eva.export.chromosomes-ws-fallback";
+
+    public static final int DEFAULT_COMPRESSION_LEVEL = -1;
+
+    private static final int REGIONS_IN_FLIGHT_PER_THREAD = 2;
+
     private final EvaWsClient evaWsClient;
 
     private final String dbName;
@@ -70,10 +111,16 @@ public class VariantExporterController {
 
     private final QueryParams query;
 
+    private final List<VariantRepositoryFilter> filters;
+
     private final RegionFactory regionFactory;
 
     private final VariantExporter exporter;
 
+    private final boolean excludeAnnotations;
+
+    private VcfHeaderCache headerCache;
+
     private OutputStream outputStream;
 
     private Path outputFilePath;
@@ -84,6 +131,34 @@ public class VariantExporterController {
 
     private String outputFileName;
 
+    private final int parallelism;
+
+    private final boolean directVcfEncoding;
+
+    private int compressionThreads;
+
+    private int compressionLevel;
+
+    private boolean compressOutputStream = false;
+
+    private final boolean tabixIndex;
+
+    private int chromosomeThreads = 1;
+
+    private TaskDecorator taskDecorator;
+
+    private Executor regionExecutor;
+
+    private Executor compressionExecutor;
+
+    private ChromosomeService chromosomeService;
+
+    private ChromosomeExtentService chromosomeExtentService;
+
+    private final boolean chromosomesWsFallback;
+
+    private ExportMetrics exportMetrics = ExportMetrics.disabled();
+
     // Constructor used in WS
     public VariantExporterController(String dbName,
                                      VariantSourceService variantSourceService,
@@ -93,8 +168,7 @@ public class VariantExporterController {
             throws URISyntaxException {
         this(dbName, variantSourceService, variantService, studies, Collections.emptyList(), evaProperties, queryParameters, WINDOW_SIZE);
         this.outputStream = outputStream;
-        String now = LocalDateTime.now().format(DateTimeFormatter.BASIC_ISO_DATE);
-        outputFileName = dbName.replace("eva_", "") + "_exported_" + now + ".vcf";
+        outputFileName = buildOutputFileName(dbName);
 
     }
 
@@ -129,9 +203,24 @@ public class VariantExporterController {
         this.variantService = variantService;
         query = queryParameters;
         query.setStudies(studies);
+        filters = new ExportFilterBuilder().getVariantEntityRepositoryFilters(query);
         evaWsClient = getChromosomeWsClient(dbName, evaProperties);
-        regionFactory = new RegionFactory(windowSize, variantService);
-        exporter = new VariantExporter(isAnnotationExcluded(queryParameters.getExclusions()));
+        EvaProperties exportProperties = new EvaProperties(evaProperties);
+        regionFactory = new RegionFactory(windowSize, variantService,
+                                          exportProperties.getInt(TARGET_VARIANTS_PER_WINDOW_PROPERTY, 0));
+        excludeAnnotations = isAnnotationExcluded(queryParameters.getExclusions());
+        exporter = new VariantExporter(excludeAnnotations,
+                                       exportProperties.getInt(BATCH_SIZE_PROPERTY,
+                                                               VariantExporter.DEFAULT_BATCH_SIZE));
+        parallelism = exportProperties.getInt(PARALLELISM_PROPERTY, 1);
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("'" + PARALLELISM_PROPERTY + "' must be greater than 0");
+        }
+        directVcfEncoding = exportProperties.getBoolean(DIRECT_VCF_ENCODING_PROPERTY, false);
+        tabixIndex = exportProperties.getBoolean(TABIX_INDEX_PROPERTY, true);
+        chromosomesWsFallback = exportProperties.getBoolean(CHROMOSOMES_WS_FALLBACK_PROPERTY, false);
+        setCompressionThreads(exportProperties.getInt(COMPRESSION_THREADS_PROPERTY, 1));
+        setCompressionLevel(exportProperties.getInt(COMPRESSION_LEVEL_PROPERTY, DEFAULT_COMPRESSION_LEVEL));
         failedVariants = 0;
         totalExportedVariants = 0;
     }
@@ -173,37 +262,213 @@ public class VariantExporterController {
 
     public void run() {
         VCFHeader header = getOutputVcfHeader();
-        VariantContextWriter writer = getWriter();
-        writer.writeHeader(header);
-        exportVariants(writer);
-        writer.close();
+        if (chromosomeThreads > 1 && outputDir != null) {
+            exportChromosomesInParallel(header);
+            return;
+        }
+        VcfOutput<?> output = getOutput();
+        output.writeHeader(header);
+        exportVariants(output);
+        output.close();
+    }
+
+    /**
+     * Writes the header into the output stream and prepares the export of the variants, which are written when the
+     * caller asks for them, one region at a time
+     */
+    public IncrementalVcfExport startIncrementalExport() {
+        VCFHeader header = getOutputVcfHeader();
+        VcfOutput<?> output = getOutput();
+        output.writeHeader(header);
+        return new IncrementalVcfExport(output, getChromosomes(query.getRegionsAsList()).iterator(),
+                                        chromosome -> regionFactory.getRegionsForChromosome(chromosome, query, filters),
+                                        getFilters(), this::addToExportSummary, this::logExportSummary);
     }
 
     public void exportHeader() {
         VCFHeader header = getOutputVcfHeader();
-        VariantContextWriter writer = getWriter();
-        writer.writeHeader(header);
-        writer.close();
+        VcfOutput<?> output = getOutput();
+        output.writeHeader(header);
+        output.close();
         logger.info("VCF headers exported");
     }
 
     public void exportBlock() {
         VCFHeader header = getOutputVcfHeader();
-        VariantContextWriter writer = getWriter();
-        writer.setHeader(header);
-        exportVariants(writer);
-        writer.close();
+        VcfOutput<?> output = getOutput();
+        output.setHeader(header);
+        exportVariants(output);
+        output.close();
     }
 
-    private void exportVariants(VariantContextWriter writer) {
+    /**
+     * Exports the variants of a list of regions requested together, like the loci of a gene panel, into a single VCF.
+     * Consecutive regions of the same chromosome are fetched with a single query, see
+     * {@link RegionFactory#groupRegionsInQueries}, so a list of thousands of small regions doesn't need a query per
+     * region. The region filter of the query parameters is ignored.
+     *
+     * @param maxRegionsPerQuery maximum number of regions fetched with a single query
+     */
+    public void exportRegions(List<Region> regions, int maxRegionsPerQuery) {
+        VCFHeader header = getOutputVcfHeader();
+        VcfOutput<?> output = getOutput();
+        output.writeHeader(header);
+        List<VariantRepositoryFilter> filters = getFilters();
+        for (List<Region> regionGroup : regionFactory.groupRegionsInQueries(regions, maxRegionsPerQuery)) {
+            exportRegionGroup(output, regionGroup, filters);
+        }
+        logExportSummary();
+        output.close();
+    }
+
+    private <T> void exportRegionGroup(VcfOutput<T> output, List<Region> regionGroup,
+                                       List<VariantRepositoryFilter> filters) {
+        int[] exportedVariants = {0};
+        int failedVariantsInGroup = output.export(regionGroup, filters, variant -> {
+            output.add(variant);
+            exportedVariants[0]++;
+        });
+        logger.debug("{} variants exported from {} regions starting at {}", exportedVariants[0], regionGroup.size(),
+                     regionGroup.get(0));
+        addToExportSummary(exportedVariants[0], failedVariantsInGroup);
+    }
+
+    private void exportVariants(VcfOutput<?> output) {
         // get all chromosomes in the query or organism, and export the variants for each chromosome
-        List<VariantRepositoryFilter> filters = new FilterBuilder()
-                .getVariantEntityRepositoryFilters(query.getMaf(), query.getPolyphenScore(),
-                        query.getSiftScore(), query.getStudies(), query.getConsequenceType());
+        List<VariantRepositoryFilter> filters = getFilters();
         Set<String> chromosomes = getChromosomes(query.getRegionsAsList());
+        Executor regionExecutor = getRegionExecutor();
         for (String chromosome : chromosomes) {
-            exportChromosomeVariants(writer, chromosome, filters);
+            exportChromosomeVariants(output, chromosome, filters, regionExecutor);
         }
+        logExportSummary();
+    }
+
+    /**
+     * Exports every chromosome into its own BGZF segment using 'chromosomeThreads' threads, and then joins the
+     * segments in the same order a sequential export would write them. BGZF blocks are independent, so the segments
+     * are copied without recompressing them, and their tabix indexes are joined moving their file pointers.
+     */
+    private void exportChromosomesInParallel(VCFHeader header) {
+        List<VariantRepositoryFilter> filters = getFilters();
+        List<String> chromosomes = new ArrayList<>(getChromosomes(query.getRegionsAsList()));
+        outputFilePath = buildOutputFilePath();
+
+        List<Path> segments = new ArrayList<>();
+        List<Future<?>> exportedChromosomes = new ArrayList<>();
+        ExecutorService chromosomeExecutor = Executors.newFixedThreadPool(chromosomeThreads);
+        Executor regionExecutor = getRegionExecutor();
+        try {
+            Path headerSegment = getSegmentPath(0);
+            segments.add(headerSegment);
+            VcfOutput<?> headerOutput = buildVcfFileOutput(headerSegment);
+            headerOutput.writeHeader(header);
+            headerOutput.close();
+
+            for (String chromosome : chromosomes) {
+                Path segment = getSegmentPath(segments.size());
+                segments.add(segment);
+                Runnable task = () -> {
+                    VcfOutput<?> output = buildVcfFileOutput(segment);
+                    output.setHeader(header);
+                    try {
+                        exportChromosomeVariants(output, chromosome, filters, regionExecutor);
+                    } finally {
+                        output.close();
+                    }
+                };
+                exportedChromosomes.add(chromosomeExecutor.submit(
+                        taskDecorator == null ? task : taskDecorator.decorate(task)));
+            }
+            for (Future<?> exportedChromosome : exportedChromosomes) {
+                waitForChromosome(exportedChromosome);
+            }
+
+            List<Long> segmentOffsets = BgzfConcatenator.concatenate(segments, outputFilePath);
+            if (tabixIndex) {
+                concatenateSegmentIndexes(segments, segmentOffsets);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error joining the chromosome segments into " + outputFilePath, e);
+        } finally {
+            // if a chromosome failed, the others may still be writing their segments, which can't be deleted before
+            exportedChromosomes.forEach(exportedChromosome -> exportedChromosome.cancel(true));
+            chromosomeExecutor.shutdown();
+            awaitTermination(chromosomeExecutor);
+            segments.forEach(segment -> {
+                segment.toFile().delete();
+                VcfTabixIndexer.getIndexPath(segment).toFile().delete();
+            });
+        }
+        logExportSummary();
+    }
+
+    private void concatenateSegmentIndexes(List<Path> segments, List<Long> segmentOffsets) throws IOException {
+        List<Path> segmentIndexes = segments.stream().map(VcfTabixIndexer::getIndexPath).collect(Collectors.toList());
+        if (segmentIndexes.stream().allMatch(Files::exists)) {
+            TabixIndexConcatenator.concatenate(segmentIndexes, segmentOffsets,
+                                               VcfTabixIndexer.getIndexPath(outputFilePath));
+        } else {
+            logger.warn("Some chromosomes couldn't be indexed, {} won't have a tabix index", outputFilePath);
+        }
+    }
+
+    private void waitForChromosome(Future<?> exportedChromosome) {
+        try {
+            exportedChromosome.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for a chromosome to be exported", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Waits for the running tasks of the executor even if this thread is interrupted, restoring its interrupt status
+     * afterwards
+     */
+    private void awaitTermination(ExecutorService executor) {
+        boolean interrupted = false;
+        while (!executor.isTerminated()) {
+            try {
+                executor.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Path getSegmentPath(int segmentIndex) {
+        String outputFileName = outputFilePath.getFileName().toString();
+        String segmentName = "." + outputFileName.replace(".vcf.gz", "") + "_part" + segmentIndex + ".vcf.gz";
+        return outputFilePath.resolveSibling(segmentName);
+    }
+
+    private List<VariantRepositoryFilter> getFilters() {
+        return filters;
+    }
+
+    /**
+     * @return the executor shared by the exports to query and convert regions, or null to export them sequentially
+     */
+    private Executor getRegionExecutor() {
+        return parallelism > 1 ? regionExecutor : null;
+    }
+
+    private <T> ParallelRegionExporter<T> createParallelRegionExporter(VcfOutput<T> output,
+                                                                       Executor regionExecutor) {
+        return new ParallelRegionExporter<>(output, regionExecutor, parallelism * REGIONS_IN_FLIGHT_PER_THREAD,
+                                            taskDecorator);
+    }
+
+    private void logExportSummary() {
         logger.info("VCF export summary");
         logger.info("Variants processed: {}", totalExportedVariants + failedVariants);
         logger.info("Variants successfully exported: {}", totalExportedVariants);
@@ -213,10 +478,11 @@ public class VariantExporterController {
     private VCFHeader getOutputVcfHeader() {
         // get VCF header(s) and write them to output file(s)
         logger.info("Generating VCF header ...");
-        List<VariantSource> sources = exporter.getSources(variantSourceService, studies, files);
         VCFHeader header = null;
+        long headerBuildStart = System.nanoTime();
         try {
-            header = exporter.getMergedVcfHeader(sources);
+            header = getExportMetadata().getHeader();
+            exportMetrics.recordHeaderBuild(System.nanoTime() - headerBuildStart);
             logger.debug("Generated header with {} samples", header.getNGenotypeSamples());
         } catch (IOException e) {
             logger.error("Error getting VCF header: {}", e.getMessage());
@@ -224,43 +490,139 @@ public class VariantExporterController {
         return header;
     }
 
-    private void exportChromosomeVariants(VariantContextWriter writer, String chromosome, List<VariantRepositoryFilter> filters) {
+    /**
+     * Gets the sources, header and converters of the export from the header cache if there is one, or prepares them
+     * otherwise. Either way, the exporter is ready to convert the variants of the studies afterwards
+     */
+    private VcfExportMetadata getExportMetadata() throws IOException {
+        if (headerCache == null) {
+            return exporter.getExportMetadata(variantSourceService, studies, files);
+        }
+        VcfExportMetadata exportMetadata = headerCache.get(
+                dbName, studies, files, excludeAnnotations,
+                () -> exporter.getExportMetadata(variantSourceService, studies, files));
+        exporter.setExportMetadata(exportMetadata);
+        return exportMetadata;
+    }
+
+    private <T> void exportChromosomeVariants(VcfOutput<T> output, String chromosome,
+                                              List<VariantRepositoryFilter> filters,
+                                              Executor regionExecutor) {
         logger.info("Exporting variants for chromosome {} ...", chromosome);
-        List<Region> allRegionsInChromosome = regionFactory.getRegionsForChromosome(chromosome, query);
+        List<Region> allRegionsInChromosome = regionFactory.getRegionsForChromosome(chromosome, query, filters);
+
+        if (regionExecutor != null) {
+            int[] exportedVariants = {0};
+            int failedVariantsInChromosome = createParallelRegionExporter(output, regionExecutor).export(
+                    allRegionsInChromosome, filters, variant -> {
+                        output.add(variant);
+                        exportedVariants[0]++;
+                    });
+            addToExportSummary(exportedVariants[0], failedVariantsInChromosome);
+            return;
+        }
 
         for (Region region : allRegionsInChromosome) {
-            List<VariantContext> exportedVariants = exporter.export(variantService, filters, region);
-            Collections.sort(exportedVariants, (v1, v2) -> v1.getStart() - v2.getStart());
-            failedVariants += exporter.getFailedVariants();
-            exportedVariants.forEach(writer::add);
-            logger.debug("{} variants exported from region {}", exportedVariants.size(), region);
-            totalExportedVariants += exportedVariants.size();
+            int[] exportedVariants = {0};
+            int failedVariantsInRegion = output.export(region, filters, variant -> {
+                output.add(variant);
+                exportedVariants[0]++;
+            });
+            logger.debug("{} variants exported from region {}", exportedVariants[0], region);
+            addToExportSummary(exportedVariants[0], failedVariantsInRegion);
         }
     }
 
-    private VariantContextWriter getWriter() {
-        VariantContextWriter writer;
+    private synchronized void addToExportSummary(int exportedVariants, int failedVariants) {
+        this.totalExportedVariants += exportedVariants;
+        this.failedVariants += failedVariants;
+    }
+
+    private VcfOutput<?> getOutput() {
+        VcfOutput<?> output;
         if (outputDir != null) {
-            writer = buildVcfFileWriter();
+            outputFilePath = buildOutputFilePath();
+            output = buildVcfFileOutput(outputFilePath);
         } else {
-            writer = buildVcfOutputStreamWriter();
+            output = buildVcfOutputStreamOutput();
         }
 
-        return writer;
+        return output;
     }
 
-    private VariantContextWriter buildVcfFileWriter() {
+    private Path buildOutputFilePath() {
         String now = LocalDateTime.now().format(DateTimeFormatter.BASIC_ISO_DATE);
         String fileName = dbName + "_exported_" + now + ".vcf.gz";
-        outputFilePath = Paths.get(outputDir).resolve(fileName);
+        return Paths.get(outputDir).resolve(fileName);
+    }
 
-        VariantContextWriterBuilder builder = new VariantContextWriterBuilder();
-        return builder.setOutputFile(outputFilePath.toFile()).unsetOption(Options.INDEX_ON_THE_FLY).build();
+    /**
+     * Files are always written to a BGZF stream created here, so the virtual file pointers of the lines can be used to
+     * build the tabix index while writing. htsjdk's own index on the fly needs a sequence dictionary, which isn't
+     * available for the exported species
+     */
+    private VcfOutput<?> buildVcfFileOutput(Path filePath) {
+        OutputStream bgzfOutputStream;
+        FilePointerTracker filePointers;
+        if (isParallelCompressionEnabled()) {
+            ParallelBlockCompressedOutputStream parallelOutputStream = buildCompressedOutputStream(
+                    newMeteredFileOutputStream(filePath));
+            bgzfOutputStream = parallelOutputStream;
+            filePointers = parallelOutputStream;
+        } else {
+            BlockCompressedOutputStream blockCompressedOutputStream = new BlockCompressedOutputStream(
+                    newMeteredFileOutputStream(filePath), filePath.toFile());
+            bgzfOutputStream = blockCompressedOutputStream;
+            filePointers = FilePointerTracker.of(blockCompressedOutputStream);
+        }
+        VcfTabixIndexer indexer = tabixIndex ? new VcfTabixIndexer(filePath, filePointers) : null;
+        return buildVcfStreamOutput(bgzfOutputStream, indexer);
     }
 
-    private VariantContextWriter buildVcfOutputStreamWriter() {
+    private OutputStream newMeteredFileOutputStream(Path filePath) {
+        try {
+            return exportMetrics.countCompressedBytes(Files.newOutputStream(filePath));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error creating output file " + filePath, e);
+        }
+    }
+
+    private VcfOutput<?> buildVcfOutputStreamOutput() {
+        return buildVcfStreamOutput(
+                compressOutputStream ? buildCompressedOutputStream(exportMetrics.countCompressedBytes(outputStream))
+                                     : outputStream,
+                null);
+    }
+
+    /**
+     * The bytes of the VCF are metered before compressing them. The metered stream doesn't buffer them, so the file
+     * pointers used by the indexer are not affected
+     */
+    private VcfOutput<?> buildVcfStreamOutput(OutputStream bgzfOrPlainOutputStream, VcfTabixIndexer indexer) {
+        OutputStream vcfOutputStream = exportMetrics.countVcfBytes(bgzfOrPlainOutputStream);
+        if (directVcfEncoding) {
+            return new VcfLineOutput(vcfOutputStream, indexer, exporter, variantService);
+        }
         VariantContextWriterBuilder builder = new VariantContextWriterBuilder();
-        return builder.setOutputVCFStream(outputStream).unsetOption(Options.INDEX_ON_THE_FLY).build();
+        VariantContextWriter writer = builder.setOutputVCFStream(vcfOutputStream)
+                                             .unsetOption(Options.INDEX_ON_THE_FLY).build();
+        return new VariantContextOutput(writer, indexer, exporter, variantService);
+    }
+
+    /**
+     * htsjdk's compressed stream is used for files unless several compression threads or a specific compression level
+     * are requested
+     */
+    private boolean isParallelCompressionEnabled() {
+        return compressionThreads > 1 || compressionLevel != DEFAULT_COMPRESSION_LEVEL;
+    }
+
+    private ParallelBlockCompressedOutputStream buildCompressedOutputStream(OutputStream uncompressedOutputStream) {
+        if (compressionThreads > 1 && compressionExecutor != null) {
+            return new ParallelBlockCompressedOutputStream(uncompressedOutputStream, compressionLevel,
+                                                           compressionExecutor, compressionThreads);
+        }
+        return new ParallelBlockCompressedOutputStream(uncompressedOutputStream, compressionLevel, compressionThreads);
     }
 
     private Set<String> getChromosomes(List<String> regions) {
@@ -269,16 +631,31 @@ public class VariantExporterController {
         if (regions.size() > 0) {
             chromosomes = getChromosomesFromRegionFilter(regions);
         } else {
-            chromosomes = evaWsClient.getChromosomes();
+            chromosomes = getAllChromosomes();
         }
         if (chromosomes.isEmpty()) {
             throw new RuntimeException("Chromosomes for dbName " + dbName + " not found");
-            // TODO distinct query for getting all the chromosomes from the database
         }
         logger.debug("Chromosomes: {}", String.join(", ", chromosomes));
         return chromosomes;
     }
 
+    /**
+     * Gets the chromosomes from the database if there is a chromosome service, and from the EVA web services if there
+     * isn't one, or if the database has none and 'eva.export.chromosomes-ws-fallback' is enabled
+     */
+    private Set<String> getAllChromosomes() {
+        if (chromosomeService == null) {
+            return evaWsClient.getChromosomes();
+        }
+        Set<String> chromosomes = chromosomeService.getChromosomes(dbName);
+        if (chromosomes.isEmpty() && chromosomesWsFallback) {
+            logger.warn("No chromosomes found in database {}, they will be requested to the EVA web services", dbName);
+            chromosomes = evaWsClient.getChromosomes();
+        }
+        return chromosomes;
+    }
+
     private Set<String> getChromosomesFromRegionFilter(List<String> regions) {
         return regions.stream().map(r -> r.split(":")[0]).collect(Collectors.toSet());
     }
@@ -287,26 +664,172 @@ public class VariantExporterController {
         return outputFilePath.toString();
     }
 
-    public int getFailedVariants() {
+    /**
+     * Records the latency of the queries, the variants converted and the bytes written by the export in the registry
+     * of the metrics
+     */
+    public void setExportMetrics(ExportMetrics exportMetrics) {
+        this.exportMetrics = exportMetrics;
+        exporter.setExportMetrics(exportMetrics);
+    }
+
+    /**
+     * Sets a decorator for the tasks that query the database when the export runs with several threads
+     * ('eva.export.parallelism' greater than 1), so they can inherit the thread-bound state of the exporting thread.
+     */
+    public void setTaskDecorator(TaskDecorator taskDecorator) {
+        this.taskDecorator = taskDecorator;
+    }
+
+    /**
+     * Queries and converts several regions at the same time in the given executor when 'eva.export.parallelism' is
+     * greater than 1, keeping up to twice that number of regions in flight. The executor is not shut down by the
+     * export, so it can be shared by all the exports of the application and its threads bound the concurrency of all
+     * of them. Without an executor the regions are exported sequentially.
+     */
+    public void setRegionExecutor(Executor regionExecutor) {
+        this.regionExecutor = regionExecutor;
+    }
+
+    /**
+     * Compresses the BGZF blocks of the output in the given executor when 'eva.export.compression-threads' is greater
+     * than 1, keeping that number of blocks of this export in flight. The executor is not shut down by the export, so
+     * it can be shared by all the exports of the application. Without an executor, every compressed output creates
+     * its own threads
+     */
+    public void setCompressionExecutor(Executor compressionExecutor) {
+        this.compressionExecutor = compressionExecutor;
+    }
+
+    /**
+     * Allows to skip the genomic windows without variants, instead of querying all of them
+     */
+    public void setVariantCoordinatesService(VariantCoordinatesService variantCoordinatesService) {
+        regionFactory.setVariantCoordinatesService(variantCoordinatesService);
+    }
+
+    /**
+     * Reuses the sources, merged header and converters of previous exports of the same studies
+     */
+    public void setHeaderCache(VcfHeaderCache headerCache) {
+        this.headerCache = headerCache;
+    }
+
+    /**
+     * Takes the chromosomes to export from the database, instead of requesting them to the EVA web services
+     */
+    public void setChromosomeService(ChromosomeService chromosomeService) {
+        this.chromosomeService = chromosomeService;
+    }
+
+    /**
+     * Takes the first and last variant of the chromosomes from the catalogue of the service, instead of querying them
+     * for every chromosome
+     */
+    public void setChromosomeExtentService(ChromosomeExtentService chromosomeExtentService) {
+        this.chromosomeExtentService = chromosomeExtentService;
+        regionFactory.setChromosomeExtentService(chromosomeExtentService, dbName);
+    }
+
+    /**
+     * Reuses the histograms of previous tickets of the same range to balance the blocks, instead of counting the
+     * variants again
+     */
+    public void setVariantHistogramCache(VariantHistogramCache variantHistogramCache) {
+        regionFactory.setVariantHistogramCache(variantHistogramCache, dbName);
+    }
+
+    /**
+     * When exporting to a file, uses several threads to export different chromosomes at the same time. The output is
+     * the same as in a sequential export.
+     */
+    public void setChromosomeThreads(int chromosomeThreads) {
+        if (chromosomeThreads < 1) {
+            throw new IllegalArgumentException("'chromosomeThreads' must be greater than 0");
+        }
+        this.chromosomeThreads = chromosomeThreads;
+    }
+
+    /**
+     * Number of threads compressing the BGZF blocks of the output
+     */
+    public void setCompressionThreads(int compressionThreads) {
+        if (compressionThreads < 1) {
+            throw new IllegalArgumentException("'compressionThreads' must be greater than 0");
+        }
+        this.compressionThreads = compressionThreads;
+    }
+
+    /**
+     * Deflate level of the BGZF output, from 0 to 9, or {@link #DEFAULT_COMPRESSION_LEVEL} to use htsjdk's default
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        if (compressionLevel < DEFAULT_COMPRESSION_LEVEL || compressionLevel > 9) {
+            throw new IllegalArgumentException("'compressionLevel' must be between " + DEFAULT_COMPRESSION_LEVEL +
+                                                       " and 9");
+        }
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * When exporting to an output stream, writes BGZF compressed VCF instead of plain text
+     */
+    public void setCompressOutputStream(boolean compressOutputStream) {
+        this.compressOutputStream = compressOutputStream;
+    }
+
+    public synchronized int getFailedVariants() {
         return failedVariants;
     }
 
     public String getOutputFileName() {
-        return outputFileName;
+        return compressOutputStream ? outputFileName + ".gz" : outputFileName;
+    }
+
+    /**
+     * @return name of the uncompressed VCF exported today to an output stream from the database
+     */
+    public static String buildOutputFileName(String dbName) {
+        String now = LocalDateTime.now().format(DateTimeFormatter.BASIC_ISO_DATE);
+        return dbName.replace("eva_", "") + "_exported_" + now + ".vcf";
     }
 
     public List<Region> divideChromosomeInChunks(String chromosome, long start, long end) {
         return regionFactory.divideChromosomeInChunks(chromosome, start, end);
     }
 
+    /**
+     * Divides a range of a chromosome in blocks with about 'targetVariantsPerBlock' variants of the studies each. The
+     * {@link VariantCoordinatesService} must have been set
+     */
+    public List<Region> divideChromosomeInBalancedBlocks(String chromosome, long start, long end,
+                                                         int targetVariantsPerBlock) {
+        return regionFactory.divideRegionInBalancedBlocks(chromosome, start, end, studies, targetVariantsPerBlock);
+    }
+
     public long getCoordinateOfFirstVariant(String chromosome) {
+        Optional<ChromosomeExtent> extent = getChromosomeExtent(chromosome);
+        if (extent.isPresent()) {
+            return extent.get().getMinStart();
+        }
         return variantService.findChromosomeLowestReportedCoordinate(chromosome, studies);
     }
 
     public long getCoordinateOfLastVariant(String chromosome) {
+        Optional<ChromosomeExtent> extent = getChromosomeExtent(chromosome);
+        if (extent.isPresent()) {
+            return extent.get().getMaxStart();
+        }
         return variantService.findChromosomeHighestReportedCoordinate(chromosome, studies);
     }
 
+    private Optional<ChromosomeExtent> getChromosomeExtent(String chromosome) {
+        if (chromosomeExtentService == null) {
+            return Optional.empty();
+        }
+        return chromosomeExtentService.getExtent(dbName, chromosome, studies);
+    }
+
     /**
      * TODO: Add species validation @see <a href="https://www.ebi.ac.uk/panda/jira/browse/EVA-1856">EVA-1856</a>
      */
@@ -316,7 +839,7 @@ public class VariantExporterController {
 
     public boolean validateStudies() {
         try {
-            List<VariantSource> sources = exporter.getSources(variantSourceService, studies, files);
+            List<VariantSource> sources = getExportMetadata().getSources();
             return !sources.isEmpty();
         } catch (Exception e) {
             logger.error("Error validating studies", e);
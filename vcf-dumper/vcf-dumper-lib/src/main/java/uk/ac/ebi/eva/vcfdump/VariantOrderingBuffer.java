@@ -0,0 +1,91 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * Restores the coordinate order of variants that are read sorted by their start in the database, but whose start can
+ * be moved one base to the left during the conversion (indels get the preceding context nucleotide).
+ *
+ * Every variant read after one starting at position P will start at P - 1 or later once converted, so any buffered
+ * variant starting before P - 1 (or at P - 1) can be released safely. The buffer only holds the variants of the last
+ * couple of positions. Variants with the same start are released in the order they were added.
+ *
+ * @param <T> converted variant type, e.g. a VariantContext or an encoded VCF line
+ */
+class VariantOrderingBuffer<T> {
+
+    private final PriorityQueue<BufferedVariant<T>> bufferedVariants;
+
+    private final ToIntFunction<T> startOf;
+
+    private final Consumer<T> variantConsumer;
+
+    private long addedVariants;
+
+    VariantOrderingBuffer(ToIntFunction<T> startOf, Consumer<T> variantConsumer) {
+        Comparator<BufferedVariant<T>> coordinateOrder =
+                Comparator.comparingInt((BufferedVariant<T> bufferedVariant) -> bufferedVariant.start)
+                          .thenComparingLong(bufferedVariant -> bufferedVariant.arrivalOrder);
+        this.bufferedVariants = new PriorityQueue<>(coordinateOrder);
+        this.startOf = startOf;
+        this.variantConsumer = variantConsumer;
+        this.addedVariants = 0;
+    }
+
+    /**
+     * Informs that the next variant read from the database starts at 'originalStart', releasing all the buffered
+     * variants that can not be preceded by it or by any later variant.
+     */
+    void advanceTo(long originalStart) {
+        while (!bufferedVariants.isEmpty() && bufferedVariants.peek().start <= originalStart - 1) {
+            variantConsumer.accept(bufferedVariants.poll().variant);
+        }
+    }
+
+    void add(T variant) {
+        bufferedVariants.add(new BufferedVariant<>(variant, startOf.applyAsInt(variant), addedVariants++));
+    }
+
+    void flush() {
+        while (!bufferedVariants.isEmpty()) {
+            variantConsumer.accept(bufferedVariants.poll().variant);
+        }
+    }
+
+    int size() {
+        return bufferedVariants.size();
+    }
+
+    private static class BufferedVariant<T> {
+
+        private final T variant;
+
+        private final int start;
+
+        private final long arrivalOrder;
+
+        BufferedVariant(T variant, int start, long arrivalOrder) {
+            this.variant = variant;
+            this.start = start;
+            this.arrivalOrder = arrivalOrder;
+        }
+    }
+}
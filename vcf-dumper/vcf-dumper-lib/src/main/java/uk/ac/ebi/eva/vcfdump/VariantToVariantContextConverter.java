@@ -21,6 +21,7 @@ package uk.ac.ebi.eva.vcfdump;
 import htsjdk.variant.variantcontext.Allele;
 import htsjdk.variant.variantcontext.Genotype;
 import htsjdk.variant.variantcontext.GenotypeBuilder;
+import htsjdk.variant.variantcontext.GenotypesContext;
 import htsjdk.variant.variantcontext.VariantContext;
 import htsjdk.variant.variantcontext.VariantContextBuilder;
 
@@ -33,14 +34,17 @@ import uk.ac.ebi.eva.commons.core.models.ws.VariantSourceEntryWithSampleNames;
 import uk.ac.ebi.eva.commons.core.models.ws.VariantWithSamplesAndAnnotation;
 
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.stream.Collectors;
 
 public class VariantToVariantContextConverter {
@@ -55,41 +59,113 @@ public class VariantToVariantContextConverter {
 
     private Map<String, Map<String, String>> filesSampleNamesEquivalences;
 
+    /**
+     * Output sample names, in the order of the VCF header columns. Every variant has one genotype per column
+     */
+    private List<String> sampleNames;
+
+    private Map<String, Integer> sampleNameToColumn;
+
+    private List<String> sampleNamesSortedByName;
+
+    /**
+     * Column of every sample in the sources, by file ID and original sample name, so conflicting names don't need to
+     * be translated for every variant
+     */
+    private Map<String, Map<String, Integer>> sampleColumnsByFile;
+
     private static final int NO_CALL_ALLELE_INDEX = 2;
 
-    protected static final Pattern genotypePattern = Pattern.compile("/|\\|");
+    private static final int MAX_CACHED_GENOTYPE_CODES = 1000;
+
+    static final int DEFAULT_PLOIDY = 2;
+
+    /**
+     * Parsed GT strings. Just a few different codes (0/0, 0|1, ./., ...) are found in most studies, so each one is
+     * tokenized only once per export
+     */
+    private final ConcurrentMap<String, GenotypeCode> genotypeCodes = new ConcurrentHashMap<>();
 
     private boolean excludeAnnotations;
 
     public VariantToVariantContextConverter(List<VariantSource> sources,
                                             Map<String, Map<String, String>> filesSampleNamesEquivalences,
                                             boolean excludeAnnotations) {
+        this(sources, filesSampleNamesEquivalences, null, excludeAnnotations);
+    }
+
+    /**
+     * @param outputSampleNames sample names in the order they will have in the VCF header. If null, the samples of
+     *                          every source are used, in the same order of the sources list
+     */
+    public VariantToVariantContextConverter(List<VariantSource> sources,
+                                            Map<String, Map<String, String>> filesSampleNamesEquivalences,
+                                            List<String> outputSampleNames,
+                                            boolean excludeAnnotations) {
         this.sources = sources;
         this.excludeAnnotations = excludeAnnotations;
         if (sources != null) {
             this.studies = sources.stream().map(VariantSource::getStudyId).collect(Collectors.toSet());
         }
         this.filesSampleNamesEquivalences = filesSampleNamesEquivalences;
+        if (outputSampleNames == null) {
+            outputSampleNames = getSourcesSampleNames();
+        }
+        indexSampleColumns(outputSampleNames);
     }
 
-    public VariantContext transform(VariantWithSamplesAndAnnotation variant) {
-        // if there are indels, we cannot use the normalized alleles (hts forbids empty alleles), so we have to extract a context allele
-        // from the VCF source line, add it to the variant and update the variant coordinates
-        if (variant.getReference().isEmpty() || variant.getAlternate().isEmpty()) {
-            variant = updateVariantAddingContextNucleotideFromSourceLine(variant);
+    private List<String> getSourcesSampleNames() {
+        Set<String> sourcesSampleNames = new LinkedHashSet<>();
+        if (sources != null) {
+            for (VariantSource source : sources) {
+                source.getSamplesPosition().entrySet().stream()
+                      .sorted(Map.Entry.comparingByValue())
+                      .forEach(sample -> sourcesSampleNames.add(getFixedSampleName(source.getFileId(),
+                                                                                    sample.getKey())));
+            }
         }
+        return new ArrayList<>(sourcesSampleNames);
+    }
+
+    private void indexSampleColumns(List<String> outputSampleNames) {
+        sampleNames = Collections.unmodifiableList(new ArrayList<>(outputSampleNames));
+        Map<String, Integer> columns = new HashMap<>();
+        for (int column = 0; column < sampleNames.size(); column++) {
+            columns.put(sampleNames.get(column), column);
+        }
+        sampleNameToColumn = Collections.unmodifiableMap(columns);
+
+        List<String> sortedSampleNames = new ArrayList<>(sampleNames);
+        Collections.sort(sortedSampleNames);
+        sampleNamesSortedByName = Collections.unmodifiableList(sortedSampleNames);
+
+        sampleColumnsByFile = new HashMap<>();
+        if (sources != null) {
+            for (VariantSource source : sources) {
+                Map<String, Integer> fileColumns = new HashMap<>();
+                for (String sampleName : source.getSamplesPosition().keySet()) {
+                    Integer column = sampleNameToColumn.get(getFixedSampleName(source.getFileId(), sampleName));
+                    if (column != null) {
+                        fileColumns.put(sampleName, column);
+                    }
+                }
+                sampleColumnsByFile.put(source.getFileId(), fileColumns);
+            }
+        }
+    }
+
+    public VariantContext transform(VariantWithSamplesAndAnnotation variant) {
+        variant = addContextNucleotideToIndel(variant);
         String[] allelesArray = getAllelesArray(variant);
 
-        Set<Genotype> genotypes = getGenotypes(variant, allelesArray);
+        GenotypesContext genotypes = getGenotypes(variant, allelesArray);
 
         // don't reuse instances of this builder. It carries over state from one variant to the next one
         VariantContextBuilder variantContextBuilder = new VariantContextBuilder();
 
-        if (!excludeAnnotations) {
-            String csq = getAnnotationAttributes(variant);
-            if (csq != null) {
-                variantContextBuilder.attribute(ANNOTATION_KEY, csq);
-            }
+        String csq = getCsqAttribute(variant);
+        if (csq != null) {
+            variantContextBuilder.attribute(ANNOTATION_KEY, csq);
         }
 
         VariantContext variantContext = variantContextBuilder
@@ -104,6 +180,22 @@ public class VariantToVariantContextConverter {
         return variantContext;
     }
 
+    VariantWithSamplesAndAnnotation addContextNucleotideToIndel(VariantWithSamplesAndAnnotation variant) {
+        // if there are indels, we cannot use the normalized alleles (hts forbids empty alleles), so we have to extract a context allele
+        // from the VCF source line, add it to the variant and update the variant coordinates
+        if (variant.getReference().isEmpty() || variant.getAlternate().isEmpty()) {
+            return updateVariantAddingContextNucleotideFromSourceLine(variant);
+        }
+        return variant;
+    }
+
+    /**
+     * @return value of the CSQ INFO field, or null if the variant has no annotation or annotations are excluded
+     */
+    String getCsqAttribute(VariantWithSamplesAndAnnotation variant) {
+        return excludeAnnotations ? null : getAnnotationAttributes(variant);
+    }
+
     private String getAnnotationAttributes(VariantWithSamplesAndAnnotation variant) {
         Set<ConsequenceType> consequenceTypes = getConsequenceTypes(variant);
         String csq = null;
@@ -220,62 +312,81 @@ public class VariantToVariantContextConverter {
         return newVariant;
     }
 
-    private Set<Genotype> getGenotypes(VariantWithSamplesAndAnnotation variant, String[] allelesArray) {
-        Set<Genotype> genotypes = new HashSet<>();
-
+    private GenotypesContext getGenotypes(VariantWithSamplesAndAnnotation variant, String[] allelesArray) {
         Allele[] variantAlleles =
                 {Allele.create(allelesArray[0], true), Allele.create(allelesArray[1]), Allele.create(Allele.NO_CALL,
                                                                                                      false)};
-
-        for (VariantSource source : sources) {
-            List<VariantSourceEntryWithSampleNames> variantStudyEntries =
-                    variant.getSourceEntries().stream().filter(s -> s.getStudyId().equals(source.getStudyId()))
-                           .collect(Collectors.toList());
-            for (VariantSourceEntryWithSampleNames variantStudyEntry : variantStudyEntries) {
-                genotypes = getStudyGenotypes(genotypes, variantAlleles, variantStudyEntry);
+        // the allele lists are shared by all the samples of this variant that have the same genotype
+        Map<GenotypeCode, List<Allele>> genotypeAllelesByCode = new HashMap<>();
+        // one builder per variant, reset for every sample, because the converter can be used by several threads
+        GenotypeBuilder genotypeBuilder = new GenotypeBuilder();
+
+        // one genotype per output sample, in header order
+        ArrayList<Genotype> genotypes = new ArrayList<>(Collections.nCopies(sampleNames.size(), null));
+        for (VariantSourceEntryWithSampleNames variantStudyEntry : variant.getSourceEntries()) {
+            if (studies.contains(variantStudyEntry.getStudyId())) {
+                addStudyGenotypes(genotypes, variantAlleles, genotypeAllelesByCode, genotypeBuilder,
+                                  variantStudyEntry);
             }
         }
-        return genotypes;
+        addMissingGenotypes(genotypes);
+
+        // the sample indexes are the same for every variant, so htsjdk doesn't need to build them again
+        return GenotypesContext.create(genotypes, sampleNameToColumn, sampleNamesSortedByName);
     }
 
-    private Set<Genotype> getStudyGenotypes(Set<Genotype> genotypes, Allele[] variantAlleles,
-                                            VariantSourceEntryWithSampleNames variantStudyEntry) {
+    private void addStudyGenotypes(ArrayList<Genotype> genotypes, Allele[] variantAlleles,
+                                   Map<GenotypeCode, List<Allele>> genotypeAllelesByCode,
+                                   GenotypeBuilder genotypeBuilder,
+                                   VariantSourceEntryWithSampleNames variantStudyEntry) {
+        String fileId = variantStudyEntry.getFileId();
         for (Map.Entry<String, Map<String, String>> sampleEntry : variantStudyEntry.getSamplesDataMap().entrySet()) {
-            String sampleGenotypeString = sampleEntry.getValue().get(GENOTYPE_KEY);
-            Genotype sampleGenotype =
-                    parseSampleGenotype(variantAlleles, variantStudyEntry.getFileId(), sampleEntry.getKey(),
-                                        sampleGenotypeString);
-            genotypes.add(sampleGenotype);
+            Integer column = getSampleColumn(fileId, sampleEntry.getKey());
+            if (column == null) {
+                // the sample is not in the output header, so the writer would ignore its genotype
+                continue;
+            }
+            GenotypeCode genotypeCode = getGenotypeCode(sampleEntry.getValue().get(GENOTYPE_KEY));
+            List<Allele> genotypeAlleles = genotypeAllelesByCode.computeIfAbsent(
+                    genotypeCode, code -> code.getAlleles(variantAlleles));
+
+            genotypeBuilder.reset(false);
+            genotypes.set(column, genotypeBuilder.name(sampleNames.get(column))
+                                                 .phased(genotypeCode.isPhased())
+                                                 .alleles(genotypeAlleles)
+                                                 .make());
         }
-        return genotypes;
     }
 
-    private Genotype parseSampleGenotype(Allele[] variantAlleles, String fileId, String sampleName,
-                                         String sampleGenotypeString) {
-        String[] alleles = genotypePattern.split(sampleGenotypeString, -1);
-        boolean isPhased = sampleGenotypeString.contains("|");
-
-        List<Allele> genotypeAlleles = new ArrayList<>(2);
-        for (String allele : alleles) {
-            int index;
-            if (allele.equals(".")) {
-                index = -1;
-            } else {
-                index = Integer.valueOf(allele);
-            }
-            // every allele not 0 or 1 will be considered no call
-            if (index == -1 || index > NO_CALL_ALLELE_INDEX) {
-                index = NO_CALL_ALLELE_INDEX;
-            }
-            genotypeAlleles.add(variantAlleles[index]);
+    Integer getSampleColumn(String fileId, String sampleName) {
+        Map<String, Integer> fileColumns = sampleColumnsByFile.get(fileId);
+        if (fileColumns != null) {
+            return fileColumns.get(sampleName);
         }
+        // entries of files that are not in the sources are matched by sample name
+        return sampleNameToColumn.get(getFixedSampleName(fileId, sampleName));
+    }
 
-        GenotypeBuilder builder = new GenotypeBuilder()
-                .name(getFixedSampleName(fileId, sampleName))
-                .phased(isPhased)
-                .alleles(genotypeAlleles);
+    private void addMissingGenotypes(ArrayList<Genotype> genotypes) {
+        // samples not present in any of the variant files are written as no-calls, as the VCF writer would do
+        int ploidy = genotypes.stream().filter(Objects::nonNull).mapToInt(Genotype::getPloidy).max()
+                              .orElse(DEFAULT_PLOIDY);
+        for (int column = 0; column < genotypes.size(); column++) {
+            if (genotypes.get(column) == null) {
+                genotypes.set(column, GenotypeBuilder.createMissing(sampleNames.get(column), ploidy));
+            }
+        }
+    }
 
-        return builder.make();
+    GenotypeCode getGenotypeCode(String sampleGenotypeString) {
+        GenotypeCode genotypeCode = genotypeCodes.get(sampleGenotypeString);
+        if (genotypeCode == null) {
+            genotypeCode = GenotypeCode.parse(sampleGenotypeString);
+            if (genotypeCodes.size() < MAX_CACHED_GENOTYPE_CODES) {
+                genotypeCodes.putIfAbsent(sampleGenotypeString, genotypeCode);
+            }
+        }
+        return genotypeCode;
     }
 
     private String getFixedSampleName(String fileId, String sampleName) {
@@ -287,7 +398,105 @@ public class VariantToVariantContextConverter {
         }
     }
 
-    private long getVariantContextStop(IVariant variant) {
+    List<String> getSampleNames() {
+        return sampleNames;
+    }
+
+    boolean isExportedStudy(String studyId) {
+        return studies.contains(studyId);
+    }
+
+    long getVariantContextStop(IVariant variant) {
         return variant.getStart() + variant.getReference().length() - 1;
     }
+
+    /**
+     * Allele indexes and phasing of a GT string, where every index is already 0 (reference), 1 (alternate) or 2 (no
+     * call)
+     */
+    static class GenotypeCode {
+
+        private final int[] alleleIndexes;
+
+        private final boolean phased;
+
+        private GenotypeCode(int[] alleleIndexes, boolean phased) {
+            this.alleleIndexes = alleleIndexes;
+            this.phased = phased;
+        }
+
+        /**
+         * Hand-written equivalent of splitting by '/' or '|' and parsing every allele: '.', -1 and any index
+         * greater than 1 are considered no call
+         */
+        static GenotypeCode parse(String genotype) {
+            int ploidy = 1;
+            boolean phased = false;
+            for (int i = 0; i < genotype.length(); i++) {
+                char character = genotype.charAt(i);
+                if (character == '|') {
+                    phased = true;
+                    ploidy++;
+                } else if (character == '/') {
+                    ploidy++;
+                }
+            }
+
+            int[] alleleIndexes = new int[ploidy];
+            int alleleStart = 0;
+            for (int allele = 0; allele < ploidy; allele++) {
+                int alleleEnd = alleleStart;
+                while (alleleEnd < genotype.length() && genotype.charAt(alleleEnd) != '/'
+                        && genotype.charAt(alleleEnd) != '|') {
+                    alleleEnd++;
+                }
+                alleleIndexes[allele] = parseAlleleIndex(genotype, alleleStart, alleleEnd);
+                alleleStart = alleleEnd + 1;
+            }
+            return new GenotypeCode(alleleIndexes, phased);
+        }
+
+        private static int parseAlleleIndex(String genotype, int start, int end) {
+            if (end - start == 1 && genotype.charAt(start) == '.') {
+                return NO_CALL_ALLELE_INDEX;
+            }
+            if (start == end || !Character.isDigit(genotype.charAt(start))) {
+                // empty or signed numbers, which are not expected in a GT: keep the behaviour of Integer.valueOf
+                int index = Integer.valueOf(genotype.substring(start, end));
+                if (index == -1) {
+                    return NO_CALL_ALLELE_INDEX;
+                }
+                if (index < 0) {
+                    throw new IllegalArgumentException("Invalid allele index in genotype " + genotype);
+                }
+                return Math.min(index, NO_CALL_ALLELE_INDEX);
+            }
+            int index = 0;
+            for (int i = start; i < end; i++) {
+                char character = genotype.charAt(i);
+                if (!Character.isDigit(character)) {
+                    throw new NumberFormatException("Invalid allele index in genotype " + genotype);
+                }
+                // every index greater than 1 is a no call, so there is no need to keep accumulating digits
+                index = Math.min(index * 10 + (character - '0'), NO_CALL_ALLELE_INDEX);
+            }
+            return index;
+        }
+
+        List<Allele> getAlleles(Allele[] variantAlleles) {
+            List<Allele> alleles = new ArrayList<>(alleleIndexes.length);
+            for (int alleleIndex : alleleIndexes) {
+                alleles.add(variantAlleles[alleleIndex]);
+            }
+            return alleles;
+        }
+
+        boolean isPhased() {
+            return phased;
+        }
+
+        int[] getAlleleIndexes() {
+            return alleleIndexes;
+        }
+    }
 }
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump;
+
+import htsjdk.variant.vcf.VCFHeader;
+
+import uk.ac.ebi.eva.commons.core.models.VariantSource;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Everything an export prepares from the sources of the studies before querying any variant: the sources, the merged
+ * VCF header, the output sample names and the converters built for them. It doesn't change during an export, so it
+ * can be shared by several exports of the same studies, even concurrently.
+ */
+public class VcfExportMetadata {
+
+    private final List<VariantSource> sources;
+
+    private final VCFHeader header;
+
+    private final List<String> sampleNames;
+
+    private final VariantToVariantContextConverter converter;
+
+    private final VcfLineEncoder vcfLineEncoder;
+
+    VcfExportMetadata(List<VariantSource> sources, VCFHeader header, List<String> sampleNames,
+                      VariantToVariantContextConverter converter, VcfLineEncoder vcfLineEncoder) {
+        this.sources = Collections.unmodifiableList(new ArrayList<>(sources));
+        this.header = header;
+        this.sampleNames = Collections.unmodifiableList(new ArrayList<>(sampleNames));
+        this.converter = converter;
+        this.vcfLineEncoder = vcfLineEncoder;
+    }
+
+    public List<VariantSource> getSources() {
+        return sources;
+    }
+
+    /**
+     * @return a copy of the merged header, because VCFHeader is mutable and every export writes its own
+     */
+    public VCFHeader getHeader() {
+        return new VCFHeader(header.getMetaDataInInputOrder(), header.getGenotypeSamples());
+    }
+
+    /**
+     * @return output sample names, in the order of the VCF header columns
+     */
+    public List<String> getSampleNames() {
+        return sampleNames;
+    }
+
+    VariantToVariantContextConverter getConverter() {
+        return converter;
+    }
+
+    VcfLineEncoder getVcfLineEncoder() {
+        return vcfLineEncoder;
+    }
+}
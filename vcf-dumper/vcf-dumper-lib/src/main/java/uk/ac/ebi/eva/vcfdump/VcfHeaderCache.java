@@ -0,0 +1,145 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.ebi.eva.vcfdump.services.VariantDataVersionService;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Keeps the {@link VcfExportMetadata} of the most recently exported study sets, so the exports that follow (like the
+ * many blocks of an htsget request) don't fetch the sources from the database, parse their headers, merge them and
+ * resolve the sample names again.
+ *
+ * Entries are identified by the database, studies, files and annotation exclusion of the export, and by the version
+ * of the data of the studies, so the metadata is prepared again after any file of the studies is loaded.
+ */
+public class VcfHeaderCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(VcfHeaderCache.class);
+
+    public static final String SIZE_PROPERTY = "eva.export.header-cache-size";
+
+    public static final int DEFAULT_SIZE = 100;
+
+    private final VariantDataVersionService variantDataVersionService;
+
+    private final Map<Key, VcfExportMetadata> entries;
+
+    /**
+     * @param maxEntries number of study sets kept, the least recently used ones are discarded first
+     */
+    public VcfHeaderCache(VariantDataVersionService variantDataVersionService, int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("'maxEntries' must be greater than 0");
+        }
+        this.variantDataVersionService = variantDataVersionService;
+        this.entries = new LinkedHashMap<Key, VcfExportMetadata>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, VcfExportMetadata> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    @FunctionalInterface
+    public interface MetadataLoader {
+        VcfExportMetadata load() throws IOException;
+    }
+
+    /**
+     * @param loader prepares the metadata if it's not in the cache. Concurrent misses of the same key can load it
+     *               more than once, which is harmless because the results are the same
+     */
+    public VcfExportMetadata get(String dbName, List<String> studies, List<String> files, boolean excludeAnnotations,
+                                 MetadataLoader loader) throws IOException {
+        Key key = new Key(dbName, studies, files, excludeAnnotations,
+                          variantDataVersionService.getDataVersion(studies));
+        synchronized (entries) {
+            VcfExportMetadata metadata = entries.get(key);
+            if (metadata != null) {
+                logger.debug("VCF header of {} found in the cache", key);
+                return metadata;
+            }
+        }
+        VcfExportMetadata metadata = loader.load();
+        synchronized (entries) {
+            entries.put(key, metadata);
+        }
+        return metadata;
+    }
+
+    private static class Key {
+
+        private final String dbName;
+
+        private final List<String> studies;
+
+        private final List<String> files;
+
+        private final boolean excludeAnnotations;
+
+        private final String dataVersion;
+
+        Key(String dbName, List<String> studies, List<String> files, boolean excludeAnnotations,
+            String dataVersion) {
+            this.dbName = dbName;
+            this.studies = sorted(studies);
+            this.files = sorted(files);
+            this.excludeAnnotations = excludeAnnotations;
+            this.dataVersion = dataVersion;
+        }
+
+        private static List<String> sorted(List<String> values) {
+            List<String> sortedValues = new ArrayList<>(values);
+            Collections.sort(sortedValues);
+            return sortedValues;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key key = (Key) o;
+            return excludeAnnotations == key.excludeAnnotations && dbName.equals(key.dbName)
+                    && studies.equals(key.studies) && files.equals(key.files)
+                    && dataVersion.equals(key.dataVersion);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(dbName, studies, files, excludeAnnotations, dataVersion);
+        }
+
+        @Override
+        public String toString() {
+            return dbName + " " + studies + (files.isEmpty() ? "" : " " + files);
+        }
+    }
+}
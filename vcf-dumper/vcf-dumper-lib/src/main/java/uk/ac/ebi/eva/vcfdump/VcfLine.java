@@ -0,0 +1,54 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump;
+
+/**
+ * A VCF data line already encoded as bytes, including the line terminator, with the coordinates needed to keep the
+ * output sorted and indexed
+ */
+public class VcfLine {
+
+    private final String chromosome;
+
+    private final int start;
+
+    private final int end;
+
+    private final byte[] bytes;
+
+    public VcfLine(String chromosome, int start, int end, byte[] bytes) {
+        this.chromosome = chromosome;
+        this.start = start;
+        this.end = end;
+        this.bytes = bytes;
+    }
+
+    public String getChromosome() {
+        return chromosome;
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    public int getEnd() {
+        return end;
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump;
+
+import htsjdk.variant.variantcontext.Allele;
+
+import uk.ac.ebi.eva.commons.core.models.ws.VariantSourceEntryWithSampleNames;
+import uk.ac.ebi.eva.commons.core.models.ws.VariantWithSamplesAndAnnotation;
+import uk.ac.ebi.eva.vcfdump.VariantToVariantContextConverter.GenotypeCode;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+import static uk.ac.ebi.eva.vcfdump.VariantToVariantContextConverter.ANNOTATION_KEY;
+import static uk.ac.ebi.eva.vcfdump.VariantToVariantContextConverter.DEFAULT_PLOIDY;
+import static uk.ac.ebi.eva.vcfdump.VariantToVariantContextConverter.GENOTYPE_KEY;
+
+/**
+ * Encodes variants straight into VCF lines, without building a VariantContext and a Genotype per sample.
+ *
+ * The lines are the same htsjdk's VCF writer would produce for the VariantContext created by the
+ * {@link VariantToVariantContextConverter} used to build this encoder: same allele normalization, CSQ field and sample
+ * columns. Every thread encodes into its own reusable buffer, so one instance can be shared by all the export threads.
+ */
+class VcfLineEncoder {
+
+    private static final byte FIELD_SEPARATOR = '\t';
+
+    private static final byte MISSING_VALUE = '.';
+
+    private static final byte PHASED = '|';
+
+    private static final byte UNPHASED = '/';
+
+    private static final byte LINE_TERMINATOR = '\n';
+
+    private static final byte[] ALLELE_CODES = {'0', '1', '.'};
+
+    private static final int INITIAL_LINE_CAPACITY = 1024;
+
+    private final VariantToVariantContextConverter converter;
+
+    private final int samplesCount;
+
+    private final ThreadLocal<LineBuffer> lineBuffers;
+
+    VcfLineEncoder(VariantToVariantContextConverter converter) {
+        this.converter = converter;
+        this.samplesCount = converter.getSampleNames().size();
+        this.lineBuffers = ThreadLocal.withInitial(() -> new LineBuffer(samplesCount));
+    }
+
+    VcfLine encode(VariantWithSamplesAndAnnotation variant) {
+        variant = converter.addContextNucleotideToIndel(variant);
+        // the alleles are created as in the VariantContext, so invalid bases are rejected the same way
+        Allele reference = Allele.create(variant.getReference(), true);
+        Allele alternate = Allele.create(variant.getAlternate(), false);
+
+        LineBuffer line = lineBuffers.get();
+        fillGenotypes(variant, line.genotypes);
+
+        line.reset();
+        line.append(variant.getChromosome()).append(FIELD_SEPARATOR)
+            .append(Long.toString(variant.getStart())).append(FIELD_SEPARATOR)
+            .append(MISSING_VALUE).append(FIELD_SEPARATOR)
+            .append(reference.getDisplayString()).append(FIELD_SEPARATOR)
+            .append(alternate.getDisplayString()).append(FIELD_SEPARATOR)
+            .append(MISSING_VALUE).append(FIELD_SEPARATOR)
+            .append(MISSING_VALUE).append(FIELD_SEPARATOR);
+        appendInfo(line, converter.getCsqAttribute(variant));
+        appendGenotypes(line, line.genotypes);
+        line.append(LINE_TERMINATOR);
+
+        return new VcfLine(variant.getChromosome(), (int) variant.getStart(),
+                           (int) converter.getVariantContextStop(variant), line.toByteArray());
+    }
+
+    private void fillGenotypes(VariantWithSamplesAndAnnotation variant, GenotypeCode[] genotypes) {
+        Arrays.fill(genotypes, null);
+        for (VariantSourceEntryWithSampleNames variantStudyEntry : variant.getSourceEntries()) {
+            if (converter.isExportedStudy(variantStudyEntry.getStudyId())) {
+                String fileId = variantStudyEntry.getFileId();
+                for (Map.Entry<String, Map<String, String>> sampleEntry :
+                        variantStudyEntry.getSamplesDataMap().entrySet()) {
+                    Integer column = converter.getSampleColumn(fileId, sampleEntry.getKey());
+                    if (column != null) {
+                        genotypes[column] = converter.getGenotypeCode(sampleEntry.getValue().get(GENOTYPE_KEY));
+                    }
+                }
+            }
+        }
+    }
+
+    private void appendInfo(LineBuffer line, String csq) {
+        if (csq == null) {
+            line.append(MISSING_VALUE);
+        } else {
+            // htsjdk writes just the key of INFO fields with empty values
+            line.append(ANNOTATION_KEY);
+            if (!csq.isEmpty()) {
+                line.append((byte) '=').append(csq);
+            }
+        }
+    }
+
+    private void appendGenotypes(LineBuffer line, GenotypeCode[] genotypes) {
+        if (samplesCount == 0) {
+            return;
+        }
+        line.append(FIELD_SEPARATOR).append(GENOTYPE_KEY);
+
+        // samples without genotype are written as no-calls of the highest ploidy in the variant
+        int missingGenotypePloidy = 0;
+        for (GenotypeCode genotype : genotypes) {
+            if (genotype != null) {
+                missingGenotypePloidy = Math.max(missingGenotypePloidy, genotype.getAlleleIndexes().length);
+            }
+        }
+        if (missingGenotypePloidy == 0) {
+            missingGenotypePloidy = DEFAULT_PLOIDY;
+        }
+
+        for (GenotypeCode genotype : genotypes) {
+            line.append(FIELD_SEPARATOR);
+            if (genotype == null) {
+                appendMissingGenotype(line, missingGenotypePloidy);
+            } else {
+                appendGenotype(line, genotype);
+            }
+        }
+    }
+
+    private void appendGenotype(LineBuffer line, GenotypeCode genotype) {
+        int[] alleleIndexes = genotype.getAlleleIndexes();
+        byte separator = genotype.isPhased() ? PHASED : UNPHASED;
+        for (int i = 0; i < alleleIndexes.length; i++) {
+            if (i > 0) {
+                line.append(separator);
+            }
+            line.append(ALLELE_CODES[alleleIndexes[i]]);
+        }
+    }
+
+    private void appendMissingGenotype(LineBuffer line, int ploidy) {
+        for (int i = 0; i < ploidy; i++) {
+            if (i > 0) {
+                line.append(UNPHASED);
+            }
+            line.append(MISSING_VALUE);
+        }
+    }
+
+    /**
+     * Growable byte array reused for every line encoded by a thread, along with the genotype row of the variant
+     */
+    private static class LineBuffer {
+
+        private byte[] bytes;
+
+        private int length;
+
+        private final GenotypeCode[] genotypes;
+
+        LineBuffer(int samplesCount) {
+            bytes = new byte[INITIAL_LINE_CAPACITY + samplesCount * 4];
+            genotypes = new GenotypeCode[samplesCount];
+        }
+
+        void reset() {
+            length = 0;
+        }
+
+        LineBuffer append(byte value) {
+            ensureCapacity(1);
+            bytes[length++] = value;
+            return this;
+        }
+
+        LineBuffer append(String value) {
+            int valueLength = value.length();
+            ensureCapacity(valueLength);
+            for (int i = 0; i < valueLength; i++) {
+                char character = value.charAt(i);
+                if (character > 0x7f) {
+                    // not plain ASCII, let the charset encoder deal with it
+                    length -= i;
+                    return append(value.getBytes(StandardCharsets.UTF_8));
+                }
+                bytes[length++] = (byte) character;
+            }
+            return this;
+        }
+
+        private LineBuffer append(byte[] values) {
+            ensureCapacity(values.length);
+            System.arraycopy(values, 0, bytes, length, values.length);
+            length += values.length;
+            return this;
+        }
+
+        private void ensureCapacity(int extraBytes) {
+            if (length + extraBytes > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extraBytes));
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, length);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump;
+
+import htsjdk.variant.variantcontext.writer.Options;
+import htsjdk.variant.variantcontext.writer.VariantContextWriter;
+import htsjdk.variant.variantcontext.writer.VariantContextWriterBuilder;
+import htsjdk.variant.vcf.VCFHeader;
+
+import uk.ac.ebi.eva.commons.core.models.Region;
+import uk.ac.ebi.eva.commons.mongodb.filter.VariantRepositoryFilter;
+import uk.ac.ebi.eva.commons.mongodb.services.VariantWithSamplesAndAnnotationsService;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Writes the variants as VCF lines encoded by {@link VcfLineEncoder}, copying their bytes to the output stream.
+ *
+ * The header is still rendered by htsjdk, and the stream is flushed after it like htsjdk's VCF writer does, so a
+ * block compressed output gets the same BGZF blocks.
+ */
+class VcfLineOutput implements VcfOutput<VcfLine> {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final OutputStream outputStream;
+
+    private final VariantExporter exporter;
+
+    private final VariantWithSamplesAndAnnotationsService variantService;
+
+    private final VcfTabixIndexer indexer;
+
+    VcfLineOutput(OutputStream outputStream, VariantExporter exporter,
+                  VariantWithSamplesAndAnnotationsService variantService) {
+        this(outputStream, null, exporter, variantService);
+    }
+
+    /**
+     * @param outputStream BGZF stream tracked by the indexer, or any stream if the indexer is null
+     * @param indexer indexer of the output, or null to not index it
+     */
+    VcfLineOutput(OutputStream outputStream, VcfTabixIndexer indexer, VariantExporter exporter,
+                  VariantWithSamplesAndAnnotationsService variantService) {
+        // the file pointers of the indexed lines are taken from the BGZF stream, so nothing can be buffered before it
+        this.outputStream = indexer == null ? new BufferedOutputStream(outputStream, BUFFER_SIZE) : outputStream;
+        this.indexer = indexer;
+        this.exporter = exporter;
+        this.variantService = variantService;
+    }
+
+    @Override
+    public int export(Region region, List<VariantRepositoryFilter> filters, Consumer<VcfLine> variantConsumer) {
+        return exporter.exportVcfLines(variantService, filters, region, variantConsumer);
+    }
+
+    @Override
+    public int export(List<Region> regions, List<VariantRepositoryFilter> filters,
+                      Consumer<VcfLine> variantConsumer) {
+        return exporter.exportVcfLines(variantService, filters, regions, variantConsumer);
+    }
+
+    @Override
+    public void writeHeader(VCFHeader header) {
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        VariantContextWriter headerWriter = new VariantContextWriterBuilder().setOutputVCFStream(headerBytes)
+                                                                             .unsetOption(Options.INDEX_ON_THE_FLY)
+                                                                             .build();
+        headerWriter.writeHeader(header);
+        headerWriter.close();
+        try {
+            headerBytes.writeTo(outputStream);
+            outputStream.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error writing the VCF header", e);
+        }
+    }
+
+    @Override
+    public void setHeader(VCFHeader header) {
+        // the lines are already encoded for the header of the export, nothing to do
+    }
+
+    @Override
+    public void add(VcfLine variant) {
+        if (indexer != null) {
+            indexer.add(variant.getChromosome(), variant.getStart(), variant.getEnd());
+        }
+        try {
+            outputStream.write(variant.getBytes());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error writing variant " + variant.getChromosome() + ":" +
+                                                   variant.getStart(), e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (indexer != null) {
+            indexer.finish();
+        }
+        try {
+            outputStream.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error closing the VCF output", e);
+        }
+        if (indexer != null) {
+            indexer.writeIndex();
+        }
+    }
+}
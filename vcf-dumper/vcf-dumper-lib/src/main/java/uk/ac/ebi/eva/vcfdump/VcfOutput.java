@@ -0,0 +1,50 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump;
+
+import htsjdk.variant.vcf.VCFHeader;
+
+import uk.ac.ebi.eva.commons.core.models.Region;
+import uk.ac.ebi.eva.commons.mongodb.filter.VariantRepositoryFilter;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Destination of an export. Each implementation fetches the variants of a region already converted into the type of
+ * record it writes (see {@link ParallelRegionExporter.RegionExport}), and writes them in the order they are added.
+ *
+ * @param <T> type of the records written
+ */
+interface VcfOutput<T> extends ParallelRegionExporter.RegionExport<T> {
+
+    /**
+     * Fetches and converts the variants of several regions of the same chromosome with a single query, returning the
+     * number of variants that could not be converted. The regions must be sorted and must not overlap
+     */
+    int export(List<Region> regions, List<VariantRepositoryFilter> filters, Consumer<T> variantConsumer);
+
+    void writeHeader(VCFHeader header);
+
+    /**
+     * Sets the header used to encode the variants, without writing it
+     */
+    void setHeader(VCFHeader header);
+
+    void add(T variant);
+
+    void close();
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump;
+
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.tribble.SimpleFeature;
+import htsjdk.tribble.index.Index;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.tribble.index.tabix.TabixIndexCreator;
+import htsjdk.tribble.util.LittleEndianOutputStream;
+import htsjdk.tribble.util.TabixUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.ebi.eva.vcfdump.bgzfutils.FilePointerTracker;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+
+/**
+ * Builds the tabix index of a BGZF VCF file while the variants are written, from the virtual file pointers of the
+ * lines, so the file can be queried by region without reading it again.
+ *
+ * Tabix can't index positions beyond 2^29, so if a variant ends after that position the index is not created.
+ */
+class VcfTabixIndexer {
+
+    private static final Logger logger = LoggerFactory.getLogger(VcfTabixIndexer.class);
+
+    static final int MAX_INDEXABLE_POSITION = (1 << 29) - 1;
+
+    private final Path indexPath;
+
+    private final FilePointerTracker filePointers;
+
+    private final TabixIndexCreator indexCreator;
+
+    private boolean indexable;
+
+    private Index index;
+
+    VcfTabixIndexer(Path vcfPath, FilePointerTracker filePointers) {
+        this.indexPath = getIndexPath(vcfPath);
+        this.filePointers = filePointers;
+        this.indexCreator = new TabixIndexCreator(TabixFormat.VCF);
+        this.indexable = true;
+    }
+
+    static Path getIndexPath(Path vcfPath) {
+        return vcfPath.resolveSibling(vcfPath.getFileName() + TabixUtils.STANDARD_INDEX_EXTENSION);
+    }
+
+    /**
+     * Adds the variant whose line is going to be written next
+     */
+    void add(String chromosome, int start, int end) {
+        if (!indexable) {
+            return;
+        }
+        if (end > MAX_INDEXABLE_POSITION) {
+            logger.warn("Variant {}:{} can't be indexed with tabix, {} won't be created", chromosome, start,
+                        indexPath);
+            indexable = false;
+            return;
+        }
+        SimpleFeature feature = new SimpleFeature(chromosome, start, end);
+        filePointers.onNextFilePointer(filePointer -> indexCreator.addFeature(feature, filePointer));
+    }
+
+    /**
+     * Marks the end of the indexed data. Must be called after the last variant is written and before closing the
+     * output
+     */
+    void finish() {
+        if (indexable) {
+            filePointers.onNextFilePointer(filePointer -> index = indexCreator.finalizeIndex(filePointer));
+        }
+    }
+
+    /**
+     * Writes the index next to the VCF file. Must be called after closing the output, so the index is not older than
+     * the file
+     */
+    void writeIndex() {
+        if (!indexable) {
+            return;
+        }
+        if (index == null) {
+            throw new IllegalStateException("The VCF output must be closed before writing the index " + indexPath);
+        }
+        // tabix indexes are BGZF compressed
+        try (LittleEndianOutputStream outputStream = new LittleEndianOutputStream(
+                new BlockCompressedOutputStream(indexPath.toFile()))) {
+            index.write(outputStream);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error writing the tabix index " + indexPath, e);
+        }
+        logger.debug("Tabix index written to {}", indexPath);
+    }
+}
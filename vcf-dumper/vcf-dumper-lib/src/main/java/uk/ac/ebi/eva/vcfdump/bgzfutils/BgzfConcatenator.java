@@ -0,0 +1,83 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.bgzfutils;
+
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Joins several BGZF files into a single one without decompressing them.
+ *
+ * A BGZF file is a sequence of independent gzip blocks terminated by an empty "EOF" block, so the files can be copied
+ * one after the other as long as only one EOF block is kept, at the end of the output.
+ */
+public class BgzfConcatenator {
+
+    private static final byte[] EOF_BLOCK = BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK;
+
+    private BgzfConcatenator() {
+    }
+
+    /**
+     * @param segments BGZF files to copy, in order. Every file may or may not end with an EOF block
+     * @param output file that will be overwritten with the contents of all the segments followed by one EOF block
+     * @return position in the output where every segment starts, in the same order as the segments
+     */
+    public static List<Long> concatenate(List<Path> segments, Path output) throws IOException {
+        List<Long> segmentOffsets = new ArrayList<>(segments.size());
+        try (FileChannel outputChannel = FileChannel.open(output, StandardOpenOption.CREATE,
+                                                          StandardOpenOption.TRUNCATE_EXISTING,
+                                                          StandardOpenOption.WRITE)) {
+            for (Path segment : segments) {
+                segmentOffsets.add(outputChannel.position());
+                try (FileChannel segmentChannel = FileChannel.open(segment, StandardOpenOption.READ)) {
+                    long length = getLengthWithoutEofBlock(segmentChannel);
+                    long transferred = 0;
+                    while (transferred < length) {
+                        transferred += segmentChannel.transferTo(transferred, length - transferred,
+                                                                 outputChannel);
+                    }
+                }
+            }
+            outputChannel.write(ByteBuffer.wrap(EOF_BLOCK));
+        }
+        return segmentOffsets;
+    }
+
+    private static long getLengthWithoutEofBlock(FileChannel segmentChannel) throws IOException {
+        long size = segmentChannel.size();
+        if (size < EOF_BLOCK.length) {
+            return size;
+        }
+        ByteBuffer tail = ByteBuffer.allocate(EOF_BLOCK.length);
+        long position = size - EOF_BLOCK.length;
+        while (tail.hasRemaining()) {
+            int read = segmentChannel.read(tail, position + tail.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of BGZF segment");
+            }
+        }
+        return Arrays.equals(tail.array(), EOF_BLOCK) ? position : size;
+    }
+}
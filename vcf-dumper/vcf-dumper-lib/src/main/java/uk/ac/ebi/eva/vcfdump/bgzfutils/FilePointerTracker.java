@@ -0,0 +1,38 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.bgzfutils;
+
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+
+import java.util.function.LongConsumer;
+
+/**
+ * BGZF output that reports the virtual file pointer (compressed block address and offset inside the block) of the
+ * next byte to be written, as used by tabix indexes.
+ *
+ * A stream that compresses blocks asynchronously only knows the address of a block once it has been written, so the
+ * pointer is passed to a callback. Callbacks are called in the order they were registered, by the thread writing to
+ * the stream.
+ */
+@FunctionalInterface
+public interface FilePointerTracker {
+
+    void onNextFilePointer(LongConsumer callback);
+
+    static FilePointerTracker of(BlockCompressedOutputStream outputStream) {
+        return callback -> callback.accept(outputStream.getFilePointer());
+    }
+}
@@ -0,0 +1,406 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.bgzfutils;
+
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * BGZF output stream that compresses the blocks on a pool of threads, which can be shared by several streams.
+ *
+ * The data is split in blocks of {@link #BLOCK_SIZE} bytes like samtools does, every block is deflated by one of the
+ * threads and the compressed blocks are written to the underlying stream in the same order as the data, so the output
+ * is a regular BGZF file ending with the EOF block. Only a few blocks per thread are kept in memory: when they are all
+ * being compressed, writing waits for the oldest one.
+ *
+ * The virtual file pointers requested with {@link #onNextFilePointer} are reported when the block they point to is
+ * written to the underlying stream.
+ *
+ * Every stream keeps the deflaters of the blocks it is compressing in a pool, instead of one per thread, so they are
+ * released when the stream is closed even if the threads of a shared executor keep running.
+ */
+public class ParallelBlockCompressedOutputStream extends OutputStream implements FilePointerTracker {
+
+    /**
+     * Uncompressed bytes per block. Small enough for a block to fit in the 64KB BGZF limit even if it can't be
+     * compressed at all
+     */
+    public static final int BLOCK_SIZE = 0xff00;
+
+    private static final int BLOCKS_IN_FLIGHT_PER_THREAD = 4;
+
+    private static final int MAX_COMPRESSED_DATA_SIZE = BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE
+            - BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH - BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+
+    private final OutputStream outputStream;
+
+    private final int compressionLevel;
+
+    private final Executor compressionExecutor;
+
+    /**
+     * Whether the executor was created by the stream, so it has to be shut down when the stream is closed
+     */
+    private final boolean ownCompressionExecutor;
+
+    private final int maxBlocksInFlight;
+
+    private final Deque<BlockInFlight> blocksInFlight;
+
+    private final Queue<Deflater> deflaters;
+
+    private final Queue<Deflater> noCompressionDeflaters;
+
+    private byte[] uncompressedBlock;
+
+    private int uncompressedBlockLength;
+
+    private List<FilePointerRequest> filePointerRequests;
+
+    private long blockAddress;
+
+    private volatile boolean closed;
+
+    /**
+     * @param compressionLevel deflate level from 0 to 9, or -1 for htsjdk's default level
+     * @param threads number of threads compressing blocks, created for this stream. With 1 thread, the blocks are
+     *                compressed by the thread that writes them
+     */
+    public ParallelBlockCompressedOutputStream(OutputStream outputStream, int compressionLevel, int threads) {
+        this(outputStream, compressionLevel, createCompressionExecutor(threads), true, threads);
+    }
+
+    /**
+     * @param compressionLevel deflate level from 0 to 9, or -1 for htsjdk's default level
+     * @param compressionExecutor executor shared with other streams, which is not shut down when this one is closed
+     * @param threads number of blocks of this stream that are compressed at the same time
+     */
+    public ParallelBlockCompressedOutputStream(OutputStream outputStream, int compressionLevel,
+                                               Executor compressionExecutor, int threads) {
+        this(outputStream, compressionLevel, compressionExecutor, false, threads);
+    }
+
+    private ParallelBlockCompressedOutputStream(OutputStream outputStream, int compressionLevel,
+                                                Executor compressionExecutor, boolean ownCompressionExecutor,
+                                                int threads) {
+        if (compressionLevel < -1 || compressionLevel > Deflater.BEST_COMPRESSION) {
+            shutdown(compressionExecutor, ownCompressionExecutor);
+            throw new IllegalArgumentException("'compressionLevel' must be between -1 and " +
+                                                       Deflater.BEST_COMPRESSION);
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("'threads' must be greater than 0");
+        }
+        this.outputStream = outputStream;
+        this.compressionLevel = compressionLevel == -1 ?
+                BlockCompressedOutputStream.getDefaultCompressionLevel() : compressionLevel;
+        this.compressionExecutor = compressionExecutor;
+        this.ownCompressionExecutor = ownCompressionExecutor;
+        this.maxBlocksInFlight = threads * BLOCKS_IN_FLIGHT_PER_THREAD;
+        this.blocksInFlight = new ArrayDeque<>(maxBlocksInFlight);
+        this.deflaters = new ConcurrentLinkedQueue<>();
+        this.noCompressionDeflaters = new ConcurrentLinkedQueue<>();
+        this.uncompressedBlock = new byte[BLOCK_SIZE];
+        this.uncompressedBlockLength = 0;
+        this.filePointerRequests = new ArrayList<>();
+        this.blockAddress = 0;
+        this.closed = false;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        uncompressedBlock[uncompressedBlockLength++] = (byte) b;
+        if (uncompressedBlockLength == BLOCK_SIZE) {
+            submitBlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        ensureOpen();
+        while (length > 0) {
+            int bytesToCopy = Math.min(length, BLOCK_SIZE - uncompressedBlockLength);
+            System.arraycopy(bytes, offset, uncompressedBlock, uncompressedBlockLength, bytesToCopy);
+            uncompressedBlockLength += bytesToCopy;
+            offset += bytesToCopy;
+            length -= bytesToCopy;
+            if (uncompressedBlockLength == BLOCK_SIZE) {
+                submitBlock();
+            }
+        }
+    }
+
+    /**
+     * The callback is called when the block that will contain the next byte is written, or on flush if no more bytes
+     * are written
+     */
+    @Override
+    public void onNextFilePointer(LongConsumer callback) {
+        filePointerRequests.add(new FilePointerRequest(uncompressedBlockLength, callback));
+    }
+
+    /**
+     * Compresses the data written so far, even if it doesn't fill a block, and writes all the pending blocks
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        if (uncompressedBlockLength > 0) {
+            submitBlock();
+        }
+        while (!blocksInFlight.isEmpty()) {
+            writeOldestBlock();
+        }
+        // the pointers requested after the last byte point to the beginning of the next block
+        reportFilePointers(filePointerRequests);
+        filePointerRequests = new ArrayList<>();
+        outputStream.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        Throwable failure = null;
+        try {
+            flush();
+            outputStream.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+        } catch (Throwable e) {
+            failure = e;
+            throw e;
+        } finally {
+            closed = true;
+            blocksInFlight.forEach(block -> block.compressedBlock.cancel(true));
+            shutdown(compressionExecutor, ownCompressionExecutor);
+            // the deflaters still in use are ended by their blocks when they are returned
+            endDeflaters(deflaters);
+            endDeflaters(noCompressionDeflaters);
+            closeOutputStream(failure);
+        }
+    }
+
+    /**
+     * Closes the underlying stream even if the last blocks couldn't be written
+     *
+     * @param failure error that stopped writing the last blocks, which keeps any error closing the stream as
+     *                suppressed, or null if they were written
+     */
+    private void closeOutputStream(Throwable failure) throws IOException {
+        if (failure == null) {
+            outputStream.close();
+            return;
+        }
+        try {
+            outputStream.close();
+        } catch (IOException | RuntimeException e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    private static Executor createCompressionExecutor(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("'threads' must be greater than 0");
+        }
+        return threads == 1 ? Runnable::run : Executors.newFixedThreadPool(threads);
+    }
+
+    private static void shutdown(Executor compressionExecutor, boolean ownCompressionExecutor) {
+        if (ownCompressionExecutor && compressionExecutor instanceof ExecutorService) {
+            ((ExecutorService) compressionExecutor).shutdownNow();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        if (blocksInFlight.size() == maxBlocksInFlight) {
+            writeOldestBlock();
+        }
+        byte[] block = uncompressedBlock;
+        int blockLength = uncompressedBlockLength;
+        FutureTask<byte[]> compressedBlock = new FutureTask<>(() -> compressBlock(block, blockLength));
+        blocksInFlight.add(new BlockInFlight(compressedBlock, filePointerRequests));
+        compressionExecutor.execute(compressedBlock);
+        uncompressedBlock = new byte[BLOCK_SIZE];
+        uncompressedBlockLength = 0;
+        filePointerRequests = new ArrayList<>();
+    }
+
+    private void writeOldestBlock() throws IOException {
+        try {
+            BlockInFlight block = blocksInFlight.poll();
+            byte[] compressedBlock = block.compressedBlock.get();
+            reportFilePointers(block.filePointerRequests);
+            outputStream.write(compressedBlock);
+            blockAddress += compressedBlock.length;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing a BGZF block");
+        } catch (ExecutionException e) {
+            throw new IOException("Error compressing a BGZF block", e.getCause());
+        }
+    }
+
+    private void reportFilePointers(List<FilePointerRequest> requests) {
+        for (FilePointerRequest request : requests) {
+            request.callback.accept(blockAddress << 16 | request.offsetInBlock);
+        }
+    }
+
+    private byte[] compressBlock(byte[] block, int blockLength) {
+        byte[] compressedData = new byte[MAX_COMPRESSED_DATA_SIZE];
+        int compressedLength = deflate(deflaters, compressionLevel, block, blockLength, compressedData);
+        if (compressedLength < 0) {
+            // the data didn't shrink enough, so it is stored as is
+            compressedLength = deflate(noCompressionDeflaters, Deflater.NO_COMPRESSION, block, blockLength,
+                                       compressedData);
+            if (compressedLength < 0) {
+                throw new IllegalStateException("BGZF block too big after being stored without compression");
+            }
+        }
+        CRC32 crc32 = new CRC32();
+        crc32.update(block, 0, blockLength);
+        return buildBgzfBlock(compressedData, compressedLength, crc32.getValue(), blockLength);
+    }
+
+    /**
+     * Compresses the block with a deflater of the pool, which is created if all of them are in use
+     *
+     * @return compressed length, or -1 if the compressed data doesn't fit in the output buffer
+     */
+    private int deflate(Queue<Deflater> deflaterPool, int level, byte[] block, int blockLength,
+                        byte[] compressedData) {
+        Deflater deflater = deflaterPool.poll();
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+        }
+        try {
+            deflater.reset();
+            deflater.setInput(block, 0, blockLength);
+            deflater.finish();
+            int compressedLength = deflater.deflate(compressedData, 0, compressedData.length);
+            return deflater.finished() ? compressedLength : -1;
+        } finally {
+            deflaterPool.offer(deflater);
+            if (closed) {
+                endDeflaters(deflaterPool);
+            }
+        }
+    }
+
+    /**
+     * Releases the native memory of the deflaters in the pool. Every deflater is taken from the pool before ending it,
+     * so it is only ended once
+     */
+    private static void endDeflaters(Queue<Deflater> deflaterPool) {
+        Deflater deflater;
+        while ((deflater = deflaterPool.poll()) != null) {
+            deflater.end();
+        }
+    }
+
+    private byte[] buildBgzfBlock(byte[] compressedData, int compressedLength, long crc, int uncompressedLength) {
+        int blockSize = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH + compressedLength
+                + BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+        byte[] bgzfBlock = Arrays.copyOf(getBlockHeader(blockSize), blockSize);
+        System.arraycopy(compressedData, 0, bgzfBlock, BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH,
+                         compressedLength);
+        int footerOffset = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH + compressedLength;
+        writeInt32(bgzfBlock, footerOffset, (int) crc);
+        writeInt32(bgzfBlock, footerOffset + 4, uncompressedLength);
+        return bgzfBlock;
+    }
+
+    private byte[] getBlockHeader(int blockSize) {
+        byte[] header = new byte[BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH];
+        header[0] = (byte) BlockCompressedStreamConstants.GZIP_ID1;
+        header[1] = (byte) BlockCompressedStreamConstants.GZIP_ID2;
+        header[2] = (byte) BlockCompressedStreamConstants.GZIP_CM_DEFLATE;
+        header[3] = (byte) BlockCompressedStreamConstants.GZIP_FLG;
+        // bytes 4 to 7 are the modification time, not set
+        header[8] = (byte) BlockCompressedStreamConstants.GZIP_XFL;
+        header[9] = (byte) BlockCompressedStreamConstants.GZIP_OS_UNKNOWN;
+        writeInt16(header, 10, BlockCompressedStreamConstants.GZIP_XLEN);
+        header[12] = (byte) BlockCompressedStreamConstants.BGZF_ID1;
+        header[13] = (byte) BlockCompressedStreamConstants.BGZF_ID2;
+        writeInt16(header, 14, BlockCompressedStreamConstants.BGZF_LEN);
+        // the block size field stores the total size minus 1
+        writeInt16(header, 16, blockSize - 1);
+        return header;
+    }
+
+    private static class BlockInFlight {
+
+        private final Future<byte[]> compressedBlock;
+
+        private final List<FilePointerRequest> filePointerRequests;
+
+        BlockInFlight(Future<byte[]> compressedBlock, List<FilePointerRequest> filePointerRequests) {
+            this.compressedBlock = compressedBlock;
+            this.filePointerRequests = filePointerRequests;
+        }
+    }
+
+    private static class FilePointerRequest {
+
+        private final int offsetInBlock;
+
+        private final LongConsumer callback;
+
+        FilePointerRequest(int offsetInBlock, LongConsumer callback) {
+            this.offsetInBlock = offsetInBlock;
+            this.callback = callback;
+        }
+    }
+
+    private static void writeInt16(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) value;
+        buffer[offset + 1] = (byte) (value >> 8);
+    }
+
+    private static void writeInt32(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) value;
+        buffer[offset + 1] = (byte) (value >> 8);
+        buffer[offset + 2] = (byte) (value >> 16);
+        buffer[offset + 3] = (byte) (value >> 24);
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.bgzfutils;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Joins the tabix indexes of BGZF segments that were concatenated with {@link BgzfConcatenator}.
+ *
+ * Every segment is copied at a block boundary, so the virtual file pointers of a segment index only need to be moved
+ * by the address where the segment starts in the joined file. The references of every index are appended in the
+ * same order as the segments, so a reference must not be split across several segments.
+ */
+public class TabixIndexConcatenator {
+
+    private static final byte[] MAGIC = {'T', 'B', 'I', 1};
+
+    /**
+     * Header fields after the magic and the number of references: format, sequence/begin/end columns, meta character
+     * and lines to skip
+     */
+    private static final int HEADER_FIELDS = 6;
+
+    /**
+     * Bin added by samtools with metadata about the reference. Its first chunk has virtual file pointers, but the
+     * second one contains counts of records
+     */
+    private static final int METADATA_BIN = 37450;
+
+    private TabixIndexConcatenator() {
+    }
+
+    /**
+     * @param segmentIndexes tabix index of every segment, in order
+     * @param segmentOffsets position in the joined file where every segment starts
+     * @param output file that will be overwritten with the joined index
+     */
+    public static void concatenate(List<Path> segmentIndexes, List<Long> segmentOffsets, Path output)
+            throws IOException {
+        if (segmentIndexes.isEmpty()) {
+            throw new IllegalArgumentException("At least one segment index is required");
+        } else if (segmentIndexes.size() != segmentOffsets.size()) {
+            throw new IllegalArgumentException("Every segment index must have its segment offset");
+        }
+
+        int[] header = null;
+        int referencesCount = 0;
+        long unplacedRecordsCount = 0;
+        ByteArrayOutputStream names = new ByteArrayOutputStream();
+        ByteArrayOutputStream references = new ByteArrayOutputStream();
+
+        for (int i = 0; i < segmentIndexes.size(); i++) {
+            ByteBuffer index = readIndex(segmentIndexes.get(i));
+            int segmentReferencesCount = index.getInt();
+            int[] segmentHeader = new int[HEADER_FIELDS];
+            for (int field = 0; field < HEADER_FIELDS; field++) {
+                segmentHeader[field] = index.getInt();
+            }
+            byte[] segmentNames = new byte[index.getInt()];
+            index.get(segmentNames);
+
+            int referencesStart = index.position();
+            for (int reference = 0; reference < segmentReferencesCount; reference++) {
+                shiftReference(index, segmentOffsets.get(i) << 16);
+            }
+            if (index.remaining() >= Long.BYTES) {
+                unplacedRecordsCount += index.getLong();
+            }
+
+            if (header == null) {
+                header = segmentHeader;
+            } else if (!Arrays.equals(header, segmentHeader)) {
+                throw new IllegalArgumentException("Index " + segmentIndexes.get(i) + " has a different format");
+            }
+            referencesCount += segmentReferencesCount;
+            names.write(segmentNames);
+            references.write(index.array(), referencesStart, index.position() - referencesStart);
+        }
+
+        writeIndex(output, header, referencesCount, names.toByteArray(), references.toByteArray(),
+                   unplacedRecordsCount);
+    }
+
+    private static ByteBuffer readIndex(Path indexPath) throws IOException {
+        ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+        try (InputStream inputStream = new BlockCompressedInputStream(indexPath.toFile())) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                indexBytes.write(buffer, 0, read);
+            }
+        }
+        ByteBuffer index = ByteBuffer.wrap(indexBytes.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] magic = new byte[MAGIC.length];
+        index.get(magic);
+        if (!Arrays.equals(MAGIC, magic)) {
+            throw new IOException(indexPath + " is not a tabix index");
+        }
+        return index;
+    }
+
+    /**
+     * Moves the virtual file pointers of the bins and the linear index of the reference at the current position of the
+     * buffer, leaving the buffer at the beginning of the next reference
+     */
+    private static void shiftReference(ByteBuffer index, long shift) {
+        int binsCount = index.getInt();
+        for (int bin = 0; bin < binsCount; bin++) {
+            boolean metadataBin = index.getInt() == METADATA_BIN;
+            int chunksCount = index.getInt();
+            for (int chunk = 0; chunk < chunksCount; chunk++) {
+                if (metadataBin && chunk > 0) {
+                    index.position(index.position() + 2 * Long.BYTES);
+                } else {
+                    shiftFilePointer(index, shift);
+                    shiftFilePointer(index, shift);
+                }
+            }
+        }
+        int intervalsCount = index.getInt();
+        for (int interval = 0; interval < intervalsCount; interval++) {
+            shiftFilePointer(index, shift);
+        }
+    }
+
+    private static void shiftFilePointer(ByteBuffer index, long shift) {
+        int position = index.position();
+        index.putLong(position, index.getLong(position) + shift);
+        index.position(position + Long.BYTES);
+    }
+
+    private static void writeIndex(Path output, int[] header, int referencesCount, byte[] names, byte[] references,
+                                   long unplacedRecordsCount) throws IOException {
+        ByteBuffer headerBytes = ByteBuffer.allocate(MAGIC.length + (HEADER_FIELDS + 2) * Integer.BYTES)
+                                           .order(ByteOrder.LITTLE_ENDIAN);
+        headerBytes.put(MAGIC);
+        headerBytes.putInt(referencesCount);
+        for (int field : header) {
+            headerBytes.putInt(field);
+        }
+        headerBytes.putInt(names.length);
+
+        ByteBuffer unplacedRecords = ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        unplacedRecords.putLong(unplacedRecordsCount);
+
+        try (OutputStream outputStream = new BlockCompressedOutputStream(output.toFile())) {
+            outputStream.write(headerBytes.array());
+            outputStream.write(names);
+            outputStream.write(references);
+            outputStream.write(unplacedRecords.array());
+        }
+    }
+}
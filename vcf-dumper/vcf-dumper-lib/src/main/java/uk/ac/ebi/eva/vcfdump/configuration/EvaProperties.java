@@ -0,0 +1,112 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.configuration;
+
+import uk.ac.ebi.eva.vcfdump.VcfHeaderCache;
+import uk.ac.ebi.eva.vcfdump.services.ChromosomeService;
+import uk.ac.ebi.eva.vcfdump.services.VariantHistogramCache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Typed access to the export settings of 'eva.properties', shared by the command line tool and the web services. An
+ * empty value is the same as a missing one, so the defaults apply to the properties left blank in the file.
+ */
+public class EvaProperties {
+
+    public static final String RESOURCE = "/eva.properties";
+
+    private final Properties properties;
+
+    public EvaProperties(Properties properties) {
+        this.properties = properties;
+    }
+
+    /**
+     * Loads 'eva.properties' from the classpath
+     */
+    public static EvaProperties load() throws IOException {
+        Properties properties = new Properties();
+        try (InputStream inputStream = EvaProperties.class.getResourceAsStream(RESOURCE)) {
+            if (inputStream == null) {
+                throw new IOException(RESOURCE + " not found in the classpath");
+            }
+            properties.load(inputStream);
+        }
+        return new EvaProperties(properties);
+    }
+
+    public Properties getProperties() {
+        return properties;
+    }
+
+    public String getString(String key, String defaultValue) {
+        String value = properties.getProperty(key, "").trim();
+        return value.isEmpty() ? defaultValue : value;
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Property '" + key + "' must be a number, but was '" + value + "'");
+        }
+    }
+
+    public long getLong(String key, long defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Property '" + key + "' must be a number, but was '" + value + "'");
+        }
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = getString(key, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    /**
+     * Number of study sets whose merged VCF header is kept by the {@link VcfHeaderCache}
+     */
+    public int getHeaderCacheSize() {
+        return getInt(VcfHeaderCache.SIZE_PROPERTY, VcfHeaderCache.DEFAULT_SIZE);
+    }
+
+    /**
+     * Number of histograms of variants by bin kept by the {@link VariantHistogramCache}
+     */
+    public int getHistogramCacheSize() {
+        return getInt(VariantHistogramCache.SIZE_PROPERTY, VariantHistogramCache.DEFAULT_SIZE);
+    }
+
+    /**
+     * Seconds that the chromosomes of a database are reused
+     */
+    public long getChromosomesTimeToLive() {
+        return getLong(ChromosomeService.TIME_TO_LIVE_PROPERTY, ChromosomeService.DEFAULT_TIME_TO_LIVE_SECONDS);
+    }
+}
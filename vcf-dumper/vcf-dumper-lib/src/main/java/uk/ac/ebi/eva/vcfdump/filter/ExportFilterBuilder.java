@@ -0,0 +1,131 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.filter;
+
+import uk.ac.ebi.eva.commons.mongodb.filter.FilterBuilder;
+import uk.ac.ebi.eva.commons.mongodb.filter.RelationalOperator;
+import uk.ac.ebi.eva.commons.mongodb.filter.VariantRepositoryFilter;
+import uk.ac.ebi.eva.vcfdump.InvalidQueryException;
+import uk.ac.ebi.eva.vcfdump.QueryParams;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Translates all the filters of an export query into repository filters, so they are evaluated by the database. The
+ * filters supported by {@link FilterBuilder} are extended with the reference and alternate alleles, and the number of
+ * missing alleles and genotypes.
+ */
+public class ExportFilterBuilder {
+
+    static final String EMPTY_ALLELE = "-";
+
+    public List<VariantRepositoryFilter> getVariantEntityRepositoryFilters(QueryParams query) {
+        List<VariantRepositoryFilter> filters = new ArrayList<>(new FilterBuilder().getVariantEntityRepositoryFilters(
+                query.getMaf(), query.getPolyphenScore(), query.getSiftScore(), query.getStudies(),
+                query.getConsequenceType()));
+        if (!isEmpty(query.getReference())) {
+            filters.add(VariantRepositoryAlleleFilter.reference(parseAlleles(query.getReference())));
+        }
+        if (!isEmpty(query.getAlternate())) {
+            filters.add(VariantRepositoryAlleleFilter.alternate(parseAlleles(query.getAlternate())));
+        }
+        if (!isEmpty(query.getMissingAlleles())) {
+            String relation = query.getMissingAlleles();
+            filters.add(VariantRepositoryMissingCountFilter.missingAlleles(parseCount("miss_alleles", relation),
+                                                                           parseOperator(relation),
+                                                                           query.getStudies()));
+        }
+        if (!isEmpty(query.getMissingGenotypes())) {
+            String relation = query.getMissingGenotypes();
+            filters.add(VariantRepositoryMissingCountFilter.missingGenotypes(parseCount("miss_gts", relation),
+                                                                             parseOperator(relation),
+                                                                           query.getStudies()));
+        }
+        return filters;
+    }
+
+    /**
+     * @return true if the query selects all the variants of its studies, so the number of variants of a region only
+     * depends on the studies
+     */
+    public static boolean hasOnlyStudiesFilter(QueryParams query) {
+        return isEmpty(query.getMaf()) && isEmpty(query.getPolyphenScore()) && isEmpty(query.getSiftScore())
+                && (query.getConsequenceType() == null || query.getConsequenceType().isEmpty())
+                && isEmpty(query.getReference()) && isEmpty(query.getAlternate())
+                && isEmpty(query.getMissingAlleles()) && isEmpty(query.getMissingGenotypes());
+    }
+
+    /**
+     * Checks the parameters that are parsed when the filters are built, so an invalid query can be rejected before
+     * the export starts streaming its response
+     *
+     * @throws InvalidQueryException if a parameter is not valid
+     */
+    public static void validate(QueryParams query) {
+        if (!isEmpty(query.getMissingAlleles())) {
+            parseCount("miss_alleles", query.getMissingAlleles());
+        }
+        if (!isEmpty(query.getMissingGenotypes())) {
+            parseCount("miss_gts", query.getMissingGenotypes());
+        }
+    }
+
+    /**
+     * Parses a comma separated list of alleles, where '-' stands for the empty allele of insertions and deletions
+     */
+    static List<String> parseAlleles(String alleles) {
+        return Arrays.stream(alleles.split(","))
+                     .map(String::trim)
+                     .map(allele -> allele.equals(EMPTY_ALLELE) ? "" : allele.toUpperCase())
+                     .distinct()
+                     .collect(Collectors.toList());
+    }
+
+    /**
+     * Parses the operator of a relation like '<=2', or equality if it has no operator
+     */
+    static RelationalOperator parseOperator(String relation) {
+        String trimmedRelation = relation.trim();
+        if (trimmedRelation.startsWith("<=")) {
+            return RelationalOperator.LTE;
+        } else if (trimmedRelation.startsWith(">=")) {
+            return RelationalOperator.GTE;
+        } else if (trimmedRelation.startsWith("<")) {
+            return RelationalOperator.LT;
+        } else if (trimmedRelation.startsWith(">")) {
+            return RelationalOperator.GT;
+        } else {
+            return RelationalOperator.EQ;
+        }
+    }
+
+    static Integer parseCount(String parameter, String relation) {
+        String count = relation.trim().replaceFirst("^(<=|>=|<|>|=)", "").trim();
+        try {
+            return Integer.valueOf(count);
+        } catch (NumberFormatException e) {
+            throw new InvalidQueryException("Parameter '" + parameter + "' must be a number with an optional " +
+                                                    "comparison operator, e.g. '<=2', but was '" + relation + "'");
+        }
+    }
+
+    private static boolean isEmpty(String value) {
+        return value == null || value.isEmpty();
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.filter;
+
+import uk.ac.ebi.eva.commons.mongodb.filter.RelationalOperator;
+import uk.ac.ebi.eva.commons.mongodb.filter.VariantRepositoryFilter;
+
+import java.util.List;
+
+/**
+ * Selects the variants whose reference or alternate allele is any of the given ones
+ */
+public class VariantRepositoryAlleleFilter extends VariantRepositoryFilter<List<String>> {
+
+    static final String REFERENCE_FIELD = "ref";
+
+    static final String ALTERNATE_FIELD = "alt";
+
+    private VariantRepositoryAlleleFilter(String field, List<String> alleles) {
+        super(field, alleles, RelationalOperator.IN);
+    }
+
+    public static VariantRepositoryAlleleFilter reference(List<String> alleles) {
+        return new VariantRepositoryAlleleFilter(REFERENCE_FIELD, alleles);
+    }
+
+    public static VariantRepositoryAlleleFilter alternate(List<String> alleles) {
+        return new VariantRepositoryAlleleFilter(ALTERNATE_FIELD, alleles);
+    }
+}
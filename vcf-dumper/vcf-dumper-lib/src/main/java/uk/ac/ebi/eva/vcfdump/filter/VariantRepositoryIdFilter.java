@@ -0,0 +1,45 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.filter;
+
+import uk.ac.ebi.eva.commons.core.models.ws.VariantWithSamplesAndAnnotation;
+import uk.ac.ebi.eva.commons.mongodb.entities.VariantMongo;
+import uk.ac.ebi.eva.commons.mongodb.filter.RelationalOperator;
+import uk.ac.ebi.eva.commons.mongodb.filter.VariantRepositoryFilter;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Selects the variants with the given IDs
+ */
+public class VariantRepositoryIdFilter extends VariantRepositoryFilter<List<String>> {
+
+    static final String ID_FIELD = "_id";
+
+    public VariantRepositoryIdFilter(List<String> ids) {
+        super(ID_FIELD, ids, RelationalOperator.IN);
+    }
+
+    public static VariantRepositoryIdFilter of(Collection<VariantWithSamplesAndAnnotation> variants) {
+        return new VariantRepositoryIdFilter(variants.stream()
+                                                     .map(variant -> VariantMongo.buildVariantId(
+                                                             variant.getChromosome(), variant.getStart(),
+                                                             variant.getReference(), variant.getAlternate()))
+                                                     .collect(Collectors.toList()));
+    }
+}
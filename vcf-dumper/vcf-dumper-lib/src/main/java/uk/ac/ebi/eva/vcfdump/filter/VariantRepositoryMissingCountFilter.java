@@ -0,0 +1,93 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.filter;
+
+import org.springframework.data.mongodb.core.query.Criteria;
+
+import uk.ac.ebi.eva.commons.mongodb.filter.RelationalOperator;
+import uk.ac.ebi.eva.commons.mongodb.filter.VariantRepositoryFilter;
+
+import java.util.List;
+
+/**
+ * Compares the number of missing alleles or genotypes of the variants, as stored in the statistics of their cohorts. A
+ * variant is selected if the statistics of any of its cohorts in the requested studies match, so the cohorts of other
+ * studies loaded in the same variant don't change the result.
+ */
+public class VariantRepositoryMissingCountFilter extends VariantRepositoryFilter<Integer> {
+
+    static final String STATS_FIELD = "st";
+
+    static final String STUDY_ID_FIELD = "sid";
+
+    static final String MISSING_ALLELES_FIELD = "missAl";
+
+    static final String MISSING_GENOTYPES_FIELD = "missGt";
+
+    private final String countField;
+
+    private final Integer count;
+
+    private final RelationalOperator operator;
+
+    private final List<String> studies;
+
+    private VariantRepositoryMissingCountFilter(String countField, Integer count, RelationalOperator operator,
+                                                List<String> studies) {
+        super(STATS_FIELD + "." + countField, count, operator);
+        this.countField = countField;
+        this.count = count;
+        this.operator = operator;
+        this.studies = studies;
+    }
+
+    public static VariantRepositoryMissingCountFilter missingAlleles(Integer count, RelationalOperator operator,
+                                                                     List<String> studies) {
+        return new VariantRepositoryMissingCountFilter(MISSING_ALLELES_FIELD, count, operator, studies);
+    }
+
+    public static VariantRepositoryMissingCountFilter missingGenotypes(Integer count, RelationalOperator operator,
+                                                                       List<String> studies) {
+        return new VariantRepositoryMissingCountFilter(MISSING_GENOTYPES_FIELD, count, operator, studies);
+    }
+
+    @Override
+    public Criteria getCriteria() {
+        // the study and the count have to match in the same element of the statistics, not in any two of them
+        Criteria cohortCriteria = compare(Criteria.where(countField));
+        if (studies != null && !studies.isEmpty()) {
+            cohortCriteria = cohortCriteria.and(STUDY_ID_FIELD).in(studies);
+        }
+        return Criteria.where(STATS_FIELD).elemMatch(cohortCriteria);
+    }
+
+    private Criteria compare(Criteria countCriteria) {
+        switch (operator) {
+            case EQ:
+                return countCriteria.is(count);
+            case GT:
+                return countCriteria.gt(count);
+            case GTE:
+                return countCriteria.gte(count);
+            case LT:
+                return countCriteria.lt(count);
+            case LTE:
+                return countCriteria.lte(count);
+            default:
+                throw new IllegalArgumentException("Unsupported operator for the missing counts: " + operator);
+        }
+    }
+}
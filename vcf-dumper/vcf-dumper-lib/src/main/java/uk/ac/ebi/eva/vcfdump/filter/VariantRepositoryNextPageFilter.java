@@ -0,0 +1,52 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.filter;
+
+import org.springframework.data.mongodb.core.query.Criteria;
+
+import uk.ac.ebi.eva.commons.mongodb.entities.VariantMongo;
+import uk.ac.ebi.eva.commons.mongodb.filter.RelationalOperator;
+import uk.ac.ebi.eva.commons.mongodb.filter.VariantRepositoryFilter;
+
+/**
+ * Selects the variants that come after a given one when they are sorted by start and ID, so the pages of a query can
+ * be fetched by key instead of skipping all the variants of the previous pages. The ID breaks the ties between
+ * variants with the same start, so none of them is returned twice or skipped at the boundary of a page.
+ */
+public class VariantRepositoryNextPageFilter extends VariantRepositoryFilter<Long> {
+
+    public static final String START_FIELD = "start";
+
+    public static final String ID_FIELD = "_id";
+
+    private final long start;
+
+    private final String id;
+
+    public VariantRepositoryNextPageFilter(String chromosome, long start, String reference, String alternate) {
+        super(START_FIELD, start, RelationalOperator.GTE);
+        this.start = start;
+        this.id = VariantMongo.buildVariantId(chromosome, start, reference, alternate);
+    }
+
+    @Override
+    public Criteria getCriteria() {
+        // the criteria of the regions are already an $or, so this one is nested in an $and to avoid replacing them
+        return new Criteria().andOperator(new Criteria().orOperator(Criteria.where(START_FIELD).gt(start),
+                                                                    Criteria.where(START_FIELD).is(start)
+                                                                            .and(ID_FIELD).gt(id)));
+    }
+}
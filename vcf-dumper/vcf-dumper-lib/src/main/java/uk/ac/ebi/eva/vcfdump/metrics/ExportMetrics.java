@@ -0,0 +1,174 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.LongTaskTimer;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Meters of the export pipeline, from the database queries to the bytes written, so the time of an export can be
+ * attributed to each stage. The web services register them in the registry of Spring Boot Actuator, and the CLI in a
+ * simple registry that is reported at the end of the run (see {@link MetricsJsonReport}).
+ *
+ * The regions are not used as tags, because every export has different regions and the number of time series would
+ * grow without limit; the latency of the queries is recorded in a single timer for all of them.
+ */
+public class ExportMetrics {
+
+    public static final String PREFIX = "vcf.export";
+
+    public static final String QUERIES = PREFIX + ".queries";
+
+    public static final String VARIANTS = PREFIX + ".variants";
+
+    public static final String CONVERSION = PREFIX + ".conversion";
+
+    public static final String WRITTEN_BYTES = PREFIX + ".written.bytes";
+
+    public static final String HEADER_BUILD = PREFIX + ".header.build";
+
+    public static final String STREAMING_REQUESTS = PREFIX + ".streaming.requests";
+
+    private static final ExportMetrics DISABLED = new ExportMetrics(new CompositeMeterRegistry());
+
+    private final MeterRegistry registry;
+
+    private final Timer variantQueries;
+
+    private final Timer indelQueries;
+
+    private final Counter fetchedVariants;
+
+    private final Counter convertedVariants;
+
+    private final Counter failedVariants;
+
+    private final Timer conversion;
+
+    private final Counter vcfBytes;
+
+    private final Counter compressedBytes;
+
+    private final Timer headerBuild;
+
+    public ExportMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        variantQueries = Timer.builder(QUERIES)
+                              .description("Latency of the database queries of a page of variants of a region")
+                              .tag("query", "variants")
+                              .register(registry);
+        indelQueries = Timer.builder(QUERIES)
+                            .description("Latency of the database queries of a page of variants of a region")
+                            .tag("query", "indels")
+                            .register(registry);
+        fetchedVariants = variantCounter("fetched");
+        convertedVariants = variantCounter("converted");
+        failedVariants = variantCounter("failed");
+        conversion = Timer.builder(CONVERSION)
+                          .description("Time to convert a variant into a VCF record")
+                          .register(registry);
+        vcfBytes = bytesCounter("vcf");
+        compressedBytes = bytesCounter("compressed");
+        headerBuild = Timer.builder(HEADER_BUILD)
+                           .description("Time to build the VCF header of an export")
+                           .register(registry);
+    }
+
+    private Counter variantCounter(String stage) {
+        return Counter.builder(VARIANTS)
+                      .description("Variants read from the database, and converted or failed to convert")
+                      .tag("stage", stage)
+                      .register(registry);
+    }
+
+    private Counter bytesCounter(String stream) {
+        return Counter.builder(WRITTEN_BYTES)
+                      .description("Bytes written, before ('vcf') and after ('compressed') the compression")
+                      .baseUnit("bytes")
+                      .tag("stream", stream)
+                      .register(registry);
+    }
+
+    /**
+     * @return meters that don't record anything, for the exports without a registry
+     */
+    public static ExportMetrics disabled() {
+        return DISABLED;
+    }
+
+    public MeterRegistry getRegistry() {
+        return registry;
+    }
+
+    public void recordVariantQuery(long nanos) {
+        variantQueries.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordIndelQuery(long nanos) {
+        indelQueries.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void countFetchedVariants(int variants) {
+        fetchedVariants.increment(variants);
+    }
+
+    public void recordConvertedVariant(long nanos) {
+        convertedVariants.increment();
+        conversion.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void countFailedVariant() {
+        failedVariants.increment();
+    }
+
+    public void recordHeaderBuild(long nanos) {
+        headerBuild.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return stream that counts the bytes of the VCF written into it, before any compression
+     */
+    public OutputStream countVcfBytes(OutputStream outputStream) {
+        return new MeteredOutputStream(outputStream, vcfBytes);
+    }
+
+    /**
+     * @return stream that counts the compressed bytes written into it
+     */
+    public OutputStream countCompressedBytes(OutputStream outputStream) {
+        return new MeteredOutputStream(outputStream, compressedBytes);
+    }
+
+    /**
+     * Starts timing a response that streams an export. The number of active samples is the number of streaming
+     * requests in flight
+     *
+     * @param endpoint name of the endpoint, used as a tag
+     */
+    public LongTaskTimer.Sample startStreaming(String endpoint) {
+        return LongTaskTimer.builder(STREAMING_REQUESTS)
+                            .description("Responses streaming an export")
+                            .tag("endpoint", endpoint)
+                            .register(registry)
+                            .start();
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.metrics;
+
+import io.micrometer.core.instrument.Counter;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counts the bytes written into a stream. The bytes are added to the counter in batches, so writing a VCF line by line
+ * doesn't update the counter for every line.
+ *
+ * The bytes are written straight to the wrapped stream without buffering them, so the position of a BGZF stream is
+ * the same whether it is metered or not.
+ */
+class MeteredOutputStream extends FilterOutputStream {
+
+    private static final int PENDING_BYTES_LIMIT = 64 * 1024;
+
+    private final Counter counter;
+
+    private long pendingBytes;
+
+    MeteredOutputStream(OutputStream outputStream, Counter counter) {
+        super(outputStream);
+        this.counter = counter;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        count(1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        count(len);
+    }
+
+    /**
+     * The compression threads of an export can write compressed blocks while the export thread flushes the stream
+     */
+    private synchronized void count(int bytes) {
+        pendingBytes += bytes;
+        if (pendingBytes >= PENDING_BYTES_LIMIT) {
+            publishPendingBytes();
+        }
+    }
+
+    private synchronized void publishPendingBytes() {
+        if (pendingBytes > 0) {
+            counter.increment(pendingBytes);
+            pendingBytes = 0;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        publishPendingBytes();
+        super.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        publishPendingBytes();
+        super.close();
+    }
+}
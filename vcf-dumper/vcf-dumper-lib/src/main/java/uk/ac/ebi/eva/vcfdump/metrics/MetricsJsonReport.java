@@ -0,0 +1,100 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.metrics;
+
+import io.micrometer.core.instrument.Measurement;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Renders the meters of an export as a JSON document, so a run of the CLI can be summarised and compared with other
+ * runs. Every meter is an object with its name, tags, type and measurements, e.g.:
+ *
+ * <pre>
+ * {"name": "vcf.export.variants", "tags": {"stage": "converted"}, "type": "counter",
+ *  "measurements": {"count": 753.0}}
+ * </pre>
+ *
+ * The times are in seconds, the base unit of the registries of Micrometer.
+ */
+public class MetricsJsonReport {
+
+    private MetricsJsonReport() {
+    }
+
+    /**
+     * @param namePrefix only the meters whose name starts with this prefix are reported
+     */
+    public static String toJson(MeterRegistry registry, String namePrefix, double durationSeconds) {
+        List<Meter> meters = registry.getMeters().stream()
+                                     .filter(meter -> meter.getId().getName().startsWith(namePrefix))
+                                     .sorted(Comparator.comparing((Meter meter) -> meter.getId().getName())
+                                                       .thenComparing(meter -> meter.getId().getTags().toString()))
+                                     .collect(Collectors.toList());
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"durationSeconds\": ").append(number(durationSeconds)).append(",\n  \"meters\": [");
+        for (int i = 0; i < meters.size(); i++) {
+            json.append(i == 0 ? "\n    " : ",\n    ");
+            appendMeter(json, meters.get(i));
+        }
+        json.append(meters.isEmpty() ? "]\n}\n" : "\n  ]\n}\n");
+        return json.toString();
+    }
+
+    private static void appendMeter(StringBuilder json, Meter meter) {
+        Meter.Id id = meter.getId();
+        json.append("{\"name\": ").append(string(id.getName())).append(", \"tags\": {");
+        String tags = id.getTags().stream()
+                        .map(tag -> string(tag.getKey()) + ": " + string(tag.getValue()))
+                        .collect(Collectors.joining(", "));
+        json.append(tags).append("}, \"type\": ").append(string(id.getType().name().toLowerCase()))
+            .append(", \"measurements\": {");
+        String measurements = stream(meter.measure())
+                .map(measurement -> string(measurement.getStatistic().getTagValueRepresentation()) + ": "
+                        + number(measurement.getValue()))
+                .collect(Collectors.joining(", "));
+        json.append(measurements).append("}}");
+    }
+
+    private static Stream<Measurement> stream(Iterable<Measurement> measurements) {
+        return StreamSupport.stream(measurements.spliterator(), false);
+    }
+
+    private static String number(double value) {
+        // JSON has no representation for NaN or infinity
+        return Double.isNaN(value) || Double.isInfinite(value) ? "null" : String.valueOf(value);
+    }
+
+    private static String string(String value) {
+        StringBuilder escaped = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                escaped.append('\\').append(c);
+            } else if (c < 0x20) {
+                escaped.append(String.format("\\u%04x", (int) c));
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.append('"').toString();
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.regionutils;
+
+import uk.ac.ebi.eva.commons.core.models.Region;
+import uk.ac.ebi.eva.vcfdump.InvalidQueryException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a list of regions in BED format: one region per line, with the chromosome, start and end separated by tabs or
+ * spaces. Any other column is ignored, like the empty lines, the comments and the 'track' and 'browser' lines.
+ *
+ * BED coordinates start at 0 and the end is not included, so a line '22 99 200' is the region 22:100-200.
+ */
+public class BedRegionParser {
+
+    private static final String COMMENT_PREFIX = "#";
+
+    private static final String TRACK_PREFIX = "track";
+
+    private static final String BROWSER_PREFIX = "browser";
+
+    private final int maxRegions;
+
+    /**
+     * @param maxRegions maximum number of regions in a list, or 0 for no limit
+     */
+    public BedRegionParser(int maxRegions) {
+        if (maxRegions < 0) {
+            throw new IllegalArgumentException("'maxRegions' must not be negative");
+        }
+        this.maxRegions = maxRegions;
+    }
+
+    /**
+     * @throws InvalidQueryException if a line is not a valid region, or there are more regions than allowed
+     */
+    public List<Region> parse(Reader bed) throws IOException {
+        List<Region> regions = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(bed);
+        int lineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            String trimmedLine = line.trim();
+            if (trimmedLine.isEmpty() || trimmedLine.startsWith(COMMENT_PREFIX)
+                    || trimmedLine.startsWith(TRACK_PREFIX) || trimmedLine.startsWith(BROWSER_PREFIX)) {
+                continue;
+            }
+            if (maxRegions > 0 && regions.size() == maxRegions) {
+                throw new InvalidQueryException("The region list can't have more than " + maxRegions + " regions");
+            }
+            regions.add(parseLine(trimmedLine, lineNumber));
+        }
+        return regions;
+    }
+
+    private Region parseLine(String line, int lineNumber) {
+        String[] fields = line.split("\\s+");
+        if (fields.length < 3) {
+            throw new InvalidQueryException("Line " + lineNumber + " of the region list must have a chromosome, a "
+                                                    + "start and an end, but was '" + line + "'");
+        }
+        long start;
+        long end;
+        try {
+            start = Long.parseLong(fields[1]);
+            end = Long.parseLong(fields[2]);
+        } catch (NumberFormatException e) {
+            throw new InvalidQueryException("Line " + lineNumber + " of the region list has invalid coordinates: '"
+                                                    + line + "'");
+        }
+        if (start < 0 || end <= start) {
+            throw new InvalidQueryException("Line " + lineNumber + " of the region list must have a start of 0 or "
+                                                    + "more, lower than the end, but was '" + line + "'");
+        }
+        return new Region(fields[0], start + 1, end);
+    }
+}
@@ -22,41 +22,131 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import uk.ac.ebi.eva.commons.core.models.Region;
+import uk.ac.ebi.eva.commons.mongodb.filter.VariantRepositoryFilter;
 import uk.ac.ebi.eva.commons.mongodb.services.VariantWithSamplesAndAnnotationsService;
 import uk.ac.ebi.eva.vcfdump.QueryParams;
+import uk.ac.ebi.eva.vcfdump.filter.ExportFilterBuilder;
+import uk.ac.ebi.eva.vcfdump.services.ChromosomeExtent;
+import uk.ac.ebi.eva.vcfdump.services.ChromosomeExtentService;
+import uk.ac.ebi.eva.vcfdump.services.VariantCoordinatesService;
+import uk.ac.ebi.eva.vcfdump.services.VariantHistogramCache;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
 import java.util.stream.Collectors;
 
 public class RegionFactory {
 
     private static final Logger logger = LoggerFactory.getLogger(RegionFactory.class);
 
+    /**
+     * Variant count of the chromosome extents found without the catalogue, which are never small enough to skip the
+     * division in adaptive windows
+     */
+    private static final long UNKNOWN_VARIANT_COUNT = Long.MAX_VALUE;
+
+    /**
+     * Average number of variants per window below which the windows without variants are skipped. Finding the start of
+     * every window costs one query more per window, which is only worth it if many windows would be empty
+     */
+    private static final double SPARSE_VARIANTS_PER_WINDOW = 1;
+
     private int windowSize;
 
     private final VariantWithSamplesAndAnnotationsService variantService;
 
+    /**
+     * Number of variants that an adaptive window should contain. If 0, the regions are divided in windows of
+     * 'windowSize' bases
+     */
+    private final int targetVariantsPerWindow;
+
+    private VariantCoordinatesService variantCoordinatesService;
+
+    private ChromosomeExtentService chromosomeExtentService;
+
+    private VariantHistogramCache variantHistogramCache;
+
+    private String dbName;
+
     public RegionFactory(int windowSize, VariantWithSamplesAndAnnotationsService variantService) {
+        this(windowSize, variantService, 0);
+    }
+
+    /**
+     * @param targetVariantsPerWindow if greater than 0, and the {@link VariantCoordinatesService} is set, the regions
+     *                                to export are divided according to the number of variants in the database
+     *                                instead of using fixed windows of 'windowSize' bases
+     */
+    public RegionFactory(int windowSize, VariantWithSamplesAndAnnotationsService variantService,
+                         int targetVariantsPerWindow) {
+        if (targetVariantsPerWindow < 0) {
+            throw new IllegalArgumentException("'targetVariantsPerWindow' must not be negative");
+        }
         this.windowSize = windowSize;
         this.variantService = variantService;
+        this.targetVariantsPerWindow = targetVariantsPerWindow;
+    }
+
+    /**
+     * When set, the windows without variants of sparse chromosomes are skipped using this service to find the next
+     * variant of a chromosome, or to count the variants of the adaptive windows
+     */
+    public void setVariantCoordinatesService(VariantCoordinatesService variantCoordinatesService) {
+        this.variantCoordinatesService = variantCoordinatesService;
+    }
+
+    /**
+     * When set, the extent of the chromosomes is taken from the catalogue of the service instead of querying the first
+     * and last variant of every chromosome
+     *
+     * @param dbName database of the exported studies
+     */
+    public void setChromosomeExtentService(ChromosomeExtentService chromosomeExtentService, String dbName) {
+        this.chromosomeExtentService = chromosomeExtentService;
+        this.dbName = dbName;
+    }
+
+    /**
+     * When set, the histograms used to balance the blocks are reused until the files of the studies change
+     *
+     * @param dbName database of the exported studies
+     */
+    public void setVariantHistogramCache(VariantHistogramCache variantHistogramCache, String dbName) {
+        this.variantHistogramCache = variantHistogramCache;
+        this.dbName = dbName;
     }
 
-    public List<Region> getRegionsForChromosome(String chromosome, QueryParams query) {
+    /**
+     * @param filters filters of the export, used to count the variants of the adaptive windows
+     */
+    public List<Region> getRegionsForChromosome(String chromosome, QueryParams query,
+                                                List<VariantRepositoryFilter> filters) {
         String regionFilter = query.getRegion();
         if (regionFilter == null || regionFilter.isEmpty() || isChromosomeInRegionFilterWithNoCoordinates(chromosome,
                                                                                                           regionFilter)) {
             // if there are no region filter or no chromosome coordinates in the filter, we need to get the min and max variant start from mongo
-            Long minStart = variantService.findChromosomeLowestReportedCoordinate(chromosome, query.getStudies());
-            if (minStart == null) {
+            ChromosomeExtent extent = getChromosomeExtent(chromosome, query.getStudies());
+            if (extent == null) {
                 return Collections.EMPTY_LIST;
             } else {
-                long maxStart = variantService.findChromosomeHighestReportedCoordinate(chromosome, query.getStudies());;
+                long minStart = extent.getMinStart();
+                long maxStart = extent.getMaxStart();
                 logger.debug("Chromosome {} maxStart: {}", chromosome, maxStart);
                 logger.debug("Chromosome {} minStart: {}", chromosome, minStart);
-                return divideChromosomeInChunks(chromosome, minStart, maxStart);
+                if (targetVariantsPerWindow > 0 && extent.getVariantCount() <= targetVariantsPerWindow
+                        && ExportFilterBuilder.hasOnlyStudiesFilter(query)) {
+                    // the whole chromosome fits in one window, no need to count its variants again
+                    return Collections.singletonList(new Region(chromosome, minStart, maxStart));
+                }
+                List<Region> regions = divideRegion(chromosome, minStart, maxStart, query.getStudies(), filters,
+                                                    extent);
+                logger.debug("Number of regions in chromosome {}: {}", chromosome, regions.size());
+                return regions;
             }
         } else {
             List<Region> chromosomeRegionsFromQuery =
@@ -67,9 +157,78 @@ public class RegionFactory {
                                                                         .collect(Collectors.joining(", "));
             logger.debug("Chromosome {} regions from query: {}", chromosome, commaSeparatedRegionList);
 
-            return divideRegionListInChunks(chromosomeRegionsFromQuery);
+            // the extent is only needed to decide whether to skip the empty windows
+            ChromosomeExtent extent = variantCoordinatesService != null && targetVariantsPerWindow == 0 ?
+                    getCatalogueExtent(chromosome, query.getStudies()) : null;
+            List<Region> regions = new ArrayList<>();
+            for (Region region : chromosomeRegionsFromQuery) {
+                regions.addAll(divideRegion(region.getChromosome(), region.getStart(), region.getEnd(),
+                                            query.getStudies(), filters, extent));
+            }
+            return regions;
+        }
+    }
+
+    /**
+     * Divides a region in the windows that will be queried. Without the {@link VariantCoordinatesService} the windows
+     * have 'windowSize' bases. With it, if 'targetVariantsPerWindow' is greater than 0 the windows are sized by the
+     * number of variants they contain, and otherwise the windows without variants are skipped if the chromosome is
+     * sparse
+     *
+     * @param extent extent of the variants of the chromosome, or null if it isn't known
+     */
+    private List<Region> divideRegion(String chromosome, long start, long end, List<String> studies,
+                                      List<VariantRepositoryFilter> filters, ChromosomeExtent extent) {
+        if (variantCoordinatesService == null) {
+            return divideRegionInChunks(chromosome, start, end);
+        }
+        if (targetVariantsPerWindow > 0) {
+            List<Region> regions = new ArrayList<>();
+            divideRegionByVariantDensity(chromosome, start, end, filters, regions);
+            return regions;
+        }
+        if (isSparse(extent)) {
+            return divideRegionSkippingEmptyWindows(chromosome, start, end, studies);
+        }
+        return divideRegionInChunks(chromosome, start, end);
+    }
 
+    /**
+     * @return whether the variants of the extent are spread over many windows without variants. An extent whose
+     * variants weren't counted is never sparse, so no queries are spent looking for the empty windows
+     */
+    private boolean isSparse(ChromosomeExtent extent) {
+        if (extent == null || extent.getVariantCount() == UNKNOWN_VARIANT_COUNT) {
+            return false;
+        }
+        double windows = (double) (extent.getMaxStart() - extent.getMinStart() + 1) / windowSize;
+        return extent.getVariantCount() < windows * SPARSE_VARIANTS_PER_WINDOW;
+    }
+
+    /**
+     * @return extent of the variants of the chromosome in the studies, or null if there are none
+     */
+    private ChromosomeExtent getChromosomeExtent(String chromosome, List<String> studies) {
+        if (chromosomeExtentService != null && studies != null) {
+            return chromosomeExtentService.getExtent(dbName, chromosome, studies).orElse(null);
+        }
+        Long minStart = variantService.findChromosomeLowestReportedCoordinate(chromosome, studies);
+        if (minStart == null) {
+            return null;
         }
+        long maxStart = variantService.findChromosomeHighestReportedCoordinate(chromosome, studies);
+        return new ChromosomeExtent(minStart, maxStart, UNKNOWN_VARIANT_COUNT);
+    }
+
+    /**
+     * @return extent of the variants of the chromosome in the studies from the catalogue, or null if there are none or
+     * the catalogue isn't set
+     */
+    private ChromosomeExtent getCatalogueExtent(String chromosome, List<String> studies) {
+        if (chromosomeExtentService == null || studies == null) {
+            return null;
+        }
+        return chromosomeExtentService.getExtent(dbName, chromosome, studies).orElse(null);
     }
 
     private boolean isChromosomeInRegionFilterWithNoCoordinates(String chromosome, String regionFilter) {
@@ -89,6 +248,84 @@ public class RegionFactory {
     }
 
 
+    /**
+     * Divides a region in contiguous blocks with about the same number of variants, so the blocks take a similar time
+     * to export. The blocks cover the whole region, including the parts without variants.
+     *
+     * The blocks are built from a histogram of the variants in bins of 'windowSize' bases: a block ends before the
+     * bin that would make it exceed 'targetVariantsPerBlock' variants, so a block is only bigger than the target if a
+     * single bin is. This requires the {@link VariantCoordinatesService}.
+     */
+    public List<Region> divideRegionInBalancedBlocks(String chromosome, long start, long end, List<String> studies,
+                                                     int targetVariantsPerBlock) {
+        if (variantCoordinatesService == null) {
+            throw new IllegalStateException("The variant coordinates service is required to balance the blocks");
+        }
+        if (targetVariantsPerBlock < 1) {
+            throw new IllegalArgumentException("'targetVariantsPerBlock' must be greater than 0");
+        }
+        SortedMap<Long, Long> variantsByBin = countVariantsByBin(chromosome, start, end, studies);
+        List<Region> blocks = new ArrayList<>();
+        long blockStart = start;
+        long variantsInBlock = 0;
+        for (Map.Entry<Long, Long> bin : variantsByBin.entrySet()) {
+            if (variantsInBlock > 0 && variantsInBlock + bin.getValue() > targetVariantsPerBlock) {
+                long binStart = Math.max(bin.getKey(), start);
+                blocks.add(new Region(chromosome, blockStart, binStart - 1));
+                blockStart = binStart;
+                variantsInBlock = 0;
+            }
+            variantsInBlock += bin.getValue();
+        }
+        blocks.add(new Region(chromosome, blockStart, end));
+        logger.debug("Number of balanced blocks in {}:{}-{}: {}", chromosome, start, end, blocks.size());
+        return blocks;
+    }
+
+    private SortedMap<Long, Long> countVariantsByBin(String chromosome, long start, long end, List<String> studies) {
+        if (variantHistogramCache == null) {
+            return variantCoordinatesService.countVariantsByBin(chromosome, start, end, windowSize, studies);
+        }
+        return variantHistogramCache.get(dbName, studies, chromosome, start, end, windowSize,
+                                         () -> variantCoordinatesService.countVariantsByBin(chromosome, start, end,
+                                                                                            windowSize, studies));
+    }
+
+    /**
+     * Plans the queries of a list of regions requested together, like the loci of a gene panel. The regions are sorted
+     * and merged where they overlap, the ones longer than 'windowSize' bases are divided in windows, and consecutive
+     * regions of the same chromosome are grouped, so every group can be fetched with a single query instead of one
+     * query per region.
+     *
+     * @param maxRegionsPerQuery maximum number of regions in a group
+     * @return groups of regions, in the order they have to be exported
+     */
+    public List<List<Region>> groupRegionsInQueries(List<Region> regions, int maxRegionsPerQuery) {
+        if (maxRegionsPerQuery < 1) {
+            throw new IllegalArgumentException("'maxRegionsPerQuery' must be greater than 0");
+        }
+        if (regions.stream().anyMatch(region -> region.getStart() == null || region.getEnd() == null)) {
+            throw new IllegalArgumentException("The regions to group must have start and end coordinates");
+        }
+        List<Region> mergedRegions = regions.stream().collect(new IntersectingRegionsMerger());
+        List<List<Region>> groups = new ArrayList<>();
+        List<Region> group = new ArrayList<>();
+        for (Region region : divideRegionListInChunks(mergedRegions)) {
+            if (!group.isEmpty() && (group.size() == maxRegionsPerQuery
+                    || !group.get(0).getChromosome().equals(region.getChromosome()))) {
+                groups.add(group);
+                group = new ArrayList<>();
+            }
+            group.add(region);
+        }
+        if (!group.isEmpty()) {
+            groups.add(group);
+        }
+        logger.debug("{} regions merged into {} regions, to be fetched in {} queries", regions.size(),
+                     mergedRegions.size(), groups.size());
+        return groups;
+    }
+
     private List<Region> divideRegionListInChunks(List<Region> regionsFromQuery) {
         List<Region> regions = new ArrayList<>();
         for (Region region : regionsFromQuery) {
@@ -97,6 +334,61 @@ public class RegionFactory {
         return regions;
     }
 
+    /**
+     * Divides a region in windows of 'windowSize' bases, but every window starts at the first variant after the end
+     * of the previous one, so the windows without variants are never queried. Finding every start is a query, so this
+     * is only used for sparse chromosomes.
+     */
+    private List<Region> divideRegionSkippingEmptyWindows(String chromosome, long start, long end,
+                                                          List<String> studies) {
+        List<Region> regions = new ArrayList<>();
+        Long nextStart = variantCoordinatesService.findNextVariantStart(chromosome, start, end, studies);
+        while (nextStart != null) {
+            long windowEnd = Math.min(nextStart + windowSize - 1, end);
+            regions.add(new Region(chromosome, nextStart, windowEnd));
+            nextStart = windowEnd < end ?
+                    variantCoordinatesService.findNextVariantStart(chromosome, windowEnd + 1, end, studies) : null;
+        }
+        logger.debug("Number of non-empty regions in {}:{}-{}: {}", chromosome, start, end, regions.size());
+        return regions;
+    }
+
+    /**
+     * Splits a region in halves until every piece has at most 'targetVariantsPerWindow' variants starting in it, or
+     * splitting it would make pieces shorter than 'windowSize' bases, so dense areas are never queried with more
+     * windows than fixed windows would use. Pieces without variants are discarded, so empty windows are skipped like in
+     * {@link #divideRegionSkippingEmptyWindows}, and sparse chromosomes are covered with a few big windows.
+     *
+     * The variants are counted by their start, like the export assigns them to the windows, so a long variant that
+     * overlaps many windows doesn't keep them from being split.
+     */
+    private void divideRegionByVariantDensity(String chromosome, long start, long end,
+                                              List<VariantRepositoryFilter> filters, List<Region> regions) {
+        Region region = new Region(chromosome, start, end);
+        long variantsInRegion;
+        try {
+            variantsInRegion = variantCoordinatesService.countVariants(chromosome, start, end, filters);
+        } catch (Exception e) {
+            // the number of variants is unknown, so keep the fixed size windows. If the database is not reachable,
+            // the export queries will report it
+            logger.warn("Variant density could not be retrieved for region {}, fixed windows will be used: {}",
+                        region, e.getMessage());
+            regions.addAll(divideRegionInChunks(chromosome, start, end));
+            return;
+        }
+
+        if (variantsInRegion == 0) {
+            return;
+        }
+        if (variantsInRegion <= targetVariantsPerWindow || end - start + 1 < 2L * windowSize) {
+            regions.add(region);
+        } else {
+            long middle = start + (end - start) / 2;
+            divideRegionByVariantDensity(chromosome, start, middle, filters, regions);
+            divideRegionByVariantDensity(chromosome, middle + 1, end, filters, regions);
+        }
+    }
+
     public List<Region> divideRegionInChunks(String chromosome, long minStart, long maxStart) {
         // we are using long instead of int to avoid overflowing if maxStart is MAX_INT. The casting to int will always work, because the
         // maximum value will be MAX_INT
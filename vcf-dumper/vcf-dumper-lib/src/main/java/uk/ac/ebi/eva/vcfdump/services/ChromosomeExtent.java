@@ -0,0 +1,63 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.services;
+
+/**
+ * Smallest and largest start of the variants of a chromosome, and how many variants there are
+ */
+public class ChromosomeExtent {
+
+    private final long minStart;
+
+    private final long maxStart;
+
+    private final long variantCount;
+
+    public ChromosomeExtent(long minStart, long maxStart, long variantCount) {
+        this.minStart = minStart;
+        this.maxStart = maxStart;
+        this.variantCount = variantCount;
+    }
+
+    public long getMinStart() {
+        return minStart;
+    }
+
+    public long getMaxStart() {
+        return maxStart;
+    }
+
+    /**
+     * @return number of variants, which is an upper bound if the extent covers several studies, because the variants
+     * shared by them are counted once per study
+     */
+    public long getVariantCount() {
+        return variantCount;
+    }
+
+    /**
+     * @return extent covering the variants of both extents
+     */
+    ChromosomeExtent merge(ChromosomeExtent other) {
+        return new ChromosomeExtent(Math.min(minStart, other.minStart), Math.max(maxStart, other.maxStart),
+                                    variantCount + other.variantCount);
+    }
+
+    @Override
+    public String toString() {
+        return minStart + "-" + maxStart + " (" + variantCount + " variants)";
+    }
+}
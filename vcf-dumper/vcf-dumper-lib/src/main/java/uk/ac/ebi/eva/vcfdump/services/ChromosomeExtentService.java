@@ -0,0 +1,251 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.services;
+
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.Fields;
+import org.springframework.data.mongodb.core.query.Criteria;
+
+import uk.ac.ebi.eva.commons.mongodb.entities.VariantMongo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Catalogue of the extent and number of variants of every chromosome of a study, so the regions of an export can be
+ * planned without querying the first and last variant of each chromosome.
+ *
+ * The catalogue keeps the extents of every file of a study, built with one aggregation over its variants the first
+ * time the study is requested, and kept in memory. Every request checks the versions of the files of the study,
+ * which only reads the files collection, and only the extents of the files loaded since are aggregated again, so
+ * loading a file doesn't scan the variants of the rest of the study. The variants shared by several files are counted
+ * once per file.
+ *
+ * A catalogue is only built by one thread at a time: the other requests of a study that need it wait for it. An
+ * outdated catalogue is never returned to plan an export, because variants outside of its extents would be left out
+ * of it; only {@link #getCachedExtents} returns it, to estimate the cost of an export.
+ */
+public class ChromosomeExtentService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChromosomeExtentService.class);
+
+    static final String CHROMOSOME_FIELD = "chr";
+
+    static final String START_FIELD = "start";
+
+    static final String STUDY_ID_FIELD = "files.sid";
+
+    static final String FILE_ID_FIELD = "files.fid";
+
+    private static final String FILES_FIELD = "files";
+
+    private static final String FILE_ID = "fid";
+
+    private static final String CHROMOSOME = "chr";
+
+    private static final String MIN_START = "minStart";
+
+    private static final String MAX_START = "maxStart";
+
+    private static final String VARIANT_COUNT = "variantCount";
+
+    private final MongoOperations mongoOperations;
+
+    private final VariantDataVersionService variantDataVersionService;
+
+    private final Map<String, StudyExtents> extentsByStudy;
+
+    private final Map<String, CompletableFuture<StudyExtents>> refreshesByStudy;
+
+    public ChromosomeExtentService(MongoOperations mongoOperations) {
+        this.mongoOperations = mongoOperations;
+        this.variantDataVersionService = new VariantDataVersionService(mongoOperations);
+        this.extentsByStudy = new ConcurrentHashMap<>();
+        this.refreshesByStudy = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * @param dbName database that the MongoOperations are currently using, used to identify its studies
+     * @return extent of the variants of the chromosome in any of the studies, or empty if it has none
+     */
+    public Optional<ChromosomeExtent> getExtent(String dbName, String chromosome, List<String> studies) {
+        ChromosomeExtent extent = null;
+        for (String study : studies) {
+            ChromosomeExtent studyExtent = getStudyExtents(dbName, study).get(chromosome);
+            if (studyExtent != null) {
+                extent = extent == null ? studyExtent : extent.merge(studyExtent);
+            }
+        }
+        return Optional.ofNullable(extent);
+    }
+
+    /**
+     * Looks up the extents found the last time the study was checked, even if a file of the study has been loaded
+     * since. It never queries the database, so it can be used before deciding whether an export is allowed to run.
+     *
+     * @param dbName database of the study
+     * @return extent of the variants of every chromosome of the study, or empty if the study was never checked
+     */
+    public Optional<Map<String, ChromosomeExtent>> getCachedExtents(String dbName, String study) {
+        StudyExtents studyExtents = extentsByStudy.get(getKey(dbName, study));
+        return studyExtents == null ? Optional.empty() : Optional.of(studyExtents.chromosomeExtents);
+    }
+
+    private static String getKey(String dbName, String study) {
+        return dbName + "/" + study;
+    }
+
+    /**
+     * @return the extents of the study for the current version of its files
+     */
+    private Map<String, ChromosomeExtent> getStudyExtents(String dbName, String study) {
+        String key = getKey(dbName, study);
+        Map<String, String> fileVersions = variantDataVersionService.getFileVersions(study);
+        while (true) {
+            StudyExtents studyExtents = extentsByStudy.get(key);
+            if (studyExtents != null && studyExtents.fileVersions.equals(fileVersions)) {
+                return studyExtents.chromosomeExtents;
+            }
+
+            CompletableFuture<StudyExtents> refresh = new CompletableFuture<>();
+            CompletableFuture<StudyExtents> runningRefresh = refreshesByStudy.putIfAbsent(key, refresh);
+            if (runningRefresh != null) {
+                // another thread is refreshing the study, in the same database because it's part of the key. Its
+                // versions may have been read before the ones of this request, so they are compared again
+                waitFor(runningRefresh);
+                continue;
+            }
+            try {
+                StudyExtents refreshedExtents = refreshStudyExtents(dbName, study, studyExtents, fileVersions);
+                extentsByStudy.put(key, refreshedExtents);
+                refresh.complete(refreshedExtents);
+                return refreshedExtents.chromosomeExtents;
+            } catch (RuntimeException e) {
+                refresh.completeExceptionally(e);
+                throw e;
+            } finally {
+                refreshesByStudy.remove(key, refresh);
+            }
+        }
+    }
+
+    private StudyExtents waitFor(CompletableFuture<StudyExtents> refresh) {
+        try {
+            return refresh.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @param previousExtents extents found the last time the study was checked, or null if it was never checked
+     * @param fileVersions    current versions of the files of the study
+     */
+    private StudyExtents refreshStudyExtents(String dbName, String study, StudyExtents previousExtents,
+                                             Map<String, String> fileVersions) {
+        Map<String, Map<String, ChromosomeExtent>> extentsByFile = new HashMap<>();
+        List<String> changedFiles = new ArrayList<>();
+        for (Map.Entry<String, String> fileVersion : fileVersions.entrySet()) {
+            String fileId = fileVersion.getKey();
+            if (previousExtents != null && fileVersion.getValue().equals(previousExtents.fileVersions.get(fileId))) {
+                extentsByFile.put(fileId, previousExtents.extentsByFile.get(fileId));
+            } else {
+                changedFiles.add(fileId);
+            }
+        }
+
+        if (!changedFiles.isEmpty()) {
+            extentsByFile.putAll(findChromosomeExtentsByFile(study, changedFiles));
+            logger.debug("Extents of {} files found for study {} in database {}", changedFiles.size(), study,
+                         dbName);
+        }
+        return new StudyExtents(extentsByFile, fileVersions, mergeFiles(extentsByFile));
+    }
+
+    /**
+     * @return the extents of every chromosome of each file, including an empty map for the files without variants
+     */
+    private Map<String, Map<String, ChromosomeExtent>> findChromosomeExtentsByFile(String study, List<String> files) {
+        Criteria filesOfStudy = Criteria.where(STUDY_ID_FIELD).is(study).and(FILE_ID_FIELD).in(files);
+        Aggregation aggregation = Aggregation.newAggregation(
+                Aggregation.match(filesOfStudy),
+                // a variant can be in several files, so only the requested ones are grouped
+                Aggregation.unwind(FILES_FIELD),
+                Aggregation.match(filesOfStudy),
+                Aggregation.group(Fields.from(Fields.field(FILE_ID, FILE_ID_FIELD),
+                                              Fields.field(CHROMOSOME, CHROMOSOME_FIELD)))
+                           .min(START_FIELD).as(MIN_START)
+                           .max(START_FIELD).as(MAX_START)
+                           .count().as(VARIANT_COUNT))
+                .withOptions(Aggregation.newAggregationOptions().allowDiskUse(true).build());
+
+        Map<String, Map<String, ChromosomeExtent>> extentsByFile = new HashMap<>();
+        files.forEach(file -> extentsByFile.put(file, new HashMap<>()));
+        for (Document fileChromosome : mongoOperations.aggregate(aggregation, getVariantsCollectionName(),
+                                                                 Document.class)) {
+            Document id = (Document) fileChromosome.get("_id");
+            extentsByFile.get(id.get(FILE_ID).toString())
+                         .put(id.get(CHROMOSOME).toString(),
+                              new ChromosomeExtent(((Number) fileChromosome.get(MIN_START)).longValue(),
+                                                   ((Number) fileChromosome.get(MAX_START)).longValue(),
+                                                   ((Number) fileChromosome.get(VARIANT_COUNT)).longValue()));
+        }
+        return extentsByFile;
+    }
+
+    private Map<String, ChromosomeExtent> mergeFiles(Map<String, Map<String, ChromosomeExtent>> extentsByFile) {
+        Map<String, ChromosomeExtent> chromosomeExtents = new HashMap<>();
+        for (Map<String, ChromosomeExtent> fileExtents : extentsByFile.values()) {
+            fileExtents.forEach((chromosome, extent) -> chromosomeExtents.merge(chromosome, extent,
+                                                                                ChromosomeExtent::merge));
+        }
+        return Collections.unmodifiableMap(chromosomeExtents);
+    }
+
+    private String getVariantsCollectionName() {
+        return mongoOperations.getCollectionName(VariantMongo.class);
+    }
+
+    private static class StudyExtents {
+
+        private final Map<String, Map<String, ChromosomeExtent>> extentsByFile;
+
+        private final Map<String, String> fileVersions;
+
+        private final Map<String, ChromosomeExtent> chromosomeExtents;
+
+        StudyExtents(Map<String, Map<String, ChromosomeExtent>> extentsByFile, Map<String, String> fileVersions,
+                     Map<String, ChromosomeExtent> chromosomeExtents) {
+            this.extentsByFile = extentsByFile;
+            this.fileVersions = fileVersions;
+            this.chromosomeExtents = chromosomeExtents;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Query;
+
+import uk.ac.ebi.eva.commons.mongodb.entities.VariantMongo;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Catalogue of the chromosomes of every database, taken from the variants collection itself with a distinct query
+ * over the chromosome field, which is covered by the index on the coordinates. The chromosomes of a database are
+ * kept for a while, so consecutive exports don't query them again.
+ */
+public class ChromosomeService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChromosomeService.class);
+
+    public static final String TIME_TO_LIVE_PROPERTY = "eva.export.chromosomes-cache-ttl-seconds";
+
+    public static final long DEFAULT_TIME_TO_LIVE_SECONDS = 3600;
+
+    static final String CHROMOSOME_FIELD = "chr";
+
+    private final MongoOperations mongoOperations;
+
+    private final long timeToLiveMillis;
+
+    private final LongSupplier currentTimeMillis;
+
+    private final Map<String, CachedChromosomes> chromosomesByDatabase;
+
+    /**
+     * @param timeToLiveSeconds time the chromosomes of a database are reused before querying them again, or 0 to
+     *                          query them in every call
+     */
+    public ChromosomeService(MongoOperations mongoOperations, long timeToLiveSeconds) {
+        this(mongoOperations, timeToLiveSeconds, System::currentTimeMillis);
+    }
+
+    ChromosomeService(MongoOperations mongoOperations, long timeToLiveSeconds, LongSupplier currentTimeMillis) {
+        if (timeToLiveSeconds < 0) {
+            throw new IllegalArgumentException("'timeToLiveSeconds' can't be negative");
+        }
+        this.mongoOperations = mongoOperations;
+        this.timeToLiveMillis = TimeUnit.SECONDS.toMillis(timeToLiveSeconds);
+        this.currentTimeMillis = currentTimeMillis;
+        this.chromosomesByDatabase = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * @param dbName database that the MongoOperations are currently using, used to identify its chromosomes
+     * @return the chromosomes that have some variant, sorted by name
+     */
+    public Set<String> getChromosomes(String dbName) {
+        long now = currentTimeMillis.getAsLong();
+        CachedChromosomes cachedChromosomes = chromosomesByDatabase.get(dbName);
+        if (cachedChromosomes != null && now - cachedChromosomes.loadTime < timeToLiveMillis) {
+            return cachedChromosomes.chromosomes;
+        }
+
+        Set<String> chromosomes = Collections.unmodifiableSet(new TreeSet<>(findChromosomes()));
+        logger.debug("{} chromosomes found in database {}", chromosomes.size(), dbName);
+        chromosomesByDatabase.put(dbName, new CachedChromosomes(chromosomes, now));
+        return chromosomes;
+    }
+
+    private List<String> findChromosomes() {
+        return mongoOperations.findDistinct(new Query(), CHROMOSOME_FIELD, getVariantsCollectionName(),
+                                            String.class);
+    }
+
+    private String getVariantsCollectionName() {
+        return mongoOperations.getCollectionName(VariantMongo.class);
+    }
+
+    private static class CachedChromosomes {
+
+        private final Set<String> chromosomes;
+
+        private final long loadTime;
+
+        CachedChromosomes(Set<String> chromosomes, long loadTime) {
+            this.chromosomes = chromosomes;
+            this.loadTime = loadTime;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.services;
+
+import org.bson.Document;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.ArithmeticOperators;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+
+import uk.ac.ebi.eva.commons.mongodb.entities.VariantMongo;
+import uk.ac.ebi.eva.commons.mongodb.filter.VariantRepositoryFilter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Lightweight queries over the coordinates of the variants, which only read the fields they need instead of
+ * retrieving whole variants.
+ */
+public class VariantCoordinatesService {
+
+    static final String CHROMOSOME_FIELD = "chr";
+
+    static final String START_FIELD = "start";
+
+    static final String STUDY_ID_FIELD = "files.sid";
+
+    private static final String BIN_START = "binStart";
+
+    private static final String VARIANT_COUNT = "variantCount";
+
+    private final MongoOperations mongoOperations;
+
+    public VariantCoordinatesService(MongoOperations mongoOperations) {
+        this.mongoOperations = mongoOperations;
+    }
+
+    /**
+     * @return the smallest start, between 'from' and 'to' (both included), of the variants of the chromosome that
+     * are present in any of the studies, or null if there is no such variant
+     */
+    public Long findNextVariantStart(String chromosome, long from, long to, List<String> studies) {
+        Query query = new Query(getCriteria(chromosome, from, to, studies))
+                .with(new Sort(Sort.Direction.ASC, START_FIELD)).limit(1);
+        query.fields().include(START_FIELD).exclude("_id");
+
+        Document variant = mongoOperations.findOne(query, Document.class, getVariantsCollectionName());
+        return variant == null ? null : ((Number) variant.get(START_FIELD)).longValue();
+    }
+
+    /**
+     * Counts the variants of the chromosome that start between 'from' and 'to' (both included) and pass the filters.
+     * Unlike the region queries of the repository, which also match the variants that overlap the region, a variant
+     * is only counted in the region where it starts.
+     */
+    public long countVariants(String chromosome, long from, long to, List<VariantRepositoryFilter> filters) {
+        List<Criteria> criteria = new ArrayList<>();
+        criteria.add(getCriteria(chromosome, from, to, null));
+        for (VariantRepositoryFilter filter : filters) {
+            criteria.add(filter.getCriteria());
+        }
+        Query query = new Query(new Criteria().andOperator(criteria.toArray(new Criteria[0])));
+        return mongoOperations.count(query, getVariantsCollectionName());
+    }
+
+    /**
+     * Counts the variants of the chromosome in bins of 'binSize' bases with one aggregation, which gives the density
+     * of variants along the chromosome without retrieving them.
+     *
+     * @param binSize number of bases of every bin, which start at multiples of it
+     * @return number of variants that are present in any of the studies and start between 'from' and 'to' (both
+     * included), for every bin with variants, keyed by the first position of the bin
+     */
+    public SortedMap<Long, Long> countVariantsByBin(String chromosome, long from, long to, long binSize,
+                                                    List<String> studies) {
+        if (binSize < 1) {
+            throw new IllegalArgumentException("'binSize' must be greater than 0");
+        }
+        Aggregation aggregation = Aggregation.newAggregation(
+                Aggregation.match(getCriteria(chromosome, from, to, studies)),
+                Aggregation.project()
+                           .and(ArithmeticOperators.Subtract.valueOf(START_FIELD).subtract(
+                                   ArithmeticOperators.Mod.valueOf(START_FIELD).mod(binSize)))
+                           .as(BIN_START),
+                Aggregation.group(BIN_START).count().as(VARIANT_COUNT))
+                .withOptions(Aggregation.newAggregationOptions().allowDiskUse(true).build());
+
+        SortedMap<Long, Long> variantsByBin = new TreeMap<>();
+        for (Document bin : mongoOperations.aggregate(aggregation, getVariantsCollectionName(), Document.class)) {
+            variantsByBin.put(((Number) bin.get("_id")).longValue(), ((Number) bin.get(VARIANT_COUNT)).longValue());
+        }
+        return variantsByBin;
+    }
+
+    private Criteria getCriteria(String chromosome, long from, long to, List<String> studies) {
+        Criteria criteria = Criteria.where(CHROMOSOME_FIELD).is(chromosome).and(START_FIELD).gte(from).lte(to);
+        if (studies != null && !studies.isEmpty()) {
+            criteria = criteria.and(STUDY_ID_FIELD).in(studies);
+        }
+        return criteria;
+    }
+
+    private String getVariantsCollectionName() {
+        return mongoOperations.getCollectionName(VariantMongo.class);
+    }
+}
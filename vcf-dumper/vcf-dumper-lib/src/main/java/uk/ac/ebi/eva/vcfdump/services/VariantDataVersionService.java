@@ -0,0 +1,122 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.services;
+
+import org.bson.Document;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+
+import uk.ac.ebi.eva.commons.mongodb.entities.AnnotationMetadataMongo;
+import uk.ac.ebi.eva.commons.mongodb.entities.VariantSourceMongo;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Identifies the version of the variant data of some studies, so the results exported from them can be reused until
+ * the data changes.
+ *
+ * The variants of a study change when its files are loaded, reloaded or removed, and every file document records
+ * the date it was loaded, so the version is built from the files of the studies and their dates. The exported
+ * annotation is the one of the default VEP and cache versions, so the version of the data also includes them.
+ */
+public class VariantDataVersionService {
+
+    static final String FILE_ID_FIELD = "fid";
+
+    static final String STUDY_ID_FIELD = "sid";
+
+    static final String DATE_FIELD = "date";
+
+    static final String DEFAULT_ANNOTATION_FIELD = "is_default";
+
+    private final MongoOperations mongoOperations;
+
+    public VariantDataVersionService(MongoOperations mongoOperations) {
+        this.mongoOperations = mongoOperations;
+    }
+
+    /**
+     * @return a string that is the same as long as no file of the studies and no default annotation version changes
+     */
+    public String getDataVersion(List<String> studies) {
+        return getFilesVersion(studies) + "|" + getAnnotationVersion();
+    }
+
+    /**
+     * @return a string that is the same as long as no file of the studies changes. It ignores the annotation, so it
+     * identifies the data that doesn't depend on it, like the coordinates of the variants
+     */
+    public String getFilesVersion(List<String> studies) {
+        Query query = new Query(Criteria.where(STUDY_ID_FIELD).in(studies));
+        query.fields().include(STUDY_ID_FIELD).include(FILE_ID_FIELD).include(DATE_FIELD).exclude("_id");
+
+        List<Document> files = mongoOperations.find(query, Document.class, getFilesCollectionName());
+        return files.stream()
+                    .map(this::getFileVersion)
+                    .sorted()
+                    .collect(Collectors.joining(";"));
+    }
+
+    /**
+     * @return the version of every file of the study, keyed by file id, which is the same as long as the file isn't
+     * loaded again
+     */
+    public Map<String, String> getFileVersions(String study) {
+        Query query = new Query(Criteria.where(STUDY_ID_FIELD).is(study));
+        query.fields().include(FILE_ID_FIELD).include(DATE_FIELD).exclude("_id");
+
+        Map<String, String> fileVersions = new HashMap<>();
+        for (Document file : mongoOperations.find(query, Document.class, getFilesCollectionName())) {
+            Date date = file.getDate(DATE_FIELD);
+            fileVersions.put(file.getString(FILE_ID_FIELD), date == null ? "" : String.valueOf(date.getTime()));
+        }
+        return fileVersions;
+    }
+
+    /**
+     * @return the ids of the default annotation metadata, which name their VEP and cache versions
+     */
+    private String getAnnotationVersion() {
+        Query query = new Query(Criteria.where(DEFAULT_ANNOTATION_FIELD).is(true));
+        query.fields().include("_id");
+
+        List<Document> annotationMetadata = mongoOperations.find(query, Document.class,
+                                                                 getAnnotationMetadataCollectionName());
+        return annotationMetadata.stream()
+                                 .map(metadata -> String.valueOf(metadata.get("_id")))
+                                 .sorted()
+                                 .collect(Collectors.joining(","));
+    }
+
+    private String getFileVersion(Document file) {
+        Date date = file.getDate(DATE_FIELD);
+        return file.getString(STUDY_ID_FIELD) + "/" + file.getString(FILE_ID_FIELD) + "@" +
+                (date == null ? "" : date.getTime());
+    }
+
+    private String getFilesCollectionName() {
+        return mongoOperations.getCollectionName(VariantSourceMongo.class);
+    }
+
+    private String getAnnotationMetadataCollectionName() {
+        return mongoOperations.getCollectionName(AnnotationMetadataMongo.class);
+    }
+}
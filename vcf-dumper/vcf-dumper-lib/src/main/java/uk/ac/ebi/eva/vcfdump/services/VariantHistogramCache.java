@@ -0,0 +1,140 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the most recently used histograms of variants by bin, so the htsget tickets of the same range of a chromosome
+ * don't aggregate the variants of the studies again for every request.
+ *
+ * Entries are identified by the database, studies, chromosome, range and bin size of the histogram, and by the version
+ * of the files of the studies, so the histogram is counted again after any file of the studies is loaded.
+ */
+public class VariantHistogramCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(VariantHistogramCache.class);
+
+    public static final String SIZE_PROPERTY = "eva.htsget.histogram-cache-size";
+
+    public static final int DEFAULT_SIZE = 100;
+
+    private final VariantDataVersionService variantDataVersionService;
+
+    private final Map<Key, SortedMap<Long, Long>> entries;
+
+    /**
+     * @param maxEntries number of histograms kept, the least recently used ones are discarded first
+     */
+    public VariantHistogramCache(VariantDataVersionService variantDataVersionService, int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("'maxEntries' must be greater than 0");
+        }
+        this.variantDataVersionService = variantDataVersionService;
+        this.entries = new LinkedHashMap<Key, SortedMap<Long, Long>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, SortedMap<Long, Long>> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @param loader counts the variants by bin if the histogram is not in the cache. Concurrent misses of the same key
+     *               can count them more than once, which is harmless because the results are the same
+     * @return unmodifiable histogram, shared by all the requests of the same key
+     */
+    public SortedMap<Long, Long> get(String dbName, List<String> studies, String chromosome, long from, long to,
+                                     int binSize, Supplier<SortedMap<Long, Long>> loader) {
+        Key key = new Key(dbName, studies, chromosome, from, to, binSize,
+                          variantDataVersionService.getFilesVersion(studies));
+        synchronized (entries) {
+            SortedMap<Long, Long> variantsByBin = entries.get(key);
+            if (variantsByBin != null) {
+                logger.debug("Histogram of {} found in the cache", key);
+                return variantsByBin;
+            }
+        }
+        SortedMap<Long, Long> variantsByBin = Collections.unmodifiableSortedMap(loader.get());
+        synchronized (entries) {
+            entries.put(key, variantsByBin);
+        }
+        return variantsByBin;
+    }
+
+    private static class Key {
+
+        private final String dbName;
+
+        private final List<String> studies;
+
+        private final String chromosome;
+
+        private final long from;
+
+        private final long to;
+
+        private final int binSize;
+
+        private final String filesVersion;
+
+        Key(String dbName, List<String> studies, String chromosome, long from, long to, int binSize,
+            String filesVersion) {
+            this.dbName = dbName;
+            this.studies = new ArrayList<>(studies);
+            Collections.sort(this.studies);
+            this.chromosome = chromosome;
+            this.from = from;
+            this.to = to;
+            this.binSize = binSize;
+            this.filesVersion = filesVersion;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key key = (Key) o;
+            return from == key.from && to == key.to && binSize == key.binSize && dbName.equals(key.dbName)
+                    && studies.equals(key.studies) && chromosome.equals(key.chromosome)
+                    && filesVersion.equals(key.filesVersion);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(dbName, studies, chromosome, from, to, binSize, filesVersion);
+        }
+
+        @Override
+        public String toString() {
+            return dbName + " " + studies + " " + chromosome + ":" + from + "-" + to;
+        }
+    }
+}
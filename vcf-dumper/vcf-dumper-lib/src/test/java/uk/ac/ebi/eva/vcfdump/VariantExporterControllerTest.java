@@ -17,8 +17,10 @@ package uk.ac.ebi.eva.vcfdump;
 
 import com.lordofthejars.nosqlunit.annotation.UsingDataSet;
 import com.lordofthejars.nosqlunit.mongodb.MongoDbRule;
+import htsjdk.samtools.util.CloseableIterator;
 import htsjdk.variant.variantcontext.VariantContext;
 import htsjdk.variant.vcf.VCFFileReader;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -43,13 +45,19 @@ import uk.ac.ebi.eva.commons.mongodb.entities.subdocuments.AnnotationIndexMongo;
 import uk.ac.ebi.eva.commons.mongodb.repositories.VariantRepository;
 import uk.ac.ebi.eva.commons.mongodb.services.VariantSourceService;
 import uk.ac.ebi.eva.commons.mongodb.services.VariantWithSamplesAndAnnotationsService;
+import uk.ac.ebi.eva.vcfdump.metrics.ExportMetrics;
+import uk.ac.ebi.eva.vcfdump.services.ChromosomeService;
+import uk.ac.ebi.eva.vcfdump.services.VariantDataVersionService;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -60,10 +68,13 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.function.Predicate;
 import java.util.zip.GZIPInputStream;
 
 import static com.lordofthejars.nosqlunit.mongodb.MongoDbRule.MongoDbRuleBuilder.newMongoDbRule;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
@@ -146,7 +157,10 @@ public class VariantExporterControllerTest {
 
     @After
     public void tearDown() {
-        testOutputFiles.forEach(f -> new File(f).delete());
+        testOutputFiles.forEach(f -> {
+            new File(f).delete();
+            new File(f + ".tbi").delete();
+        });
     }
 
     @Test
@@ -194,6 +208,277 @@ public class VariantExporterControllerTest {
         assertTrue(variantCountInDb != 0);
         assertEqualLinesFilesAndDB(outputFile, variantCountInDb);
         assertVcfOrderedByCoordinate(outputFile);
+        assertTabixIndexFindsEveryVariant(outputFile);
+    }
+
+    @Test
+    public void testVcfExportWithChromosomesFromTheDatabase() throws Exception {
+        List<String> studies = Arrays.asList("7", "8");
+        // the export fails if the chromosomes are requested to the web services
+        Properties withoutWsProperties = new Properties();
+        withoutWsProperties.putAll(evaTestProperties);
+        withoutWsProperties.setProperty("eva.rest.url", "http://localhost:1/eva/webservices/rest/");
+
+        VariantExporterController controller = new VariantExporterController(databaseMapping.get(HUMAN_TEST_DB),
+                                                                             variantSourceService, variantService,
+                                                                             studies, Collections.emptyList(),
+                                                                             OUTPUT_DIR, withoutWsProperties,
+                                                                             emptyFilter);
+        controller.setChromosomeService(new ChromosomeService(mongoOperations, 0));
+        controller.run();
+
+        String outputFile = controller.getOuputFilePath();
+        testOutputFiles.add(outputFile);
+        assertEquals(0, controller.getFailedVariants());
+
+        long variantCountInDb = getVariantCountInDb(variant -> containStudyId(variant, studies));
+        assertTrue(variantCountInDb != 0);
+        assertEqualLinesFilesAndDB(outputFile, variantCountInDb);
+        assertVcfOrderedByCoordinate(outputFile);
+    }
+
+    @Test
+    public void testVcfExportSeveralStudiesInParallel() throws Exception {
+        List<String> studies = Arrays.asList("7", "8");
+        Properties parallelExportProperties = new Properties();
+        parallelExportProperties.putAll(evaTestProperties);
+        parallelExportProperties.setProperty(VariantExporterController.PARALLELISM_PROPERTY, "3");
+
+        VariantExporterController controller = new VariantExporterController(databaseMapping.get(HUMAN_TEST_DB),
+                                                                             variantSourceService, variantService,
+                                                                             studies, Collections.emptyList(),
+                                                                             OUTPUT_DIR, parallelExportProperties,
+                                                                             emptyFilter);
+        ExecutorService regionExecutor = Executors.newFixedThreadPool(3);
+        try {
+            controller.setRegionExecutor(regionExecutor);
+            controller.run();
+        } finally {
+            regionExecutor.shutdownNow();
+        }
+
+        ////////// checks
+        String outputFile = controller.getOuputFilePath();
+        testOutputFiles.add(outputFile);
+        assertEquals(0, controller.getFailedVariants());   // test file should not have failed variants
+
+        long variantCountInDb = getVariantCountInDb(variant -> containStudyId(variant, studies));
+        assertTrue(variantCountInDb != 0);
+        assertEqualLinesFilesAndDB(outputFile, variantCountInDb);
+        assertVcfOrderedByCoordinate(outputFile);
+    }
+
+    @Test
+    public void testVcfExportSeveralChromosomesInParallel() throws Exception {
+        List<String> studies = Arrays.asList("7", "8");
+
+        VariantExporterController controller = new VariantExporterController(databaseMapping.get(HUMAN_TEST_DB),
+                                                                             variantSourceService, variantService,
+                                                                             studies, Collections.emptyList(),
+                                                                             OUTPUT_DIR, evaTestProperties, emptyFilter);
+        controller.setChromosomeThreads(3);
+        controller.run();
+
+        ////////// checks
+        String outputFile = controller.getOuputFilePath();
+        testOutputFiles.add(outputFile);
+        assertEquals(0, controller.getFailedVariants());   // test file should not have failed variants
+
+        long variantCountInDb = getVariantCountInDb(variant -> containStudyId(variant, studies));
+        assertTrue(variantCountInDb != 0);
+        assertEqualLinesFilesAndDB(outputFile, variantCountInDb);
+        assertVcfOrderedByCoordinate(outputFile);
+        assertTabixIndexFindsEveryVariant(outputFile);
+    }
+
+    @Test
+    public void testVcfExportWithParallelCompression() throws Exception {
+        List<String> studies = Arrays.asList("7", "8");
+        Properties parallelCompressionProperties = new Properties();
+        parallelCompressionProperties.putAll(evaTestProperties);
+        parallelCompressionProperties.setProperty(VariantExporterController.COMPRESSION_THREADS_PROPERTY, "3");
+        parallelCompressionProperties.setProperty(VariantExporterController.COMPRESSION_LEVEL_PROPERTY, "9");
+
+        VariantExporterController controller = new VariantExporterController(databaseMapping.get(HUMAN_TEST_DB),
+                                                                             variantSourceService, variantService,
+                                                                             studies, Collections.emptyList(),
+                                                                             OUTPUT_DIR, parallelCompressionProperties,
+                                                                             emptyFilter);
+        controller.run();
+
+        ////////// checks
+        String outputFile = controller.getOuputFilePath();
+        testOutputFiles.add(outputFile);
+        assertEquals(0, controller.getFailedVariants());   // test file should not have failed variants
+
+        long variantCountInDb = getVariantCountInDb(variant -> containStudyId(variant, studies));
+        assertTrue(variantCountInDb != 0);
+        assertEqualLinesFilesAndDB(outputFile, variantCountInDb);
+        assertVcfOrderedByCoordinate(outputFile);
+        assertTabixIndexFindsEveryVariant(outputFile);
+    }
+
+    @Test
+    public void testDirectVcfEncodingWritesTheSameOutput() throws Exception {
+        List<String> studies = Arrays.asList("7", "8");
+        String dbName = databaseMapping.get(HUMAN_TEST_DB);
+
+        byte[] htsjdkOutput = exportToStream(dbName, studies, evaTestProperties, emptyFilter);
+        byte[] directOutput = exportToStream(dbName, studies, getDirectVcfEncodingProperties(), emptyFilter);
+        assertTrue(htsjdkOutput.length > 0);
+        assertArrayEquals(htsjdkOutput, directOutput);
+
+        // the compressed files have the same BGZF blocks too
+        byte[] htsjdkFile = exportToFile(dbName, studies, evaTestProperties, emptyFilter);
+        byte[] directFile = exportToFile(dbName, studies, getDirectVcfEncodingProperties(), emptyFilter);
+        assertArrayEquals(htsjdkFile, directFile);
+    }
+
+    @Test
+    @UsingDataSet(locations = {
+            "/db-dump/eva_oaries_oarv31/files_2_0.json",
+            "/db-dump/eva_oaries_oarv31/annotations_2_0.json",
+            "/db-dump/eva_oaries_oarv31/annotationMetadata_2_0.json",
+            "/db-dump/eva_oaries_oarv31/variants_2_0.json"})
+    public void testDirectVcfEncodingWritesTheSameAnnotations() throws Exception {
+        List<String> studies = Collections.singletonList(SHEEP_STUDY_ID);
+        String dbName = databaseMapping.get(SHEEP_TEST_DB);
+        QueryParams params = new QueryParams();
+        params.setStudies(studies);
+
+        byte[] htsjdkOutput = exportToStream(dbName, studies, evaTestProperties, params);
+        byte[] directOutput = exportToStream(dbName, studies, getDirectVcfEncodingProperties(), params);
+        assertTrue(new String(htsjdkOutput).contains(ANNOTATION_KEY + "="));
+        assertArrayEquals(htsjdkOutput, directOutput);
+    }
+
+    @Test
+    public void testHeaderCacheWritesTheSameOutput() throws Exception {
+        List<String> studies = Arrays.asList("7", "8");
+        String dbName = databaseMapping.get(HUMAN_TEST_DB);
+        VcfHeaderCache headerCache = new VcfHeaderCache(new VariantDataVersionService(mongoOperations), 10);
+
+        byte[] uncachedOutput = exportToStream(dbName, studies, evaTestProperties, emptyFilter);
+        byte[] firstCachedOutput = exportToStream(dbName, studies, evaTestProperties, emptyFilter, headerCache);
+        byte[] secondCachedOutput = exportToStream(dbName, studies, evaTestProperties, emptyFilter, headerCache);
+        byte[] directCachedOutput = exportToStream(dbName, studies, getDirectVcfEncodingProperties(), emptyFilter,
+                                                   headerCache);
+        assertTrue(uncachedOutput.length > 0);
+        assertArrayEquals(uncachedOutput, firstCachedOutput);
+        assertArrayEquals(uncachedOutput, secondCachedOutput);
+        assertArrayEquals(uncachedOutput, directCachedOutput);
+    }
+
+    @Test
+    public void testIncrementalExportWritesTheSameOutput() throws Exception {
+        List<String> studies = Arrays.asList("7", "8");
+        String dbName = databaseMapping.get(HUMAN_TEST_DB);
+
+        byte[] output = exportToStream(dbName, studies, evaTestProperties, emptyFilter);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        VariantExporterController controller = new VariantExporterController(dbName, variantSourceService,
+                                                                             variantService, studies, outputStream,
+                                                                             evaTestProperties, emptyFilter);
+        IncrementalVcfExport export = controller.startIncrementalExport();
+        int headerSize = outputStream.size();
+        assertTrue(headerSize > 0);
+        int regions = 0;
+        while (export.exportNextRegion()) {
+            regions++;
+        }
+        export.close();
+        export.close();
+
+        assertTrue(regions > 1);
+        assertEquals(0, controller.getFailedVariants());
+        assertArrayEquals(output, outputStream.toByteArray());
+    }
+
+    @Test
+    public void testRegionListExportWritesTheSameOutput() throws Exception {
+        List<String> studies = Arrays.asList("7", "8");
+        String dbName = databaseMapping.get(HUMAN_TEST_DB);
+        QueryParams filter = new QueryParams();
+        filter.setRegion("22:16050075-16051500,22:16060000-16062000,22:16061500-16063000,22:16100000-16110950");
+        byte[] output = exportToStream(dbName, studies, evaTestProperties, filter);
+
+        List<Region> regions = Arrays.asList(new Region("22", 16100000L, 16110950L),
+                                             new Region("22", 16050075L, 16051500L),
+                                             new Region("22", 16061500L, 16063000L),
+                                             new Region("22", 16060000L, 16062000L));
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        VariantExporterController controller = new VariantExporterController(dbName, variantSourceService,
+                                                                             variantService, studies, outputStream,
+                                                                             evaTestProperties, new QueryParams());
+        controller.exportRegions(regions, 3);
+
+        assertEquals(0, controller.getFailedVariants());
+        assertArrayEquals(output, outputStream.toByteArray());
+    }
+
+    @Test
+    public void testExportMetricsCountTheExportedVariantsAndBytes() throws Exception {
+        List<String> studies = Arrays.asList("7", "8");
+        String dbName = databaseMapping.get(HUMAN_TEST_DB);
+        QueryParams filter = new QueryParams();
+        filter.setRegion("22:16050075-16110950");
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        VariantExporterController controller = new VariantExporterController(dbName, variantSourceService,
+                                                                             variantService, studies, outputStream,
+                                                                             evaTestProperties, filter);
+        controller.setExportMetrics(new ExportMetrics(registry));
+        controller.run();
+
+        byte[] output = outputStream.toByteArray();
+        long variantLines = Arrays.stream(new String(output).split("\n")).filter(line -> !line.startsWith("#"))
+                                  .count();
+        assertEquals(variantLines, registry.get(ExportMetrics.VARIANTS).tag("stage", "converted").counter().count(),
+                     0);
+        assertEquals(variantLines, registry.get(ExportMetrics.VARIANTS).tag("stage", "fetched").counter().count(), 0);
+        assertEquals(0, registry.get(ExportMetrics.VARIANTS).tag("stage", "failed").counter().count(), 0);
+        assertEquals(output.length, registry.get(ExportMetrics.WRITTEN_BYTES).tag("stream", "vcf").counter().count(),
+                     0);
+        assertEquals(1, registry.get(ExportMetrics.HEADER_BUILD).timer().count());
+        assertTrue(registry.get(ExportMetrics.QUERIES).tag("query", "variants").timer().count() > 0);
+    }
+
+    private Properties getDirectVcfEncodingProperties() {
+        Properties directVcfEncodingProperties = new Properties();
+        directVcfEncodingProperties.putAll(evaTestProperties);
+        directVcfEncodingProperties.setProperty(VariantExporterController.DIRECT_VCF_ENCODING_PROPERTY, "true");
+        return directVcfEncodingProperties;
+    }
+
+    private byte[] exportToStream(String dbName, List<String> studies, Properties properties, QueryParams params)
+            throws URISyntaxException {
+        return exportToStream(dbName, studies, properties, params, null);
+    }
+
+    private byte[] exportToStream(String dbName, List<String> studies, Properties properties, QueryParams params,
+                                  VcfHeaderCache headerCache) throws URISyntaxException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        VariantExporterController controller = new VariantExporterController(dbName, variantSourceService,
+                                                                             variantService, studies, outputStream,
+                                                                             properties, params);
+        controller.setHeaderCache(headerCache);
+        controller.run();
+        assertEquals(0, controller.getFailedVariants());
+        return outputStream.toByteArray();
+    }
+
+    private byte[] exportToFile(String dbName, List<String> studies, Properties properties, QueryParams params)
+            throws URISyntaxException, IOException {
+        VariantExporterController controller = new VariantExporterController(dbName, variantSourceService,
+                                                                             variantService, studies,
+                                                                             Collections.emptyList(), OUTPUT_DIR,
+                                                                             properties, params);
+        controller.run();
+        String outputFile = controller.getOuputFilePath();
+        testOutputFiles.add(outputFile);
+        assertEquals(0, controller.getFailedVariants());
+        return Files.readAllBytes(Paths.get(outputFile));
     }
 
     @Test
@@ -446,6 +731,41 @@ public class VariantExporterControllerTest {
 
     }
 
+    private void assertTabixIndexFindsEveryVariant(String fileName) throws IOException {
+        logger.info("Checking that the tabix index of {} finds every variant", fileName);
+        Map<String, List<Integer>> startsByContig = new HashMap<>();
+        try (VCFFileReader vcfReader = new VCFFileReader(new File(fileName), false)) {
+            for (VariantContext variant : vcfReader) {
+                startsByContig.computeIfAbsent(variant.getContig(), contig -> new ArrayList<>())
+                              .add(variant.getStart());
+            }
+        }
+
+        try (VCFFileReader indexedVcfReader = new VCFFileReader(new File(fileName), true)) {
+            for (Map.Entry<String, List<Integer>> contigStarts : startsByContig.entrySet()) {
+                String contig = contigStarts.getKey();
+                List<Integer> starts = contigStarts.getValue();
+                assertEquals(starts.size(), countVariants(indexedVcfReader, contig, 1,
+                                                          VcfTabixIndexer.MAX_INDEXABLE_POSITION));
+                for (Integer start : starts) {
+                    assertTrue("Variant " + contig + ":" + start + " not found using the tabix index",
+                               countVariants(indexedVcfReader, contig, start, start) > 0);
+                }
+            }
+        }
+    }
+
+    private int countVariants(VCFFileReader vcfReader, String contig, int start, int end) {
+        int count = 0;
+        try (CloseableIterator<VariantContext> variants = vcfReader.query(contig, start, end)) {
+            while (variants.hasNext()) {
+                variants.next();
+                count++;
+            }
+        }
+        return count;
+    }
+
     @Test(expected = IllegalArgumentException.class)
     @UsingDataSet(locations = {
             "/db-dump/eva_oaries_oarv31/files_2_0.json",
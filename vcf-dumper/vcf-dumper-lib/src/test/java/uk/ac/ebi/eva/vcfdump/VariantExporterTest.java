@@ -47,11 +47,13 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 
 import static com.lordofthejars.nosqlunit.mongodb.MongoDbRule.MongoDbRuleBuilder.newMongoDbRule;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -279,6 +281,41 @@ public class VariantExporterTest {
                                                                           .equals(FILE_3 + "_" + sampleName));
     }
 
+    @Test
+    public void conflictingSampleNamesAreReported() {
+        VariantSource variantSource = createTestVariantSource(FILE_1, s1s6SampleList);
+        VariantSource variantSource2 = createTestVariantSource(FILE_2, c1c6SampleList);
+        VariantSource variantSource3 = createTestVariantSource(FILE_3, s2s3SampleList);
+
+        VariantExporter variantExporter = new VariantExporter(true);
+
+        assertTrue(variantExporter.findConflictingSampleNames(Arrays.asList(variantSource, variantSource2))
+                                  .isEmpty());
+        assertEquals(new HashSet<>(s2s3SampleList), variantExporter.findConflictingSampleNames(
+                Arrays.asList(variantSource, variantSource2, variantSource3)));
+    }
+
+    @Test
+    public void mergeHeadersWithSharedSampleNames() throws IOException {
+        Map<String, Object> metadata = Collections.singletonMap(
+                VariantExporter.HEADER, "##fileformat=VCFv4.1\n#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\n");
+        List<VariantSource> sources = Arrays.asList(
+                createTestVariantSource(FILE_1, Arrays.asList("shared", "file1_sample"), metadata),
+                createTestVariantSource(FILE_2, Arrays.asList("shared", "file2_sample"), metadata),
+                createTestVariantSource(FILE_3, Arrays.asList("shared", "file3_sample"), metadata));
+
+        VariantExporter variantExporter = new VariantExporter(true);
+        assertEquals(Collections.singleton("shared"), variantExporter.findConflictingSampleNames(sources));
+        variantExporter.createNonConflictingSampleNames(sources);
+        VCFHeader header = variantExporter.getMergedVcfHeader(sources);
+
+        // every file keeps its own column for the shared name
+        assertEquals(6, header.getNGenotypeSamples());
+        for (String file : Arrays.asList(FILE_1, FILE_2, FILE_3)) {
+            assertTrue(header.getGenotypeSamples().contains(file + "_shared"));
+        }
+    }
+
     @Test
     @UsingDataSet(locations = {
             "/db-dump/eva_hsapiens_grch37/files_2_0.json",
@@ -408,7 +445,88 @@ public class VariantExporterTest {
         assertTrue(samplesNumberCorrect);
     }
 
+    @Test
+    @UsingDataSet(locations = {
+            "/db-dump/eva_hsapiens_grch37/files_2_0.json",
+            "/db-dump/eva_hsapiens_grch37/variants_2_0.json"})
+    public void testExportInSeveralBatches() throws Exception {
+        List<String> studies = Arrays.asList("7", "8");
+        QueryParams query = new QueryParams();
+        query.setStudies(studies);
+        query.setRegion("20:61000-69000");
 
+        // a batch size smaller than the number of variants in the region forces several queries
+        VariantExporter variantExporter = new VariantExporter(true, 3);
+        variantExporter.getSources(variantSourceService, studies, Collections.emptyList());
+        List<VariantRepositoryFilter> filters = new FilterBuilder().getVariantEntityRepositoryFilters(query.getMaf(),
+                query.getPolyphenScore(), query.getSiftScore(), query.getStudies(), query.getConsequenceType());
+        List<VariantContext> exportedVariants = new ArrayList<>();
+        int failedVariants = variantExporter.export(variantService, filters, new Region(query.getRegion()),
+                                                    exportedVariants::add);
+
+        assertEquals(0, failedVariants);
+        assertTrue(exportedVariants.size() > 3);
+        checkExportedVariants(variantService, query, exportedVariants);
+    }
+
+    @Test
+    @UsingDataSet(locations = {
+            "/db-dump/eva_hsapiens_grch37/files_2_0.json",
+            "/db-dump/eva_hsapiens_grch37/variants_2_0.json"})
+    public void testExportVariantsWithTheSameStartInDifferentBatches() throws Exception {
+        List<String> studies = Collections.singletonList("8");
+        QueryParams query = new QueryParams();
+        query.setStudies(studies);
+        query.setRegion("20:64100-64200");
+
+        // there are two variants starting at 64139, and batches of one variant put them in different pages
+        VariantExporter variantExporter = new VariantExporter(true, 1);
+        variantExporter.getSources(variantSourceService, studies, Collections.emptyList());
+        List<VariantRepositoryFilter> filters = new FilterBuilder().getVariantEntityRepositoryFilters(query.getMaf(),
+                query.getPolyphenScore(), query.getSiftScore(), query.getStudies(), query.getConsequenceType());
+        List<VariantContext> exportedVariants = new ArrayList<>();
+        int failedVariants = variantExporter.export(variantService, filters, new Region(query.getRegion()),
+                                                    exportedVariants::add);
+
+        assertEquals(0, failedVariants);
+        assertEquals(2, exportedVariants.stream().filter(variant -> variant.getStart() == 64139).count());
+        checkExportedVariants(variantService, query, exportedVariants);
+    }
+
+    @Test
+    @UsingDataSet(locations = {
+            "/db-dump/eva_hsapiens_grch37/files_2_0.json",
+            "/db-dump/eva_hsapiens_grch37/variants_2_0.json"})
+    public void testExportIndelsWithoutFetchingAllFileAttributes() throws Exception {
+        List<String> studies = Collections.singletonList("8");
+        QueryParams query = new QueryParams();
+        query.setStudies(studies);
+        query.setRegion("20:60000-72000");
+
+        // the region has SNVs and indels in the same pages, and the indels need the 'src' attribute to be converted
+        VariantExporter variantExporter = new VariantExporter(true, 10);
+        variantExporter.getSources(variantSourceService, studies, Collections.emptyList());
+        List<VariantRepositoryFilter> filters = new FilterBuilder().getVariantEntityRepositoryFilters(query.getMaf(),
+                query.getPolyphenScore(), query.getSiftScore(), query.getStudies(), query.getConsequenceType());
+        List<VariantContext> exportedVariants = new ArrayList<>();
+        int failedVariants = variantExporter.export(variantService, filters, new Region(query.getRegion()),
+                                                    exportedVariants::add);
+
+        assertEquals(0, failedVariants);
+        assertTrue(exportedVariants.stream().anyMatch(variant -> variant.getReference().length() !=
+                variant.getAlternateAllele(0).length()));
+        checkExportedVariants(variantService, query, exportedVariants);
+    }
+
+    @Test
+    public void unusedFieldsAreNotFetched() {
+        List<String> excludedFields = VariantExporter.getExcludedFields(false);
+        assertTrue(excludedFields.contains(VariantExporter.STATISTICS_FIELD));
+        assertTrue(excludedFields.contains(VariantExporter.FILE_ATTRIBUTES_FIELD));
+        assertFalse(excludedFields.contains(VariantExporter.ANNOTATION_FIELD));
+
+        assertTrue(VariantExporter.getExcludedFields(true).contains(VariantExporter.ANNOTATION_FIELD));
+    }
 
     private List<VariantContext> exportAndCheck(VariantSourceService variantSourceService,
                                                 VariantWithSamplesAndAnnotationsService variantService,
@@ -489,12 +607,17 @@ public class VariantExporterTest {
     }
 
     private VariantSource createTestVariantSource(String fileId, List<String> sampleList) {
+        return createTestVariantSource(fileId, sampleList, null);
+    }
+
+    private VariantSource createTestVariantSource(String fileId, List<String> sampleList,
+                                                  Map<String, Object> metadata) {
         Map<String, Integer> samplesPosition = new HashMap<>();
         int index = sampleList.size();
         for (String s : sampleList) {
             samplesPosition.put(s, index++);
         }
         return new VariantSource(fileId, "name", "studyId", "studyName",
-                StudyType.AGGREGATE, null, null, samplesPosition, null, null);
+                StudyType.AGGREGATE, null, null, samplesPosition, metadata, null);
     }
 }
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump;
+
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.variantcontext.VariantContextBuilder;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+
+public class VariantOrderingBufferTest {
+
+    @Test
+    public void indelMovedBeforePreviousVariantIsReordered() {
+        List<VariantContext> output = new ArrayList<>();
+        VariantOrderingBuffer<VariantContext> buffer = new VariantOrderingBuffer<>(VariantContext::getStart,
+                                                                                   output::add);
+
+        // SNV at 1000 and an indel at 1000 whose context nucleotide makes it start at 999
+        addVariant(buffer, 1000, snv(1000, "A", "C"));
+        addVariant(buffer, 1000, indel(999, "GA", "G"));
+        addVariant(buffer, 1001, snv(1001, "T", "G"));
+        addVariant(buffer, 1500, snv(1500, "T", "G"));
+        buffer.flush();
+
+        assertEquals(Arrays.asList(999, 1000, 1001, 1500), getStarts(output));
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void variantsAreReleasedAsSoonAsTheyCanNotBePreceded() {
+        List<VariantContext> output = new ArrayList<>();
+        VariantOrderingBuffer<VariantContext> buffer = new VariantOrderingBuffer<>(VariantContext::getStart,
+                                                                                   output::add);
+
+        addVariant(buffer, 100, snv(100, "A", "C"));
+        addVariant(buffer, 101, snv(101, "A", "C"));
+        assertEquals(Arrays.asList(100), getStarts(output));
+        addVariant(buffer, 200, snv(200, "A", "C"));
+        assertEquals(Arrays.asList(100, 101), getStarts(output));
+        assertEquals(1, buffer.size());
+    }
+
+    @Test
+    public void variantsWithTheSameStartKeepTheirOrder() {
+        List<VariantContext> output = new ArrayList<>();
+        VariantOrderingBuffer<VariantContext> buffer = new VariantOrderingBuffer<>(VariantContext::getStart,
+                                                                                   output::add);
+
+        addVariant(buffer, 100, snv(100, "A", "C"));
+        addVariant(buffer, 100, snv(100, "A", "G"));
+        addVariant(buffer, 100, snv(100, "A", "T"));
+        buffer.flush();
+
+        List<String> alternates = output.stream().map(v -> v.getAlternateAllele(0).getBaseString())
+                                        .collect(Collectors.toList());
+        assertEquals(Arrays.asList("C", "G", "T"), alternates);
+    }
+
+    private void addVariant(VariantOrderingBuffer<VariantContext> buffer, long originalStart, VariantContext variant) {
+        buffer.advanceTo(originalStart);
+        buffer.add(variant);
+    }
+
+    private VariantContext snv(int start, String reference, String alternate) {
+        return new VariantContextBuilder().chr("1").start(start).stop(start).alleles(reference, alternate).make();
+    }
+
+    private VariantContext indel(int start, String reference, String alternate) {
+        return new VariantContextBuilder().chr("1").start(start).stop(start + reference.length() - 1)
+                                          .alleles(reference, alternate).make();
+    }
+
+    private List<Integer> getStarts(List<VariantContext> variants) {
+        return variants.stream().map(VariantContext::getStart).collect(Collectors.toList());
+    }
+}
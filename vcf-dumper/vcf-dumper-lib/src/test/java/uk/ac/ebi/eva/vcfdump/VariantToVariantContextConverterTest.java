@@ -47,6 +47,7 @@ import java.util.Set;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
@@ -415,6 +416,41 @@ public class VariantToVariantContextConverterTest {
         checkVariantContext(variantContext, CHR_1, 1000, 1000, "T", "G", variant.getSourceEntries(), true);
     }
 
+    @Test
+    public void genotypesInOutputSampleNamesOrder() {
+        // the variant is only present in the first study
+        VariantWithSamplesAndAnnotation variant = new VariantWithSamplesAndAnnotation(CHR_1, 1000, 1000, "T", "G",
+                                                                                      null);
+        List<String> source1SampleNames = Arrays.asList("SX_1", "SX_2");
+        VariantSource source1 = createTestVariantSource("study_1", "file_1", "testStudy1", "testFile1",
+                                                        source1SampleNames);
+        VariantSourceEntry entry1 = new VariantSourceEntry("file_1", "study_1", null, "GT");
+        addGenotypes(entry1, "0|1", "1/1");
+        variant.addSourceEntry(new VariantSourceEntryWithSampleNames(entry1, source1SampleNames));
+
+        List<String> source2SampleNames = Arrays.asList("SY_1", "SY_2");
+        VariantSource source2 = createTestVariantSource("study_2", "file_2", "testStudy2", "testFile2",
+                                                        source2SampleNames);
+
+        List<String> outputSampleNames = Arrays.asList("SY_2", "SX_2", "SY_1", "SX_1");
+        VariantToVariantContextConverter variantConverter = new VariantToVariantContextConverter(
+                Arrays.asList(source1, source2), noSampleNamesConflictSampleNameCorrections, outputSampleNames, true);
+        VariantContext variantContext = variantConverter.transform(variant);
+
+        List<Genotype> genotypes = new ArrayList<>(variantContext.getGenotypes());
+        assertEquals(outputSampleNames.size(), genotypes.size());
+        for (int column = 0; column < outputSampleNames.size(); column++) {
+            assertEquals(outputSampleNames.get(column), genotypes.get(column).getSampleName());
+        }
+        assertTrue(variantContext.getGenotype("SX_1").isHet());
+        assertTrue(variantContext.getGenotype("SX_1").isPhased());
+        assertTrue(variantContext.getGenotype("SX_2").isHomVar());
+        assertFalse(variantContext.getGenotype("SX_2").isPhased());
+        assertTrue(variantContext.getGenotype("SY_1").isNoCall());
+        assertEquals(2, variantContext.getGenotype("SY_1").getPloidy());
+        assertTrue(variantContext.getGenotype("SY_2").isNoCall());
+    }
+
 
     @Test
     public void csqAnnotation() {
@@ -532,6 +568,39 @@ public class VariantToVariantContextConverterTest {
         assertNull(csq);
     }
 
+    @Test
+    public void parseGenotypeCodes() {
+        checkGenotypeCode("0/1", false, 0, 1);
+        checkGenotypeCode("1|0", true, 1, 0);
+        checkGenotypeCode("1/1", false, 1, 1);
+        checkGenotypeCode("1", false, 1);
+        checkGenotypeCode("0/1/1", false, 0, 1, 1);
+        // no calls and alleles not present in the variant
+        checkGenotypeCode("./.", false, 2, 2);
+        checkGenotypeCode(".|1", true, 2, 1);
+        checkGenotypeCode("-1/0", false, 2, 0);
+        checkGenotypeCode("2/3", false, 2, 2);
+        checkGenotypeCode("10|0", true, 2, 0);
+        checkGenotypeCode("01/0", false, 1, 0);
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void parseInvalidGenotypeCode() {
+        VariantToVariantContextConverter.GenotypeCode.parse("0/a");
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void parseGenotypeCodeWithMissingAllele() {
+        VariantToVariantContextConverter.GenotypeCode.parse("0/");
+    }
+
+    private void checkGenotypeCode(String genotype, boolean phased, int... alleleIndexes) {
+        VariantToVariantContextConverter.GenotypeCode genotypeCode =
+                VariantToVariantContextConverter.GenotypeCode.parse(genotype);
+        assertEquals(phased, genotypeCode.isPhased());
+        assertArrayEquals(alleleIndexes, genotypeCode.getAlleleIndexes());
+    }
+
     private void checkVariantContext(VariantContext variantContext, String chromosome, int start, int end, String ref,
                                      String alt,
                                      Collection<VariantSourceEntryWithSampleNames> sourceEntries, boolean sampleNameConflicts) {
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump;
+
+import com.lordofthejars.nosqlunit.annotation.UsingDataSet;
+import com.lordofthejars.nosqlunit.mongodb.MongoDbRule;
+import htsjdk.variant.vcf.VCFHeader;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationContext;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import uk.ac.ebi.eva.commons.mongodb.entities.VariantSourceMongo;
+import uk.ac.ebi.eva.commons.mongodb.services.VariantSourceService;
+import uk.ac.ebi.eva.vcfdump.services.VariantDataVersionService;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.lordofthejars.nosqlunit.mongodb.MongoDbRule.MongoDbRuleBuilder.newMongoDbRule;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = {MongoRepositoryTestConfiguration.class})
+@UsingDataSet(locations = {"/db-dump/eva_hsapiens_grch37/files_2_0.json"})
+public class VcfHeaderCacheTest {
+
+    private static final String DB_NAME = "eva_hsapiens_grch37";
+
+    private static final List<String> STUDIES = Arrays.asList("7", "8");
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    @Rule
+    public MongoDbRule mongoDbRule = newMongoDbRule().defaultSpringMongoDb("test-db");
+
+    @Autowired
+    private MongoOperations mongoOperations;
+
+    @Autowired
+    private VariantSourceService variantSourceService;
+
+    private VcfHeaderCache headerCache;
+
+    private AtomicInteger loads;
+
+    @Before
+    public void setUp() {
+        headerCache = new VcfHeaderCache(new VariantDataVersionService(mongoOperations), 2);
+        loads = new AtomicInteger();
+    }
+
+    @Test
+    public void metadataIsPreparedOncePerStudySet() throws IOException {
+        VcfExportMetadata metadata = get(STUDIES, false);
+
+        assertSame(metadata, get(STUDIES, false));
+        assertSame(metadata, get(Arrays.asList("8", "7"), false));
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void exportsOfDifferentStudiesOrAnnotationsArePreparedSeparately() throws IOException {
+        get(STUDIES, false);
+        get(STUDIES, true);
+        get(Collections.singletonList("7"), false);
+
+        assertEquals(3, loads.get());
+    }
+
+    @Test
+    public void metadataIsPreparedAgainWhenAFileIsReloaded() throws IOException {
+        VcfExportMetadata metadata = get(STUDIES, false);
+
+        mongoOperations.updateFirst(new Query(Criteria.where("fid").is("5")), Update.update("date", new Date()),
+                                    mongoOperations.getCollectionName(VariantSourceMongo.class));
+
+        assertNotSame(metadata, get(STUDIES, false));
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void leastRecentlyUsedStudySetsAreDiscarded() throws IOException {
+        List<String> study7 = Collections.singletonList("7");
+        List<String> study8 = Collections.singletonList("8");
+        get(STUDIES, false);
+        get(study7, false);
+        get(STUDIES, false);
+        get(study8, false);
+        assertEquals(3, loads.get());
+
+        get(STUDIES, false);
+        assertEquals(3, loads.get());
+        get(study7, false);
+        assertEquals(4, loads.get());
+    }
+
+    @Test
+    public void everyExportGetsItsOwnCopyOfTheHeader() throws IOException {
+        VcfExportMetadata metadata = get(STUDIES, false);
+
+        VCFHeader header = metadata.getHeader();
+        assertNotSame(header, metadata.getHeader());
+        assertEquals(header.getGenotypeSamples(), metadata.getHeader().getGenotypeSamples());
+        assertEquals(metadata.getSampleNames(), header.getGenotypeSamples());
+        assertEquals(header.getMetaDataInInputOrder(), metadata.getHeader().getMetaDataInInputOrder());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void maxEntriesMustBePositive() {
+        new VcfHeaderCache(new VariantDataVersionService(mongoOperations), 0);
+    }
+
+    private VcfExportMetadata get(List<String> studies, boolean excludeAnnotations) throws IOException {
+        return headerCache.get(DB_NAME, studies, Collections.emptyList(), excludeAnnotations, () -> {
+            loads.incrementAndGet();
+            return new VariantExporter(excludeAnnotations).getExportMetadata(variantSourceService, studies,
+                                                                             Collections.emptyList());
+        });
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.bgzfutils;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class BgzfConcatenatorTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testConcatenateKeepsContentsInOrderAndOneEofBlock() throws IOException {
+        Path first = writeBgzf("first.vcf.gz", "#header\n");
+        Path second = writeBgzf("second.vcf.gz", "1\t100\n1\t200\n");
+        Path empty = writeBgzf("empty.vcf.gz", "");
+        Path third = writeBgzf("third.vcf.gz", "2\t50\n");
+        Path output = temporaryFolder.getRoot().toPath().resolve("output.vcf.gz");
+
+        BgzfConcatenator.concatenate(Arrays.asList(first, second, empty, third), output);
+
+        assertEquals("#header\n1\t100\n1\t200\n2\t50", readBgzf(output));
+        byte[] outputBytes = Files.readAllBytes(output);
+        byte[] eofBlock = BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK;
+        byte[] outputTail = Arrays.copyOfRange(outputBytes, outputBytes.length - eofBlock.length, outputBytes.length);
+        assertArrayEquals(eofBlock, outputTail);
+        long expectedSize = Files.size(first) + Files.size(second) + Files.size(third) - 2 * eofBlock.length;
+        assertEquals(expectedSize, outputBytes.length);
+    }
+
+    private Path writeBgzf(String fileName, String contents) throws IOException {
+        File file = temporaryFolder.newFile(fileName);
+        try (BlockCompressedOutputStream outputStream = new BlockCompressedOutputStream(file)) {
+            outputStream.write(contents.getBytes(StandardCharsets.UTF_8));
+        }
+        return file.toPath();
+    }
+
+    private String readBgzf(Path path) throws IOException {
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new BlockCompressedInputStream(path.toFile()), StandardCharsets.UTF_8))) {
+            return reader.lines().collect(Collectors.joining("\n"));
+        }
+    }
+}
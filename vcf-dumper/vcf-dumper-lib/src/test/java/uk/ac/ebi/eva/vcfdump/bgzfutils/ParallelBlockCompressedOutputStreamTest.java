@@ -0,0 +1,202 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.bgzfutils;
+
+import htsjdk.samtools.seekablestream.SeekableMemoryStream;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ParallelBlockCompressedOutputStreamTest {
+
+    @Test
+    public void testCompressedDataCanBeReadInOrder() throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (int i = 0; i < 50000; i++) {
+            data.write(("22\t" + (16050000 + i) + "\t.\tA\tG\t.\t.\t.\tGT\t0|1\t1|1\t0|0\n")
+                               .getBytes(StandardCharsets.UTF_8));
+        }
+        // random bytes can't be compressed, so some blocks will be stored as they are
+        byte[] randomBytes = new byte[3 * ParallelBlockCompressedOutputStream.BLOCK_SIZE];
+        new Random(42).nextBytes(randomBytes);
+        data.write(randomBytes);
+        byte[] uncompressed = data.toByteArray();
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (ParallelBlockCompressedOutputStream outputStream = new ParallelBlockCompressedOutputStream(compressed, 6,
+                                                                                                         3)) {
+            // write in pieces that don't match the block size
+            int offset = 0;
+            while (offset < uncompressed.length) {
+                int length = Math.min(1000, uncompressed.length - offset);
+                outputStream.write(uncompressed, offset, length);
+                offset += length;
+            }
+        }
+
+        byte[] compressedBytes = compressed.toByteArray();
+        assertArrayEquals(uncompressed, readBgzf(compressedBytes));
+        assertTrue(compressedBytes.length < uncompressed.length);
+        assertEndsWithEofBlock(compressedBytes);
+    }
+
+    @Test
+    public void testFlushWritesTheDataInAPartialBlock() throws IOException {
+        byte[] header = "##fileformat=VCFv4.2\n".getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        ParallelBlockCompressedOutputStream outputStream = new ParallelBlockCompressedOutputStream(compressed, -1, 2);
+        outputStream.write(header);
+        outputStream.flush();
+
+        byte[] flushedBytes = compressed.toByteArray();
+        assertTrue(flushedBytes.length > 0);
+        assertArrayEquals(header, readBgzf(flushedBytes));
+
+        outputStream.close();
+        assertEndsWithEofBlock(compressed.toByteArray());
+    }
+
+    @Test
+    public void testFilePointersPointToTheLinesWritten() throws IOException {
+        List<String> lines = new ArrayList<>();
+        List<Long> filePointers = new ArrayList<>();
+        long[] endFilePointer = {-1};
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (ParallelBlockCompressedOutputStream outputStream = new ParallelBlockCompressedOutputStream(compressed, -1,
+                                                                                                         3)) {
+            for (int i = 0; i < 20000; i++) {
+                String line = "22\t" + (16050000 + i) + "\t.\tA\tG\t.\t.\t.";
+                lines.add(line);
+                outputStream.onNextFilePointer(filePointers::add);
+                outputStream.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            outputStream.onNextFilePointer(filePointer -> endFilePointer[0] = filePointer);
+        }
+
+        assertEquals(lines.size(), filePointers.size());
+        assertTrue(endFilePointer[0] > filePointers.get(filePointers.size() - 1));
+        try (BlockCompressedInputStream inputStream = new BlockCompressedInputStream(
+                new SeekableMemoryStream(compressed.toByteArray(), "compressed"))) {
+            for (int i = 0; i < lines.size(); i += 997) {
+                inputStream.seek(filePointers.get(i));
+                assertEquals(lines.get(i), inputStream.readLine());
+            }
+        }
+    }
+
+    @Test
+    public void testStreamsShareTheCompressionExecutor() throws IOException {
+        ExecutorService compressionExecutor = Executors.newFixedThreadPool(2);
+        try {
+            for (int stream = 0; stream < 3; stream++) {
+                byte[] uncompressed = new byte[5 * ParallelBlockCompressedOutputStream.BLOCK_SIZE];
+                Arrays.fill(uncompressed, (byte) ('A' + stream));
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                try (ParallelBlockCompressedOutputStream outputStream = new ParallelBlockCompressedOutputStream(
+                        compressed, -1, compressionExecutor, 2)) {
+                    outputStream.write(uncompressed);
+                }
+
+                // closing a stream doesn't shut down the shared executor
+                assertFalse(compressionExecutor.isShutdown());
+                assertArrayEquals(uncompressed, readBgzf(compressed.toByteArray()));
+            }
+        } finally {
+            compressionExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testEmptyStreamIsJustTheEofBlock() throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        new ParallelBlockCompressedOutputStream(compressed, -1, 1).close();
+        assertArrayEquals(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK, compressed.toByteArray());
+    }
+
+    @Test
+    public void testUnderlyingStreamIsClosedEvenIfTheEofBlockCantBeWritten() {
+        AtomicBoolean underlyingStreamClosed = new AtomicBoolean();
+        OutputStream failingStream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("Disk full");
+            }
+
+            @Override
+            public void close() throws IOException {
+                underlyingStreamClosed.set(true);
+                throw new IOException("Can't close");
+            }
+        };
+
+        try {
+            new ParallelBlockCompressedOutputStream(failingStream, -1, 1).close();
+            fail("The stream shouldn't be closed without writing the EOF block");
+        } catch (IOException e) {
+            assertEquals("Disk full", e.getMessage());
+            assertEquals("Can't close", e.getSuppressed()[0].getMessage());
+        }
+        assertTrue(underlyingStreamClosed.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCompressionLevel() {
+        new ParallelBlockCompressedOutputStream(new ByteArrayOutputStream(), 10, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidThreads() {
+        new ParallelBlockCompressedOutputStream(new ByteArrayOutputStream(), -1, 0);
+    }
+
+    private byte[] readBgzf(byte[] compressedBytes) throws IOException {
+        ByteArrayOutputStream uncompressed = new ByteArrayOutputStream();
+        try (InputStream inputStream = new BlockCompressedInputStream(new ByteArrayInputStream(compressedBytes))) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                uncompressed.write(buffer, 0, read);
+            }
+        }
+        return uncompressed.toByteArray();
+    }
+
+    private void assertEndsWithEofBlock(byte[] compressedBytes) {
+        byte[] eofBlock = BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK;
+        assertArrayEquals(eofBlock, Arrays.copyOfRange(compressedBytes, compressedBytes.length - eofBlock.length,
+                                                       compressedBytes.length));
+    }
+}
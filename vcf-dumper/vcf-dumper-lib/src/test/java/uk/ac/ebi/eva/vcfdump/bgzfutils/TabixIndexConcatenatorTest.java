@@ -0,0 +1,117 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.bgzfutils;
+
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.tribble.SimpleFeature;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.tribble.index.tabix.TabixIndexCreator;
+import htsjdk.tribble.readers.TabixReader;
+import htsjdk.tribble.util.LittleEndianOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class TabixIndexConcatenatorTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testJoinedIndexFindsTheLinesOfEverySegment() throws IOException {
+        Path header = writeIndexedSegment("header.vcf.gz", Collections.emptyList(),
+                                          "##fileformat=VCFv4.2\n#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\n");
+        List<String> firstLines = getLines("1", 100000, 3000);
+        Path first = writeIndexedSegment("first.vcf.gz", firstLines, "");
+        List<String> secondLines = getLines("2", 500, 2000);
+        Path second = writeIndexedSegment("second.vcf.gz", secondLines, "");
+        List<Path> segments = Arrays.asList(header, first, second);
+        Path output = temporaryFolder.getRoot().toPath().resolve("output.vcf.gz");
+
+        List<Long> segmentOffsets = BgzfConcatenator.concatenate(segments, output);
+        List<Path> segmentIndexes = new ArrayList<>();
+        for (Path segment : segments) {
+            segmentIndexes.add(getIndexPath(segment));
+        }
+        TabixIndexConcatenator.concatenate(segmentIndexes, segmentOffsets, getIndexPath(output));
+
+        TabixReader reader = new TabixReader(output.toString());
+        assertEquals(firstLines.subList(1000, 1011), query(reader, "1:110000-110100"));
+        assertEquals(secondLines.subList(0, 3), query(reader, "2:1-520"));
+        assertEquals(secondLines.subList(1980, 2000), query(reader, "2:20300-30000"));
+        assertEquals(Collections.emptyList(), query(reader, "3:1-1000"));
+        reader.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEverySegmentIndexNeedsItsOffset() throws IOException {
+        Path segment = writeIndexedSegment("segment.vcf.gz", getLines("1", 100, 10), "");
+        TabixIndexConcatenator.concatenate(Collections.singletonList(getIndexPath(segment)),
+                                           Collections.emptyList(),
+                                           temporaryFolder.getRoot().toPath().resolve("output.vcf.gz.tbi"));
+    }
+
+    private List<String> getLines(String chromosome, int firstPosition, int count) {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            lines.add(chromosome + "\t" + (firstPosition + i * 10) + "\t.\tA\tG\t.\t.\t.");
+        }
+        return lines;
+    }
+
+    private Path writeIndexedSegment(String fileName, List<String> lines, String header) throws IOException {
+        Path segment = temporaryFolder.getRoot().toPath().resolve(fileName);
+        TabixIndexCreator indexCreator = new TabixIndexCreator(TabixFormat.VCF);
+        try (BlockCompressedOutputStream outputStream = new BlockCompressedOutputStream(segment.toFile())) {
+            outputStream.write(header.getBytes(StandardCharsets.UTF_8));
+            for (String line : lines) {
+                String[] fields = line.split("\t");
+                int start = Integer.parseInt(fields[1]);
+                indexCreator.addFeature(new SimpleFeature(fields[0], start, start), outputStream.getFilePointer());
+                outputStream.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            try (LittleEndianOutputStream indexOutputStream = new LittleEndianOutputStream(
+                    new BlockCompressedOutputStream(getIndexPath(segment).toFile()))) {
+                indexCreator.finalizeIndex(outputStream.getFilePointer()).write(indexOutputStream);
+            }
+        }
+        return segment;
+    }
+
+    private Path getIndexPath(Path vcfPath) {
+        return vcfPath.resolveSibling(vcfPath.getFileName() + ".tbi");
+    }
+
+    private List<String> query(TabixReader reader, String region) throws IOException {
+        List<String> lines = new ArrayList<>();
+        TabixReader.Iterator iterator = reader.query(region);
+        String line;
+        while (iterator != null && (line = iterator.next()) != null) {
+            lines.add(line);
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.configuration;
+
+import org.junit.Test;
+
+import uk.ac.ebi.eva.vcfdump.VcfHeaderCache;
+import uk.ac.ebi.eva.vcfdump.services.ChromosomeService;
+
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EvaPropertiesTest {
+
+    @Test
+    public void missingAndBlankPropertiesTakeTheDefaultValue() {
+        Properties properties = new Properties();
+        properties.setProperty("eva.blank", "  ");
+        EvaProperties evaProperties = new EvaProperties(properties);
+
+        assertEquals(3, evaProperties.getInt("eva.missing", 3));
+        assertEquals(3L, evaProperties.getLong("eva.blank", 3L));
+        assertTrue(evaProperties.getBoolean("eva.blank", true));
+        assertNull(evaProperties.getString("eva.blank", null));
+        assertEquals(VcfHeaderCache.DEFAULT_SIZE, evaProperties.getHeaderCacheSize());
+        assertEquals(ChromosomeService.DEFAULT_TIME_TO_LIVE_SECONDS, evaProperties.getChromosomesTimeToLive());
+    }
+
+    @Test
+    public void valuesAreTrimmed() {
+        Properties properties = new Properties();
+        properties.setProperty("eva.number", " 42 ");
+        properties.setProperty("eva.flag", "false ");
+        properties.setProperty(VcfHeaderCache.SIZE_PROPERTY, "7");
+        EvaProperties evaProperties = new EvaProperties(properties);
+
+        assertEquals(42, evaProperties.getInt("eva.number", 0));
+        assertEquals(42L, evaProperties.getLong("eva.number", 0));
+        assertFalse(evaProperties.getBoolean("eva.flag", true));
+        assertEquals(7, evaProperties.getHeaderCacheSize());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidNumbersAreRejected() {
+        Properties properties = new Properties();
+        properties.setProperty("eva.number", "many");
+        new EvaProperties(properties).getInt("eva.number", 0);
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.filter;
+
+import com.lordofthejars.nosqlunit.annotation.UsingDataSet;
+import com.lordofthejars.nosqlunit.mongodb.MongoDbRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationContext;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import uk.ac.ebi.eva.commons.core.models.Region;
+import uk.ac.ebi.eva.commons.core.models.ws.VariantWithSamplesAndAnnotation;
+import uk.ac.ebi.eva.commons.mongodb.filter.RelationalOperator;
+import uk.ac.ebi.eva.commons.mongodb.filter.VariantRepositoryFilter;
+import uk.ac.ebi.eva.commons.mongodb.services.VariantWithSamplesAndAnnotationsService;
+import uk.ac.ebi.eva.vcfdump.InvalidQueryException;
+import uk.ac.ebi.eva.vcfdump.MongoRepositoryTestConfiguration;
+import uk.ac.ebi.eva.vcfdump.QueryParams;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.lordofthejars.nosqlunit.mongodb.MongoDbRule.MongoDbRuleBuilder.newMongoDbRule;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = {MongoRepositoryTestConfiguration.class})
+@UsingDataSet(locations = {
+        "/db-dump/eva_hsapiens_grch37/files_2_0.json",
+        "/db-dump/eva_hsapiens_grch37/variants_2_0.json"})
+public class ExportFilterBuilderTest {
+
+    private static final List<Region> REGIONS = Collections.singletonList(new Region("22", 16050075L, 16110950L));
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    @Rule
+    public MongoDbRule mongoDbRule = newMongoDbRule().defaultSpringMongoDb("test-db");
+
+    @Autowired
+    private VariantWithSamplesAndAnnotationsService variantService;
+
+    @Test
+    public void variantsAreFilteredByReferenceAllele() throws Exception {
+        QueryParams query = createQuery();
+        query.setReference("g");
+        List<VariantWithSamplesAndAnnotation> variants = findVariants(query);
+
+        assertFalse(variants.isEmpty());
+        assertTrue(variants.stream().allMatch(variant -> variant.getReference().equals("G")));
+        assertTrue(variants.size() < countVariants(createQuery()));
+    }
+
+    @Test
+    public void variantsAreFilteredByAnyOfSeveralAlternateAlleles() throws Exception {
+        QueryParams query = createQuery();
+        query.setAlternate("A,-");
+        List<VariantWithSamplesAndAnnotation> variants = findVariants(query);
+
+        assertTrue(variants.stream().anyMatch(variant -> variant.getAlternate().equals("A")));
+        assertTrue(variants.stream().anyMatch(variant -> variant.getAlternate().isEmpty()));
+        assertTrue(variants.stream().allMatch(variant -> variant.getAlternate().equals("A")
+                || variant.getAlternate().isEmpty()));
+    }
+
+    @Test
+    public void variantsAreFilteredByMissingAllelesAndGenotypes() throws Exception {
+        // none of the variants in the test data have missing alleles or genotypes
+        long allVariants = countVariants(createQuery());
+
+        QueryParams query = createQuery();
+        query.setMissingAlleles("0");
+        query.setMissingGenotypes("<=1");
+        assertEquals(allVariants, countVariants(query));
+
+        query.setMissingAlleles(">0");
+        assertEquals(0, countVariants(query));
+
+        query = createQuery();
+        query.setMissingGenotypes(">= 1");
+        assertEquals(0, countVariants(query));
+    }
+
+    @Test
+    public void missingCountsAreOnlyComparedInTheCohortsOfTheRequestedStudies() {
+        // the test data have no missing alleles, so an equality to 0 matches wherever the study has statistics
+        VariantRepositoryFilter inStudy = VariantRepositoryMissingCountFilter.missingAlleles(
+                0, RelationalOperator.EQ, Collections.singletonList("7"));
+        VariantRepositoryFilter inOtherStudy = VariantRepositoryMissingCountFilter.missingAlleles(
+                0, RelationalOperator.EQ, Collections.singletonList("not-a-study"));
+
+        assertTrue(variantService.countByRegionsAndComplexFilters(REGIONS, Collections.singletonList(inStudy)) > 0);
+        assertEquals(0, variantService.countByRegionsAndComplexFilters(REGIONS,
+                                                                       Collections.singletonList(inOtherStudy)));
+    }
+
+    @Test
+    public void onlyTheFiltersInTheQueryAreAdded() {
+        QueryParams query = createQuery();
+        int studyFilters = new ExportFilterBuilder().getVariantEntityRepositoryFilters(query).size();
+        assertTrue(ExportFilterBuilder.hasOnlyStudiesFilter(query));
+
+        query.setReference("A");
+        query.setMissingGenotypes("0");
+        assertEquals(studyFilters + 2, new ExportFilterBuilder().getVariantEntityRepositoryFilters(query).size());
+        assertFalse(ExportFilterBuilder.hasOnlyStudiesFilter(query));
+    }
+
+    @Test
+    public void relationsAreParsed() {
+        assertEquals(RelationalOperator.EQ, ExportFilterBuilder.parseOperator("2"));
+        assertEquals(RelationalOperator.EQ, ExportFilterBuilder.parseOperator("=2"));
+        assertEquals(RelationalOperator.LT, ExportFilterBuilder.parseOperator("<2"));
+        assertEquals(RelationalOperator.LTE, ExportFilterBuilder.parseOperator(" <=2"));
+        assertEquals(RelationalOperator.GT, ExportFilterBuilder.parseOperator(">2"));
+        assertEquals(RelationalOperator.GTE, ExportFilterBuilder.parseOperator(">=2"));
+        assertEquals(Integer.valueOf(2), ExportFilterBuilder.parseCount("miss_gts", ">= 2"));
+        assertEquals(Arrays.asList("A", "", "TC"), ExportFilterBuilder.parseAlleles("A, -,tc,a"));
+    }
+
+    @Test(expected = InvalidQueryException.class)
+    public void invalidMissingCountIsRejected() {
+        QueryParams query = createQuery();
+        query.setMissingAlleles("<=a few");
+        new ExportFilterBuilder().getVariantEntityRepositoryFilters(query);
+    }
+
+    @Test(expected = InvalidQueryException.class)
+    public void invalidMissingCountIsRejectedBeforeBuildingTheFilters() {
+        QueryParams query = createQuery();
+        query.setMissingGenotypes(">one");
+        ExportFilterBuilder.validate(query);
+    }
+
+    private QueryParams createQuery() {
+        QueryParams query = new QueryParams();
+        query.setStudies(Arrays.asList("7", "8"));
+        return query;
+    }
+
+    private List<VariantWithSamplesAndAnnotation> findVariants(QueryParams query) throws Exception {
+        List<VariantRepositoryFilter> filters = new ExportFilterBuilder().getVariantEntityRepositoryFilters(query);
+        return variantService.findByRegionsAndComplexFilters(REGIONS, filters, null, Collections.emptyList(),
+                                                             new PageRequest(0, 1000));
+    }
+
+    private long countVariants(QueryParams query) {
+        List<VariantRepositoryFilter> filters = new ExportFilterBuilder().getVariantEntityRepositoryFilters(query);
+        return variantService.countByRegionsAndComplexFilters(REGIONS, filters);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.metrics;
+
+import io.micrometer.core.instrument.LongTaskTimer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ExportMetricsTest {
+
+    private SimpleMeterRegistry registry;
+
+    private ExportMetrics exportMetrics;
+
+    @Before
+    public void setUp() {
+        registry = new SimpleMeterRegistry();
+        exportMetrics = new ExportMetrics(registry);
+    }
+
+    @Test
+    public void variantsAreCountedByStage() {
+        exportMetrics.countFetchedVariants(3);
+        exportMetrics.recordConvertedVariant(TimeUnit.MILLISECONDS.toNanos(1));
+        exportMetrics.recordConvertedVariant(TimeUnit.MILLISECONDS.toNanos(3));
+        exportMetrics.countFailedVariant();
+
+        assertEquals(3, registry.get(ExportMetrics.VARIANTS).tag("stage", "fetched").counter().count(), 0);
+        assertEquals(2, registry.get(ExportMetrics.VARIANTS).tag("stage", "converted").counter().count(), 0);
+        assertEquals(1, registry.get(ExportMetrics.VARIANTS).tag("stage", "failed").counter().count(), 0);
+        assertEquals(2, registry.get(ExportMetrics.CONVERSION).timer().count());
+        assertEquals(4, registry.get(ExportMetrics.CONVERSION).timer().totalTime(TimeUnit.MILLISECONDS), 0);
+    }
+
+    @Test
+    public void queriesAreTimedByType() {
+        exportMetrics.recordVariantQuery(TimeUnit.MILLISECONDS.toNanos(10));
+        exportMetrics.recordIndelQuery(TimeUnit.MILLISECONDS.toNanos(5));
+
+        assertEquals(1, registry.get(ExportMetrics.QUERIES).tag("query", "variants").timer().count());
+        assertEquals(1, registry.get(ExportMetrics.QUERIES).tag("query", "indels").timer().count());
+        assertEquals(10, registry.get(ExportMetrics.QUERIES).tag("query", "variants").timer()
+                                 .totalTime(TimeUnit.MILLISECONDS), 0);
+    }
+
+    @Test
+    public void meteredStreamsWriteAndCountAllTheBytes() throws IOException {
+        ByteArrayOutputStream destination = new ByteArrayOutputStream();
+        byte[] line = "22\t16050075\t.\tA\tG\t.\t.\t.\n".getBytes();
+        try (OutputStream outputStream = exportMetrics.countVcfBytes(destination)) {
+            outputStream.write(line);
+            outputStream.write('\n');
+        }
+
+        byte[] expected = new byte[line.length + 1];
+        System.arraycopy(line, 0, expected, 0, line.length);
+        expected[line.length] = '\n';
+        assertArrayEquals(expected, destination.toByteArray());
+        assertEquals(line.length + 1,
+                     registry.get(ExportMetrics.WRITTEN_BYTES).tag("stream", "vcf").counter().count(), 0);
+        assertEquals(0, registry.get(ExportMetrics.WRITTEN_BYTES).tag("stream", "compressed").counter().count(), 0);
+    }
+
+    @Test
+    public void streamingRequestsAreInFlightUntilStopped() {
+        LongTaskTimer.Sample streaming = exportMetrics.startStreaming("segments");
+        LongTaskTimer streamingRequests = registry.get(ExportMetrics.STREAMING_REQUESTS).tag("endpoint", "segments")
+                                                  .longTaskTimer();
+        assertEquals(1, streamingRequests.activeTasks());
+
+        streaming.stop();
+        assertEquals(0, streamingRequests.activeTasks());
+    }
+
+    @Test
+    public void theReportContainsTheMetersOfTheExport() {
+        exportMetrics.countFetchedVariants(2);
+        registry.counter("other.meter").increment();
+
+        String report = MetricsJsonReport.toJson(registry, ExportMetrics.PREFIX, 1.5);
+
+        assertTrue(report.contains("\"durationSeconds\": 1.5"));
+        assertTrue(report.contains("{\"name\": \"vcf.export.variants\", \"tags\": {\"stage\": \"fetched\"}, " +
+                                           "\"type\": \"counter\", \"measurements\": {\"count\": 2.0}}"));
+        assertTrue(report.contains("\"name\": \"vcf.export.header.build\""));
+        assertFalse(report.contains("other.meter"));
+    }
+}
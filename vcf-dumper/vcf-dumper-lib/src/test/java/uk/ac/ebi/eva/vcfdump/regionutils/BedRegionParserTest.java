@@ -0,0 +1,63 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.regionutils;
+
+import org.junit.Test;
+
+import uk.ac.ebi.eva.commons.core.models.Region;
+import uk.ac.ebi.eva.vcfdump.InvalidQueryException;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class BedRegionParserTest {
+
+    @Test
+    public void bedCoordinatesAreConvertedToRegions() throws IOException {
+        String bed = "track name=panel\n" +
+                "# a comment\n" +
+                "22\t16050074\t16050100\tGENE1\t0\t+\n" +
+                "\n" +
+                "20 59999  60000\n";
+        List<Region> regions = new BedRegionParser(0).parse(new StringReader(bed));
+        assertEquals(Arrays.asList(new Region("22", 16050075L, 16050100L), new Region("20", 60000L, 60000L)),
+                     regions);
+    }
+
+    @Test(expected = InvalidQueryException.class)
+    public void linesWithoutEndAreRejected() throws IOException {
+        new BedRegionParser(0).parse(new StringReader("22\t16050074\n"));
+    }
+
+    @Test(expected = InvalidQueryException.class)
+    public void emptyRegionsAreRejected() throws IOException {
+        new BedRegionParser(0).parse(new StringReader("22\t16050074\t16050074\n"));
+    }
+
+    @Test(expected = InvalidQueryException.class)
+    public void invalidCoordinatesAreRejected() throws IOException {
+        new BedRegionParser(0).parse(new StringReader("22\tstart\t16050074\n"));
+    }
+
+    @Test(expected = InvalidQueryException.class)
+    public void listsWithTooManyRegionsAreRejected() throws IOException {
+        new BedRegionParser(2).parse(new StringReader("22\t0\t10\n22\t20\t30\n22\t40\t50\n"));
+    }
+}
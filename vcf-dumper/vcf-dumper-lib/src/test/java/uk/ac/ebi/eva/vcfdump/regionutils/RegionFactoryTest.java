@@ -26,17 +26,23 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationContext;
+import org.springframework.data.mongodb.core.MongoOperations;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
 import uk.ac.ebi.eva.commons.core.models.Region;
+import uk.ac.ebi.eva.commons.mongodb.filter.FilterBuilder;
+import uk.ac.ebi.eva.commons.mongodb.filter.VariantRepositoryFilter;
 import uk.ac.ebi.eva.commons.mongodb.services.VariantWithSamplesAndAnnotationsService;
 import uk.ac.ebi.eva.vcfdump.MongoRepositoryTestConfiguration;
 import uk.ac.ebi.eva.vcfdump.QueryParams;
+import uk.ac.ebi.eva.vcfdump.services.ChromosomeExtentService;
+import uk.ac.ebi.eva.vcfdump.services.VariantCoordinatesService;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import static com.lordofthejars.nosqlunit.mongodb.MongoDbRule.MongoDbRuleBuilder.newMongoDbRule;
@@ -59,6 +65,9 @@ public class RegionFactoryTest {
     @Autowired
     private VariantWithSamplesAndAnnotationsService variantService;
 
+    @Autowired
+    private MongoOperations mongoOperations;
+
     // this is used for getting just one big region in 'full chromosome' tests
     private static final int BIG_WINDOW_SIZE = 100000000;
 
@@ -77,16 +86,16 @@ public class RegionFactoryTest {
         RegionFactory regionFactory = new RegionFactory(1000, variantService);
 
         // chromosome that are in region list
-        List<Region> chunks = regionFactory.getRegionsForChromosome("1", query);
+        List<Region> chunks = regionFactory.getRegionsForChromosome("1", query, getFilters(query));
         assertEquals(2, chunks.size());
         assertTrue(chunks.contains(new Region("1:500-1499")));
         assertTrue(chunks.contains(new Region("1:1500-2499")));
-        chunks = regionFactory.getRegionsForChromosome("2", query);
+        chunks = regionFactory.getRegionsForChromosome("2", query, getFilters(query));
         assertEquals(1, chunks.size());
         assertTrue(chunks.contains(new Region("2:100-300")));
 
         // chromosome that are not in region list
-        chunks = regionFactory.getRegionsForChromosome("22", query);
+        chunks = regionFactory.getRegionsForChromosome("22", query, getFilters(query));
         assertEquals(0, chunks.size());
     }
 
@@ -128,6 +137,175 @@ public class RegionFactoryTest {
         assertTrue(regions.size() == 0);
     }
 
+    @Test
+    public void getRegionsForChromosomeByVariantDensity() throws Exception {
+        QueryParams query = new QueryParams();
+        query.setRegion("22");
+        query.setStudies(Arrays.asList("7", "8"));
+        int targetVariantsPerWindow = 2;
+        RegionFactory regionFactory = new RegionFactory(1000, variantService, targetVariantsPerWindow);
+        VariantCoordinatesService variantCoordinatesService = new VariantCoordinatesService(mongoOperations);
+        regionFactory.setVariantCoordinatesService(variantCoordinatesService);
+        List<VariantRepositoryFilter> filters = getFilters(query);
+        List<Region> regions = regionFactory.getRegionsForChromosome("22", query, filters);
+
+        long variantsInRegions = 0;
+        Region previousRegion = null;
+        for (Region region : regions) {
+            long variantsInRegion = variantCoordinatesService.countVariants("22", region.getStart(), region.getEnd(),
+                                                                            filters);
+            // empty regions are skipped, and regions are split until they are small enough, but not below 1000 bases
+            assertTrue(variantsInRegion > 0);
+            assertTrue(variantsInRegion <= targetVariantsPerWindow || region.getEnd() - region.getStart() < 2000);
+            assertTrue(region.getEnd() - region.getStart() >= 999);
+            if (previousRegion != null) {
+                assertTrue(previousRegion.getEnd() < region.getStart());
+            }
+            previousRegion = region;
+            variantsInRegions += variantsInRegion;
+        }
+        // every variant is counted only in the region where it starts
+        assertEquals(753, variantsInRegions);
+        assertTrue(regions.size() <= new RegionFactory(1000, variantService).getRegionsForChromosome("22", query,
+                                                                                                     filters).size());
+    }
+
+    @Test
+    public void getRegionsForChromosomeByVariantDensitySkippingEmptyWindows() throws Exception {
+        // the variants of the chromosome are between 16050075 and 16110950
+        QueryParams query = new QueryParams();
+        query.setRegion("22:16000000-16199999");
+        query.setStudies(Arrays.asList("7", "8"));
+        RegionFactory regionFactory = new RegionFactory(1000, variantService, 100);
+        VariantCoordinatesService variantCoordinatesService = new VariantCoordinatesService(mongoOperations);
+        regionFactory.setVariantCoordinatesService(variantCoordinatesService);
+        List<VariantRepositoryFilter> filters = getFilters(query);
+        List<Region> regions = regionFactory.getRegionsForChromosome("22", query, filters);
+
+        long variantsInRegions = 0;
+        for (Region region : regions) {
+            long variantsInRegion = variantCoordinatesService.countVariants("22", region.getStart(), region.getEnd(),
+                                                                            filters);
+            assertTrue(variantsInRegion > 0);
+            assertTrue(region.getEnd() >= 16050075L);
+            assertTrue(region.getStart() <= 16110950L);
+            variantsInRegions += variantsInRegion;
+        }
+        assertEquals(753, variantsInRegions);
+        assertTrue(regions.size() < regionFactory.divideRegionInChunks("22", 16000000L, 16199999L).size());
+    }
+
+    @Test
+    public void getRegionsForChromosomeByVariantDensityWithoutCoordinatesService() throws Exception {
+        QueryParams query = new QueryParams();
+        query.setRegion("22:16050000-16052999");
+        query.setStudies(Arrays.asList("7", "8"));
+        RegionFactory regionFactory = new RegionFactory(1000, variantService, 2);
+
+        // the variants can't be counted, so the region is divided in fixed windows
+        assertEquals(Arrays.asList(new Region("22", 16050000L, 16050999L), new Region("22", 16051000L, 16051999L),
+                                   new Region("22", 16052000L, 16052999L)),
+                     regionFactory.getRegionsForChromosome("22", query, getFilters(query)));
+    }
+
+    @Test
+    public void getRegionsForChromosomeSkippingEmptyWindows() throws Exception {
+        QueryParams query = new QueryParams();
+        query.setRegion("22");
+        query.setStudies(Arrays.asList("7", "8"));
+        // the chromosome has fewer variants than windows of 10 bases, so it is sparse
+        RegionFactory regionFactory = new RegionFactory(10, variantService);
+        List<Region> allWindows = regionFactory.getRegionsForChromosome("22", query, getFilters(query));
+        regionFactory.setVariantCoordinatesService(new VariantCoordinatesService(mongoOperations));
+        regionFactory.setChromosomeExtentService(new ChromosomeExtentService(mongoOperations),
+                                                 "eva_hsapiens_grch37");
+        List<Region> nonEmptyWindows = regionFactory.getRegionsForChromosome("22", query, getFilters(query));
+
+        List<VariantRepositoryFilter> filters = getFilters(query);
+        assertTrue(nonEmptyWindows.size() < allWindows.size());
+        assertEquals(new Long(16050075L), nonEmptyWindows.get(0).getStart());
+        long previousEnd = 0;
+        for (Region region : nonEmptyWindows) {
+            assertTrue(region.getEnd() - region.getStart() < 10);
+            assertTrue(region.getStart() > previousEnd);
+            assertTrue(variantService.countByRegionsAndComplexFilters(Collections.singletonList(region),
+                                                                      filters) > 0);
+            previousEnd = region.getEnd();
+        }
+        assertEquals(new Long(16110950L), nonEmptyWindows.get(nonEmptyWindows.size() - 1).getEnd());
+    }
+
+    @Test
+    public void emptyWindowsOfDenseChromosomesAreNotSkipped() throws Exception {
+        QueryParams query = new QueryParams();
+        query.setRegion("22");
+        query.setStudies(Arrays.asList("7", "8"));
+        RegionFactory regionFactory = new RegionFactory(1000, variantService);
+        List<Region> allWindows = regionFactory.getRegionsForChromosome("22", query, getFilters(query));
+        regionFactory.setVariantCoordinatesService(new VariantCoordinatesService(mongoOperations));
+        regionFactory.setChromosomeExtentService(new ChromosomeExtentService(mongoOperations),
+                                                 "eva_hsapiens_grch37");
+
+        // there are several variants per window of 1000 bases, so looking for the empty ones isn't worth a query each
+        assertEquals(allWindows, regionFactory.getRegionsForChromosome("22", query, getFilters(query)));
+    }
+
+    @Test
+    public void divideRegionInBalancedBlocks() throws Exception {
+        List<String> studies = Arrays.asList("7", "8");
+        int targetVariantsPerBlock = 100;
+        RegionFactory regionFactory = new RegionFactory(1000, variantService);
+        VariantCoordinatesService variantCoordinatesService = new VariantCoordinatesService(mongoOperations);
+        regionFactory.setVariantCoordinatesService(variantCoordinatesService);
+        List<Region> blocks = regionFactory.divideRegionInBalancedBlocks("22", 16000000, 16200000, studies,
+                                                                         targetVariantsPerBlock);
+
+        // the 753 variants of the chromosome don't fit in less than 8 blocks, and the blocks cover the whole region
+        assertTrue(blocks.size() >= 8);
+        assertEquals(new Long(16000000L), blocks.get(0).getStart());
+        assertEquals(new Long(16200000L), blocks.get(blocks.size() - 1).getEnd());
+        long variants = 0;
+        long previousEnd = 16000000L - 1;
+        for (Region block : blocks) {
+            assertEquals(previousEnd + 1, (long) block.getStart());
+            long variantsInBlock = variantCoordinatesService.countVariantsByBin("22", block.getStart(),
+                                                                                block.getEnd(), 1, studies)
+                                                            .values().stream().mapToLong(Long::longValue).sum();
+            assertTrue(variantsInBlock <= targetVariantsPerBlock);
+            variants += variantsInBlock;
+            previousEnd = block.getEnd();
+        }
+        assertEquals(753, variants);
+    }
+
+    @Test
+    public void regionWithoutVariantsIsOneBalancedBlock() throws Exception {
+        RegionFactory regionFactory = new RegionFactory(1000, variantService);
+        regionFactory.setVariantCoordinatesService(new VariantCoordinatesService(mongoOperations));
+        assertEquals(Collections.singletonList(new Region("22", 1L, 100000L)),
+                     regionFactory.divideRegionInBalancedBlocks("22", 1, 100000, Arrays.asList("7", "8"), 100));
+    }
+
+    @Test
+    public void getRegionsForChromosomeFromTheChromosomeExtentCatalogue() throws Exception {
+        QueryParams query = new QueryParams();
+        query.setRegion("22");
+        query.setStudies(Arrays.asList("7", "8"));
+        RegionFactory regionFactory = new RegionFactory(1000, variantService);
+        List<Region> regionsFromQueries = regionFactory.getRegionsForChromosome("22", query, getFilters(query));
+        regionFactory.setChromosomeExtentService(new ChromosomeExtentService(mongoOperations),
+                                                 "eva_hsapiens_grch37");
+        assertEquals(regionsFromQueries, regionFactory.getRegionsForChromosome("22", query, getFilters(query)));
+        assertTrue(regionFactory.getRegionsForChromosome("1", query, getFilters(query)).isEmpty());
+
+        // the chromosome has fewer variants than the target, so it isn't split
+        RegionFactory adaptiveRegionFactory = new RegionFactory(1000, variantService, Integer.MAX_VALUE);
+        adaptiveRegionFactory.setChromosomeExtentService(new ChromosomeExtentService(mongoOperations),
+                                                         "eva_hsapiens_grch37");
+        assertEquals(Collections.singletonList(new Region("22", 16050075L, 16110950L)),
+                     adaptiveRegionFactory.getRegionsForChromosome("22", query, getFilters(query)));
+    }
+
     @Test
     public void getRegionsForChromosomeWhenRegionQueryIsAFullChromosome()
             throws IOException {
@@ -136,7 +314,7 @@ public class RegionFactoryTest {
         query.setRegion("22");
         query.setStudies(Arrays.asList("7", "8"));
         RegionFactory regionFactory = new RegionFactory(BIG_WINDOW_SIZE, variantService);
-        List<Region> regions = regionFactory.getRegionsForChromosome("22", query);
+        List<Region> regions = regionFactory.getRegionsForChromosome("22", query, getFilters(query));
         assertTrue(regions.size() == 1);
         assertTrue(regions.contains(new Region("22", 16050075L, 16110950L)));
     }
@@ -149,7 +327,7 @@ public class RegionFactoryTest {
         query.setRegion("22,23:1000-2000");
         query.setStudies(Arrays.asList("7", "8"));
         RegionFactory regionFactory = new RegionFactory(BIG_WINDOW_SIZE, variantService);
-        List<Region> regions = regionFactory.getRegionsForChromosome("22", query);
+        List<Region> regions = regionFactory.getRegionsForChromosome("22", query, getFilters(query));
         assertTrue(regions.size() == 1);
         assertTrue(regions.contains(new Region("22", 16050075L, 16110950L)));
     }
@@ -162,7 +340,7 @@ public class RegionFactoryTest {
         query.setRegion("1:500-2499,22");
         query.setStudies(Arrays.asList("7", "8"));
         RegionFactory regionFactory = new RegionFactory(BIG_WINDOW_SIZE, variantService);
-        List<Region> regions = regionFactory.getRegionsForChromosome("22", query);
+        List<Region> regions = regionFactory.getRegionsForChromosome("22", query, getFilters(query));
         assertTrue(regions.size() == 1);
         assertTrue(regions.contains(new Region("22", 16050075L, 16110950L)));
     }
@@ -175,9 +353,39 @@ public class RegionFactoryTest {
         query.setRegion("1:500-2499,22,21:1000-2000");
         query.setStudies(Arrays.asList("7", "8"));
         RegionFactory regionFactory = new RegionFactory(BIG_WINDOW_SIZE, variantService);
-        List<Region> regions = regionFactory.getRegionsForChromosome("22", query);
+        List<Region> regions = regionFactory.getRegionsForChromosome("22", query, getFilters(query));
         assertTrue(regions.size() == 1);
         assertTrue(regions.contains(new Region("22", 16050075L, 16110950L)));
     }
 
-}
\ No newline at end of file
+    @Test
+    public void groupRegionsInQueries() {
+        RegionFactory regionFactory = new RegionFactory(1000, variantService);
+        List<Region> regions = Arrays.asList(new Region("22", 16052000L, 16052010L),
+                                             new Region("20", 60000L, 62500L),
+                                             new Region("22", 16050000L, 16050100L),
+                                             new Region("22", 16050050L, 16050200L),
+                                             new Region("20", 70000L, 70010L));
+
+        List<List<Region>> groups = regionFactory.groupRegionsInQueries(regions, 2);
+
+        // the regions are merged, the long ones are divided in windows, and every chromosome gets its own groups
+        assertEquals(Arrays.asList(Arrays.asList(new Region("20", 60000L, 60999L), new Region("20", 61000L, 61999L)),
+                                   Arrays.asList(new Region("20", 62000L, 62500L), new Region("20", 70000L, 70010L)),
+                                   Arrays.asList(new Region("22", 16050000L, 16050200L),
+                                                 new Region("22", 16052000L, 16052010L))),
+                     groups);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void regionsWithoutCoordinatesCanNotBeGrouped() {
+        new RegionFactory(1000, variantService).groupRegionsInQueries(
+                Collections.singletonList(new Region("22", null, null)), 10);
+    }
+
+    private List<VariantRepositoryFilter> getFilters(QueryParams query) {
+        return new FilterBuilder().getVariantEntityRepositoryFilters(query.getMaf(), query.getPolyphenScore(),
+                                                                     query.getSiftScore(), query.getStudies(),
+                                                                     query.getConsequenceType());
+    }
+}
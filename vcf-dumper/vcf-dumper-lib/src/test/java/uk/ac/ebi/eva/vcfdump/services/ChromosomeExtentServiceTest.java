@@ -0,0 +1,181 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.services;
+
+import com.lordofthejars.nosqlunit.annotation.UsingDataSet;
+import com.lordofthejars.nosqlunit.mongodb.MongoDbRule;
+import org.bson.Document;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationContext;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import uk.ac.ebi.eva.commons.mongodb.entities.VariantMongo;
+import uk.ac.ebi.eva.commons.mongodb.entities.VariantSourceMongo;
+import uk.ac.ebi.eva.vcfdump.MongoRepositoryTestConfiguration;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static com.lordofthejars.nosqlunit.mongodb.MongoDbRule.MongoDbRuleBuilder.newMongoDbRule;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = {MongoRepositoryTestConfiguration.class})
+@UsingDataSet(locations = {
+        "/db-dump/eva_hsapiens_grch37/files_2_0.json",
+        "/db-dump/eva_hsapiens_grch37/variants_2_0.json"})
+public class ChromosomeExtentServiceTest {
+
+    private static final String DB_NAME = "eva_hsapiens_grch37";
+
+    private static final String CHROMOSOME = "22";
+
+    private static final List<String> STUDY_8 = Collections.singletonList("8");
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    @Rule
+    public MongoDbRule mongoDbRule = newMongoDbRule().defaultSpringMongoDb("test-db");
+
+    @Autowired
+    private MongoOperations mongoOperations;
+
+    private ChromosomeExtentService chromosomeExtentService;
+
+    @Before
+    public void setUp() {
+        chromosomeExtentService = new ChromosomeExtentService(mongoOperations);
+    }
+
+    @Test
+    public void extentOfAStudyIsTakenFromItsVariants() {
+        for (String study : Arrays.asList("7", "8")) {
+            List<String> studies = Collections.singletonList(study);
+            Optional<ChromosomeExtent> extent = chromosomeExtentService.getExtent(DB_NAME, CHROMOSOME, studies);
+
+            assertTrue(extent.isPresent());
+            assertEquals(findStart(studies, Sort.Direction.ASC), extent.get().getMinStart());
+            assertEquals(findStart(studies, Sort.Direction.DESC), extent.get().getMaxStart());
+            assertEquals(countVariants(studies), extent.get().getVariantCount());
+        }
+    }
+
+    @Test
+    public void extentOfSeveralStudiesCoversAllOfThem() {
+        List<String> studies = Arrays.asList("7", "8");
+        Optional<ChromosomeExtent> extent = chromosomeExtentService.getExtent(DB_NAME, CHROMOSOME, studies);
+
+        assertTrue(extent.isPresent());
+        assertEquals(findStart(studies, Sort.Direction.ASC), extent.get().getMinStart());
+        assertEquals(findStart(studies, Sort.Direction.DESC), extent.get().getMaxStart());
+        assertTrue(extent.get().getVariantCount() >= countVariants(studies));
+    }
+
+    @Test
+    public void chromosomeWithoutVariantsHasNoExtent() {
+        assertFalse(chromosomeExtentService.getExtent(DB_NAME, "1", Arrays.asList("7", "8")).isPresent());
+        assertFalse(chromosomeExtentService.getExtent(DB_NAME, CHROMOSOME, Collections.singletonList("9"))
+                                           .isPresent());
+    }
+
+    @Test
+    public void extentIsKeptWhileTheStudyDoesNotChange() {
+        chromosomeExtentService.getExtent(DB_NAME, CHROMOSOME, STUDY_8);
+        removeVariantsOfChromosome(CHROMOSOME);
+
+        assertTrue(chromosomeExtentService.getExtent(DB_NAME, CHROMOSOME, STUDY_8).isPresent());
+    }
+
+    @Test
+    public void extentIsFoundAgainWhenAFileOfTheStudyIsReloaded() {
+        chromosomeExtentService.getExtent(DB_NAME, CHROMOSOME, STUDY_8);
+        removeVariantsOfChromosome(CHROMOSOME);
+        mongoOperations.updateFirst(new Query(Criteria.where("fid").is("5")), Update.update("date", new Date()),
+                                    mongoOperations.getCollectionName(VariantSourceMongo.class));
+
+        // the next request doesn't wait for any time to live, so an export never misses the variants of the file
+        assertFalse(chromosomeExtentService.getExtent(DB_NAME, CHROMOSOME, STUDY_8).isPresent());
+    }
+
+    @Test
+    public void onlyTheExtentsOfTheFilesLoadedSinceAreFoundAgain() {
+        chromosomeExtentService.getExtent(DB_NAME, CHROMOSOME, STUDY_8);
+        removeVariantsOfChromosome(CHROMOSOME);
+        mongoOperations.insert(new Document("fid", "new-file").append("sid", "8").append("date", new Date()),
+                               mongoOperations.getCollectionName(VariantSourceMongo.class));
+
+        // the new file has no variants, and the variants of file 5 are not aggregated again because it didn't change
+        assertTrue(chromosomeExtentService.getExtent(DB_NAME, CHROMOSOME, STUDY_8).isPresent());
+    }
+
+    @Test
+    public void cachedExtentsAreOnlyAvailableOnceTheStudyHasBeenChecked() {
+        assertFalse(chromosomeExtentService.getCachedExtents(DB_NAME, "8").isPresent());
+
+        Optional<ChromosomeExtent> extent = chromosomeExtentService.getExtent(DB_NAME, CHROMOSOME, STUDY_8);
+        removeVariantsOfChromosome(CHROMOSOME);
+        mongoOperations.updateFirst(new Query(Criteria.where("fid").is("5")), Update.update("date", new Date()),
+                                    mongoOperations.getCollectionName(VariantSourceMongo.class));
+
+        // the cached extents are used even after a file is loaded again, because they never query the database
+        Optional<Map<String, ChromosomeExtent>> cachedExtents = chromosomeExtentService.getCachedExtents(DB_NAME,
+                                                                                                         "8");
+        assertTrue(cachedExtents.isPresent());
+        assertEquals(extent.get().getVariantCount(), cachedExtents.get().get(CHROMOSOME).getVariantCount());
+        assertFalse(chromosomeExtentService.getCachedExtents(DB_NAME, "7").isPresent());
+    }
+
+    private Query variantsOfStudies(List<String> studies) {
+        return new Query(Criteria.where(ChromosomeExtentService.CHROMOSOME_FIELD).is(CHROMOSOME)
+                                 .and(ChromosomeExtentService.STUDY_ID_FIELD).in(studies));
+    }
+
+    private long findStart(List<String> studies, Sort.Direction direction) {
+        Query query = variantsOfStudies(studies).with(Sort.by(direction, ChromosomeExtentService.START_FIELD));
+        Document variant = mongoOperations.findOne(query, Document.class, getVariantsCollectionName());
+        return ((Number) variant.get(ChromosomeExtentService.START_FIELD)).longValue();
+    }
+
+    private long countVariants(List<String> studies) {
+        return mongoOperations.count(variantsOfStudies(studies), getVariantsCollectionName());
+    }
+
+    private void removeVariantsOfChromosome(String chromosome) {
+        mongoOperations.remove(new Query(Criteria.where(ChromosomeExtentService.CHROMOSOME_FIELD).is(chromosome)),
+                               getVariantsCollectionName());
+    }
+
+    private String getVariantsCollectionName() {
+        return mongoOperations.getCollectionName(VariantMongo.class);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.services;
+
+import com.lordofthejars.nosqlunit.annotation.UsingDataSet;
+import com.lordofthejars.nosqlunit.mongodb.MongoDbRule;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationContext;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import uk.ac.ebi.eva.commons.mongodb.entities.VariantMongo;
+import uk.ac.ebi.eva.vcfdump.MongoRepositoryTestConfiguration;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.lordofthejars.nosqlunit.mongodb.MongoDbRule.MongoDbRuleBuilder.newMongoDbRule;
+import static org.junit.Assert.assertEquals;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = {MongoRepositoryTestConfiguration.class})
+@UsingDataSet(locations = {
+        "/db-dump/eva_hsapiens_grch37/files_2_0.json",
+        "/db-dump/eva_hsapiens_grch37/variants_2_0.json"})
+public class ChromosomeServiceTest {
+
+    private static final String DB_NAME = "eva_hsapiens_grch37";
+
+    private static final long TIME_TO_LIVE_SECONDS = 60;
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    @Rule
+    public MongoDbRule mongoDbRule = newMongoDbRule().defaultSpringMongoDb("test-db");
+
+    @Autowired
+    private MongoOperations mongoOperations;
+
+    private AtomicLong currentTimeMillis;
+
+    private ChromosomeService chromosomeService;
+
+    @Before
+    public void setUp() {
+        currentTimeMillis = new AtomicLong();
+        chromosomeService = new ChromosomeService(mongoOperations, TIME_TO_LIVE_SECONDS, currentTimeMillis::get);
+    }
+
+    @Test
+    public void chromosomesAreTakenFromTheVariants() {
+        assertEquals(new HashSet<>(Arrays.asList("20", "22")), chromosomeService.getChromosomes(DB_NAME));
+    }
+
+    @Test
+    public void chromosomesAreQueriedAgainAfterTheyExpire() {
+        chromosomeService.getChromosomes(DB_NAME);
+        removeVariantsOfChromosome("20");
+
+        currentTimeMillis.set(TIME_TO_LIVE_SECONDS * 1000 - 1);
+        assertEquals(new HashSet<>(Arrays.asList("20", "22")), chromosomeService.getChromosomes(DB_NAME));
+
+        currentTimeMillis.set(TIME_TO_LIVE_SECONDS * 1000);
+        assertEquals(Collections.singleton("22"), chromosomeService.getChromosomes(DB_NAME));
+    }
+
+    @Test
+    public void chromosomesOfEveryDatabaseAreKeptSeparately() {
+        chromosomeService.getChromosomes(DB_NAME);
+        removeVariantsOfChromosome("20");
+
+        assertEquals(Collections.singleton("22"), chromosomeService.getChromosomes("eva_another_database"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void timeToLiveCantBeNegative() {
+        new ChromosomeService(mongoOperations, -1);
+    }
+
+    private void removeVariantsOfChromosome(String chromosome) {
+        mongoOperations.remove(new Query(Criteria.where(ChromosomeService.CHROMOSOME_FIELD).is(chromosome)),
+                               mongoOperations.getCollectionName(VariantMongo.class));
+    }
+}
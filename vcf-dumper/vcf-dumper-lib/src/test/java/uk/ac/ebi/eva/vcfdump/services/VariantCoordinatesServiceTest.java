@@ -0,0 +1,127 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.services;
+
+import com.lordofthejars.nosqlunit.annotation.UsingDataSet;
+import com.lordofthejars.nosqlunit.mongodb.MongoDbRule;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationContext;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import uk.ac.ebi.eva.vcfdump.MongoRepositoryTestConfiguration;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+
+import static com.lordofthejars.nosqlunit.mongodb.MongoDbRule.MongoDbRuleBuilder.newMongoDbRule;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = {MongoRepositoryTestConfiguration.class})
+@UsingDataSet(locations = {
+        "/db-dump/eva_hsapiens_grch37/files_2_0.json",
+        "/db-dump/eva_hsapiens_grch37/variants_2_0.json"})
+public class VariantCoordinatesServiceTest {
+
+    private static final String CHROMOSOME = "22";
+
+    private static final long FIRST_VARIANT_START = 16050075L;
+
+    private static final long LAST_VARIANT_START = 16110950L;
+
+    private static final List<String> STUDIES = Arrays.asList("7", "8");
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    @Rule
+    public MongoDbRule mongoDbRule = newMongoDbRule().defaultSpringMongoDb("test-db");
+
+    @Autowired
+    private MongoOperations mongoOperations;
+
+    private VariantCoordinatesService variantCoordinatesService;
+
+    @Before
+    public void setUp() {
+        variantCoordinatesService = new VariantCoordinatesService(mongoOperations);
+    }
+
+    @Test
+    public void findFirstVariantOfChromosome() {
+        assertEquals(Long.valueOf(FIRST_VARIANT_START),
+                     variantCoordinatesService.findNextVariantStart(CHROMOSOME, 1, Long.MAX_VALUE, STUDIES));
+        assertEquals(Long.valueOf(FIRST_VARIANT_START),
+                     variantCoordinatesService.findNextVariantStart(CHROMOSOME, FIRST_VARIANT_START,
+                                                                    LAST_VARIANT_START, STUDIES));
+    }
+
+    @Test
+    public void findNextVariantAfterAPosition() {
+        Long nextStart = variantCoordinatesService.findNextVariantStart(CHROMOSOME, FIRST_VARIANT_START + 1,
+                                                                        LAST_VARIANT_START, STUDIES);
+        assertTrue(nextStart > FIRST_VARIANT_START);
+        assertTrue(nextStart <= LAST_VARIANT_START);
+        assertEquals(Long.valueOf(LAST_VARIANT_START),
+                     variantCoordinatesService.findNextVariantStart(CHROMOSOME, LAST_VARIANT_START,
+                                                                    LAST_VARIANT_START, STUDIES));
+    }
+
+    @Test
+    public void noVariantsAfterTheLastOne() {
+        assertNull(variantCoordinatesService.findNextVariantStart(CHROMOSOME, LAST_VARIANT_START + 1,
+                                                                  Long.MAX_VALUE, STUDIES));
+    }
+
+    @Test
+    public void noVariantsInOtherStudies() {
+        assertNull(variantCoordinatesService.findNextVariantStart(CHROMOSOME, 1, Long.MAX_VALUE,
+                                                                  Collections.singletonList("not-a-study")));
+    }
+
+    @Test
+    public void countVariantsByBin() {
+        SortedMap<Long, Long> variantsByBin = variantCoordinatesService.countVariantsByBin(CHROMOSOME, 1,
+                                                                                           Long.MAX_VALUE, 1000,
+                                                                                           STUDIES);
+        assertEquals(Long.valueOf(16050000L), variantsByBin.firstKey());
+        assertEquals(Long.valueOf(16110000L), variantsByBin.lastKey());
+        assertTrue(variantsByBin.keySet().stream().allMatch(binStart -> binStart % 1000 == 0));
+        assertTrue(variantsByBin.values().stream().allMatch(variants -> variants > 0));
+        assertEquals(753, variantsByBin.values().stream().mapToLong(Long::longValue).sum());
+
+        // only the variants in the range are counted, even if their bin is partially outside
+        SortedMap<Long, Long> variantsInRange = variantCoordinatesService.countVariantsByBin(
+                CHROMOSOME, FIRST_VARIANT_START + 1, LAST_VARIANT_START, 1000, STUDIES);
+        assertEquals(variantsByBin.get(16050000L) - 1, (long) variantsInRange.get(16050000L));
+    }
+
+    @Test
+    public void noBinsInOtherStudies() {
+        assertTrue(variantCoordinatesService.countVariantsByBin(CHROMOSOME, 1, Long.MAX_VALUE, 1000,
+                                                                Collections.singletonList("not-a-study")).isEmpty());
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.services;
+
+import com.lordofthejars.nosqlunit.annotation.UsingDataSet;
+import com.lordofthejars.nosqlunit.mongodb.MongoDbRule;
+import org.bson.Document;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationContext;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import uk.ac.ebi.eva.commons.mongodb.entities.AnnotationMetadataMongo;
+import uk.ac.ebi.eva.commons.mongodb.entities.VariantSourceMongo;
+import uk.ac.ebi.eva.vcfdump.MongoRepositoryTestConfiguration;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static com.lordofthejars.nosqlunit.mongodb.MongoDbRule.MongoDbRuleBuilder.newMongoDbRule;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = {MongoRepositoryTestConfiguration.class})
+@UsingDataSet(locations = {"/db-dump/eva_hsapiens_grch37/files_2_0.json"})
+public class VariantDataVersionServiceTest {
+
+    private static final List<String> STUDIES = Arrays.asList("7", "8");
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    @Rule
+    public MongoDbRule mongoDbRule = newMongoDbRule().defaultSpringMongoDb("test-db");
+
+    @Autowired
+    private MongoOperations mongoOperations;
+
+    private VariantDataVersionService variantDataVersionService;
+
+    @Before
+    public void setUp() {
+        variantDataVersionService = new VariantDataVersionService(mongoOperations);
+    }
+
+    @Test
+    public void versionDoesNotDependOnTheOrderOfTheStudies() {
+        assertEquals(variantDataVersionService.getDataVersion(STUDIES),
+                     variantDataVersionService.getDataVersion(Arrays.asList("8", "7")));
+    }
+
+    @Test
+    public void versionOfEveryStudyIsDifferent() {
+        String study7Version = variantDataVersionService.getDataVersion(Collections.singletonList("7"));
+        String study8Version = variantDataVersionService.getDataVersion(Collections.singletonList("8"));
+        assertNotEquals(study7Version, study8Version);
+        assertNotEquals(study7Version, variantDataVersionService.getDataVersion(STUDIES));
+    }
+
+    @Test
+    public void versionChangesWhenAFileIsReloaded() {
+        String version = variantDataVersionService.getDataVersion(STUDIES);
+        String study7Version = variantDataVersionService.getDataVersion(Collections.singletonList("7"));
+
+        mongoOperations.updateFirst(new Query(Criteria.where(VariantDataVersionService.FILE_ID_FIELD).is("5")),
+                                    Update.update(VariantDataVersionService.DATE_FIELD, new Date()),
+                                    mongoOperations.getCollectionName(VariantSourceMongo.class));
+
+        assertNotEquals(version, variantDataVersionService.getDataVersion(STUDIES));
+        // file 5 belongs to study 8
+        assertEquals(study7Version, variantDataVersionService.getDataVersion(Collections.singletonList("7")));
+    }
+
+    @Test
+    public void versionChangesWithTheDefaultAnnotation() {
+        String version = variantDataVersionService.getDataVersion(STUDIES);
+        String filesVersion = variantDataVersionService.getFilesVersion(STUDIES);
+        String annotationMetadataCollection = mongoOperations.getCollectionName(AnnotationMetadataMongo.class);
+
+        mongoOperations.insert(new Document("_id", "90_90").append("vepv", "90").append("cachev", "90")
+                                                           .append(VariantDataVersionService.DEFAULT_ANNOTATION_FIELD,
+                                                                   true),
+                               annotationMetadataCollection);
+        try {
+            assertNotEquals(version, variantDataVersionService.getDataVersion(STUDIES));
+            assertEquals(filesVersion, variantDataVersionService.getFilesVersion(STUDIES));
+        } finally {
+            mongoOperations.remove(new Query(Criteria.where("_id").is("90_90")), annotationMetadataCollection);
+        }
+    }
+
+    @Test
+    public void studiesWithoutFilesHaveAnEmptyFilesVersion() {
+        assertEquals("", variantDataVersionService.getFilesVersion(Collections.singletonList("not-a-study")));
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.services;
+
+import com.lordofthejars.nosqlunit.annotation.UsingDataSet;
+import com.lordofthejars.nosqlunit.mongodb.MongoDbRule;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationContext;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import uk.ac.ebi.eva.commons.mongodb.entities.VariantSourceMongo;
+import uk.ac.ebi.eva.vcfdump.MongoRepositoryTestConfiguration;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.lordofthejars.nosqlunit.mongodb.MongoDbRule.MongoDbRuleBuilder.newMongoDbRule;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = {MongoRepositoryTestConfiguration.class})
+@UsingDataSet(locations = {
+        "/db-dump/eva_hsapiens_grch37/files_2_0.json",
+        "/db-dump/eva_hsapiens_grch37/variants_2_0.json"})
+public class VariantHistogramCacheTest {
+
+    private static final String DB_NAME = "eva_hsapiens_grch37";
+
+    private static final List<String> STUDIES = Arrays.asList("7", "8");
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    @Rule
+    public MongoDbRule mongoDbRule = newMongoDbRule().defaultSpringMongoDb("test-db");
+
+    @Autowired
+    private MongoOperations mongoOperations;
+
+    private VariantHistogramCache histogramCache;
+
+    private AtomicInteger loads;
+
+    @Before
+    public void setUp() {
+        histogramCache = new VariantHistogramCache(new VariantDataVersionService(mongoOperations), 2);
+        loads = new AtomicInteger();
+    }
+
+    @Test
+    public void histogramIsCountedOncePerRangeAndStudySet() {
+        SortedMap<Long, Long> variantsByBin = get(STUDIES, 16000000, 16200000);
+
+        assertEquals(753, variantsByBin.values().stream().mapToLong(Long::longValue).sum());
+        assertSame(variantsByBin, get(STUDIES, 16000000, 16200000));
+        assertSame(variantsByBin, get(Arrays.asList("8", "7"), 16000000, 16200000));
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void otherRangesAndStudySetsAreCountedSeparately() {
+        get(STUDIES, 16000000, 16200000);
+        get(STUDIES, 16000000, 16100000);
+        get(Collections.singletonList("7"), 16000000, 16200000);
+
+        assertEquals(3, loads.get());
+    }
+
+    @Test
+    public void histogramIsCountedAgainWhenAFileIsReloaded() {
+        get(STUDIES, 16000000, 16200000);
+
+        mongoOperations.updateFirst(new Query(Criteria.where("fid").is("6")), Update.update("date", new Date()),
+                                    mongoOperations.getCollectionName(VariantSourceMongo.class));
+
+        get(STUDIES, 16000000, 16200000);
+        assertEquals(2, loads.get());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void cachedHistogramsCanNotBeModified() {
+        get(STUDIES, 16000000, 16200000).clear();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void maxEntriesMustBePositive() {
+        new VariantHistogramCache(new VariantDataVersionService(mongoOperations), 0);
+    }
+
+    private SortedMap<Long, Long> get(List<String> studies, long from, long to) {
+        VariantCoordinatesService variantCoordinatesService = new VariantCoordinatesService(mongoOperations);
+        return histogramCache.get(DB_NAME, studies, "22", from, to, 1000, () -> {
+            loads.incrementAndGet();
+            return variantCoordinatesService.countVariantsByBin("22", from, to, 1000, studies);
+        });
+    }
+}
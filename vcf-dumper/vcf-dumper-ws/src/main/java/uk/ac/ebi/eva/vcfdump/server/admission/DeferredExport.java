@@ -0,0 +1,67 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.server.admission;
+
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Response of an export that waits in the queue of the {@link ExportScheduler} without holding a servlet thread. The
+ * body of the response is only created when the export is admitted, and the request fails with the
+ * {@link ExportRejectedException} if the export is rejected.
+ *
+ * The permit of the export is kept in the request, so {@link ExportPermitInterceptor} closes it when the request
+ * finishes even if the body never runs, e.g. because the request timed out before a thread was free to write it.
+ */
+public class DeferredExport {
+
+    static final String PERMIT_ATTRIBUTE = DeferredExport.class.getName() + ".permit";
+
+    private DeferredExport() {
+    }
+
+    /**
+     * @param cost         number of variants the export is expected to return
+     * @param responseBody creates the body of the response once the export is admitted. The body should close the
+     *                     permit as soon as it has been written
+     */
+    public static DeferredResult<StreamingResponseBody> admit(
+            ExportScheduler exportScheduler, HttpServletRequest request, long cost,
+            Function<ExportScheduler.Permit, StreamingResponseBody> responseBody) {
+        CompletableFuture<ExportScheduler.Permit> admission = exportScheduler.admitAsync(
+                exportScheduler.getClientId(request), cost);
+        DeferredResult<StreamingResponseBody> result = new DeferredResult<>();
+        // the export is given up if the request times out or fails while it is queued
+        result.onTimeout(() -> ExportScheduler.releaseAdmission(admission));
+        result.onError(error -> ExportScheduler.releaseAdmission(admission));
+        admission.whenComplete((permit, error) -> {
+            if (error != null) {
+                result.setErrorResult(error);
+            } else {
+                request.setAttribute(PERMIT_ATTRIBUTE, permit);
+                if (!result.setResult(responseBody.apply(permit))) {
+                    // the request expired just before the export was admitted
+                    permit.close();
+                }
+            }
+        });
+        return result;
+    }
+}
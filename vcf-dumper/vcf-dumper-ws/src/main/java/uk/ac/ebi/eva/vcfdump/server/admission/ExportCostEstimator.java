@@ -0,0 +1,110 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.server.admission;
+
+import uk.ac.ebi.eva.commons.core.models.Region;
+import uk.ac.ebi.eva.vcfdump.configuration.EvaProperties;
+import uk.ac.ebi.eva.vcfdump.services.ChromosomeExtent;
+import uk.ac.ebi.eva.vcfdump.services.ChromosomeExtentService;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Estimates the number of variants that an export will return, to use it as the cost of the export in the
+ * {@link ExportScheduler}.
+ *
+ * The estimate is taken from the chromosome extents of every study, assuming that the variants are spread evenly
+ * between the first and last variant of each chromosome. The other filters of the export are ignored, so the estimate
+ * is an upper bound.
+ *
+ * Only the extents already in the catalogue are used, even if they are stale, because the estimate is made before the
+ * export is admitted and must not query the database. A study that is not in the catalogue yet, which is added by its
+ * first export, costs a fixed number of variants per region.
+ */
+public class ExportCostEstimator {
+
+    public static final String UNKNOWN_STUDY_VARIANTS_PROPERTY = "eva.ws.admission.unknown-study-variants";
+
+    private final ChromosomeExtentService chromosomeExtentService;
+
+    private final long unknownStudyVariants;
+
+    /**
+     * @param unknownStudyVariants variants per region of the studies that are not in the catalogue of extents
+     */
+    public ExportCostEstimator(ChromosomeExtentService chromosomeExtentService, long unknownStudyVariants) {
+        if (unknownStudyVariants < 0) {
+            throw new IllegalArgumentException("'" + UNKNOWN_STUDY_VARIANTS_PROPERTY + "' can't be negative");
+        }
+        this.chromosomeExtentService = chromosomeExtentService;
+        this.unknownStudyVariants = unknownStudyVariants;
+    }
+
+    public static ExportCostEstimator fromProperties(ChromosomeExtentService chromosomeExtentService,
+                                                     EvaProperties evaProperties) {
+        return new ExportCostEstimator(chromosomeExtentService,
+                                       evaProperties.getLong(UNKNOWN_STUDY_VARIANTS_PROPERTY, 0));
+    }
+
+    /**
+     * @param dbName       database of the studies
+     * @param regionFilter comma separated list of regions, which can be whole chromosomes
+     * @return estimated number of variants of the studies in the regions
+     */
+    public long estimateVariants(String dbName, List<String> studies, String regionFilter) {
+        return estimateVariants(dbName, studies, Region.parseRegions(regionFilter));
+    }
+
+    /**
+     * @param dbName  database of the studies
+     * @param regions regions to export, which must not overlap
+     * @return estimated number of variants of the studies in the regions
+     */
+    public long estimateVariants(String dbName, List<String> studies, List<Region> regions) {
+        double variants = 0;
+        for (String study : studies) {
+            Optional<Map<String, ChromosomeExtent>> studyExtents = chromosomeExtentService.getCachedExtents(dbName,
+                                                                                                           study);
+            if (studyExtents.isPresent()) {
+                for (Region region : regions) {
+                    ChromosomeExtent extent = studyExtents.get().get(region.getChromosome());
+                    if (extent != null) {
+                        variants += estimateVariants(extent, region);
+                    }
+                }
+            } else {
+                variants += (double) unknownStudyVariants * regions.size();
+            }
+        }
+        return (long) Math.ceil(variants);
+    }
+
+    /**
+     * @return variants of the extent in the region, proportionally to the part of the extent that the region covers
+     */
+    static double estimateVariants(ChromosomeExtent extent, Region region) {
+        long start = region.getStart() == null ? extent.getMinStart() : Math.max(region.getStart(),
+                                                                                 extent.getMinStart());
+        long end = region.getEnd() == null ? extent.getMaxStart() : Math.min(region.getEnd(), extent.getMaxStart());
+        if (end < start) {
+            return 0;
+        }
+        double extentLength = extent.getMaxStart() - extent.getMinStart() + 1;
+        return extent.getVariantCount() * (end - start + 1) / extentLength;
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.server.admission;
+
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.async.CallableProcessingInterceptor;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Closes the permit of an export admitted with {@link DeferredExport} when the asynchronous processing of its
+ * response body finishes for any reason. The body closes the permit itself when it runs, but it may never run if the
+ * request times out or the client disconnects first, and then the export would keep counting against the limits of
+ * the scheduler.
+ */
+public class ExportPermitInterceptor implements CallableProcessingInterceptor {
+
+    @Override
+    public <T> void afterCompletion(NativeWebRequest request, Callable<T> task) {
+        Object permit = request.getAttribute(DeferredExport.PERMIT_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST);
+        if (permit instanceof ExportScheduler.Permit) {
+            ((ExportScheduler.Permit) permit).close();
+        }
+    }
+}
@@ -0,0 +1,458 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.server.admission;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.ebi.eva.vcfdump.configuration.EvaProperties;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides which exports of the web services can run, so a few clients requesting very big exports can't take all the
+ * threads and database connections.
+ *
+ * An export is admitted if the number of running exports, and the number of variants they are expected to return (the
+ * cost of the exports), are within the limits. Otherwise it waits in a queue, and the queued exports are admitted in
+ * the order they arrived when the running ones finish. An export is rejected straight away if the queue is full, or if
+ * its client has already as many exports running or queued as it is allowed, and it's rejected too if it waits in the
+ * queue longer than the maximum wait time. An export that is bigger than the cost limit is only admitted when no other
+ * export is running.
+ *
+ * The exports wait in the queue without holding a thread: {@link #admitAsync} returns a future that is completed when
+ * the export is admitted or rejected.
+ *
+ * The number of running and queued exports, and their cost, are published as gauges when the scheduler is bound to a
+ * meter registry.
+ */
+public class ExportScheduler implements MeterBinder {
+
+    private static final Logger logger = LoggerFactory.getLogger(ExportScheduler.class);
+
+    public static final String MAX_EXPORTS_PROPERTY = "eva.ws.admission.max-exports";
+
+    public static final String MAX_EXPORTS_PER_CLIENT_PROPERTY = "eva.ws.admission.max-exports-per-client";
+
+    public static final String MAX_IN_FLIGHT_VARIANTS_PROPERTY = "eva.ws.admission.max-in-flight-variants";
+
+    public static final String MAX_QUEUED_EXPORTS_PROPERTY = "eva.ws.admission.max-queued-exports";
+
+    public static final String MAX_QUEUE_WAIT_SECONDS_PROPERTY = "eva.ws.admission.max-queue-wait-seconds";
+
+    public static final String RETRY_AFTER_SECONDS_PROPERTY = "eva.ws.admission.retry-after-seconds";
+
+    public static final String CLIENT_HEADER_PROPERTY = "eva.ws.admission.client-header";
+
+    public static final String TRUSTED_PROXIES_PROPERTY = "eva.ws.admission.trusted-proxies";
+
+    private static final int DEFAULT_TRUSTED_PROXIES = 1;
+
+    private static final String METRICS_PREFIX = "vcf.export.admission";
+
+    private final int maxExports;
+
+    private final int maxExportsPerClient;
+
+    private final long maxInFlightCost;
+
+    private final int maxQueuedExports;
+
+    private final long maxQueueWaitMillis;
+
+    private final long retryAfterSeconds;
+
+    private final String clientHeader;
+
+    private int trustedProxies;
+
+    private final Deque<Ticket> queue;
+
+    private final Map<String, Integer> exportsByClient;
+
+    /**
+     * Rejects the exports that wait in the queue longer than the maximum wait time, or null if there is no limit
+     */
+    private final ScheduledThreadPoolExecutor queueTimer;
+
+    private int runningExports;
+
+    private long inFlightCost;
+
+    /**
+     * @param maxExports          maximum number of running exports, or 0 for no limit
+     * @param maxExportsPerClient maximum number of exports of a client running or queued, or 0 for no limit
+     * @param maxInFlightCost     maximum sum of the costs of the running exports, or 0 for no limit
+     * @param maxQueuedExports    maximum number of exports waiting in the queue. If 0, the exports that can't run
+     *                            straight away are rejected
+     * @param maxQueueWaitMillis  time an export can wait in the queue before being rejected, or 0 for no limit
+     * @param retryAfterSeconds   time the rejected clients are told to wait before trying again
+     * @param clientHeader        request header that identifies the clients, e.g. 'X-Forwarded-For' behind a proxy,
+     *                            or null to identify them by their address
+     */
+    public ExportScheduler(int maxExports, int maxExportsPerClient, long maxInFlightCost, int maxQueuedExports,
+                           long maxQueueWaitMillis, long retryAfterSeconds, String clientHeader) {
+        if (maxExports < 0 || maxExportsPerClient < 0 || maxInFlightCost < 0 || maxQueuedExports < 0
+                || maxQueueWaitMillis < 0 || retryAfterSeconds < 0) {
+            throw new IllegalArgumentException("The limits of the export scheduler can't be negative");
+        }
+        this.maxExports = maxExports;
+        this.maxExportsPerClient = maxExportsPerClient;
+        this.maxInFlightCost = maxInFlightCost;
+        this.maxQueuedExports = maxQueuedExports;
+        this.maxQueueWaitMillis = maxQueueWaitMillis;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.clientHeader = clientHeader == null || clientHeader.trim().isEmpty() ? null : clientHeader.trim();
+        this.trustedProxies = DEFAULT_TRUSTED_PROXIES;
+        this.queue = new ArrayDeque<>();
+        this.exportsByClient = new HashMap<>();
+        this.queueTimer = maxQueueWaitMillis > 0 ? createQueueTimer() : null;
+    }
+
+    private static ScheduledThreadPoolExecutor createQueueTimer() {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "export-queue-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // the timers of the admitted exports are cancelled, and they shouldn't stay in the queue of the timer
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+    public static ExportScheduler fromProperties(EvaProperties evaProperties) {
+        ExportScheduler scheduler = new ExportScheduler(
+                evaProperties.getInt(MAX_EXPORTS_PROPERTY, 0),
+                evaProperties.getInt(MAX_EXPORTS_PER_CLIENT_PROPERTY, 0),
+                evaProperties.getLong(MAX_IN_FLIGHT_VARIANTS_PROPERTY, 0),
+                evaProperties.getInt(MAX_QUEUED_EXPORTS_PROPERTY, 0),
+                TimeUnit.SECONDS.toMillis(evaProperties.getLong(MAX_QUEUE_WAIT_SECONDS_PROPERTY, 0)),
+                evaProperties.getLong(RETRY_AFTER_SECONDS_PROPERTY, 0),
+                evaProperties.getString(CLIENT_HEADER_PROPERTY, null));
+        scheduler.setTrustedProxies(evaProperties.getInt(TRUSTED_PROXIES_PROPERTY, DEFAULT_TRUSTED_PROXIES));
+        return scheduler;
+    }
+
+    /**
+     * @param trustedProxies number of proxies in front of the web services that append an address to the client
+     *                       header. The addresses to the left of the ones they appended are sent by the client, which
+     *                       can forge them
+     */
+    public void setTrustedProxies(int trustedProxies) {
+        if (trustedProxies < 1) {
+            throw new IllegalArgumentException("'" + TRUSTED_PROXIES_PROPERTY + "' must be greater than 0");
+        }
+        this.trustedProxies = trustedProxies;
+    }
+
+    /**
+     * @return the address appended to the client header by the outermost trusted proxy, if the header is configured
+     * and present in the request, or the address of the client otherwise
+     */
+    public String getClientId(HttpServletRequest request) {
+        if (clientHeader != null) {
+            String header = request.getHeader(clientHeader);
+            if (header != null && !header.trim().isEmpty()) {
+                // every proxy appends the address it received the request from, so the right-most ones are reliable
+                String[] addresses = header.split(",");
+                return addresses[Math.max(0, addresses.length - trustedProxies)].trim();
+            }
+        }
+        return request.getRemoteAddr();
+    }
+
+    /**
+     * Queues the export without waiting for it to be admitted. The permit returned by the future must be closed when
+     * the export finishes, or the export will keep counting against the limits. An export that is abandoned before it
+     * runs, e.g. because its client disconnected, is given up with {@link #releaseAdmission}.
+     *
+     * @param cost number of variants the export is expected to return
+     * @return future completed with the permit of the export when it's admitted, or with an
+     * {@link ExportRejectedException} if it can't be queued or it's not admitted within the maximum wait time
+     */
+    public CompletableFuture<Permit> admitAsync(String client, long cost) {
+        if (cost < 0) {
+            throw new IllegalArgumentException("The cost of an export can't be negative");
+        }
+        Ticket ticket = new Ticket(client, cost);
+        List<Ticket> admittedTickets;
+        synchronized (this) {
+            if (maxExportsPerClient > 0 && exportsByClient.getOrDefault(client, 0) >= maxExportsPerClient) {
+                ticket.admission.completeExceptionally(
+                        reject(ticket, "the client has " + maxExportsPerClient + " exports running or queued already"));
+                return ticket.admission;
+            }
+            queue.add(ticket);
+            exportsByClient.merge(client, 1, Integer::sum);
+            admittedTickets = admitQueuedExports();
+            if (!ticket.admitted && queue.size() > maxQueuedExports) {
+                admittedTickets.addAll(cancel(ticket));
+                ticket.admission.completeExceptionally(
+                        reject(ticket, "there are " + maxQueuedExports + " exports queued already"));
+            } else if (!ticket.admitted) {
+                logger.debug("Export of client {} with cost {} queued, {} exports in the queue", client, cost,
+                             queue.size());
+                if (queueTimer != null) {
+                    ticket.timeout = queueTimer.schedule(() -> expire(ticket), maxQueueWaitMillis,
+                                                         TimeUnit.MILLISECONDS);
+                }
+                ticket.admission.whenComplete((permit, error) -> {
+                    if (ticket.admission.isCancelled()) {
+                        withdraw(ticket);
+                    }
+                });
+            }
+        }
+        completeAdmissions(admittedTickets);
+        return ticket.admission;
+    }
+
+    /**
+     * Waits until the export can run, blocking the calling thread. The permit returned must be closed when the export
+     * finishes, or the export will keep counting against the limits.
+     *
+     * @param cost number of variants the export is expected to return
+     * @throws ExportRejectedException if the export can't be queued, or it's not admitted within the maximum wait time
+     */
+    public Permit admit(String client, long cost) {
+        CompletableFuture<Permit> admission = admitAsync(client, cost);
+        try {
+            return admission.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            releaseAdmission(admission);
+            logger.info("Export of client {} with cost {} rejected because it was interrupted while waiting in the "
+                                + "queue", client, cost);
+            throw new ExportRejectedException("Too many exports, the export was rejected because it was interrupted "
+                                                      + "while waiting in the queue", retryAfterSeconds);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Gives up an export that was queued with {@link #admitAsync}: the export is removed from the queue if it was not
+     * admitted yet, and its permit is closed if it was. Releasing an admission more than once has no effect
+     */
+    public static void releaseAdmission(CompletableFuture<Permit> admission) {
+        if (!admission.cancel(false)) {
+            admission.thenAccept(Permit::close);
+        }
+    }
+
+    /**
+     * Rejects an export that waited in the queue for the maximum time
+     */
+    private void expire(Ticket ticket) {
+        List<Ticket> admittedTickets;
+        synchronized (this) {
+            if (ticket.admitted || !queue.contains(ticket)) {
+                return;
+            }
+            admittedTickets = cancel(ticket);
+        }
+        ticket.admission.completeExceptionally(reject(ticket, "it waited in the queue for " + maxQueueWaitMillis
+                + " ms"));
+        completeAdmissions(admittedTickets);
+    }
+
+    /**
+     * Removes an export whose admission was cancelled from the queue. If it was admitted already, the permit is
+     * released when the admission can't be completed
+     */
+    private void withdraw(Ticket ticket) {
+        List<Ticket> admittedTickets;
+        synchronized (this) {
+            if (ticket.admitted || !queue.contains(ticket)) {
+                return;
+            }
+            admittedTickets = cancel(ticket);
+        }
+        if (ticket.timeout != null) {
+            ticket.timeout.cancel(false);
+        }
+        logger.debug("Export of client {} with cost {} withdrawn from the queue", ticket.client, ticket.cost);
+        completeAdmissions(admittedTickets);
+    }
+
+    /**
+     * Completes the admissions outside the lock of the scheduler, because they start the exports. An admission that
+     * was cancelled in the meantime releases its permit straight away
+     */
+    private void completeAdmissions(List<Ticket> admittedTickets) {
+        for (Ticket ticket : admittedTickets) {
+            if (ticket.timeout != null) {
+                ticket.timeout.cancel(false);
+            }
+            Permit permit = new Permit(ticket);
+            if (!ticket.admission.complete(permit)) {
+                permit.close();
+            }
+        }
+    }
+
+    /**
+     * Admits the exports at the head of the queue while they fit in the limits
+     *
+     * @return the exports admitted, whose admissions have to be completed
+     */
+    private List<Ticket> admitQueuedExports() {
+        List<Ticket> admittedTickets = new ArrayList<>();
+        while (!queue.isEmpty() && canRun(queue.peek())) {
+            Ticket ticket = queue.poll();
+            ticket.admitted = true;
+            runningExports++;
+            inFlightCost += ticket.cost;
+            admittedTickets.add(ticket);
+        }
+        return admittedTickets;
+    }
+
+    private boolean canRun(Ticket ticket) {
+        if (runningExports == 0) {
+            return true;
+        }
+        return (maxExports == 0 || runningExports < maxExports)
+                && (maxInFlightCost == 0 || inFlightCost + ticket.cost <= maxInFlightCost);
+    }
+
+    /**
+     * Removes an export that was not admitted from the queue. The exports behind it could be admitted now
+     */
+    private List<Ticket> cancel(Ticket ticket) {
+        queue.remove(ticket);
+        removeClientExport(ticket.client);
+        return admitQueuedExports();
+    }
+
+    private List<Ticket> release(Ticket ticket) {
+        runningExports--;
+        inFlightCost -= ticket.cost;
+        removeClientExport(ticket.client);
+        return admitQueuedExports();
+    }
+
+    private void removeClientExport(String client) {
+        exportsByClient.computeIfPresent(client, (key, exports) -> exports > 1 ? exports - 1 : null);
+    }
+
+    private ExportRejectedException reject(Ticket ticket, String reason) {
+        logger.info("Export of client {} with cost {} rejected because {}", ticket.client, ticket.cost, reason);
+        return new ExportRejectedException("Too many exports, the export was rejected because " + reason,
+                                           retryAfterSeconds);
+    }
+
+    /**
+     * Stops the timer of the queue. The exports still queued are not rejected anymore when they wait too long
+     */
+    public void shutdown() {
+        if (queueTimer != null) {
+            queueTimer.shutdownNow();
+        }
+    }
+
+    public synchronized int getQueuedExports() {
+        return queue.size();
+    }
+
+    public synchronized int getRunningExports() {
+        return runningExports;
+    }
+
+    public synchronized long getInFlightCost() {
+        return inFlightCost;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder(METRICS_PREFIX + ".running", this, ExportScheduler::getRunningExports)
+             .description("Exports running")
+             .register(registry);
+        Gauge.builder(METRICS_PREFIX + ".queued", this, ExportScheduler::getQueuedExports)
+             .description("Exports waiting in the queue")
+             .register(registry);
+        Gauge.builder(METRICS_PREFIX + ".in.flight.variants", this, ExportScheduler::getInFlightCost)
+             .description("Variants that the running exports are expected to return")
+             .register(registry);
+    }
+
+    private static class Ticket {
+
+        private final String client;
+
+        private final long cost;
+
+        private final CompletableFuture<Permit> admission;
+
+        /**
+         * Only accessed with the lock of the scheduler
+         */
+        private boolean admitted;
+
+        private volatile ScheduledFuture<?> timeout;
+
+        Ticket(String client, long cost) {
+            this.client = client;
+            this.cost = cost;
+            this.admission = new CompletableFuture<>();
+        }
+    }
+
+    /**
+     * Admission of an export, which stops counting against the limits of the scheduler when closed. Closing it more
+     * than once has no effect
+     */
+    public final class Permit implements AutoCloseable {
+
+        private final Ticket ticket;
+
+        private boolean closed;
+
+        private Permit(Ticket ticket) {
+            this.ticket = ticket;
+        }
+
+        @Override
+        public void close() {
+            List<Ticket> admittedTickets = Collections.emptyList();
+            synchronized (ExportScheduler.this) {
+                if (!closed) {
+                    closed = true;
+                    admittedTickets = release(ticket);
+                }
+            }
+            completeAdmissions(admittedTickets);
+        }
+    }
+}
@@ -0,0 +1,432 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.server.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Cache of the responses of the htsget block endpoint, so the blocks requested again are not exported from the
+ * database every time.
+ *
+ * The payloads are stored gzip compressed in a directory, and the least recently used ones are deleted when the
+ * directory grows over its maximum size. The most recently used payloads are also kept in memory, up to another
+ * maximum size. The directory is reused after a restart. Keys include the version of the data of the studies, so
+ * the blocks of a study are exported again after its data changes, and the old ones are eventually evicted.
+ *
+ * Every payload is a single gzip member, whose trailer holds the length of the block modulo 2^32, so blocks of 4 GiB
+ * or more are not cached and the trailer gives the exact length of the cached ones without decompressing them.
+ */
+public class HtsgetBlockCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(HtsgetBlockCache.class);
+
+    static final String PAYLOAD_EXTENSION = ".vcf.gz";
+
+    private static final String TEMPORARY_EXTENSION = ".tmp";
+
+    /**
+     * Fraction of the memory tier that a single payload can take, so a few big blocks don't evict all the others
+     */
+    private static final int MEMORY_ENTRIES_PER_PAYLOAD = 16;
+
+    /**
+     * Size of the field of the gzip trailer with the length of the uncompressed data
+     */
+    private static final int GZIP_LENGTH_FIELD_SIZE = 4;
+
+    private static final long MAX_CACHED_BLOCK_LENGTH = (1L << 32) - 1;
+
+    private final Path directory;
+
+    private final long maxDiskBytes;
+
+    private final long maxMemoryBytes;
+
+    /**
+     * File names of the payloads on disk and their sizes, from the least to the most recently used
+     */
+    private final LinkedHashMap<String, Long> diskEntries;
+
+    private long diskBytes;
+
+    /**
+     * Payloads kept in memory by file name, from the least to the most recently used
+     */
+    private final LinkedHashMap<String, byte[]> memoryEntries;
+
+    private long memoryBytes;
+
+    /**
+     * @param maxDiskBytes maximum size of the payloads stored in the directory
+     * @param maxMemoryBytes maximum size of the payloads kept in memory, or 0 to read all of them from disk
+     */
+    public HtsgetBlockCache(Path directory, long maxDiskBytes, long maxMemoryBytes) throws IOException {
+        if (maxDiskBytes <= 0) {
+            throw new IllegalArgumentException("'maxDiskBytes' must be greater than 0");
+        }
+        if (maxMemoryBytes < 0) {
+            throw new IllegalArgumentException("'maxMemoryBytes' can't be negative");
+        }
+        this.directory = directory;
+        this.maxDiskBytes = maxDiskBytes;
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.diskEntries = new LinkedHashMap<>(16, 0.75f, true);
+        this.memoryEntries = new LinkedHashMap<>(16, 0.75f, true);
+        Files.createDirectories(directory);
+        loadDiskEntries();
+    }
+
+    /**
+     * Registers the payloads left in the directory by previous executions, considering the most recently modified
+     * as the most recently used
+     */
+    private void loadDiskEntries() throws IOException {
+        List<Path> files;
+        try (Stream<Path> directoryFiles = Files.list(directory)) {
+            files = directoryFiles.collect(Collectors.toList());
+        }
+        Map<Path, Long> payloadsLastModified = new LinkedHashMap<>();
+        for (Path file : files) {
+            String fileName = file.getFileName().toString();
+            if (fileName.endsWith(TEMPORARY_EXTENSION)) {
+                // payload of an export that didn't finish
+                Files.deleteIfExists(file);
+            } else if (fileName.endsWith(PAYLOAD_EXTENSION)) {
+                payloadsLastModified.put(file, Files.getLastModifiedTime(file).toMillis());
+            }
+        }
+        List<Path> payloads = payloadsLastModified.entrySet().stream()
+                                                  .sorted(Map.Entry.comparingByValue())
+                                                  .map(Map.Entry::getKey)
+                                                  .collect(Collectors.toList());
+        synchronized (this) {
+            for (Path payload : payloads) {
+                long size = Files.size(payload);
+                diskEntries.put(payload.getFileName().toString(), size);
+                diskBytes += size;
+            }
+            evictFromDisk();
+        }
+        logger.info("htsget block cache in {} loaded with {} blocks", directory, diskEntries.size());
+    }
+
+    /**
+     * @return the block, or empty if it is not in the cache
+     */
+    public Optional<CachedBlock> get(HtsgetBlockKey key) throws IOException {
+        String fileName = getPayloadFileName(key);
+        long size;
+        long length;
+        InputStream payloadStream;
+        synchronized (this) {
+            byte[] payload = memoryEntries.get(fileName);
+            if (payload != null) {
+                // keeps the file as recently used, so it isn't evicted from disk while it's hot
+                diskEntries.get(fileName);
+                return Optional.of(new CachedBlock(new ByteArrayInputStream(payload), getLength(payload)));
+            }
+            Long diskSize = diskEntries.get(fileName);
+            if (diskSize == null) {
+                return Optional.empty();
+            }
+            // the file can be read even if it's evicted after opening it
+            size = diskSize;
+            length = getLength(directory.resolve(fileName), size);
+            payloadStream = Files.newInputStream(directory.resolve(fileName));
+        }
+
+        if (!fitsInMemory(size)) {
+            return Optional.of(new CachedBlock(payloadStream, length));
+        }
+        byte[] payload = readPayload(payloadStream, size);
+        synchronized (this) {
+            if (diskEntries.containsKey(fileName)) {
+                addToMemory(fileName, payload);
+            }
+        }
+        return Optional.of(new CachedBlock(new ByteArrayInputStream(payload), length));
+    }
+
+    private static long getLength(byte[] payload) {
+        return ByteBuffer.wrap(payload, payload.length - GZIP_LENGTH_FIELD_SIZE, GZIP_LENGTH_FIELD_SIZE)
+                         .order(ByteOrder.LITTLE_ENDIAN).getInt() & MAX_CACHED_BLOCK_LENGTH;
+    }
+
+    private static long getLength(Path payload, long size) throws IOException {
+        ByteBuffer lengthField = ByteBuffer.allocate(GZIP_LENGTH_FIELD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        try (FileChannel channel = FileChannel.open(payload, StandardOpenOption.READ)) {
+            while (lengthField.hasRemaining()) {
+                if (channel.read(lengthField, size - lengthField.remaining()) < 0) {
+                    throw new IOException("Cached htsget block " + payload + " is truncated");
+                }
+            }
+        }
+        lengthField.flip();
+        return lengthField.getInt() & MAX_CACHED_BLOCK_LENGTH;
+    }
+
+    /**
+     * @param outputStream stream where the block is exported
+     * @return stream that writes to the given stream and keeps a copy of the data, which is added to the cache when the
+     * stream is closed unless {@link CachingOutputStream#abort()} is called before
+     */
+    public CachingOutputStream put(HtsgetBlockKey key, OutputStream outputStream) {
+        return new CachingOutputStream(key, outputStream);
+    }
+
+    private String getPayloadFileName(HtsgetBlockKey key) {
+        return key.getFileName() + PAYLOAD_EXTENSION;
+    }
+
+    private boolean fitsInMemory(long size) {
+        return size <= maxMemoryBytes / MEMORY_ENTRIES_PER_PAYLOAD;
+    }
+
+    private byte[] readPayload(InputStream payloadStream, long size) throws IOException {
+        try (InputStream inputStream = payloadStream) {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream((int) size);
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                payload.write(buffer, 0, read);
+            }
+            return payload.toByteArray();
+        }
+    }
+
+    private synchronized void add(String fileName, Path temporaryPayload) throws IOException {
+        long size = Files.size(temporaryPayload);
+        Files.move(temporaryPayload, directory.resolve(fileName), StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+        Long previousSize = diskEntries.put(fileName, size);
+        diskBytes += size - (previousSize == null ? 0 : previousSize);
+        removeFromMemory(fileName);
+        evictFromDisk();
+    }
+
+    private void addToMemory(String fileName, byte[] payload) {
+        removeFromMemory(fileName);
+        memoryEntries.put(fileName, payload);
+        memoryBytes += payload.length;
+        Iterator<Map.Entry<String, byte[]>> leastRecentlyUsed = memoryEntries.entrySet().iterator();
+        while (memoryBytes > maxMemoryBytes && leastRecentlyUsed.hasNext()) {
+            memoryBytes -= leastRecentlyUsed.next().getValue().length;
+            leastRecentlyUsed.remove();
+        }
+    }
+
+    private void removeFromMemory(String fileName) {
+        byte[] payload = memoryEntries.remove(fileName);
+        if (payload != null) {
+            memoryBytes -= payload.length;
+        }
+    }
+
+    private void evictFromDisk() {
+        Iterator<Map.Entry<String, Long>> leastRecentlyUsed = diskEntries.entrySet().iterator();
+        while (diskBytes > maxDiskBytes && leastRecentlyUsed.hasNext()) {
+            Map.Entry<String, Long> entry = leastRecentlyUsed.next();
+            String fileName = entry.getKey();
+            try {
+                Files.deleteIfExists(directory.resolve(fileName));
+            } catch (IOException e) {
+                logger.warn("Cached htsget block {} could not be deleted: {}", fileName, e.getMessage());
+            }
+            diskBytes -= entry.getValue();
+            leastRecentlyUsed.remove();
+            removeFromMemory(fileName);
+        }
+    }
+
+    /**
+     * Block found in the cache
+     */
+    public static class CachedBlock implements Closeable {
+
+        private final InputStream payload;
+
+        private final long length;
+
+        CachedBlock(InputStream payload, long length) {
+            this.payload = payload;
+            this.length = length;
+        }
+
+        /**
+         * @return the gzip compressed payload of the block
+         */
+        public InputStream getPayload() {
+            return payload;
+        }
+
+        /**
+         * @return the length of the uncompressed block
+         */
+        public long getLength() {
+            return length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            payload.close();
+        }
+    }
+
+    /**
+     * Copies the exported block into a temporary file, that becomes a cache entry when the export finishes. Errors
+     * writing the copy are logged and only stop the caching, they don't affect the response
+     */
+    public class CachingOutputStream extends OutputStream {
+
+        private final HtsgetBlockKey key;
+
+        private final OutputStream outputStream;
+
+        private Path temporaryPayload;
+
+        private OutputStream payloadStream;
+
+        private long length;
+
+        private CachingOutputStream(HtsgetBlockKey key, OutputStream outputStream) {
+            this.key = key;
+            this.outputStream = outputStream;
+            try {
+                temporaryPayload = Files.createTempFile(directory, key.getFileName(), TEMPORARY_EXTENSION);
+                payloadStream = new GZIPOutputStream(new BufferedOutputStream(
+                        Files.newOutputStream(temporaryPayload)));
+            } catch (IOException e) {
+                stopCaching(e);
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            outputStream.write(b);
+            if (payloadStream != null) {
+                try {
+                    checkLength(1);
+                    payloadStream.write(b);
+                } catch (IOException e) {
+                    stopCaching(e);
+                }
+            }
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            outputStream.write(bytes, offset, length);
+            if (payloadStream != null) {
+                try {
+                    checkLength(length);
+                    payloadStream.write(bytes, offset, length);
+                } catch (IOException e) {
+                    stopCaching(e);
+                }
+            }
+        }
+
+        private void checkLength(int written) throws IOException {
+            length += written;
+            if (length > MAX_CACHED_BLOCK_LENGTH) {
+                throw new IOException("the block is too big to know its length from the gzip trailer");
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            outputStream.flush();
+        }
+
+        /**
+         * Closes the response stream and adds the block to the cache
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                outputStream.close();
+            } catch (IOException e) {
+                abort();
+                throw e;
+            }
+            if (payloadStream != null) {
+                try {
+                    payloadStream.close();
+                    payloadStream = null;
+                    add(getPayloadFileName(key), temporaryPayload);
+                    temporaryPayload = null;
+                    logger.debug("htsget block {} added to the cache", key);
+                } catch (IOException e) {
+                    stopCaching(e);
+                }
+            }
+        }
+
+        /**
+         * Discards the copy of the block, because the export failed
+         */
+        public void abort() {
+            discardPayload();
+        }
+
+        private void stopCaching(IOException e) {
+            logger.warn("htsget block {} won't be cached: {}", key, e.getMessage());
+            discardPayload();
+        }
+
+        private void discardPayload() {
+            if (payloadStream != null) {
+                try {
+                    payloadStream.close();
+                } catch (IOException e) {
+                    // the payload is going to be deleted anyway
+                }
+                payloadStream = null;
+            }
+            if (temporaryPayload != null) {
+                try {
+                    Files.deleteIfExists(temporaryPayload);
+                } catch (IOException e) {
+                    logger.warn("Temporary file {} could not be deleted: {}", temporaryPayload, e.getMessage());
+                }
+            }
+        }
+    }
+}
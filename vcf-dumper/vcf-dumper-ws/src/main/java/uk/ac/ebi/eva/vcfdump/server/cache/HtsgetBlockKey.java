@@ -0,0 +1,109 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.server.cache;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Identifies an htsget block: the database, the studies and the region requested, and the version of the data of
+ * those studies when the block was exported
+ */
+public class HtsgetBlockKey {
+
+    private final String dbName;
+
+    private final List<String> studies;
+
+    private final String region;
+
+    private final String dataVersion;
+
+    public HtsgetBlockKey(String dbName, List<String> studies, String region, String dataVersion) {
+        this.dbName = dbName;
+        // the same studies requested in a different order produce the same block
+        List<String> sortedStudies = new ArrayList<>(studies);
+        Collections.sort(sortedStudies);
+        this.studies = Collections.unmodifiableList(sortedStudies);
+        this.region = region;
+        this.dataVersion = dataVersion;
+    }
+
+    public String getDbName() {
+        return dbName;
+    }
+
+    public List<String> getStudies() {
+        return studies;
+    }
+
+    public String getRegion() {
+        return region;
+    }
+
+    public String getDataVersion() {
+        return dataVersion;
+    }
+
+    /**
+     * @return a name for the cached block that can be used in any file system, derived from all the fields of the key
+     */
+    String getFileName() {
+        String key = dbName + "\n" + String.join(",", studies) + "\n" + region + "\n" + dataVersion;
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder fileName = new StringBuilder();
+            for (byte digestByte : digest) {
+                fileName.append(String.format("%02x", digestByte));
+            }
+            return fileName.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        HtsgetBlockKey that = (HtsgetBlockKey) o;
+        return dbName.equals(that.dbName) && studies.equals(that.studies) && region.equals(that.region)
+                && dataVersion.equals(that.dataVersion);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = dbName.hashCode();
+        result = 31 * result + studies.hashCode();
+        result = 31 * result + region.hashCode();
+        result = 31 * result + dataVersion.hashCode();
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return dbName + " " + studies + " " + region;
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.server.configuration;
+
+import org.springframework.core.task.TaskDecorator;
+
+/**
+ * Makes a task run against the same database that was selected in the thread that created it.
+ *
+ * The database is chosen per thread in {@link MultiMongoDbFactory}, so the threads that query regions in parallel
+ * would use the default database unless the name is copied to them.
+ */
+public class DatabaseNameTaskDecorator implements TaskDecorator {
+
+    @Override
+    public Runnable decorate(Runnable runnable) {
+        String databaseName = MultiMongoDbFactory.getDatabaseNameForCurrentThread();
+        return () -> {
+            MultiMongoDbFactory.setDatabaseNameForCurrentThread(databaseName);
+            try {
+                runnable.run();
+            } finally {
+                MultiMongoDbFactory.clearDatabaseNameForCurrentThread();
+            }
+        };
+    }
+}
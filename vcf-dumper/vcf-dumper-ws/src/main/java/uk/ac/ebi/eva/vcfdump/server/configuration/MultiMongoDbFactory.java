@@ -56,6 +56,13 @@ public class MultiMongoDbFactory extends SimpleMongoDbFactory {
         dbName.set(databaseName);
     }
 
+    /**
+     * @return the DB selected for the current thread, or null if the default one is being used
+     */
+    public static String getDatabaseNameForCurrentThread() {
+        return dbName.get();
+    }
+
     public static void clearDatabaseNameForCurrentThread() {
         if (logger.isDebugEnabled()) {
             logger.debug("Removing database [" + dbName.get() + "]");
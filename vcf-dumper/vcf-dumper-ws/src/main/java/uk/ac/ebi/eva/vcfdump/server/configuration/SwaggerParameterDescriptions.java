@@ -33,6 +33,10 @@ public class SwaggerParameterDescriptions {
     public static final String REGION_DESCRIPTION = "Comma separated genomic regions in the format chr:start-end, " +
             "e.g. 1:3000000-3001000";
 
+    public static final String REGION_LIST_DESCRIPTION = "Genomic regions in BED format, one per line with the " +
+            "chromosome, start (0-based inclusive) and end (0-based exclusive) separated by tabs or spaces, " +
+            "e.g. '1 2999999 3001000'";
+
     public static final String ANNOTATION_CONSEQUENCE_TYPE_DESCRIPTION = "Retrieve only variants with exactly this " +
             "consequence type (as stated by Ensembl VEP)";
 
@@ -45,9 +49,17 @@ public class SwaggerParameterDescriptions {
     public static final String SIFT_DESCRIPTION = "SIFT score (as stated by Ensembl VEP) comparison criterion, " +
             "e.g. '<0.1', '>=0.1'";
 
-    public static final String REFERENCE_ALLELE_DESCRIPTION = "Reference allele, e.g. A";
+    public static final String REFERENCE_ALLELE_DESCRIPTION = "Reference allele (separate with comma for " +
+            "multiple alleles), e.g. A";
+
+    public static final String ALTERNATE_ALLELE_DESCRIPTION = "Alternate allele (separate with comma for " +
+            "multiple alleles), e.g. T";
 
-    public static final String ALTERNATE_ALLELE_DESCRIPTION = "Alternate allele, e.g. T";
+    public static final String MISSING_ALLELES_DESCRIPTION = "Number of missing alleles comparison criterion, " +
+            "e.g. '0', '<=2'";
+
+    public static final String MISSING_GENOTYPES_DESCRIPTION = "Number of missing genotypes comparison criterion, " +
+            "e.g. '0', '<=2'";
 
     public static final String FORMAT_DESCRIPTION = "Format in which the data will be represented, e.g. VCF";
 
@@ -57,4 +69,6 @@ public class SwaggerParameterDescriptions {
     public static final String START_POSITION_DESCRIPTION = "Start position (0-based inclusive), e.g. 3000000";
 
     public static final String END_POSITION_DESCRIPTION = "End position  (0-based exclusive), e.g. 3010000";
+
+    public static final String COMPRESS_DESCRIPTION = "Whether the VCF should be compressed in BGZF format";
 }
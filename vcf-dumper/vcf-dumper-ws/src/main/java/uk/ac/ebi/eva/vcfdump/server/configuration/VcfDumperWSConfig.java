@@ -1,7 +1,9 @@
 package uk.ac.ebi.eva.vcfdump.server.configuration;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.data.mongodb.core.MongoOperations;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
 import org.springframework.web.servlet.config.annotation.EnableWebMvc;
@@ -15,6 +17,18 @@ import springfox.documentation.spi.DocumentationType;
 import springfox.documentation.spring.web.plugins.Docket;
 import springfox.documentation.swagger2.annotations.EnableSwagger2;
 
+import uk.ac.ebi.eva.vcfdump.VariantExporterController;
+import uk.ac.ebi.eva.vcfdump.VcfHeaderCache;
+import uk.ac.ebi.eva.vcfdump.configuration.EvaProperties;
+import uk.ac.ebi.eva.vcfdump.metrics.ExportMetrics;
+import uk.ac.ebi.eva.vcfdump.server.admission.ExportPermitInterceptor;
+import uk.ac.ebi.eva.vcfdump.server.admission.ExportScheduler;
+import uk.ac.ebi.eva.vcfdump.services.ChromosomeExtentService;
+import uk.ac.ebi.eva.vcfdump.services.VariantDataVersionService;
+import uk.ac.ebi.eva.vcfdump.services.VariantHistogramCache;
+
+import java.io.IOException;
+
 @Configuration
 @EnableWebMvc
 @EnableSwagger2
@@ -31,11 +45,113 @@ public class VcfDumperWSConfig extends WebMvcConfigurerAdapter {
         return pool;
     }
 
+    /**
+     * Name of the pool of threads shared by all the exports to query and convert their regions concurrently
+     */
+    public static final String REGION_EXPORT_EXECUTOR = "regionExportExecutor";
+
+    private static final int DEFAULT_PARALLELISM = 1;
+
+    /**
+     * Name of the pool of threads shared by all the exports to compress the BGZF blocks of their output
+     */
+    public static final String COMPRESSION_EXECUTOR = "compressionExecutor";
+
+    private static final int DEFAULT_COMPRESSION_THREADS = 1;
+
+    @Bean
+    public EvaProperties evaProperties() throws IOException {
+        return EvaProperties.load();
+    }
+
+    /**
+     * A single bounded pool for all the requests, so the number of threads and database cursors used to export
+     * regions concurrently doesn't grow with the number of requests. The exports only use it if
+     * 'eva.export.parallelism' is greater than 1, and then the pool has that many threads
+     */
+    @Bean(name = REGION_EXPORT_EXECUTOR)
+    public ThreadPoolTaskExecutor regionExportExecutor(EvaProperties evaProperties) {
+        int parallelism = evaProperties.getInt(VariantExporterController.PARALLELISM_PROPERTY, DEFAULT_PARALLELISM);
+        ThreadPoolTaskExecutor pool = new ThreadPoolTaskExecutor();
+        pool.setCorePoolSize(parallelism);
+        pool.setMaxPoolSize(parallelism);
+        pool.setThreadNamePrefix("region-export-");
+        return pool;
+    }
+
+    /**
+     * A single bounded pool that compresses the output of all the requests, instead of a pool for every compressed
+     * response. The exports only use it if 'eva.export.compression-threads' is greater than 1, and then the pool has
+     * that many threads. Otherwise every response is compressed by the thread that writes it
+     */
+    @Bean(name = COMPRESSION_EXECUTOR)
+    public ThreadPoolTaskExecutor compressionExecutor(EvaProperties evaProperties) {
+        int compressionThreads = evaProperties.getInt(VariantExporterController.COMPRESSION_THREADS_PROPERTY,
+                                                      DEFAULT_COMPRESSION_THREADS);
+        ThreadPoolTaskExecutor pool = new ThreadPoolTaskExecutor();
+        pool.setCorePoolSize(compressionThreads);
+        pool.setMaxPoolSize(compressionThreads);
+        pool.setThreadNamePrefix("bgzf-compression-");
+        return pool;
+    }
+
+    /**
+     * Scheduler shared by all the controllers that export variants, so its limits apply to the whole web service
+     */
+    @Bean
+    public ExportScheduler exportScheduler(EvaProperties evaProperties) {
+        return ExportScheduler.fromProperties(evaProperties);
+    }
+
+    @Bean
+    public VariantDataVersionService variantDataVersionService(MongoOperations mongoOperations) {
+        return new VariantDataVersionService(mongoOperations);
+    }
+
+    /**
+     * Catalogue of the chromosome extents shared by all the controllers, so the variants of a study are aggregated
+     * once for the whole web service
+     */
+    @Bean
+    public ChromosomeExtentService chromosomeExtentService(MongoOperations mongoOperations) {
+        return new ChromosomeExtentService(mongoOperations);
+    }
+
+    /**
+     * Merged VCF headers shared by all the controllers, so the blocks of an htsget request reuse the header prepared
+     * for the segments of the same studies and the other way round
+     */
+    @Bean
+    public VcfHeaderCache vcfHeaderCache(VariantDataVersionService variantDataVersionService,
+                                         EvaProperties evaProperties) {
+        return new VcfHeaderCache(variantDataVersionService, evaProperties.getHeaderCacheSize());
+    }
+
+    /**
+     * Histograms of variants by bin shared by all the htsget tickets, so the tickets of the same range are balanced
+     * with a single aggregation until the files of the studies change
+     */
+    @Bean
+    public VariantHistogramCache variantHistogramCache(VariantDataVersionService variantDataVersionService,
+                                                       EvaProperties evaProperties) {
+        return new VariantHistogramCache(variantDataVersionService, evaProperties.getHistogramCacheSize());
+    }
+
+    /**
+     * Metrics of the exports, published by the actuator endpoints of the web service
+     */
+    @Bean
+    public ExportMetrics exportMetrics(MeterRegistry meterRegistry) {
+        return new ExportMetrics(meterRegistry);
+    }
+
     @Override
     public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
         configurer.setTaskExecutor(mvcAsyncThreadPool());
         long milliseconds = 300000L;
         configurer.setDefaultTimeout(milliseconds);
+        // the exports admitted by the scheduler release their permit even if their response body never runs
+        configurer.registerCallableInterceptors(new ExportPermitInterceptor());
     }
 
     @Override
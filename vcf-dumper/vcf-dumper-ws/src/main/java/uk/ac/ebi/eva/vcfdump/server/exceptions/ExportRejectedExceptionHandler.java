@@ -0,0 +1,48 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.server.exceptions;
+
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+
+import uk.ac.ebi.eva.vcfdump.server.admission.ExportRejectedException;
+import uk.ac.ebi.eva.vcfdump.server.rest.HtsgetVcfController;
+import uk.ac.ebi.eva.vcfdump.server.rest.VcfDumperController;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Tells the clients whose exports were rejected by the scheduler when they can try again. It takes precedence over
+ * {@link GlobalExceptionHandler}, which would report them as server errors.
+ *
+ * The error is sent by the servlet container, because the exports don't produce JSON responses
+ */
+@ControllerAdvice(assignableTypes = {VcfDumperController.class, HtsgetVcfController.class})
+@Order(Ordered.HIGHEST_PRECEDENCE)
+public class ExportRejectedExceptionHandler {
+
+    @ExceptionHandler(ExportRejectedException.class)
+    public void handleExportRejectedException(ExportRejectedException e, HttpServletResponse response)
+            throws IOException {
+        response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()));
+        response.sendError(HttpStatus.TOO_MANY_REQUESTS.value(), e.getMessage());
+    }
+}
@@ -25,6 +25,7 @@ import org.springframework.web.bind.annotation.ControllerAdvice;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.context.request.async.AsyncRequestTimeoutException;
 
+import uk.ac.ebi.eva.vcfdump.InvalidQueryException;
 import uk.ac.ebi.eva.vcfdump.VariantExporter;
 import uk.ac.ebi.eva.vcfdump.server.rest.VcfDumperController;
 
@@ -50,6 +51,17 @@ public class GlobalExceptionHandler {
         }
     }
 
+    /**
+     * The parameters are validated before the response starts in a few cases, like the region list of a batch export.
+     * Only those are bad requests: any other illegal argument is a failure of the web service
+     */
+    @ExceptionHandler(InvalidQueryException.class)
+    public final ResponseEntity<ApiError> handleInvalidQueryException(InvalidQueryException e) {
+        logger.info("Rejected invalid request: {}", e.getMessage());
+        return new ResponseEntity<>(new ApiError(e.getMessage(), "Invalid request"), new HttpHeaders(),
+                                    HttpStatus.BAD_REQUEST);
+    }
+
     private ResponseEntity<ApiError> handleAsyncRequestTimeoutException(AsyncRequestTimeoutException e,
                                                                         HttpHeaders headers, HttpStatus status) {
         logger.error("Caught timeout exception: {}", e.getMessage());
@@ -58,7 +70,8 @@ public class GlobalExceptionHandler {
 
     private ResponseEntity<ApiError> handleException(Exception e, HttpHeaders headers, HttpStatus status) {
         logger.error("Caught generic exception: {}", e.getMessage());
-        return new ResponseEntity<>(new ApiError(e.getMessage(), e.getCause().getMessage()), headers, status);
+        String cause = e.getCause() == null ? null : e.getCause().getMessage();
+        return new ResponseEntity<>(new ApiError(e.getMessage(), cause), headers, status);
     }
 
     static class ApiError {
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.server.model;
+
+public class ExportSchedulerStatus {
+
+    private int runningExports;
+
+    private int queuedExports;
+
+    private long inFlightVariants;
+
+    public ExportSchedulerStatus() {
+    }
+
+    public ExportSchedulerStatus(int runningExports, int queuedExports, long inFlightVariants) {
+        this.runningExports = runningExports;
+        this.queuedExports = queuedExports;
+        this.inFlightVariants = inFlightVariants;
+    }
+
+    public int getRunningExports() {
+        return runningExports;
+    }
+
+    public void setRunningExports(int runningExports) {
+        this.runningExports = runningExports;
+    }
+
+    public int getQueuedExports() {
+        return queuedExports;
+    }
+
+    public void setQueuedExports(int queuedExports) {
+        this.queuedExports = queuedExports;
+    }
+
+    public long getInFlightVariants() {
+        return inFlightVariants;
+    }
+
+    public void setInFlightVariants(long inFlightVariants) {
+        this.inFlightVariants = inFlightVariants;
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.server.rest;
+
+import io.swagger.annotations.Api;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import uk.ac.ebi.eva.vcfdump.server.admission.ExportScheduler;
+import uk.ac.ebi.eva.vcfdump.server.model.ExportSchedulerStatus;
+
+@RestController
+@RequestMapping(value = "/v1/scheduler")
+@Api(tags = {"scheduler"})
+public class ExportSchedulerController {
+
+    private ExportScheduler exportScheduler;
+
+    public ExportSchedulerController(ExportScheduler exportScheduler) {
+        this.exportScheduler = exportScheduler;
+    }
+
+    /**
+     * Number of exports running and waiting in the queue of the scheduler, and the variants they are expected to
+     * return, to monitor the load of the web services
+     */
+    @RequestMapping(value = "/status", method = RequestMethod.GET, produces = "application/json")
+    public ExportSchedulerStatus getStatus() {
+        return new ExportSchedulerStatus(exportScheduler.getRunningExports(), exportScheduler.getQueuedExports(),
+                                         exportScheduler.getInFlightCost());
+    }
+}
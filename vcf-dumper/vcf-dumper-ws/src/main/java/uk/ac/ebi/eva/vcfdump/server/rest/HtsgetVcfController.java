@@ -17,14 +17,20 @@ package uk.ac.ebi.eva.vcfdump.server.rest;
 
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiParam;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.data.mongodb.core.MongoOperations;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.util.StreamUtils;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.context.request.async.DeferredResult;
 import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import uk.ac.ebi.eva.commons.core.models.Region;
@@ -32,20 +38,42 @@ import uk.ac.ebi.eva.commons.mongodb.services.VariantSourceService;
 import uk.ac.ebi.eva.commons.mongodb.services.VariantWithSamplesAndAnnotationsService;
 import uk.ac.ebi.eva.vcfdump.QueryParams;
 import uk.ac.ebi.eva.vcfdump.VariantExporterController;
+import uk.ac.ebi.eva.vcfdump.VcfHeaderCache;
 import uk.ac.ebi.eva.vcfdump.configuration.DBAdaptorConnector;
+import uk.ac.ebi.eva.vcfdump.configuration.EvaProperties;
+import uk.ac.ebi.eva.vcfdump.metrics.ExportMetrics;
+import uk.ac.ebi.eva.vcfdump.server.admission.DeferredExport;
+import uk.ac.ebi.eva.vcfdump.server.admission.ExportCostEstimator;
+import uk.ac.ebi.eva.vcfdump.server.admission.ExportScheduler;
+import uk.ac.ebi.eva.vcfdump.server.cache.HtsgetBlockCache;
+import uk.ac.ebi.eva.vcfdump.server.cache.HtsgetBlockKey;
+import uk.ac.ebi.eva.vcfdump.server.configuration.DatabaseNameTaskDecorator;
 import uk.ac.ebi.eva.vcfdump.server.configuration.MultiMongoDbFactory;
+import uk.ac.ebi.eva.vcfdump.server.configuration.VcfDumperWSConfig;
 import uk.ac.ebi.eva.vcfdump.server.model.HtsGetError;
 import uk.ac.ebi.eva.vcfdump.server.model.HtsGetResponse;
+import uk.ac.ebi.eva.vcfdump.server.streaming.ByteRangeResponse;
+import uk.ac.ebi.eva.vcfdump.server.streaming.ExportETag;
+import uk.ac.ebi.eva.vcfdump.server.streaming.MeteredResponseBody;
+import uk.ac.ebi.eva.vcfdump.services.ChromosomeExtentService;
+import uk.ac.ebi.eva.vcfdump.services.VariantCoordinatesService;
+import uk.ac.ebi.eva.vcfdump.services.VariantDataVersionService;
+import uk.ac.ebi.eva.vcfdump.services.VariantHistogramCache;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URISyntaxException;
+import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.zip.GZIPInputStream;
 
 import static uk.ac.ebi.eva.vcfdump.server.configuration.SwaggerParameterDescriptions.END_POSITION_DESCRIPTION;
 import static uk.ac.ebi.eva.vcfdump.server.configuration.SwaggerParameterDescriptions.FORMAT_DESCRIPTION;
@@ -62,18 +90,113 @@ public class HtsgetVcfController {
 
     private static final String VCF = "VCF";
 
+    public static final String BLOCK_CACHE_DIRECTORY_PROPERTY = "eva.htsget.cache.directory";
+
+    public static final String BLOCK_CACHE_MAX_DISK_SIZE_PROPERTY = "eva.htsget.cache.max-disk-size-mb";
+
+    public static final String BLOCK_CACHE_MAX_MEMORY_SIZE_PROPERTY = "eva.htsget.cache.max-memory-size-mb";
+
+    public static final String TARGET_VARIANTS_PER_BLOCK_PROPERTY = "eva.htsget.target-variants-per-block";
+
+    private static final long BYTES_PER_MEGABYTE = 1024 * 1024;
+
+    private static final String GZIP_ENCODING = "gzip";
+
+    private static final String HEADERS_ENDPOINT = "htsget-headers";
+
+    private static final String BLOCK_ENDPOINT = "htsget-block";
+
+    private static final String CACHED_BLOCK_ENDPOINT = "htsget-cached-block";
+
+    private final EvaProperties exportProperties;
+
     private Properties evaProperties;
 
     private VariantSourceService variantSourceService;
 
     private VariantWithSamplesAndAnnotationsService variantService;
 
+    private VariantCoordinatesService variantCoordinatesService;
+
+    private VariantDataVersionService variantDataVersionService;
+
+    private HtsgetBlockCache blockCache;
+
+    private VcfHeaderCache headerCache;
+
+    private final Executor regionExportExecutor;
+
+    private final Executor compressionExecutor;
+
+    private ChromosomeExtentService chromosomeExtentService;
+
+    private VariantHistogramCache variantHistogramCache;
+
+    private ExportScheduler exportScheduler;
+
+    private ExportCostEstimator exportCostEstimator;
+
+    private final ExportMetrics exportMetrics;
+
+    /**
+     * Number of variants of the blocks in the htsget tickets. If 0, the blocks have 'eva.htsget.blocksize' bases
+     */
+    private int targetVariantsPerBlock;
+
     public HtsgetVcfController(VariantSourceService variantSourceService,
-                               VariantWithSamplesAndAnnotationsService variantService) throws IOException {
+                               VariantWithSamplesAndAnnotationsService variantService,
+                               MongoOperations mongoOperations, ExportScheduler exportScheduler,
+                               ExportMetrics exportMetrics, EvaProperties exportProperties,
+                               VariantDataVersionService variantDataVersionService, VcfHeaderCache headerCache,
+                               ChromosomeExtentService chromosomeExtentService,
+                               VariantHistogramCache variantHistogramCache,
+                               @Qualifier(VcfDumperWSConfig.REGION_EXPORT_EXECUTOR) Executor regionExportExecutor,
+                               @Qualifier(VcfDumperWSConfig.COMPRESSION_EXECUTOR) Executor compressionExecutor)
+            throws IOException {
         this.variantSourceService = variantSourceService;
         this.variantService = variantService;
-        evaProperties = new Properties();
-        evaProperties.load(VcfDumperController.class.getResourceAsStream("/eva.properties"));
+        this.exportScheduler = exportScheduler;
+        this.exportMetrics = exportMetrics;
+        this.variantCoordinatesService = new VariantCoordinatesService(mongoOperations);
+        this.variantDataVersionService = variantDataVersionService;
+        this.exportProperties = exportProperties;
+        evaProperties = exportProperties.getProperties();
+        blockCache = createBlockCache(exportProperties);
+        this.headerCache = headerCache;
+        this.regionExportExecutor = regionExportExecutor;
+        this.compressionExecutor = compressionExecutor;
+        this.chromosomeExtentService = chromosomeExtentService;
+        this.variantHistogramCache = variantHistogramCache;
+        exportCostEstimator = ExportCostEstimator.fromProperties(chromosomeExtentService, exportProperties);
+        setTargetVariantsPerBlock(exportProperties.getInt(TARGET_VARIANTS_PER_BLOCK_PROPERTY, 0));
+    }
+
+    void setTargetVariantsPerBlock(int targetVariantsPerBlock) {
+        if (targetVariantsPerBlock < 0) {
+            throw new IllegalArgumentException("'" + TARGET_VARIANTS_PER_BLOCK_PROPERTY + "' can't be negative");
+        }
+        this.targetVariantsPerBlock = targetVariantsPerBlock;
+    }
+
+    /**
+     * @param blockCache cache of the block responses, or null to export every block from the database
+     */
+    void setBlockCache(HtsgetBlockCache blockCache) {
+        this.blockCache = blockCache;
+    }
+
+    /**
+     * @return the cache of the block responses, or null if no cache directory is configured
+     */
+    private HtsgetBlockCache createBlockCache(EvaProperties exportProperties) throws IOException {
+        String directory = exportProperties.getString(BLOCK_CACHE_DIRECTORY_PROPERTY, null);
+        if (directory == null) {
+            return null;
+        }
+        long maxDiskSize = exportProperties.getLong(BLOCK_CACHE_MAX_DISK_SIZE_PROPERTY, 1024);
+        long maxMemorySize = exportProperties.getLong(BLOCK_CACHE_MAX_MEMORY_SIZE_PROPERTY, 64);
+        return new HtsgetBlockCache(Paths.get(directory), maxDiskSize * BYTES_PER_MEGABYTE,
+                                    maxMemorySize * BYTES_PER_MEGABYTE);
     }
 
     @RequestMapping(value = "/{id}", method = RequestMethod.GET, consumes = "application/*",
@@ -110,6 +233,10 @@ public class HtsgetVcfController {
                                                                              Arrays.asList(id.split(",")),
                                                                              evaProperties, new QueryParams(),
                                                                              blockSize);
+        controller.setHeaderCache(headerCache);
+        controller.setChromosomeExtentService(chromosomeExtentService);
+        controller.setVariantCoordinatesService(variantCoordinatesService);
+        controller.setVariantHistogramCache(variantHistogramCache);
 
         if (start == null) {
             start = controller.getCoordinateOfFirstVariant(referenceName);
@@ -122,7 +249,14 @@ public class HtsgetVcfController {
             return errorResponse.get();
         }
 
-        List<Region> regionList = controller.divideChromosomeInChunks(referenceName, start, end);
+        List<Region> regionList;
+        if (targetVariantsPerBlock > 0) {
+            // blocks with a similar number of variants, so the clients that download them in parallel get even work
+            regionList = controller.divideChromosomeInBalancedBlocks(referenceName, start, end,
+                                                                     targetVariantsPerBlock);
+        } else {
+            regionList = controller.divideChromosomeInChunks(referenceName, start, end);
+        }
         HtsGetResponse htsGetResponse = new HtsGetResponse(VCF, request.getServerName() + ":" + request.getServerPort(),
                                                            request.getContextPath(), id, referenceName, species,
                                                            regionList);
@@ -185,25 +319,62 @@ public class HtsgetVcfController {
         String dbName = DBAdaptorConnector.getDBName(species);
         StreamingResponseBody responseBody = getStreamingHeaderResponse(dbName, studies, evaProperties,
                                                                         new QueryParams(), response);
-        return responseBody;
+        return MeteredResponseBody.of(exportMetrics, HEADERS_ENDPOINT, responseBody);
     }
 
     @RequestMapping(value = "/block", method = RequestMethod.GET, produces = "application/octet-stream")
-    public StreamingResponseBody getHtsgetBlocks(
+    public DeferredResult<StreamingResponseBody> getHtsgetBlocks(
             @ApiParam(value = SPECIES_DESCRIPTION, required = true)
             @RequestParam(name = "species") String species,
             @ApiParam(value = STUDY_DESCRIPTION, required = true)
             @RequestParam(name = "studies") List<String> studies,
             @ApiParam(value = REGION_DESCRIPTION, required = true)
             @RequestParam(name = "region") String chrRegion,
-            HttpServletResponse response) {
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
 
         String dbName = DBAdaptorConnector.getDBName(species);
         QueryParams queryParameters = new QueryParams();
         queryParameters.setRegion(chrRegion);
-        StreamingResponseBody responseBody = getStreamingBlockResponse(dbName, studies, evaProperties, queryParameters,
-                                                                       response);
-        return responseBody;
+        MultiMongoDbFactory.setDatabaseNameForCurrentThread(dbName);
+        // the blocks only change when the data of the studies does, so the clients can revalidate them
+        String dataVersion = variantDataVersionService.getDataVersion(studies);
+        String etag = ExportETag.of(dbName, studies, queryParameters, false, dataVersion);
+        HtsgetBlockKey blockKey = null;
+        if (blockCache != null) {
+            // a block sent from the cache can be gzip encoded, so the encoding of all of them depends on the request
+            response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+            blockKey = new HtsgetBlockKey(dbName, studies, chrRegion, dataVersion);
+            Optional<HtsgetBlockCache.CachedBlock> cachedBlock = blockCache.get(blockKey);
+            if (cachedBlock.isPresent()) {
+                // only the stored blocks accept ranges, which are taken from the decompressed block, the same for all
+                // the clients, so a download can be resumed without exporting the block again
+                response.setHeader(HttpHeaders.ACCEPT_RANGES, ByteRangeResponse.BYTES_UNIT);
+                Optional<HttpRange> range = ByteRangeResponse.getRequestedRange(request, etag);
+                boolean gzipEncoded = !range.isPresent() && isGzipAccepted(request);
+                String cachedEtag = gzipEncoded ? ExportETag.gzipEncoded(etag) : etag;
+                if (new ServletWebRequest(request, response).checkNotModified(cachedEtag)) {
+                    cachedBlock.get().close();
+                    return null;
+                }
+                // the cached blocks don't query the database, so they don't need to be admitted by the scheduler
+                DeferredResult<StreamingResponseBody> result = new DeferredResult<>();
+                result.setResult(MeteredResponseBody.of(exportMetrics, CACHED_BLOCK_ENDPOINT,
+                                                        getCachedBlockResponse(dbName, cachedBlock.get(),
+                                                                               gzipEncoded, range, response)));
+                return result;
+            }
+        }
+        if (new ServletWebRequest(request, response).checkNotModified(etag)) {
+            return null;
+        }
+        HtsgetBlockKey exportedBlockKey = blockKey;
+        // the estimate only uses the extents already in the catalogue, so it doesn't query the database
+        long cost = exportCostEstimator.estimateVariants(dbName, studies, chrRegion);
+        return DeferredExport.admit(exportScheduler, request, cost, permit -> MeteredResponseBody.of(
+                exportMetrics, BLOCK_ENDPOINT, getStreamingBlockResponse(dbName, studies, evaProperties,
+                                                                         queryParameters, response, exportedBlockKey,
+                                                                         permit)));
     }
 
     private StreamingResponseBody getStreamingHeaderResponse(String dbName, List<String> studies,
@@ -218,6 +389,8 @@ public class HtsgetVcfController {
                 // tell the client that the file is an attachment, so it will download it instead of showing it
                 response.addHeader(HttpHeaders.CONTENT_DISPOSITION,
                                    "attachment;filename=" + controller.getOutputFileName());
+                controller.setHeaderCache(headerCache);
+                controller.setExportMetrics(exportMetrics);
                 controller.exportHeader();
             } catch (Exception e) {
                 throw new RuntimeException(e);
@@ -225,24 +398,89 @@ public class HtsgetVcfController {
         };
     }
 
+    /**
+     * @param blockKey key to add the exported block to the cache, or null to not cache it
+     * @param permit   admission of the export, which is closed when the block has been exported
+     */
     private StreamingResponseBody getStreamingBlockResponse(String dbName, List<String> studies,
                                                             Properties evaProperties,
                                                             QueryParams queryParameters,
-                                                            HttpServletResponse response) {
+                                                            HttpServletResponse response,
+                                                            HtsgetBlockKey blockKey,
+                                                            ExportScheduler.Permit permit) {
         return outputStream -> {
-            VariantExporterController controller;
             try {
-                MultiMongoDbFactory.setDatabaseNameForCurrentThread(dbName);
-                controller = new VariantExporterController(dbName, variantSourceService,
-                                                           variantService, studies, outputStream, evaProperties,
-                                                           queryParameters);
+                exportBlock(dbName, studies, evaProperties, queryParameters, response, blockKey, outputStream);
+            } finally {
+                permit.close();
+            }
+        };
+    }
+
+    private void exportBlock(String dbName, List<String> studies, Properties evaProperties,
+                             QueryParams queryParameters, HttpServletResponse response, HtsgetBlockKey blockKey,
+                             OutputStream outputStream) {
+        VariantExporterController controller;
+        HtsgetBlockCache.CachingOutputStream cachingOutputStream = null;
+        try {
+            MultiMongoDbFactory.setDatabaseNameForCurrentThread(dbName);
+            OutputStream blockOutputStream = outputStream;
+            if (blockKey != null) {
+                cachingOutputStream = blockCache.put(blockKey, outputStream);
+                blockOutputStream = cachingOutputStream;
+            }
+            controller = new VariantExporterController(dbName, variantSourceService,
+                                                       variantService, studies, blockOutputStream, evaProperties,
+                                                       queryParameters);
+            // tell the client that the file is an attachment, so it will download it instead of showing it
+            response.addHeader(HttpHeaders.CONTENT_DISPOSITION,
+                               "attachment;filename=" + controller.getOutputFileName());
+            controller.setTaskDecorator(new DatabaseNameTaskDecorator());
+            controller.setRegionExecutor(regionExportExecutor);
+            controller.setCompressionExecutor(compressionExecutor);
+            controller.setVariantCoordinatesService(variantCoordinatesService);
+            controller.setHeaderCache(headerCache);
+            controller.setChromosomeExtentService(chromosomeExtentService);
+            controller.setExportMetrics(exportMetrics);
+            controller.exportBlock();
+        } catch (Exception e) {
+            if (cachingOutputStream != null) {
+                cachingOutputStream.abort();
+            }
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Sends a block from the cache. The payload is compressed, so it's sent as it is to the clients that accept gzip
+     * encoded responses, and decompressed for the rest
+     *
+     * @param gzipEncoded whether the payload is sent compressed
+     * @param range       range of the decompressed block requested by the client, if any
+     */
+    private StreamingResponseBody getCachedBlockResponse(String dbName, HtsgetBlockCache.CachedBlock cachedBlock,
+                                                         boolean gzipEncoded, Optional<HttpRange> range,
+                                                         HttpServletResponse response) {
+        return outputStream -> {
+            try (InputStream payload = cachedBlock.getPayload()) {
                 // tell the client that the file is an attachment, so it will download it instead of showing it
                 response.addHeader(HttpHeaders.CONTENT_DISPOSITION,
-                                   "attachment;filename=" + controller.getOutputFileName());
-                controller.exportBlock();
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+                                   "attachment;filename=" + VariantExporterController.buildOutputFileName(dbName));
+                if (range.isPresent()) {
+                    ByteRangeResponse.send(range.get(), cachedBlock.getLength(), response, outputStream,
+                                           new GZIPInputStream(payload));
+                } else if (gzipEncoded) {
+                    response.addHeader(HttpHeaders.CONTENT_ENCODING, GZIP_ENCODING);
+                    StreamUtils.copy(payload, outputStream);
+                } else {
+                    StreamUtils.copy(new GZIPInputStream(payload), outputStream);
+                }
             }
         };
     }
+
+    private boolean isGzipAccepted(HttpServletRequest request) {
+        String acceptedEncodings = request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+        return acceptedEncodings != null && acceptedEncodings.contains(GZIP_ENCODING);
+    }
 }
@@ -17,35 +17,75 @@
  */
 package uk.ac.ebi.eva.vcfdump.server.rest;
 
+import io.micrometer.core.instrument.LongTaskTimer;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiParam;
 import org.apache.commons.lang.StringUtils;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.data.mongodb.core.MongoOperations;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.context.request.async.DeferredResult;
 import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import uk.ac.ebi.eva.commons.core.models.Region;
 import uk.ac.ebi.eva.commons.mongodb.services.VariantSourceService;
 import uk.ac.ebi.eva.commons.mongodb.services.VariantWithSamplesAndAnnotationsService;
+import uk.ac.ebi.eva.vcfdump.IncrementalVcfExport;
+import uk.ac.ebi.eva.vcfdump.InvalidQueryException;
 import uk.ac.ebi.eva.vcfdump.QueryParams;
 import uk.ac.ebi.eva.vcfdump.VariantExporterController;
+import uk.ac.ebi.eva.vcfdump.VcfHeaderCache;
 import uk.ac.ebi.eva.vcfdump.configuration.DBAdaptorConnector;
+import uk.ac.ebi.eva.vcfdump.configuration.EvaProperties;
+import uk.ac.ebi.eva.vcfdump.filter.ExportFilterBuilder;
+import uk.ac.ebi.eva.vcfdump.metrics.ExportMetrics;
+import uk.ac.ebi.eva.vcfdump.regionutils.BedRegionParser;
+import uk.ac.ebi.eva.vcfdump.server.admission.DeferredExport;
+import uk.ac.ebi.eva.vcfdump.server.admission.ExportCostEstimator;
+import uk.ac.ebi.eva.vcfdump.server.admission.ExportScheduler;
+import uk.ac.ebi.eva.vcfdump.server.configuration.DatabaseNameTaskDecorator;
 import uk.ac.ebi.eva.vcfdump.server.configuration.MultiMongoDbFactory;
+import uk.ac.ebi.eva.vcfdump.server.configuration.VcfDumperWSConfig;
+import uk.ac.ebi.eva.vcfdump.server.streaming.ExportETag;
+import uk.ac.ebi.eva.vcfdump.server.streaming.MeteredResponseBody;
+import uk.ac.ebi.eva.vcfdump.server.streaming.NonBlockingExportWriter;
+import uk.ac.ebi.eva.vcfdump.services.ChromosomeExtentService;
+import uk.ac.ebi.eva.vcfdump.services.VariantCoordinatesService;
+import uk.ac.ebi.eva.vcfdump.services.VariantDataVersionService;
 
+import javax.annotation.PreDestroy;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.URISyntaxException;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import static uk.ac.ebi.eva.vcfdump.server.configuration.SwaggerParameterDescriptions.ALTERNATE_ALLELE_DESCRIPTION;
 import static uk.ac.ebi.eva.vcfdump.server.configuration.SwaggerParameterDescriptions.ANNOTATION_CONSEQUENCE_TYPE_DESCRIPTION;
+import static uk.ac.ebi.eva.vcfdump.server.configuration.SwaggerParameterDescriptions.COMPRESS_DESCRIPTION;
 import static uk.ac.ebi.eva.vcfdump.server.configuration.SwaggerParameterDescriptions.MINOR_ALLELE_FREQUENCY_DESCRIPTION;
+import static uk.ac.ebi.eva.vcfdump.server.configuration.SwaggerParameterDescriptions.MISSING_ALLELES_DESCRIPTION;
+import static uk.ac.ebi.eva.vcfdump.server.configuration.SwaggerParameterDescriptions.MISSING_GENOTYPES_DESCRIPTION;
 import static uk.ac.ebi.eva.vcfdump.server.configuration.SwaggerParameterDescriptions.POLYPHEN_DESCRIPTION;
 import static uk.ac.ebi.eva.vcfdump.server.configuration.SwaggerParameterDescriptions.REFERENCE_ALLELE_DESCRIPTION;
 import static uk.ac.ebi.eva.vcfdump.server.configuration.SwaggerParameterDescriptions.REGION_DESCRIPTION;
+import static uk.ac.ebi.eva.vcfdump.server.configuration.SwaggerParameterDescriptions.REGION_LIST_DESCRIPTION;
 import static uk.ac.ebi.eva.vcfdump.server.configuration.SwaggerParameterDescriptions.SIFT_DESCRIPTION;
 import static uk.ac.ebi.eva.vcfdump.server.configuration.SwaggerParameterDescriptions.SPECIES_DESCRIPTION;
 import static uk.ac.ebi.eva.vcfdump.server.configuration.SwaggerParameterDescriptions.STUDY_LIST_DESCRIPTION;
@@ -55,22 +95,110 @@ import static uk.ac.ebi.eva.vcfdump.server.configuration.SwaggerParameterDescrip
 @Api(tags = {"segments"})
 public class VcfDumperController {
 
+    /**
+     * Streams the exports with the non-blocking IO of the servlet container, exporting them by chunks in a pool of
+     * threads shared by all the downloads, instead of using one thread of the MVC async pool per download
+     */
+    static final String NON_BLOCKING_STREAMING_PROPERTY = "eva.ws.non-blocking-streaming";
+
+    static final String EXPORT_THREADS_PROPERTY = "eva.ws.export-threads";
+
+    static final String DOWNLOAD_TIMEOUT_SECONDS_PROPERTY = "eva.ws.download-timeout-seconds";
+
+    static final String BATCH_MAX_REGIONS_PROPERTY = "eva.ws.batch.max-regions";
+
+    static final String BATCH_MAX_REGIONS_PER_QUERY_PROPERTY = "eva.ws.batch.max-regions-per-query";
+
+    private static final int DEFAULT_EXPORT_THREADS = 10;
+
+    private static final int DEFAULT_BATCH_MAX_REGIONS_PER_QUERY = 100;
+
+    private static final String SEGMENTS_ENDPOINT = "segments";
+
+    private static final String REGION_LIST_ENDPOINT = "segments-batch";
+
+    private final EvaProperties exportProperties;
+
     private Properties evaProperties;
 
     private VariantSourceService variantSourceService;
 
     private VariantWithSamplesAndAnnotationsService variantService;
 
+    private VariantCoordinatesService variantCoordinatesService;
+
+    private VariantDataVersionService dataVersionService;
+
+    private VcfHeaderCache headerCache;
+
+    private final Executor regionExportExecutor;
+
+    private final Executor compressionExecutor;
+
+    private ChromosomeExtentService chromosomeExtentService;
+
+    private ExportScheduler exportScheduler;
+
+    private ExportCostEstimator exportCostEstimator;
+
+    private final ExportMetrics exportMetrics;
+
+    private boolean nonBlockingStreaming;
+
+    private final long downloadTimeoutMillis;
+
+    private final int batchMaxRegions;
+
+    private final int batchMaxRegionsPerQuery;
+
+    private ExecutorService exportExecutor;
+
     public VcfDumperController(VariantSourceService variantSourceService,
-                               VariantWithSamplesAndAnnotationsService variantService) throws IOException {
+                               VariantWithSamplesAndAnnotationsService variantService,
+                               MongoOperations mongoOperations, ExportScheduler exportScheduler,
+                               ExportMetrics exportMetrics, EvaProperties exportProperties,
+                               VariantDataVersionService dataVersionService, VcfHeaderCache headerCache,
+                               ChromosomeExtentService chromosomeExtentService,
+                               @Qualifier(VcfDumperWSConfig.REGION_EXPORT_EXECUTOR) Executor regionExportExecutor,
+                               @Qualifier(VcfDumperWSConfig.COMPRESSION_EXECUTOR) Executor compressionExecutor) {
         this.variantSourceService = variantSourceService;
         this.variantService = variantService;
-        evaProperties = new Properties();
-        evaProperties.load(VcfDumperController.class.getResourceAsStream("/eva.properties"));
+        this.exportScheduler = exportScheduler;
+        this.exportMetrics = exportMetrics;
+        this.variantCoordinatesService = new VariantCoordinatesService(mongoOperations);
+        this.exportProperties = exportProperties;
+        evaProperties = exportProperties.getProperties();
+        this.dataVersionService = dataVersionService;
+        this.headerCache = headerCache;
+        this.regionExportExecutor = regionExportExecutor;
+        this.compressionExecutor = compressionExecutor;
+        this.chromosomeExtentService = chromosomeExtentService;
+        exportCostEstimator = ExportCostEstimator.fromProperties(chromosomeExtentService, exportProperties);
+        downloadTimeoutMillis = TimeUnit.SECONDS.toMillis(exportProperties.getLong(DOWNLOAD_TIMEOUT_SECONDS_PROPERTY,
+                                                                                   0));
+        batchMaxRegions = exportProperties.getInt(BATCH_MAX_REGIONS_PROPERTY, 0);
+        batchMaxRegionsPerQuery = exportProperties.getInt(BATCH_MAX_REGIONS_PER_QUERY_PROPERTY,
+                                                          DEFAULT_BATCH_MAX_REGIONS_PER_QUERY);
+        setNonBlockingStreaming(exportProperties.getBoolean(NON_BLOCKING_STREAMING_PROPERTY, false));
+    }
+
+    void setNonBlockingStreaming(boolean nonBlockingStreaming) {
+        this.nonBlockingStreaming = nonBlockingStreaming;
+        if (nonBlockingStreaming && exportExecutor == null) {
+            int exportThreads = exportProperties.getInt(EXPORT_THREADS_PROPERTY, DEFAULT_EXPORT_THREADS);
+            exportExecutor = Executors.newFixedThreadPool(exportThreads);
+        }
+    }
+
+    @PreDestroy
+    public void shutdownExportExecutor() {
+        if (exportExecutor != null) {
+            exportExecutor.shutdownNow();
+        }
     }
 
     @RequestMapping(value = "/{regionId}/variants", method = RequestMethod.GET)
-    public StreamingResponseBody getVariantsByRegionStreamingOutput(
+    public DeferredResult<StreamingResponseBody> getVariantsByRegionStreamingOutput(
             @ApiParam(value = REGION_DESCRIPTION, required = true)
             @PathVariable("regionId") String region,
             @ApiParam(value = SPECIES_DESCRIPTION, required = true)
@@ -89,43 +217,204 @@ public class VcfDumperController {
             @RequestParam(name = "ref", required = false, defaultValue = "") String reference,
             @ApiParam(value = ALTERNATE_ALLELE_DESCRIPTION)
             @RequestParam(name = "alt", required = false, defaultValue = "") String alternate,
+            @ApiParam(value = MISSING_ALLELES_DESCRIPTION)
             @RequestParam(name = "miss_alleles", required = false, defaultValue = "") String missingAlleles,
+            @ApiParam(value = MISSING_GENOTYPES_DESCRIPTION)
             @RequestParam(name = "miss_gts", required = false, defaultValue = "") String missingGenotypes,
             @RequestParam(name = "exclude", required = false) List<String> exclude,
-            HttpServletResponse response) {
+            @ApiParam(value = COMPRESS_DESCRIPTION)
+            @RequestParam(name = "compress", required = false, defaultValue = "false") boolean compress,
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
 
         QueryParams queryParameters = parseQueryParams(region, consequenceType, maf, polyphenScore, siftScore,
                                                        reference, alternate,missingAlleles, missingGenotypes, exclude);
 
         String dbName = DBAdaptorConnector.getDBName(species);
         MultiMongoDbFactory.setDatabaseNameForCurrentThread(dbName);
-        StreamingResponseBody responseBody = getStreamingResponseBody(dbName, studies, evaProperties,
-                                                                      queryParameters, response);
+        // the export only changes when the data of the studies does, so the clients can revalidate it. It's not
+        // stored, so byte ranges are not accepted: resuming would export everything again
+        String etag = ExportETag.of(dbName, studies, queryParameters, compress,
+                                    dataVersionService.getDataVersion(studies));
+        if (new ServletWebRequest(request, response).checkNotModified(etag)) {
+            return null;
+        }
+        // the estimate only uses the extents already in the catalogue, so it doesn't query the database
+        long cost = exportCostEstimator.estimateVariants(dbName, studies, region);
+        if (nonBlockingStreaming) {
+            // the response is sent by the non-blocking writer, so there is no body for Spring MVC to stream
+            startNonBlockingExport(dbName, studies, queryParameters, compress, cost, request, response);
+            return null;
+        }
+        return DeferredExport.admit(exportScheduler, request, cost, permit -> MeteredResponseBody.of(
+                exportMetrics, SEGMENTS_ENDPOINT, getStreamingResponseBody(dbName, studies, evaProperties,
+                                                                           queryParameters, compress, response,
+                                                                           permit)));
+    }
 
-        return responseBody;
+    /**
+     * Queues the export in the scheduler and sends it with the non-blocking writer once it's admitted. The servlet
+     * thread is released straight away, and the admission is given up if the download finishes before that
+     */
+    private void startNonBlockingExport(String dbName, List<String> studies, QueryParams queryParameters,
+                                        boolean compress, long cost, HttpServletRequest request,
+                                        HttpServletResponse response) throws IOException {
+        CompletableFuture<ExportScheduler.Permit> admission = exportScheduler.admitAsync(
+                exportScheduler.getClientId(request), cost);
+        LongTaskTimer.Sample streaming = exportMetrics.startStreaming(SEGMENTS_ENDPOINT);
+        Runnable onComplete = () -> {
+            ExportScheduler.releaseAdmission(admission);
+            streaming.stop();
+        };
+        NonBlockingExportWriter writer;
+        try {
+            writer = NonBlockingExportWriter.prepare(request.startAsync(), downloadTimeoutMillis, exportExecutor,
+                                                     dbName, outputStream -> startIncrementalExport(
+                                                             dbName, studies, queryParameters, compress, response,
+                                                             outputStream),
+                                                     onComplete);
+        } catch (IOException | RuntimeException e) {
+            onComplete.run();
+            throw e;
+        }
+        admission.whenComplete((permit, error) -> {
+            if (error == null) {
+                writer.start();
+            } else {
+                writer.reject(error);
+            }
+        });
+    }
+
+    /**
+     * Exports the variants of a list of regions, like the loci of a gene panel, into a single VCF. The regions are
+     * merged and sorted, and the regions of a chromosome are fetched with a few queries instead of one per region
+     */
+    @RequestMapping(value = "/variants", method = RequestMethod.POST, consumes = MediaType.TEXT_PLAIN_VALUE)
+    public DeferredResult<StreamingResponseBody> getVariantsByRegionListStreamingOutput(
+            @ApiParam(value = REGION_LIST_DESCRIPTION, required = true)
+            @RequestBody String regionList,
+            @ApiParam(value = SPECIES_DESCRIPTION, required = true)
+            @RequestParam(name = "species") String species,
+            @ApiParam(value = STUDY_LIST_DESCRIPTION, required = true)
+            @RequestParam(name = "studies") List<String> studies,
+            @ApiParam(value = ANNOTATION_CONSEQUENCE_TYPE_DESCRIPTION)
+            @RequestParam(name = "annot-ct", required = false) List<String> consequenceType,
+            @ApiParam(value = MINOR_ALLELE_FREQUENCY_DESCRIPTION)
+            @RequestParam(name = "maf", required = false) String maf,
+            @ApiParam(value = POLYPHEN_DESCRIPTION)
+            @RequestParam(name = "polyphen", required = false) String polyphenScore,
+            @ApiParam(value = SIFT_DESCRIPTION)
+            @RequestParam(name = "sift", required = false) String siftScore,
+            @ApiParam(value = REFERENCE_ALLELE_DESCRIPTION)
+            @RequestParam(name = "ref", required = false, defaultValue = "") String reference,
+            @ApiParam(value = ALTERNATE_ALLELE_DESCRIPTION)
+            @RequestParam(name = "alt", required = false, defaultValue = "") String alternate,
+            @ApiParam(value = MISSING_ALLELES_DESCRIPTION)
+            @RequestParam(name = "miss_alleles", required = false, defaultValue = "") String missingAlleles,
+            @ApiParam(value = MISSING_GENOTYPES_DESCRIPTION)
+            @RequestParam(name = "miss_gts", required = false, defaultValue = "") String missingGenotypes,
+            @RequestParam(name = "exclude", required = false) List<String> exclude,
+            @ApiParam(value = COMPRESS_DESCRIPTION)
+            @RequestParam(name = "compress", required = false, defaultValue = "false") boolean compress,
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+
+        // the regions are sorted and merged once, by the exporter when it plans the queries
+        List<Region> regions = new BedRegionParser(batchMaxRegions).parse(new StringReader(regionList));
+        if (regions.isEmpty()) {
+            throw new InvalidQueryException("The region list is empty");
+        }
+        QueryParams queryParameters = parseQueryParams(null, consequenceType, maf, polyphenScore, siftScore,
+                                                       reference, alternate, missingAlleles, missingGenotypes,
+                                                       exclude);
+
+        String dbName = DBAdaptorConnector.getDBName(species);
+        MultiMongoDbFactory.setDatabaseNameForCurrentThread(dbName);
+        long cost = exportCostEstimator.estimateVariants(dbName, studies, regions);
+        return DeferredExport.admit(exportScheduler, request, cost, permit -> MeteredResponseBody.of(
+                exportMetrics, REGION_LIST_ENDPOINT, outputStream -> {
+                    try {
+                        VariantExporterController controller = createExporterController(dbName, studies,
+                                                                                        evaProperties,
+                                                                                        queryParameters, compress,
+                                                                                        response, outputStream);
+                        controller.exportRegions(regions, batchMaxRegionsPerQuery);
+                    } catch (URISyntaxException e) {
+                        throw new RuntimeException(e);
+                    } finally {
+                        permit.close();
+                    }
+                }));
     }
 
     private StreamingResponseBody getStreamingResponseBody(String dbName, List<String> studies,
                                                             Properties evaProperties,
-                                                            QueryParams queryParameters,
-                                                            HttpServletResponse response) {
+                                                            QueryParams queryParameters, boolean compress,
+                                                            HttpServletResponse response,
+                                                            ExportScheduler.Permit permit) {
         return outputStream -> {
-            VariantExporterController controller;
             try {
-                MultiMongoDbFactory.setDatabaseNameForCurrentThread(dbName);
-                controller = new VariantExporterController(dbName, variantSourceService,
-                                                           variantService, studies, outputStream, evaProperties,
-                                                           queryParameters);
-                // tell the client that the file is an attachment, so it will download it instead of showing it
-                response.addHeader(HttpHeaders.CONTENT_DISPOSITION,
-                                   "attachment;filename=" + controller.getOutputFileName());
-                controller.run();
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+                export(dbName, studies, evaProperties, queryParameters, compress, response, outputStream);
+            } finally {
+                permit.close();
             }
         };
     }
 
+    private void export(String dbName, List<String> studies, Properties evaProperties, QueryParams queryParameters,
+                        boolean compress, HttpServletResponse response, OutputStream outputStream) {
+        try {
+            createExporterController(dbName, studies, evaProperties, queryParameters, compress, response,
+                                     outputStream).run();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private VariantExporterController createExporterController(String dbName, List<String> studies,
+                                                               Properties evaProperties,
+                                                               QueryParams queryParameters, boolean compress,
+                                                               HttpServletResponse response,
+                                                               OutputStream outputStream)
+            throws URISyntaxException {
+        MultiMongoDbFactory.setDatabaseNameForCurrentThread(dbName);
+        VariantExporterController controller = new VariantExporterController(dbName, variantSourceService,
+                                                                             variantService, studies, outputStream,
+                                                                             evaProperties, queryParameters);
+        controller.setCompressOutputStream(compress);
+        // tell the client that the file is an attachment, so it will download it instead of showing it
+        response.addHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment;filename=" + controller.getOutputFileName());
+        controller.setTaskDecorator(new DatabaseNameTaskDecorator());
+        controller.setRegionExecutor(regionExportExecutor);
+        controller.setCompressionExecutor(compressionExecutor);
+        controller.setVariantCoordinatesService(variantCoordinatesService);
+        controller.setHeaderCache(headerCache);
+        controller.setChromosomeExtentService(chromosomeExtentService);
+        controller.setExportMetrics(exportMetrics);
+        return controller;
+    }
+
+    private IncrementalVcfExport startIncrementalExport(String dbName, List<String> studies,
+                                                       QueryParams queryParameters, boolean compress,
+                                                       HttpServletResponse response, OutputStream outputStream) {
+        VariantExporterController controller;
+        try {
+            controller = new VariantExporterController(dbName, variantSourceService, variantService, studies,
+                                                       outputStream, evaProperties, queryParameters);
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+        controller.setCompressOutputStream(compress);
+        response.addHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment;filename=" + controller.getOutputFileName());
+        controller.setCompressionExecutor(compressionExecutor);
+        controller.setVariantCoordinatesService(variantCoordinatesService);
+        controller.setHeaderCache(headerCache);
+        controller.setChromosomeExtentService(chromosomeExtentService);
+        controller.setExportMetrics(exportMetrics);
+        return controller.startIncrementalExport();
+    }
+
     private QueryParams parseQueryParams(String region, List<String> consequenceType, String maf, String polyphenScore,
                                          String siftScore, String reference, String alternate, String missingAlleles,
                                          String missingGenotypes, List<String> exclude) {
@@ -158,6 +447,8 @@ public class VcfDumperController {
         if (exclude != null && !exclude.isEmpty()) {
             queryParameters.setExclusions(exclude);
         }
+        // an invalid filter has to be rejected before the response is committed, not while its body is streamed
+        ExportFilterBuilder.validate(queryParameters);
         return queryParameters;
     }
 }
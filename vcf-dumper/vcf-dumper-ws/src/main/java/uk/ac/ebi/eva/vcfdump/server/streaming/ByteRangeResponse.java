@@ -0,0 +1,92 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.server.streaming;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.util.StreamUtils;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Sends a single byte range of a stored export ('Range: bytes=first-last'), so the clients can resume an interrupted
+ * download.
+ *
+ * The total length of the export is needed to answer a range request, so only the exports that are already stored,
+ * like the cached htsget blocks, accept ranges. The rest are sent whole, and don't advertise 'Accept-Ranges', because
+ * writing them again just to send a range would cost as much as the whole download.
+ */
+public class ByteRangeResponse {
+
+    public static final String BYTES_UNIT = "bytes";
+
+    private ByteRangeResponse() {
+    }
+
+    /**
+     * @param etag entity tag of the export
+     * @return the range requested, if the request is a GET with a single byte range, and its 'If-Range' header, if
+     * present, matches the entity tag. Otherwise the whole export must be sent
+     */
+    public static Optional<HttpRange> getRequestedRange(HttpServletRequest request, String etag) {
+        String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+        if (rangeHeader == null || !HttpMethod.GET.matches(request.getMethod())) {
+            return Optional.empty();
+        }
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange != null && !ifRange.trim().equals(etag)) {
+            return Optional.empty();
+        }
+        List<HttpRange> ranges;
+        try {
+            ranges = HttpRange.parseRanges(rangeHeader);
+        } catch (IllegalArgumentException e) {
+            // a malformed range is ignored, as if the header was not present
+            return Optional.empty();
+        }
+        return ranges.size() == 1 ? Optional.of(ranges.get(0)) : Optional.empty();
+    }
+
+    /**
+     * Sends the range of the stored export with status 206 (Partial Content), or status 416 (Range Not Satisfiable)
+     * if the range starts after the end of the export
+     *
+     * @param length total length of the export
+     * @param export stream of the whole export, positioned at its start
+     */
+    public static void send(HttpRange range, long length, HttpServletResponse response, OutputStream outputStream,
+                            InputStream export) throws IOException {
+        long first = range.getRangeStart(length);
+        long last = range.getRangeEnd(length);
+        if (first >= length || first > last) {
+            response.setStatus(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+            response.setHeader(HttpHeaders.CONTENT_RANGE, BYTES_UNIT + " */" + length);
+            return;
+        }
+        response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+        response.setHeader(HttpHeaders.CONTENT_RANGE, BYTES_UNIT + " " + first + "-" + last + "/" + length);
+        response.setContentLengthLong(last - first + 1);
+        StreamUtils.copyRange(export, outputStream, first, last);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.server.streaming;
+
+import uk.ac.ebi.eva.vcfdump.QueryParams;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+/**
+ * Strong entity tags of the exports. The output of an export only depends on the database, the studies, the query
+ * and the version of the data of the studies, including the default annotation, so an export with the same tag has
+ * exactly the same bytes, and the clients can use the tag to revalidate a download, or to resume it when the export
+ * is stored and accepts ranges.
+ */
+public class ExportETag {
+
+    private static final String GZIP_SUFFIX = "-gzip";
+
+    private ExportETag() {
+    }
+
+    /**
+     * @param compress    whether the export is compressed with BGZF
+     * @param dataVersion version of the files of the studies and of the default annotation, from
+     *                    {@link uk.ac.ebi.eva.vcfdump.services.VariantDataVersionService#getDataVersion}
+     * @return the quoted entity tag of the export
+     */
+    public static String of(String dbName, List<String> studies, QueryParams query, boolean compress,
+                            String dataVersion) {
+        List<String> sortedStudies = new ArrayList<>(studies);
+        Collections.sort(sortedStudies);
+        List<String> fields = Arrays.asList(dbName, String.join(",", sortedStudies), query.getRegion(),
+                                            join(query.getConsequenceType()), query.getMaf(),
+                                            query.getPolyphenScore(), query.getSiftScore(), query.getReference(),
+                                            query.getAlternate(), query.getMissingAlleles(),
+                                            query.getMissingGenotypes(), join(query.getExclusions()),
+                                            String.valueOf(compress), dataVersion);
+        String key = fields.stream().map(Objects::toString).collect(Collectors.joining("\n"));
+        return "\"" + sha256(key) + "\"";
+    }
+
+    /**
+     * @return the entity tag of the gzip encoded representation of the export with the given tag
+     */
+    public static String gzipEncoded(String etag) {
+        return etag.substring(0, etag.length() - 1) + GZIP_SUFFIX + "\"";
+    }
+
+    private static String join(List<String> values) {
+        return values == null ? null : String.join(",", values);
+    }
+
+    private static String sha256(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte digestByte : digest) {
+                hex.append(String.format("%02x", digestByte));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.server.streaming;
+
+import io.micrometer.core.instrument.LongTaskTimer;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import uk.ac.ebi.eva.vcfdump.metrics.ExportMetrics;
+
+/**
+ * Counts a response body as a streaming request in flight while it is being written, see
+ * {@link ExportMetrics#startStreaming}
+ */
+public class MeteredResponseBody {
+
+    private MeteredResponseBody() {
+    }
+
+    /**
+     * @param endpoint name of the endpoint of the response, used as a tag of the metrics
+     */
+    public static StreamingResponseBody of(ExportMetrics exportMetrics, String endpoint,
+                                           StreamingResponseBody responseBody) {
+        return outputStream -> {
+            LongTaskTimer.Sample streaming = exportMetrics.startStreaming(endpoint);
+            try {
+                responseBody.writeTo(outputStream);
+            } finally {
+                streaming.stop();
+            }
+        };
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.server.streaming;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+
+import uk.ac.ebi.eva.vcfdump.IncrementalVcfExport;
+import uk.ac.ebi.eva.vcfdump.InvalidQueryException;
+import uk.ac.ebi.eva.vcfdump.server.admission.ExportRejectedException;
+import uk.ac.ebi.eva.vcfdump.server.configuration.MultiMongoDbFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+
+/**
+ * Streams an export to the client with the non-blocking IO of the servlet container, so no thread is kept busy while
+ * the client is not ready to receive more data.
+ *
+ * The export is written by chunks: a task in the export executor writes regions into an in-memory buffer until it has
+ * at least {@link #CHUNK_SIZE} bytes, and the chunk is sent to the client when the container says the connection is
+ * ready. The next chunk is only exported after the previous one has been accepted by the container, so a slow client
+ * holds at most one chunk in memory, and the threads of the executor are shared by all the downloads.
+ *
+ * Regions are never split, so a chunk is not bounded by {@link #CHUNK_SIZE} but by that plus the size of the biggest
+ * region of the export, which depends on the density of the variants and the target variants per window.
+ */
+public class NonBlockingExportWriter implements WriteListener, AsyncListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(NonBlockingExportWriter.class);
+
+    static final int CHUNK_SIZE = 256 * 1024;
+
+    private final AsyncContext asyncContext;
+
+    private final ServletOutputStream servletOutputStream;
+
+    private final Executor exportExecutor;
+
+    private final String dbName;
+
+    private final Function<OutputStream, IncrementalVcfExport> exportStarter;
+
+    private final Runnable onComplete;
+
+    private final ChunkBuffer chunkBuffer;
+
+    private IncrementalVcfExport export;
+
+    private byte[] pendingChunk;
+
+    private boolean exporting;
+
+    private boolean exportFinished;
+
+    private boolean completed;
+
+    /**
+     * @param exportStarter starts the export writing into the given stream; it runs in the export executor, the first
+     *                      time a chunk is needed
+     */
+    private NonBlockingExportWriter(AsyncContext asyncContext, Executor exportExecutor, String dbName,
+                                    Function<OutputStream, IncrementalVcfExport> exportStarter, Runnable onComplete)
+            throws IOException {
+        this.asyncContext = asyncContext;
+        this.servletOutputStream = asyncContext.getResponse().getOutputStream();
+        this.exportExecutor = exportExecutor;
+        this.dbName = dbName;
+        this.exportStarter = exportStarter;
+        this.onComplete = onComplete;
+        this.chunkBuffer = new ChunkBuffer(CHUNK_SIZE);
+    }
+
+    /**
+     * Takes over the response of an asynchronous request, which must have been started already. The export is not
+     * sent until {@link #start} is called, but the download can time out or be abandoned by the client before that.
+     *
+     * @param timeoutMillis time the download can take, including the time before it starts, or 0 for no limit
+     * @param onComplete    runs when the download finishes, successfully or not, even if it never started
+     */
+    public static NonBlockingExportWriter prepare(AsyncContext asyncContext, long timeoutMillis,
+                                                  Executor exportExecutor, String dbName,
+                                                  Function<OutputStream, IncrementalVcfExport> exportStarter,
+                                                  Runnable onComplete) throws IOException {
+        NonBlockingExportWriter writer = new NonBlockingExportWriter(asyncContext, exportExecutor, dbName,
+                                                                     exportStarter, onComplete);
+        asyncContext.setTimeout(timeoutMillis);
+        asyncContext.addListener(writer);
+        return writer;
+    }
+
+    /**
+     * Starts sending the export to the client, unless the download has finished already
+     */
+    public synchronized void start() {
+        if (!completed) {
+            // the container calls 'onWritePossible' as soon as the listener is set
+            servletOutputStream.setWriteListener(this);
+        }
+    }
+
+    /**
+     * Sends an error to the client instead of the export, e.g. because the scheduler rejected it
+     */
+    public synchronized void reject(Throwable error) {
+        if (completed) {
+            return;
+        }
+        HttpServletResponse response = (HttpServletResponse) asyncContext.getResponse();
+        if (!response.isCommitted()) {
+            response.reset();
+            if (error instanceof ExportRejectedException) {
+                response.setHeader(HttpHeaders.RETRY_AFTER,
+                                   String.valueOf(((ExportRejectedException) error).getRetryAfterSeconds()));
+                response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+            } else {
+                logger.error("Export to the client could not start", error);
+                response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            }
+        }
+        complete();
+    }
+
+    @Override
+    public void onWritePossible() throws IOException {
+        sendAvailableData();
+    }
+
+    /**
+     * Sends the pending chunk while the connection is ready, and asks the executor for the next one when it has been
+     * sent. When the connection stops being ready, the container calls {@link #onWritePossible} again later.
+     */
+    private synchronized void sendAvailableData() throws IOException {
+        while (!completed && servletOutputStream.isReady()) {
+            if (pendingChunk != null) {
+                byte[] chunk = pendingChunk;
+                pendingChunk = null;
+                servletOutputStream.write(chunk);
+            } else if (exportFinished) {
+                complete();
+            } else {
+                if (!exporting) {
+                    exporting = true;
+                    try {
+                        exportExecutor.execute(this::exportNextChunk);
+                    } catch (RejectedExecutionException e) {
+                        exporting = false;
+                        fail(e);
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    private void exportNextChunk() {
+        MultiMongoDbFactory.setDatabaseNameForCurrentThread(dbName);
+        try {
+            if (isCompleted()) {
+                closeExport();
+                return;
+            }
+            if (export == null) {
+                export = exportStarter.apply(chunkBuffer);
+            }
+            boolean moreRegions = true;
+            while (chunkBuffer.size() < CHUNK_SIZE && (moreRegions = export.exportNextRegion())) {
+                // keep exporting until the chunk is big enough
+            }
+            if (!moreRegions) {
+                export.close();
+            }
+            byte[] chunk = chunkBuffer.drain();
+            synchronized (this) {
+                pendingChunk = chunk.length > 0 ? chunk : null;
+                exportFinished = !moreRegions;
+                exporting = false;
+            }
+            if (isCompleted()) {
+                // the download was abandoned while the chunk was being exported
+                closeExport();
+                return;
+            }
+            sendAvailableData();
+        } catch (Exception e) {
+            fail(e);
+        } finally {
+            MultiMongoDbFactory.clearDatabaseNameForCurrentThread();
+        }
+    }
+
+    private synchronized void fail(Exception e) {
+        if (e instanceof InvalidQueryException) {
+            logger.info("Rejected invalid export: {}", e.getMessage());
+        } else {
+            logger.error("Export to the client failed", e);
+        }
+        closeExport();
+        HttpServletResponse response = (HttpServletResponse) asyncContext.getResponse();
+        if (!response.isCommitted()) {
+            response.reset();
+            response.setStatus(e instanceof InvalidQueryException ? HttpServletResponse.SC_BAD_REQUEST
+                                                                  : HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        }
+        complete();
+    }
+
+    private synchronized boolean isCompleted() {
+        return completed;
+    }
+
+    private synchronized void complete() {
+        if (!completed) {
+            completed = true;
+            asyncContext.complete();
+        }
+    }
+
+    private void closeExport() {
+        try {
+            if (export != null) {
+                export.close();
+            }
+        } catch (Exception e) {
+            logger.warn("Error closing an abandoned export: {}", e.getMessage());
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        logger.warn("Client connection failed during the export: {}", throwable.getMessage());
+        abandon();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        logger.warn("Export to the client timed out");
+        abandon();
+    }
+
+    /**
+     * Stops the download. If a chunk is being exported, the task that exports it closes the export when it finishes
+     */
+    private synchronized void abandon() {
+        complete();
+        if (!exporting) {
+            closeExport();
+        }
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        onComplete.run();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        onError(event.getThrowable());
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+    }
+
+    /**
+     * Buffer of the chunk being exported. Only the task exporting the chunk writes into it and drains it: the
+     * compression threads of a compressed export deflate the blocks, but they are written to the buffer in order by
+     * the thread exporting the regions. {@link ByteArrayOutputStream} makes the chunks written by one task visible to
+     * the next one, which can run in another thread of the executor.
+     */
+    private static class ChunkBuffer extends ByteArrayOutputStream {
+
+        private final int chunkSize;
+
+        ChunkBuffer(int chunkSize) {
+            super(chunkSize);
+            this.chunkSize = chunkSize;
+        }
+
+        /**
+         * @return the bytes written since the last call, which are removed from the buffer. The buffer shrinks back to
+         * the chunk size if a big region made it grow, so it doesn't keep that memory for the rest of the download
+         */
+        synchronized byte[] drain() {
+            byte[] bytes = toByteArray();
+            if (buf.length > chunkSize) {
+                buf = new byte[chunkSize];
+            }
+            reset();
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.server.admission;
+
+import org.junit.Test;
+
+import uk.ac.ebi.eva.commons.core.models.Region;
+import uk.ac.ebi.eva.vcfdump.services.ChromosomeExtent;
+import uk.ac.ebi.eva.vcfdump.services.ChromosomeExtentService;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class ExportCostEstimatorTest {
+
+    private static final double DELTA = 1e-9;
+
+    private final ChromosomeExtent extent = new ChromosomeExtent(1001, 2000, 100);
+
+    @Test
+    public void variantsAreProportionalToTheCoveredExtent() {
+        assertEquals(50, ExportCostEstimator.estimateVariants(extent, new Region("1", 1001L, 1500L)), DELTA);
+        assertEquals(10, ExportCostEstimator.estimateVariants(extent, new Region("1", 1L, 1100L)), DELTA);
+        assertEquals(20, ExportCostEstimator.estimateVariants(extent, new Region("1", 1801L, 5000L)), DELTA);
+    }
+
+    @Test
+    public void wholeChromosomeHasAllTheVariants() {
+        assertEquals(100, ExportCostEstimator.estimateVariants(extent, new Region("1", null, null)), DELTA);
+        assertEquals(100, ExportCostEstimator.estimateVariants(extent, new Region("1", 1L, 10000L)), DELTA);
+    }
+
+    @Test
+    public void regionOutsideTheExtentHasNoVariants() {
+        assertEquals(0, ExportCostEstimator.estimateVariants(extent, new Region("1", 1L, 1000L)), DELTA);
+        assertEquals(0, ExportCostEstimator.estimateVariants(extent, new Region("1", 2001L, 3000L)), DELTA);
+    }
+
+    @Test
+    public void studiesOutsideTheCatalogueCostAFixedNumberOfVariantsPerRegion() {
+        // the estimate never builds the catalogue of extents, so it doesn't need a database
+        ExportCostEstimator estimator = new ExportCostEstimator(new ChromosomeExtentService(null), 1000);
+        assertEquals(4000, estimator.estimateVariants("db", Arrays.asList("7", "8"), "1:1-100,2:1-100"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void costOfTheStudiesOutsideTheCatalogueCantBeNegative() {
+        new ExportCostEstimator(new ChromosomeExtentService(null), -1);
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.server.admission;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class ExportSchedulerTest {
+
+    private static final long RETRY_AFTER_SECONDS = 30;
+
+    private static final long NO_WAIT_LIMIT = 0;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void exportsAreAdmittedUpToTheLimit() {
+        ExportScheduler scheduler = new ExportScheduler(2, 0, 0, 0, NO_WAIT_LIMIT, RETRY_AFTER_SECONDS, null);
+        ExportScheduler.Permit firstPermit = scheduler.admit("client1", 10);
+        scheduler.admit("client2", 10);
+        assertEquals(2, scheduler.getRunningExports());
+        assertEquals(20, scheduler.getInFlightCost());
+        assertRejected(scheduler, "client3", 10);
+
+        firstPermit.close();
+        // closing a permit twice doesn't release another export
+        firstPermit.close();
+        assertEquals(1, scheduler.getRunningExports());
+        scheduler.admit("client3", 10);
+        assertEquals(2, scheduler.getRunningExports());
+    }
+
+    @Test
+    public void clientsCanNotExceedTheirLimit() {
+        ExportScheduler scheduler = new ExportScheduler(0, 1, 0, 0, NO_WAIT_LIMIT, RETRY_AFTER_SECONDS, null);
+        ExportScheduler.Permit permit = scheduler.admit("client1", 10);
+        assertRejected(scheduler, "client1", 10);
+        scheduler.admit("client2", 10);
+
+        permit.close();
+        scheduler.admit("client1", 10);
+        assertEquals(2, scheduler.getRunningExports());
+    }
+
+    @Test
+    public void exportsAreLimitedByTheirCost() {
+        ExportScheduler scheduler = new ExportScheduler(0, 0, 100, 0, NO_WAIT_LIMIT, RETRY_AFTER_SECONDS, null);
+        scheduler.admit("client1", 60);
+        assertRejected(scheduler, "client2", 60);
+        scheduler.admit("client2", 40);
+        assertEquals(100, scheduler.getInFlightCost());
+    }
+
+    @Test
+    public void exportBiggerThanTheCostLimitRunsAlone() {
+        ExportScheduler scheduler = new ExportScheduler(0, 0, 100, 0, NO_WAIT_LIMIT, RETRY_AFTER_SECONDS, null);
+        ExportScheduler.Permit permit = scheduler.admit("client1", 1000);
+        assertRejected(scheduler, "client2", 1);
+
+        permit.close();
+        assertEquals(0, scheduler.getInFlightCost());
+        scheduler.admit("client2", 1);
+    }
+
+    @Test
+    public void queuedExportIsAdmittedWhenARunningOneFinishes() throws Exception {
+        ExportScheduler scheduler = new ExportScheduler(1, 0, 0, 1, NO_WAIT_LIMIT, RETRY_AFTER_SECONDS, null);
+        ExportScheduler.Permit permit = scheduler.admit("client1", 10);
+        Future<ExportScheduler.Permit> queuedPermit = executor.submit(() -> scheduler.admit("client2", 20));
+        waitUntilQueued(scheduler, 1);
+        // the queue is full
+        assertRejected(scheduler, "client3", 10);
+        assertFalse(queuedPermit.isDone());
+
+        permit.close();
+        queuedPermit.get(5, TimeUnit.SECONDS);
+        assertEquals(0, scheduler.getQueuedExports());
+        assertEquals(1, scheduler.getRunningExports());
+        assertEquals(20, scheduler.getInFlightCost());
+    }
+
+    @Test
+    public void queuedExportIsRejectedAfterTheMaximumWait() throws Exception {
+        ExportScheduler scheduler = new ExportScheduler(1, 1, 0, 1, 100, RETRY_AFTER_SECONDS, null);
+        ExportScheduler.Permit permit = scheduler.admit("client1", 10);
+        Future<ExportScheduler.Permit> queuedPermit = executor.submit(() -> scheduler.admit("client2", 20));
+        try {
+            queuedPermit.get(5, TimeUnit.SECONDS);
+            fail("The export should have been rejected");
+        } catch (ExecutionException e) {
+            assertEquals(ExportRejectedException.class, e.getCause().getClass());
+        }
+        assertEquals(0, scheduler.getQueuedExports());
+
+        // the rejected export doesn't count against the limit of its client
+        permit.close();
+        scheduler.admit("client2", 10);
+    }
+
+    @Test
+    public void clientIsIdentifiedByTheConfiguredHeader() {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setRemoteAddr("10.0.0.1");
+        ExportScheduler scheduler = new ExportScheduler(0, 0, 0, 0, NO_WAIT_LIMIT, RETRY_AFTER_SECONDS, null);
+        assertEquals("10.0.0.1", scheduler.getClientId(request));
+
+        scheduler = new ExportScheduler(0, 0, 0, 0, NO_WAIT_LIMIT, RETRY_AFTER_SECONDS, "X-Forwarded-For");
+        assertEquals("10.0.0.1", scheduler.getClientId(request));
+        // the client can forge the left-most addresses, so the one appended by the trusted proxy is used
+        request.addHeader("X-Forwarded-For", "forged, 192.168.1.1, 10.0.0.2");
+        assertEquals("10.0.0.2", scheduler.getClientId(request));
+        scheduler.setTrustedProxies(2);
+        assertEquals("192.168.1.1", scheduler.getClientId(request));
+        scheduler.setTrustedProxies(5);
+        assertEquals("forged", scheduler.getClientId(request));
+    }
+
+    @Test
+    public void queuedExportDoesNotBlockTheCaller() throws Exception {
+        ExportScheduler scheduler = new ExportScheduler(1, 0, 0, 1, NO_WAIT_LIMIT, RETRY_AFTER_SECONDS, null);
+        ExportScheduler.Permit permit = scheduler.admit("client1", 10);
+        CompletableFuture<ExportScheduler.Permit> admission = scheduler.admitAsync("client2", 20);
+        assertFalse(admission.isDone());
+        assertEquals(1, scheduler.getQueuedExports());
+
+        permit.close();
+        admission.get(5, TimeUnit.SECONDS);
+        assertEquals(1, scheduler.getRunningExports());
+        assertEquals(20, scheduler.getInFlightCost());
+    }
+
+    @Test
+    public void releasedAdmissionIsRemovedFromTheQueueOrClosed() {
+        ExportScheduler scheduler = new ExportScheduler(1, 1, 0, 1, NO_WAIT_LIMIT, RETRY_AFTER_SECONDS, null);
+        CompletableFuture<ExportScheduler.Permit> runningAdmission = scheduler.admitAsync("client1", 10);
+        CompletableFuture<ExportScheduler.Permit> queuedAdmission = scheduler.admitAsync("client2", 10);
+        assertEquals(1, scheduler.getQueuedExports());
+
+        ExportScheduler.releaseAdmission(queuedAdmission);
+        assertEquals(0, scheduler.getQueuedExports());
+        // the abandoned export doesn't count against the limit of its client
+        ExportScheduler.releaseAdmission(runningAdmission);
+        assertEquals(0, scheduler.getRunningExports());
+        scheduler.admit("client2", 10);
+    }
+
+    @Test
+    public void rejectionCompletesTheAdmission() {
+        ExportScheduler scheduler = new ExportScheduler(1, 0, 0, 0, NO_WAIT_LIMIT, RETRY_AFTER_SECONDS, null);
+        scheduler.admit("client1", 10);
+        CompletableFuture<ExportScheduler.Permit> admission = scheduler.admitAsync("client2", 10);
+        try {
+            admission.join();
+            fail("The export should have been rejected");
+        } catch (CompletionException e) {
+            assertEquals(ExportRejectedException.class, e.getCause().getClass());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeLimitsAreRejected() {
+        new ExportScheduler(-1, 0, 0, 0, NO_WAIT_LIMIT, RETRY_AFTER_SECONDS, null);
+    }
+
+    private void assertRejected(ExportScheduler scheduler, String client, long cost) {
+        try {
+            scheduler.admit(client, cost);
+            fail("The export of " + client + " should have been rejected");
+        } catch (ExportRejectedException e) {
+            assertEquals(RETRY_AFTER_SECONDS, e.getRetryAfterSeconds());
+        }
+    }
+
+    private void waitUntilQueued(ExportScheduler scheduler, int queuedExports) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (scheduler.getQueuedExports() < queuedExports) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new TimeoutException("The export was not queued");
+            }
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2018 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.server.cache;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.util.StreamUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.Random;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HtsgetBlockCacheTest {
+
+    private static final long MAX_DISK_BYTES = 10000;
+
+    private static final String DB_NAME = "eva_hsapiens_grch37";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path cacheDirectory;
+
+    @Before
+    public void setUp() {
+        cacheDirectory = temporaryFolder.getRoot().toPath().resolve("blocks");
+    }
+
+    @Test
+    public void exportedBlockIsSentAndCached() throws IOException {
+        HtsgetBlockCache cache = new HtsgetBlockCache(cacheDirectory, MAX_DISK_BYTES, 0);
+        HtsgetBlockKey key = getKey("1:1-1000", "v1");
+        byte[] block = "1\t100\t.\tA\tG\t.\t.\t.\n".getBytes();
+
+        assertFalse(cache.get(key).isPresent());
+        byte[] response = export(cache, key, block);
+
+        assertArrayEquals(block, response);
+        assertArrayEquals(block, getCachedBlock(cache, key));
+        // the same studies in another order are the same block
+        assertArrayEquals(block, getCachedBlock(cache, new HtsgetBlockKey(DB_NAME, Arrays.asList("8", "7"),
+                                                                          "1:1-1000", "v1")));
+    }
+
+    @Test
+    public void blockIsNotCachedIfTheExportFails() throws IOException {
+        HtsgetBlockCache cache = new HtsgetBlockCache(cacheDirectory, MAX_DISK_BYTES, 0);
+        HtsgetBlockKey key = getKey("1:1-1000", "v1");
+
+        HtsgetBlockCache.CachingOutputStream outputStream = cache.put(key, new ByteArrayOutputStream());
+        outputStream.write(getRandomBytes(100));
+        outputStream.abort();
+
+        assertFalse(cache.get(key).isPresent());
+        try (Stream<Path> files = Files.list(cacheDirectory)) {
+            assertFalse(files.findAny().isPresent());
+        }
+    }
+
+    @Test
+    public void blockIsExportedAgainWhenTheDataVersionChanges() throws IOException {
+        HtsgetBlockCache cache = new HtsgetBlockCache(cacheDirectory, MAX_DISK_BYTES, 0);
+        export(cache, getKey("1:1-1000", "v1"), getRandomBytes(100));
+
+        assertTrue(cache.get(getKey("1:1-1000", "v1")).isPresent());
+        assertFalse(cache.get(getKey("1:1-1000", "v2")).isPresent());
+        assertFalse(cache.get(getKey("1:1001-2000", "v1")).isPresent());
+    }
+
+    @Test
+    public void leastRecentlyUsedBlocksAreEvictedFirst() throws IOException {
+        HtsgetBlockCache cache = new HtsgetBlockCache(cacheDirectory, MAX_DISK_BYTES, 0);
+        // random data can't be compressed, so only two blocks fit in the cache
+        HtsgetBlockKey first = getKey("1:1-1000", "v1");
+        HtsgetBlockKey second = getKey("1:1001-2000", "v1");
+        HtsgetBlockKey third = getKey("1:2001-3000", "v1");
+        export(cache, first, getRandomBytes(4000));
+        export(cache, second, getRandomBytes(4000));
+        getCachedBlock(cache, first);
+        export(cache, third, getRandomBytes(4000));
+
+        assertTrue(cache.get(first).isPresent());
+        assertFalse(cache.get(second).isPresent());
+        assertTrue(cache.get(third).isPresent());
+    }
+
+    @Test
+    public void hotBlocksAreKeptInMemory() throws IOException {
+        HtsgetBlockCache cache = new HtsgetBlockCache(cacheDirectory, MAX_DISK_BYTES, 1024 * 1024);
+        HtsgetBlockKey key = getKey("1:1-1000", "v1");
+        byte[] block = getRandomBytes(1000);
+        export(cache, key, block);
+        getCachedBlock(cache, key);
+
+        try (Stream<Path> files = Files.list(cacheDirectory)) {
+            files.forEach(file -> file.toFile().delete());
+        }
+        assertArrayEquals(block, getCachedBlock(cache, key));
+    }
+
+    @Test
+    public void cachedBlocksAreKeptAfterARestart() throws IOException {
+        HtsgetBlockKey key = getKey("1:1-1000", "v1");
+        byte[] block = getRandomBytes(1000);
+        export(new HtsgetBlockCache(cacheDirectory, MAX_DISK_BYTES, 0), key, block);
+        Path unfinishedBlock = Files.createTempFile(cacheDirectory, "unfinished", ".tmp");
+
+        HtsgetBlockCache restartedCache = new HtsgetBlockCache(cacheDirectory, MAX_DISK_BYTES, 0);
+        assertArrayEquals(block, getCachedBlock(restartedCache, key));
+        assertFalse(Files.exists(unfinishedBlock));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void maxDiskSizeIsRequired() throws IOException {
+        new HtsgetBlockCache(cacheDirectory, 0, 0);
+    }
+
+    private HtsgetBlockKey getKey(String region, String dataVersion) {
+        return new HtsgetBlockKey(DB_NAME, Arrays.asList("7", "8"), region, dataVersion);
+    }
+
+    private byte[] export(HtsgetBlockCache cache, HtsgetBlockKey key, byte[] block) throws IOException {
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        try (HtsgetBlockCache.CachingOutputStream outputStream = cache.put(key, response)) {
+            outputStream.write(block);
+        }
+        return response.toByteArray();
+    }
+
+    /**
+     * @return the decompressed block, after checking that its length is the one given by the cache
+     */
+    private byte[] getCachedBlock(HtsgetBlockCache cache, HtsgetBlockKey key) throws IOException {
+        Optional<HtsgetBlockCache.CachedBlock> cachedBlock = cache.get(key);
+        assertTrue(cachedBlock.isPresent());
+        try (InputStream inputStream = new GZIPInputStream(cachedBlock.get().getPayload())) {
+            byte[] block = StreamUtils.copyToByteArray(inputStream);
+            assertEquals(block.length, cachedBlock.get().getLength());
+            return block;
+        }
+    }
+
+    private byte[] getRandomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+}
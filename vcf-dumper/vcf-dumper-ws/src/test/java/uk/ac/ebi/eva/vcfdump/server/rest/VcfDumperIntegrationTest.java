@@ -29,17 +29,26 @@ import com.mongodb.client.MongoDatabase;
 import org.bson.Document;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.web.client.TestRestTemplate;
 import org.springframework.context.ApplicationContext;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit4.SpringRunner;
 
+import uk.ac.ebi.eva.vcfdump.server.admission.ExportScheduler;
+import uk.ac.ebi.eva.vcfdump.server.cache.HtsgetBlockCache;
+import uk.ac.ebi.eva.vcfdump.server.model.ExportSchedulerStatus;
 import uk.ac.ebi.eva.vcfdump.server.model.HtsGetResponse;
 import uk.ac.ebi.eva.vcfdump.server.model.UrlResponse;
 
@@ -48,13 +57,19 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 @RunWith(SpringRunner.class)
 @SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
@@ -75,6 +90,16 @@ public class VcfDumperIntegrationTest {
 
     private static final int BLOCK_SIZE = 1000;
 
+    /**
+     * Value of 'eva.ws.admission.max-exports-per-client' in eva.properties
+     */
+    private static final int MAX_EXPORTS_PER_CLIENT = 2;
+
+    /**
+     * Addresses that the test client can have, depending on whether the server listens on IPv4 or IPv6
+     */
+    private static final List<String> LOOPBACK_ADDRESSES = Arrays.asList("127.0.0.1", "0:0:0:0:0:0:0:1");
+
     @Autowired
     private ApplicationContext applicationContext;
 
@@ -87,6 +112,18 @@ public class VcfDumperIntegrationTest {
     @Autowired
     private ObjectMapper objectMapper;
 
+    @Autowired
+    private VcfDumperController vcfDumperController;
+
+    @Autowired
+    private ExportScheduler exportScheduler;
+
+    @Autowired
+    private HtsgetVcfController htsgetVcfController;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @Before
     public void setUp() throws Exception {
         createHorseDatabase();
@@ -131,6 +168,9 @@ public class VcfDumperIntegrationTest {
 
     @After
     public void tearDown() {
+        vcfDumperController.setNonBlockingStreaming(false);
+        htsgetVcfController.setTargetVariantsPerBlock(0);
+        htsgetVcfController.setBlockCache(null);
         mongoClient.getDatabase(EVA_ECABALLUS_20_DB).drop();
         mongoClient.getDatabase(EVA_NO_VARIANTS_DB).drop();
     }
@@ -146,14 +186,29 @@ public class VcfDumperIntegrationTest {
         assertUrls(response, 3000000, 3010000);
     }
 
+    /**
+     * The only variant in the range is at 1:3000829, so the range is a single block when the blocks are balanced
+     */
+    @Test
+    public void getHtsgetUrlsBalancedByVariantCount() {
+        htsgetVcfController.setTargetVariantsPerBlock(1);
+        String url = "/v1/variants/PRJEB9799?format=VCF&referenceName=1&species=ecaballus_20&start=3000000&end=3010000";
+        ResponseEntity<String> response = restTemplate.getForEntity(url, String.class);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertUrls(response, 1);
+    }
+
     private void assertUrls(ResponseEntity<String> response, int start, int end) {
+        assertUrls(response, expectedNumberOfBlocks(start, end));
+    }
+
+    private void assertUrls(ResponseEntity<String> response, int expectedNumberOfBlocks) {
         HtsGetResponse htsGetResponse = getUrlsFromResponse(response);
         assertEquals("VCF", htsGetResponse.getFormat());
         List<UrlResponse> urls = htsGetResponse.getUrls();
         long numberOfHeaderUrls = urls.stream().filter(u -> u.getUrlClass().equals("header")).count();
         assertEquals(1, numberOfHeaderUrls);
         long numberOfBodyUrls = urls.stream().filter(u -> u.getUrlClass().equals("body")).count();
-        int expectedNumberOfBlocks = expectedNumberOfBlocks(start, end);
         assertEquals(expectedNumberOfBlocks, numberOfBodyUrls);
     }
 
@@ -295,4 +350,184 @@ public class VcfDumperIntegrationTest {
         assertVcfHeader(response.getBody(), 41);
         assertBody(response.getBody(), 1);
     }
+
+    @Test
+    public void vcfDumperExportsRegionLists() {
+        String url = "/v1/segments/variants?species=ecaballus_20&studies=PRJEB9799";
+        String regionList = "# panel\n1\t3000799\t3000900\n1\t3000828\t3000830\n2\t1000\t2000\n";
+        ResponseEntity<String> response = postRegionList(url, regionList);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertVcfHeader(response.getBody(), 41);
+        assertBody(response.getBody(), 1);
+    }
+
+    @Test
+    public void vcfDumperRejectsInvalidRegionLists() {
+        String url = "/v1/segments/variants?species=ecaballus_20&studies=PRJEB9799";
+        assertEquals(HttpStatus.BAD_REQUEST, postRegionList(url, "1\t3000900\t3000799\n").getStatusCode());
+        assertEquals(HttpStatus.BAD_REQUEST, postRegionList(url, "# no regions\n").getStatusCode());
+    }
+
+    private ResponseEntity<String> postRegionList(String url, String regionList) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.TEXT_PLAIN);
+        return restTemplate.exchange(url, HttpMethod.POST, new HttpEntity<>(regionList, headers), String.class);
+    }
+
+    @Test
+    public void vcfDumperWithNonBlockingStreaming() {
+        vcfDumperController.setNonBlockingStreaming(true);
+        String url = "/v1/segments/1:3000800-3000900/variants?species=ecaballus_20&studies=PRJEB9799";
+        ResponseEntity<String> response = restTemplate.getForEntity(url, String.class);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertVcfHeader(response.getBody(), 41);
+        assertBody(response.getBody(), 1);
+    }
+
+    @Test
+    public void vcfDumperWithNonBlockingStreamingReportsInvalidParameters() {
+        vcfDumperController.setNonBlockingStreaming(true);
+        String url = "/v1/segments/1:3000800-3000900/variants?species=ecaballus_20&studies=PRJEB9799" +
+                "&miss_gts=many";
+        ResponseEntity<String> response = restTemplate.getForEntity(url, String.class);
+        assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+    }
+
+    @Test
+    public void vcfDumperRejectsExportsOfClientsWithTooManyExports() {
+        List<ExportScheduler.Permit> permits = new ArrayList<>();
+        try {
+            for (String address : LOOPBACK_ADDRESSES) {
+                for (int i = 0; i < MAX_EXPORTS_PER_CLIENT; i++) {
+                    permits.add(exportScheduler.admit(address, 0));
+                }
+            }
+            String url = "/v1/segments/1:3000800-3000900/variants?species=ecaballus_20&studies=PRJEB9799";
+            ResponseEntity<String> response = restTemplate.getForEntity(url, String.class);
+            assertEquals(HttpStatus.TOO_MANY_REQUESTS, response.getStatusCode());
+            assertEquals("30", response.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+
+            ResponseEntity<ExportSchedulerStatus> status = restTemplate.getForEntity("/v1/scheduler/status",
+                                                                                     ExportSchedulerStatus.class);
+            assertEquals(HttpStatus.OK, status.getStatusCode());
+            assertTrue(status.getBody().getRunningExports() >= permits.size());
+            assertEquals(0, status.getBody().getQueuedExports());
+        } finally {
+            permits.forEach(ExportScheduler.Permit::close);
+        }
+    }
+
+    @Test
+    public void exportMetricsArePublishedByTheActuator() {
+        String url = "/v1/segments/1:3000800-3000900/variants?species=ecaballus_20&studies=PRJEB9799";
+        assertEquals(HttpStatus.OK, restTemplate.getForEntity(url, String.class).getStatusCode());
+
+        ResponseEntity<String> metrics = restTemplate.getForEntity("/actuator/prometheus", String.class);
+        assertEquals(HttpStatus.OK, metrics.getStatusCode());
+        assertTrue(metrics.getBody().contains("vcf_export_variants_total{stage=\"converted\",}"));
+        assertTrue(metrics.getBody().contains("vcf_export_queries_seconds_count{query=\"variants\",}"));
+        assertTrue(metrics.getBody().contains("vcf_export_admission_running"));
+    }
+
+    @Test
+    public void vcfDumperIsNotSentAgainIfNotModified() {
+        String url = "/v1/segments/1:3000800-3000900/variants?species=ecaballus_20&studies=PRJEB9799";
+        ResponseEntity<String> response = restTemplate.getForEntity(url, String.class);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        String etag = response.getHeaders().getETag();
+        assertNotNull(etag);
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.setIfNoneMatch(etag);
+        ResponseEntity<String> revalidation = exchange(url, headers);
+        assertEquals(HttpStatus.NOT_MODIFIED, revalidation.getStatusCode());
+        assertEquals(etag, revalidation.getHeaders().getETag());
+
+        String otherRegionUrl = "/v1/segments/1:3000800-3000901/variants?species=ecaballus_20&studies=PRJEB9799";
+        assertEquals(HttpStatus.OK, exchange(otherRegionUrl, headers).getStatusCode());
+    }
+
+    /**
+     * The segments are not stored, so they don't accept ranges: a range request gets the whole export
+     */
+    @Test
+    public void vcfDumperSendsTheWholeExportToRangeRequests() {
+        String url = "/v1/segments/1:3000800-3000900/variants?species=ecaballus_20&studies=PRJEB9799";
+        assertWholeExportSentToRangeRequests(url);
+    }
+
+    @Test
+    public void getHtsgetBlocksSendsTheWholeExportToRangeRequestsIfNotCached() {
+        String url = "/v1/variants/block?studies=PRJEB9799&species=ecaballus_20&region=1:3000000-3000999";
+        assertWholeExportSentToRangeRequests(url);
+    }
+
+    @Test
+    public void getHtsgetBlocksSendsByteRangesOfCachedBlocks() throws Exception {
+        Path cacheDirectory = temporaryFolder.newFolder().toPath();
+        htsgetVcfController.setBlockCache(new HtsgetBlockCache(cacheDirectory, 1024 * 1024, 0));
+        String url = "/v1/variants/block?studies=PRJEB9799&species=ecaballus_20&region=1:3000000-3000999";
+        ResponseEntity<String> fullResponse = restTemplate.getForEntity(url, String.class);
+        assertEquals(HttpStatus.OK, fullResponse.getStatusCode());
+        assertNull(fullResponse.getHeaders().getFirst(HttpHeaders.ACCEPT_RANGES));
+        waitUntilBlockIsCached(cacheDirectory);
+        String body = fullResponse.getBody();
+        String etag = fullResponse.getHeaders().getETag();
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RANGE, "bytes=10-");
+        headers.set(HttpHeaders.IF_RANGE, etag);
+        ResponseEntity<String> response = exchange(url, headers);
+        assertEquals(HttpStatus.PARTIAL_CONTENT, response.getStatusCode());
+        assertEquals("bytes", response.getHeaders().getFirst(HttpHeaders.ACCEPT_RANGES));
+        assertEquals(body.substring(10), response.getBody());
+        assertEquals("bytes 10-" + (body.length() - 1) + "/" + body.length(),
+                     response.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE));
+
+        headers.set(HttpHeaders.RANGE, "bytes=" + body.length() + "-");
+        response = exchange(url, headers);
+        assertEquals(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE, response.getStatusCode());
+        assertEquals("bytes */" + body.length(), response.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE));
+
+        // a range of an old version of the block is ignored, and the whole block is sent
+        headers.set(HttpHeaders.RANGE, "bytes=10-");
+        headers.set(HttpHeaders.IF_RANGE, "\"old-version\"");
+        response = exchange(url, headers);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(body, response.getBody());
+    }
+
+    private void assertWholeExportSentToRangeRequests(String url) {
+        ResponseEntity<String> fullResponse = restTemplate.getForEntity(url, String.class);
+        assertEquals(HttpStatus.OK, fullResponse.getStatusCode());
+        assertNull(fullResponse.getHeaders().getFirst(HttpHeaders.ACCEPT_RANGES));
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RANGE, "bytes=10-");
+        headers.set(HttpHeaders.IF_RANGE, fullResponse.getHeaders().getETag());
+        ResponseEntity<String> response = exchange(url, headers);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertNull(response.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE));
+        assertEquals(fullResponse.getBody(), response.getBody());
+    }
+
+    /**
+     * The block is added to the cache when the export stream is closed, which can be after the client has received
+     * the whole response
+     */
+    private void waitUntilBlockIsCached(Path cacheDirectory) throws IOException, InterruptedException {
+        for (int attempt = 0; attempt < 50; attempt++) {
+            try (Stream<Path> files = Files.list(cacheDirectory)) {
+                if (files.anyMatch(file -> file.getFileName().toString().endsWith(".vcf.gz"))) {
+                    return;
+                }
+            }
+            Thread.sleep(100);
+        }
+        fail("The block was not cached");
+    }
+
+    private ResponseEntity<String> exchange(String url, HttpHeaders headers) {
+        return restTemplate.exchange(url, HttpMethod.GET, new HttpEntity<>(headers), String.class);
+    }
 }